@@ -0,0 +1,101 @@
+package at.okfn.uncomtrade.benchmark;
+
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.okfn.uncomtrade.Aggregation;
+import at.okfn.uncomtrade.DataSet;
+
+
+/**
+ * Measures aggregating a data set, grouped by different sets of properties.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class AggregationBenchmark {
+
+    /**
+     * The number of data rows in the data set.
+     */
+    @Param({ "1000", "50000", "1000000" })
+    public int rows;
+
+    /**
+     * The comma-separated properties to group by, from no grouping to a
+     * group per row.
+     */
+    @Param({ "", "rtCode", "rtCode,ptCode", "yr,rgCode,rtCode,cmdCode" })
+    public String groupBy;
+
+    /**
+     * The data set to aggregate.
+     */
+    protected DataSet dataSet;
+
+    /**
+     * The properties to group by.
+     */
+    protected String[] groupByFields;
+
+    /**
+     * Loads the data set.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataSet = Fixtures.readDataSet(rows);
+        groupByFields = groupBy.isEmpty() ? new String[0] : groupBy.split(",");
+    }
+
+    /**
+     * Collects all values per group.
+     */
+    @Benchmark
+    public Map<String, List<Long>> aggregate() {
+        return dataSet.aggregate("TradeValue", groupByFields);
+    }
+
+    /**
+     * Sums up the values per group.
+     */
+    @Benchmark
+    public Map<String, Long> getSum() {
+        return dataSet.getSum("TradeValue", groupByFields);
+    }
+
+    /**
+     * Averages the values per group.
+     */
+    @Benchmark
+    public Map<String, Long> getAvg() {
+        return dataSet.getAvg("TradeValue", groupByFields);
+    }
+
+    /**
+     * Aggregates the values per group on all processors.
+     */
+    @Benchmark
+    public Aggregation getAggregationParallel() {
+        return dataSet.getAggregation("TradeValue", groupByFields, true);
+    }
+
+}
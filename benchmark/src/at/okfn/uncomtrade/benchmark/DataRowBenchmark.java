@@ -0,0 +1,82 @@
+package at.okfn.uncomtrade.benchmark;
+
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import at.okfn.uncomtrade.DataRow;
+import at.okfn.uncomtrade.DataRowField;
+
+
+/**
+ * Measures reading properties of data rows by name.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataRowBenchmark {
+
+    /**
+     * The property to read.
+     */
+    @Param({ "TradeValue", "rtCode", "cmdCode", "NetWeight" })
+    public String property;
+
+    /**
+     * The data rows to read from.
+     */
+    protected DataRow[] rows;
+
+    /**
+     * The field of the property, resolved in advance.
+     */
+    protected DataRowField field;
+
+    /**
+     * Loads the data rows.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        rows = Fixtures.readDataSet(1000).toArray(new DataRow[0]);
+        field = DataRowField.forName(property);
+    }
+
+    /**
+     * Reads the property of all rows through {@link DataRow#get(String)}.
+     */
+    @Benchmark
+    public void get(Blackhole blackhole) {
+        for (DataRow row : rows) {
+            blackhole.consume(row.get(property));
+        }
+    }
+
+    /**
+     * Reads the property of all rows through the field resolved in advance,
+     * which is the lower bound for {@link #get(Blackhole)}.
+     */
+    @Benchmark
+    public void getResolved(Blackhole blackhole) {
+        for (DataRow row : rows) {
+            blackhole.consume(field.get(row));
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package at.okfn.uncomtrade.benchmark;
+
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.okfn.uncomtrade.DataSet;
+
+
+/**
+ * Measures filtering a data set.
+ *
+ * Since filtering modifies the data set, every invocation works on a fresh
+ * copy; {@link #copy()} measures the copying alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class DataSetBenchmark {
+
+    /**
+     * The number of data rows in the data set.
+     */
+    @Param({ "1000", "50000", "1000000" })
+    public int rows;
+
+    /**
+     * The data set to filter.
+     */
+    protected DataSet dataSet;
+
+    /**
+     * Loads the data set.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataSet = Fixtures.readDataSet(rows);
+    }
+
+    /**
+     * Copies the data set.
+     */
+    @Benchmark
+    public DataSet copy() {
+        return new DataSet(dataSet);
+    }
+
+    /**
+     * Copies the data set and removes the rows with "World" as the partner.
+     */
+    @Benchmark
+    public DataSet removeWorld() {
+        return new DataSet(dataSet).removeWorld();
+    }
+
+}
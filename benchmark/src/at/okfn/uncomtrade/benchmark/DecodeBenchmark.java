@@ -0,0 +1,199 @@
+package at.okfn.uncomtrade.benchmark;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.GsonBuilder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import at.okfn.uncomtrade.DataRow;
+import at.okfn.uncomtrade.DataRowHandler;
+import at.okfn.uncomtrade.DataRowTypeAdapter;
+import at.okfn.uncomtrade.DataSet;
+import at.okfn.uncomtrade.LazyResponseReader;
+import at.okfn.uncomtrade.Query;
+import at.okfn.uncomtrade.ResponseReader;
+import at.okfn.uncomtrade.StringPool;
+import at.okfn.uncomtrade.UNComtrade;
+import at.okfn.uncomtrade.cache.ResponseCache;
+
+
+/**
+ * Measures decoding API responses into data rows.
+ *
+ * The responses are read from memory, except for {@link #retrieve(Blackhole)},
+ * which goes through {@link UNComtrade#retrieve(Query, DataRowHandler)} with
+ * the response served from a local cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class DecodeBenchmark {
+
+    /**
+     * The number of data rows in the response.
+     */
+    @Param({ "1000", "50000", "1000000" })
+    public int rows;
+
+    /**
+     * How to decode the data rows: "reflective" through Gson's reflective
+     * binding, "adapter" through {@link DataRowTypeAdapter} or "lazy" through
+     * {@link LazyResponseReader}. Retrieving through the client uses the
+     * adapter unless decoding lazily.
+     */
+    @Param({ "reflective", "adapter", "lazy" })
+    public String decoder;
+
+    /**
+     * The response, encoded as UTF-8.
+     */
+    protected byte[] response;
+
+    /**
+     * The directory of the response cache.
+     */
+    protected File cacheDirectory;
+
+    /**
+     * The client serving the response from its cache.
+     */
+    protected UNComtrade client;
+
+    /**
+     * The query whose response is cached.
+     */
+    protected Query query;
+
+    /**
+     * Loads the response and stores it in a fresh cache.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        response = Fixtures.read(Fixtures.getResponse(rows));
+
+        cacheDirectory = File.createTempFile("uncomtrade-benchmark", "");
+        cacheDirectory.delete();
+        ResponseCache cache = new ResponseCache(cacheDirectory, Long.MAX_VALUE);
+        query = Query.builder().setTimePeriod("2012").setParam("fixture", String.valueOf(rows)).build();
+        ResponseCache.Entry entry = cache.put(query.getUrl(), StandardCharsets.UTF_8, Long.MAX_VALUE);
+        entry.write(response);
+        entry.commit();
+
+        client = new UNComtrade();
+        client.setScheduler(null);
+        client.setResponseCache(cache);
+        client.setLazyDecoding(decoder.equals("lazy"));
+    }
+
+    /**
+     * Closes the client and removes the cache.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        for (File file : cacheDirectory.listFiles()) {
+            file.delete();
+        }
+        cacheDirectory.delete();
+    }
+
+    /**
+     * Decodes the data rows one by one, as a streaming retrieval does.
+     */
+    @Benchmark
+    public void decodeStreaming(Blackhole blackhole) throws IOException {
+        try (ResponseReader reader = createReader()) {
+            while (reader.hasNext()) {
+                blackhole.consume(reader.next());
+            }
+            blackhole.consume(reader.getValidation());
+        }
+    }
+
+    /**
+     * Reads only the properties a typical analysis needs from each data row.
+     */
+    @Benchmark
+    public long decodeFewProperties() throws IOException {
+        long sum = 0;
+        try (ResponseReader reader = createReader()) {
+            while (reader.hasNext()) {
+                DataRow row = reader.next();
+                sum += row.getRtCode() + row.getPtCode() + row.getYr() + row.getTradeValue();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Decodes all data rows into a data set.
+     */
+    @Benchmark
+    public DataSet decodeDataSet() throws IOException {
+        try (ResponseReader reader = createReader()) {
+            return reader.readAll();
+        }
+    }
+
+    /**
+     * Retrieves the data rows through a handler, including decompressing the
+     * cached response.
+     */
+    @Benchmark
+    public int retrieve(final Blackhole blackhole) throws IOException {
+        return client.retrieve(query, new DataRowHandler() {
+
+            @Override
+            public void handle(DataRow row) {
+                blackhole.consume(row);
+            }
+
+        });
+    }
+
+    /**
+     * @return A reader for the response using the selected decoder,
+     *         deduplicating strings like a client does.
+     */
+    protected ResponseReader createReader() throws IOException {
+        if (decoder.equals("lazy")) {
+            return new LazyResponseReader(new ByteArrayInputStream(response), StandardCharsets.UTF_8,
+                    new StringPool());
+        }
+        return new ResponseReader(
+                new InputStreamReader(new ByteArrayInputStream(response), StandardCharsets.UTF_8), new StringPool()) {
+
+            {
+                if (decoder.equals("reflective")) {
+                    // As before the dedicated adapter: a new Gson per response.
+                    rowAdapter = new GsonBuilder().create().getAdapter(DataRow.class);
+                }
+            }
+
+        };
+    }
+
+}
@@ -0,0 +1,296 @@
+package at.okfn.uncomtrade.benchmark;
+
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import at.okfn.uncomtrade.DataSet;
+import at.okfn.uncomtrade.ResponseReader;
+
+
+/**
+ * Generates and loads the synthetic API responses the benchmarks run on.
+ *
+ * The fixtures are generated from a fixed seed, so every run (and every
+ * machine) works on the same data. They are written to the "fixtures"
+ * directory once and reused afterwards, so the benchmarks never need network
+ * access.
+ */
+public class Fixtures {
+
+    /**
+     * The directory holding the generated fixtures, unless overridden with
+     * the "uncomtrade.fixtures" system property.
+     */
+    public static final String DEFAULT_DIRECTORY = "fixtures";
+
+    /**
+     * The number of reporting countries in the generated data.
+     */
+    protected static final int REPORTERS = 40;
+
+    /**
+     * The number of partner countries in the generated data, including
+     * "World".
+     */
+    protected static final int PARTNERS = 200;
+
+    /**
+     * The number of commodity codes in the generated data.
+     */
+    protected static final int COMMODITIES = 97;
+
+    /**
+     * The first year in the generated data.
+     */
+    protected static final int FIRST_YEAR = 2010;
+
+    /**
+     * The number of years in the generated data.
+     */
+    protected static final int YEARS = 6;
+
+    /**
+     * The syllables used for generating country names.
+     */
+    protected static final String[] SYLLABLES = { "a", "al", "an", "ar", "ba", "bo", "ca", "da", "de", "el", "es",
+            "ga", "gu", "i", "ia", "ka", "la", "li", "ma", "mo", "na", "ne", "no", "o", "pa", "ra", "ri", "sa", "ta",
+            "to", "u", "va", "ze" };
+
+    /**
+     * The words used for generating longer country names.
+     */
+    protected static final String[] WORDS = { "Republic of", "United", "Islands", "Democratic", "Saint", "New",
+            "North", "South", "Federation of", "Kingdom of" };
+
+    /**
+     * Creates the directory for the fixtures.
+     *
+     * @return The directory holding the fixtures.
+     */
+    public static File getDirectory() {
+        File directory = new File(System.getProperty("uncomtrade.fixtures", DEFAULT_DIRECTORY));
+        directory.mkdirs();
+        return directory;
+    }
+
+    /**
+     * Returns the fixture for a response of the given size, generating it
+     * first if necessary.
+     *
+     * @param rows
+     *            The number of data rows in the response.
+     *
+     * @return The JSON file holding the response.
+     *
+     * @throws IOException
+     *             If the fixture could not be written.
+     */
+    public static synchronized File getResponse(int rows) throws IOException {
+        File file = new File(getDirectory(), "response-" + rows + ".json");
+        if (!file.isFile()) {
+            File temp = new File(file.getPath() + ".tmp");
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp),
+                    StandardCharsets.UTF_8))) {
+                writeResponse(out, rows, new Random(rows));
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not create " + file + ".");
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Returns the fixture for the list of valid reporter areas, generating it
+     * first if necessary.
+     *
+     * @return The JSON file holding the list.
+     *
+     * @throws IOException
+     *             If the fixture could not be written.
+     */
+    public static synchronized File getAreaList() throws IOException {
+        File file = new File(getDirectory(), "areas.json");
+        if (!file.isFile()) {
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                    StandardCharsets.UTF_8))) {
+                out.write("{\"more\":false,\"results\":[{\"id\":\"all\",\"text\":\"All\"}");
+                Set<String> names = new HashSet<String>();
+                for (int code = 1; code < 300; ++code) {
+                    // Labels are unique in the real lists as well.
+                    String name = getCountryName(code);
+                    if (!names.add(name)) {
+                        name += " (" + code + ")";
+                    }
+                    out.write(",{\"id\":\"" + code + "\",\"text\":\"" + name + "\"}");
+                }
+                out.write("]}");
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Reads a whole file into memory.
+     *
+     * @param file
+     *            The file to read.
+     *
+     * @return The contents of the file.
+     *
+     * @throws IOException
+     *             If the file could not be read.
+     */
+    public static byte[] read(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes the fixture for a response of the given size.
+     *
+     * @param rows
+     *            The number of data rows in the response.
+     *
+     * @return The decoded data set.
+     *
+     * @throws IOException
+     *             If the fixture could not be written or read.
+     */
+    public static DataSet readDataSet(int rows) throws IOException {
+        try (ResponseReader reader = new ResponseReader(new InputStreamReader(new FileInputStream(
+                getResponse(rows)), StandardCharsets.UTF_8))) {
+            return reader.readAll();
+        }
+    }
+
+    /**
+     * Writes a response in the format of the API.
+     *
+     * @param out
+     *            The writer to write the response to.
+     * @param rows
+     *            The number of data rows to write.
+     * @param random
+     *            The source of the generated values.
+     *
+     * @throws IOException
+     *             If the response could not be written.
+     */
+    protected static void writeResponse(Writer out, int rows, Random random) throws IOException {
+        out.write("{\"validation\":{\"status\":{\"name\":\"Ok\",\"value\":0,\"category\":0,\"description\":\"\","
+                + "\"helpUrl\":\"\"},\"message\":null,\"count\":{\"value\":" + rows + ",\"started\":\"\","
+                + "\"finished\":\"\",\"durationSeconds\":0.05},\"datasetTimer\":{\"started\":\"\",\"finished\":\"\","
+                + "\"durationSeconds\":0.9}},\"dataset\":[");
+        StringBuilder row = new StringBuilder(600);
+        for (int i = 0; i < rows; ++i) {
+            int year = FIRST_YEAR + random.nextInt(YEARS);
+            int flow = 1 + random.nextInt(2);
+            int reporter = 1 + random.nextInt(REPORTERS) * 7;
+            // About 5 percent of the rows have "World" as the partner.
+            int partner = random.nextInt(20) == 0 ? 0 : 1 + random.nextInt(PARTNERS - 1);
+            int commodity = 1 + random.nextInt(COMMODITIES);
+            String cmdCode = commodity < 10 ? "0" + commodity : String.valueOf(commodity);
+            long quantity = (long) Math.abs(random.nextGaussian() * 1e6);
+            long value = (long) Math.abs(random.nextGaussian() * 1e8);
+
+            row.setLength(0);
+            row.append(i == 0 ? "" : ",").append("{\"pfCode\":\"H4\",\"yr\":").append(year)
+                    .append(",\"period\":").append(year).append(",\"periodDesc\":\"").append(year)
+                    .append("\",\"aggrLevel\":2,\"IsLeaf\":0,\"rgCode\":").append(flow)
+                    .append(",\"rgDesc\":\"").append(flow == 1 ? "Import" : "Export")
+                    .append("\",\"rtCode\":").append(reporter).append(",\"rtTitle\":\"")
+                    .append(getCountryName(reporter)).append("\",\"rt3ISO\":\"").append(getIsoCode(reporter))
+                    .append("\",\"ptCode\":").append(partner).append(",\"ptTitle\":\"")
+                    .append(partner == 0 ? "World" : getCountryName(partner)).append("\",\"pt3ISO\":\"")
+                    .append(partner == 0 ? "WLD" : getIsoCode(partner))
+                    .append("\",\"ptCode2\":null,\"ptTitle2\":\"\",\"pt3ISO2\":\"\",\"cstCode\":\"\",\"cstDesc\":\"\","
+                            + "\"motCode\":\"\",\"motDesc\":\"\",\"cmdCode\":\"")
+                    .append(cmdCode).append("\",\"cmdDescE\":\"Commodity group ").append(cmdCode)
+                    .append("\",\"qtCode\":8,\"qtDesc\":\"Weight in kilograms\",\"qtAltCode\":null,"
+                            + "\"qtAltDesc\":\"\",\"TradeQuantity\":")
+                    .append(quantity).append(",\"AltQuantity\":null,\"NetWeight\":").append(quantity)
+                    .append(",\"GrossWeight\":null,\"TradeValue\":").append(value)
+                    .append(",\"CIFValue\":null,\"FOBValue\":null,\"estCode\":").append(random.nextInt(3))
+                    .append('}');
+            out.append(row);
+        }
+        out.write("]}");
+    }
+
+    /**
+     * Generates a country name.
+     *
+     * @param code
+     *            The code of the country.
+     *
+     * @return A pronounceable name, which is always the same for a code.
+     */
+    protected static String getCountryName(int code) {
+        // Consecutive seeds give similar first values, so spread them out.
+        Random random = new Random(code * 0x9E3779B97F4A7C15L);
+        StringBuilder name = new StringBuilder();
+        if (random.nextInt(4) == 0) {
+            name.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        int length = 2 + random.nextInt(3);
+        int start = name.length();
+        for (int i = 0; i < length; ++i) {
+            name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        }
+        name.setCharAt(start, Character.toUpperCase(name.charAt(start)));
+        return name.toString();
+    }
+
+    /**
+     * Generates an ISO 3166 code.
+     *
+     * @param code
+     *            The code of the country.
+     *
+     * @return A three-letter code, which is always the same for a code.
+     */
+    protected static String getIsoCode(int code) {
+        return new String(new char[] { (char) ('A' + code % 26), (char) ('A' + code / 26 % 26),
+                (char) ('A' + code / 676 % 26) });
+    }
+
+    /**
+     * Generates all fixtures in advance.
+     *
+     * @param args
+     *            The response sizes to generate; defaults to 1000, 50000 and
+     *            1000000 rows.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            args = new String[] { "1000", "50000", "1000000" };
+        }
+        for (String rows : args) {
+            File file = getResponse(Integer.parseInt(rows));
+            System.out.println(file + ": " + file.length() + " bytes");
+        }
+        System.out.println(getAreaList());
+    }
+
+}
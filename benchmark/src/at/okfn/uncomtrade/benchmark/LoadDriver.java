@@ -0,0 +1,289 @@
+package at.okfn.uncomtrade.benchmark;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import at.okfn.uncomtrade.DataSet;
+import at.okfn.uncomtrade.Query;
+import at.okfn.uncomtrade.UNComtrade;
+import at.okfn.uncomtrade.cache.ResponseCache;
+import at.okfn.uncomtrade.metrics.ClientMetrics;
+import at.okfn.uncomtrade.metrics.Histogram;
+import at.okfn.uncomtrade.scheduling.RequestScheduler;
+import at.okfn.uncomtrade.scheduling.SystemClock;
+
+
+/**
+ * Runs many concurrent clients against a {@link StubServer} (or another
+ * server imitating the API) and reports latencies, throughput and heap usage.
+ *
+ * Every client thread uses its own {@link UNComtrade} instance and retrieves
+ * queries for varying reporters and years, so the effects of caching,
+ * scheduling, retries and the shared connection pool can be measured under
+ * load without touching the real API.
+ */
+public class LoadDriver {
+
+    /**
+     * The number of distinct queries each client cycles through.
+     */
+    protected static final int QUERIES = 50;
+
+    /**
+     * The number of concurrent clients.
+     */
+    protected int clients = 8;
+
+    /**
+     * The number of requests sent by each client.
+     */
+    protected int requests = 100;
+
+    /**
+     * The base URL of the API.
+     */
+    protected String apiUrl;
+
+    /**
+     * The response cache shared by all clients, or null.
+     */
+    protected ResponseCache responseCache;
+
+    /**
+     * The request scheduler shared by all clients, or null.
+     */
+    protected RequestScheduler scheduler;
+
+    /**
+     * The latencies of all retrievals, in microseconds.
+     */
+    protected final Histogram latencies = new Histogram();
+
+    /**
+     * The measurements of all clients' requests.
+     */
+    protected final ClientMetrics clientMetrics = new ClientMetrics();
+
+    /**
+     * The number of rows retrieved.
+     */
+    protected final AtomicLong rows = new AtomicLong();
+
+    /**
+     * The number of failed retrievals.
+     */
+    protected final AtomicLong errors = new AtomicLong();
+
+    /**
+     * The highest heap usage seen, in bytes.
+     */
+    protected final AtomicLong peakHeap = new AtomicLong();
+
+    /**
+     * Creates a new load driver.
+     *
+     * @param apiUrl
+     *            The base URL of the API.
+     */
+    public LoadDriver(String apiUrl) {
+        this.apiUrl = apiUrl;
+    }
+
+    /**
+     * @param clients
+     *            The number of concurrent clients.
+     */
+    public void setClients(int clients) {
+        this.clients = clients;
+    }
+
+    /**
+     * @param requests
+     *            The number of requests sent by each client.
+     */
+    public void setRequests(int requests) {
+        this.requests = requests;
+    }
+
+    /**
+     * @param responseCache
+     *            The response cache shared by all clients, or null.
+     */
+    public void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * @param scheduler
+     *            The request scheduler shared by all clients, or null to send
+     *            requests as fast as possible.
+     */
+    public void setScheduler(RequestScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Builds the query a client sends with its n-th request.
+     *
+     * @param client
+     *            The number of the client.
+     * @param n
+     *            The number of the request.
+     *
+     * @return The query.
+     */
+    protected Query getQuery(int client, int n) {
+        int i = (client * 7 + n) % QUERIES;
+        return Query.builder()
+                .setBaseUrl(apiUrl)
+                .setReporter(String.valueOf(1 + i % 10 * 7))
+                .setTimePeriod(String.valueOf(2010 + i / 10))
+                .build();
+    }
+
+    /**
+     * Sends all requests and waits until they are done.
+     *
+     * @return The time the run took, in nanoseconds.
+     *
+     * @throws InterruptedException
+     *             If interrupted while waiting for the clients.
+     */
+    public long run() throws InterruptedException {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                long used = memory.getHeapMemoryUsage().getUsed();
+                long peak;
+                do {
+                    peak = peakHeap.get();
+                } while (used > peak && !peakHeap.compareAndSet(peak, used));
+            }
+
+        }, 0, 50, TimeUnit.MILLISECONDS);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(clients);
+        for (int i = 0; i < clients; ++i) {
+            final int client = i;
+            Thread thread = new Thread("load-" + i) {
+
+                @Override
+                public void run() {
+                    try (UNComtrade comtrade = new UNComtrade(apiUrl)) {
+                        comtrade.setScheduler(scheduler);
+                        comtrade.setResponseCache(responseCache);
+                        comtrade.addMetricsListener(clientMetrics);
+                        start.await();
+                        for (int n = 0; n < requests; ++n) {
+                            long started = System.nanoTime();
+                            try {
+                                DataSet result = comtrade.retrieve(getQuery(client, n));
+                                rows.addAndGet(result.size());
+                            }
+                            catch (IOException e) {
+                                errors.incrementAndGet();
+                            }
+                            latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started));
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    catch (IOException e) {
+                        // Only thrown when closing the client, after all requests.
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+
+            };
+            thread.start();
+        }
+
+        long started = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - started;
+        sampler.shutdownNow();
+        return elapsed;
+    }
+
+    /**
+     * Prints the results of a run.
+     *
+     * @param elapsed
+     *            The time the run took, in nanoseconds.
+     */
+    public void report(long elapsed) {
+        double seconds = elapsed / 1e9;
+        long count = latencies.getCount();
+        System.out.printf("Clients:     %d x %d requests in %.2f s%n", clients, requests, seconds);
+        System.out.printf("Latency:     p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                latencies.getPercentile(0.5) / 1e3, latencies.getPercentile(0.99) / 1e3,
+                latencies.getPercentile(1) / 1e3);
+        System.out.printf("Throughput:  %.1f requests/s, %.0f rows/s%n", count / seconds, rows.get() / seconds);
+        System.out.printf("Errors:      %d%n", errors.get());
+        System.out.printf("Peak heap:   %.1f MB%n", peakHeap.get() / 1048576.0);
+        System.out.println("Requests:    " + clientMetrics);
+    }
+
+    /**
+     * Runs a load test.
+     *
+     * @param args
+     *            The options: "--clients" (defaults to 8), "--requests" per
+     *            client (defaults to 100), "--url" of a running server (by
+     *            default, a {@link StubServer} is started, see its options),
+     *            "--cache" (a directory for a shared response cache) and
+     *            "--in-flight" (the maximum number of concurrent requests of
+     *            all clients; unlimited by default).
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        StubServer.Options options = new StubServer.Options(args);
+        StubServer server = null;
+        String url = options.get("url", null);
+        if (url == null) {
+            server = new StubServer(0);
+            options.configure(server);
+            server.start();
+            url = server.getApiUrl();
+        }
+        try {
+            LoadDriver driver = new LoadDriver(url);
+            driver.setClients(options.getInt("clients", 8));
+            driver.setRequests(options.getInt("requests", 100));
+            String cache = options.get("cache", null);
+            if (cache != null) {
+                driver.setResponseCache(new ResponseCache(new File(cache), 1L << 30));
+            }
+            int inFlight = options.getInt("in-flight", 0);
+            if (inFlight > 0) {
+                driver.setScheduler(new RequestScheduler(inFlight, SystemClock.INSTANCE));
+            }
+            driver.report(driver.run());
+            if (server != null) {
+                System.out.printf("Server:      %d requests, %d throttled, %d errors%n", server.getRequestCount(),
+                        server.getThrottledCount(), server.getErrorCount());
+            }
+        }
+        finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package at.okfn.uncomtrade.benchmark;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.okfn.uncomtrade.DataRow;
+import at.okfn.uncomtrade.DataSet;
+import at.okfn.uncomtrade.SnapshotReader;
+import at.okfn.uncomtrade.SnapshotWriter;
+
+
+/**
+ * Measures saving and loading data sets as binary snapshots, for comparison
+ * with {@link DecodeBenchmark#decodeDataSet()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class SnapshotBenchmark {
+
+    /**
+     * The number of data rows in the data set.
+     */
+    @Param({ "1000", "50000", "1000000" })
+    public int rows;
+
+    /**
+     * Whether the snapshot is compressed.
+     */
+    @Param({ "false", "true" })
+    public boolean compress;
+
+    /**
+     * The data set to save.
+     */
+    protected DataSet dataSet;
+
+    /**
+     * The snapshot file.
+     */
+    protected File file;
+
+    /**
+     * The contents of the snapshot file.
+     */
+    protected byte[] snapshot;
+
+    /**
+     * Decodes the data set and saves it once.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataSet = Fixtures.readDataSet(rows);
+        file = File.createTempFile("uncomtrade-benchmark", ".snapshot");
+        dataSet.save(file, compress);
+        snapshot = Fixtures.read(file);
+    }
+
+    /**
+     * Removes the snapshot file.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Loads the snapshot from a memory-mapped file.
+     */
+    @Benchmark
+    public DataSet loadMapped() throws IOException {
+        return DataSet.load(file);
+    }
+
+    /**
+     * Loads the snapshot from a stream.
+     */
+    @Benchmark
+    public DataSet loadStreaming() throws IOException {
+        try (SnapshotReader reader = new SnapshotReader(new ByteArrayInputStream(snapshot))) {
+            return reader.readAll();
+        }
+    }
+
+    /**
+     * Encodes the data set, discarding the output.
+     */
+    @Benchmark
+    public long save() throws IOException {
+        try (SnapshotWriter writer = new SnapshotWriter(new NullOutputStream(), compress)) {
+            for (DataRow row : dataSet) {
+                writer.write(row);
+            }
+            return writer.getRowCount();
+        }
+    }
+
+    /**
+     * Discards everything written to it.
+     */
+    protected static class NullOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+
+    }
+
+}
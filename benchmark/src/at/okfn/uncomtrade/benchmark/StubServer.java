@@ -0,0 +1,762 @@
+package at.okfn.uncomtrade.benchmark;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import at.okfn.uncomtrade.Query;
+import at.okfn.uncomtrade.scheduling.SystemClock;
+import at.okfn.uncomtrade.scheduling.TokenBucket;
+
+
+/**
+ * Imitates the UN Comtrade API locally, for load tests and the JUnit tests.
+ *
+ * "/api/get" serves responses set for specific queries, recorded responses
+ * from a replay directory or synthetic ones, and "/data/cache/reporterAreas.json" and
+ * "/data/cache/partnerAreas.json" serve a synthetic list of areas. Latency,
+ * rate limiting (answered with 409 and "Retry-After", like the real API) and
+ * server errors can be injected, either randomly or as a script of
+ * {@link Fault}s for the next requests. Slow responses of the script send
+ * their headers right away and then trickle whitespace until the delay has
+ * passed, so the server notices when the client aborts the request.
+ *
+ * Recorded responses are looked up as "<key>.json" in the replay directory,
+ * where the key consists of the query parameters (without "fmt", "head" and
+ * "max") in alphabetical order, with all characters other than letters, digits
+ * and "=" replaced by "_", for example "cc=TOTAL_freq=A_p=0_ps=2012_px=HS_r=40_
+ * rg=all_type=C.json".
+ *
+ * Only uses the HTTP server built into the JDK, so it runs without network
+ * access.
+ */
+public class StubServer {
+
+    /**
+     * The interval in which slow responses send whitespace, in milliseconds.
+     */
+    protected static final long TRICKLE_INTERVAL = 20;
+
+    /**
+     * The underlying HTTP server.
+     */
+    protected final HttpServer server;
+
+    /**
+     * The threads handling the requests.
+     */
+    protected final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /**
+     * The directory holding recorded responses, or null.
+     */
+    protected File replayDirectory;
+
+    /**
+     * The number of rows in synthetic responses.
+     */
+    protected int rows = 1000;
+
+    /**
+     * The minimum latency of every response, in milliseconds.
+     */
+    protected long latency = 0;
+
+    /**
+     * The maximum random latency added to every response, in milliseconds.
+     */
+    protected long latencyJitter = 0;
+
+    /**
+     * The share of requests answered with a server error, between 0 and 1.
+     */
+    protected double errorRate = 0;
+
+    /**
+     * The rate limit, or null.
+     */
+    protected TokenBucket rateLimit;
+
+    /**
+     * Whether responses are gzip encoded if the client accepts it.
+     */
+    protected boolean compression = true;
+
+    /**
+     * The responses set for specific queries, by key (see
+     * {@link #getKey(Map)}).
+     */
+    protected final Map<String, byte[]> responses = new ConcurrentHashMap<String, byte[]>();
+
+    /**
+     * The faults to inject into the next data requests.
+     */
+    protected final Queue<Fault> script = new ConcurrentLinkedQueue<Fault>();
+
+    /**
+     * The synthetic responses generated so far, by number of rows.
+     */
+    protected final Map<Integer, byte[]> syntheticResponses = new ConcurrentHashMap<Integer, byte[]>();
+
+    /**
+     * The source of random latencies and errors.
+     */
+    protected final Random random = new Random(42);
+
+    /**
+     * The number of requests received.
+     */
+    protected final AtomicLong requests = new AtomicLong();
+
+    /**
+     * The number of requests rejected by the rate limit.
+     */
+    protected final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * The number of injected errors.
+     */
+    protected final AtomicLong errors = new AtomicLong();
+
+    /**
+     * The number of slow responses the client stopped reading before they
+     * were complete.
+     */
+    protected final AtomicLong aborted = new AtomicLong();
+
+    /**
+     * Creates a new stub server, which is not started yet.
+     *
+     * @param port
+     *            The port to listen on, or 0 for any free port.
+     *
+     * @throws IOException
+     *             If the port could not be opened.
+     */
+    public StubServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 100);
+        server.setExecutor(executor);
+        server.createContext("/api/get", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleData(exchange);
+            }
+
+        });
+        HttpHandler areas = new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleAreas(exchange);
+            }
+
+        };
+        server.createContext("/data/cache/reporterAreas.json", areas);
+        server.createContext("/data/cache/partnerAreas.json", areas);
+    }
+
+    /**
+     * Starts answering requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops the server.
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return The base URL of the data API, to pass to
+     *         {@link at.okfn.uncomtrade.UNComtrade#UNComtrade(String)}.
+     */
+    public String getApiUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/api/get";
+    }
+
+    /**
+     * @param replayDirectory
+     *            The directory holding recorded responses, or null to only
+     *            serve synthetic responses.
+     */
+    public void setReplayDirectory(File replayDirectory) {
+        this.replayDirectory = replayDirectory;
+    }
+
+    /**
+     * @param rows
+     *            The number of rows in synthetic responses. Defaults to 1000.
+     */
+    public void setRows(int rows) {
+        this.rows = rows;
+    }
+
+    /**
+     * Sets the latency of every response.
+     *
+     * @param latency
+     *            The minimum latency.
+     * @param jitter
+     *            The maximum random latency added.
+     * @param unit
+     *            The time unit of the latencies.
+     */
+    public void setLatency(long latency, long jitter, TimeUnit unit) {
+        this.latency = unit.toMillis(latency);
+        this.latencyJitter = unit.toMillis(jitter);
+    }
+
+    /**
+     * @param errorRate
+     *            The share of requests answered with a server error, between 0
+     *            and 1. Defaults to 0.
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Limits the request rate. Requests exceeding the limit are answered with
+     * 409 and a "Retry-After" header.
+     *
+     * @param requests
+     *            The number of requests allowed per period, or 0 for no
+     *            limit.
+     * @param period
+     *            The length of the period.
+     * @param unit
+     *            The time unit of the period.
+     */
+    public void setRateLimit(long requests, long period, TimeUnit unit) {
+        rateLimit = requests > 0 ? new TokenBucket(requests, period, unit, SystemClock.INSTANCE) : null;
+    }
+
+    /**
+     * Sets the response to a query, instead of a recorded or synthetic one.
+     *
+     * @param query
+     *            The query. The parameters "fmt", "head" and "max" are
+     *            ignored when matching requests.
+     * @param json
+     *            The response to send.
+     */
+    public void setResponse(Query query, String json) {
+        responses.put(getKey(parseQuery(URI.create(query.getUrl()))), json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Adds faults to the end of the script. Each data request takes the next
+     * fault from the script, before the rate limit, latency and error rate
+     * apply.
+     *
+     * @param faults
+     *            The faults to inject into the next data requests, in order.
+     */
+    public void enqueue(Fault... faults) {
+        for (Fault fault : faults) {
+            script.add(fault);
+        }
+    }
+
+    /**
+     * @param compression
+     *            Whether responses are gzip encoded if the client accepts it.
+     *            Defaults to true.
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @return The number of requests received.
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return The number of requests rejected by the rate limit.
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * @return The number of injected errors.
+     */
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    /**
+     * @return The number of slow responses the client stopped reading before
+     *         they were complete.
+     */
+    public long getAbortedCount() {
+        return aborted.get();
+    }
+
+    /**
+     * Answers a data request.
+     *
+     * @param exchange
+     *            The request and response.
+     */
+    protected void handleData(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            Fault fault = script.poll();
+            if (fault != null && fault.statusCode != 200) {
+                if (fault.retryAfter >= 0) {
+                    exchange.getResponseHeaders().add("Retry-After", String.valueOf(fault.retryAfter));
+                }
+                exchange.sendResponseHeaders(fault.statusCode, -1);
+                return;
+            }
+            TokenBucket bucket = rateLimit;
+            if (bucket != null && !bucket.tryAcquire()) {
+                throttled.incrementAndGet();
+                long wait = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(bucket.getWaitTime() + 999999999));
+                exchange.getResponseHeaders().add("Retry-After", String.valueOf(wait));
+                exchange.sendResponseHeaders(409, -1);
+                return;
+            }
+            sleep();
+            if (errorRate > 0 && nextDouble() < errorRate) {
+                errors.incrementAndGet();
+                exchange.sendResponseHeaders(nextDouble() < 0.5 ? 500 : 503, -1);
+                return;
+            }
+            Map<String, String> params = parseQuery(exchange.getRequestURI());
+            byte[] body = responses.get(getKey(params));
+            if (body == null) {
+                body = getRecordedResponse(params);
+            }
+            if (body == null) {
+                int count = rows;
+                String max = params.get("max");
+                if (max != null && max.matches("^\\d+$")) {
+                    count = Math.min(count, Integer.parseInt(max));
+                }
+                body = getSyntheticResponse(count);
+            }
+            if (fault != null && fault.delay > 0) {
+                trickle(exchange, body, fault.delay);
+            }
+            else {
+                send(exchange, body);
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Answers a request for the list of areas.
+     *
+     * @param exchange
+     *            The request and response.
+     */
+    protected void handleAreas(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            sleep();
+            send(exchange, Fixtures.read(Fixtures.getAreaList()));
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Sends a JSON response.
+     *
+     * @param exchange
+     *            The request and response.
+     * @param body
+     *            The JSON to send, encoded as UTF-8.
+     */
+    protected void send(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (compression && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = new GZIPOutputStream(exchange.getResponseBody(), 65536)) {
+                out.write(body);
+            }
+        }
+        else {
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Sends a JSON response slowly, preceded by whitespace trickling in until
+     * the delay has passed.
+     *
+     * @param exchange
+     *            The request and response.
+     * @param body
+     *            The JSON to send, encoded as UTF-8.
+     * @param delay
+     *            The time to take, in milliseconds.
+     */
+    protected void trickle(HttpExchange exchange, byte[] body, long delay) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            while (System.nanoTime() < end) {
+                out.write(' ');
+                out.flush();
+                Thread.sleep(TRICKLE_INTERVAL);
+            }
+            out.write(body);
+            out.close();
+        }
+        catch (IOException e) {
+            aborted.incrementAndGet();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for the configured latency.
+     */
+    protected void sleep() {
+        long millis = latency + (latencyJitter > 0 ? (long) (nextDouble() * latencyJitter) : 0);
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return A random number between 0 and 1.
+     */
+    protected double nextDouble() {
+        synchronized (random) {
+            return random.nextDouble();
+        }
+    }
+
+    /**
+     * Looks up a recorded response.
+     *
+     * @param params
+     *            The query parameters of the request.
+     *
+     * @return The recorded response, or null if there is none.
+     */
+    protected byte[] getRecordedResponse(Map<String, String> params) throws IOException {
+        if (replayDirectory == null) {
+            return null;
+        }
+        File file = new File(replayDirectory, getKey(params) + ".json");
+        return file.isFile() ? Fixtures.read(file) : null;
+    }
+
+    /**
+     * Builds the key identifying the response to a request.
+     *
+     * @param params
+     *            The query parameters of the request, sorted by name.
+     *
+     * @return The key, as used for the names of recorded responses.
+     */
+    protected static String getKey(Map<String, String> params) {
+        StringBuilder key = new StringBuilder();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            switch (param.getKey()) {
+                case "fmt":
+                case "head":
+                case "max":
+                    continue;
+
+                default:
+                    if (key.length() > 0) {
+                        key.append('_');
+                    }
+                    key.append(param.getKey()).append('=').append(param.getValue());
+            }
+        }
+        return key.toString().replaceAll("[^A-Za-z0-9=]", "_");
+    }
+
+    /**
+     * Generates a synthetic response, or returns the one generated earlier.
+     *
+     * @param rows
+     *            The number of data rows.
+     *
+     * @return The response, encoded as UTF-8.
+     */
+    protected byte[] getSyntheticResponse(int rows) throws IOException {
+        byte[] body = syntheticResponses.get(rows);
+        if (body == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+                Fixtures.writeResponse(writer, rows, new Random(rows));
+            }
+            body = out.toByteArray();
+            syntheticResponses.put(rows, body);
+        }
+        return body;
+    }
+
+    /**
+     * Parses the query parameters of a request.
+     *
+     * @param uri
+     *            The request URI.
+     *
+     * @return The decoded parameters, sorted by name.
+     */
+    protected static Map<String, String> parseQuery(URI uri) {
+        Map<String, String> params = new TreeMap<String, String>();
+        String query = uri.getQuery();
+        if (query == null) {
+            return params;
+        }
+        for (String param : query.split("&")) {
+            int separator = param.indexOf('=');
+            if (separator > 0) {
+                params.put(param.substring(0, separator), param.substring(separator + 1));
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Runs the stub server until it is killed.
+     *
+     * @param args
+     *            The options: "--port" (defaults to 8080), "--rows",
+     *            "--latency" and "--jitter" (in milliseconds), "--error-rate",
+     *            "--rate" (requests per second) and "--replay" (a directory).
+     */
+    public static void main(String[] args) throws IOException {
+        Options options = new Options(args);
+        StubServer server = new StubServer(options.getInt("port", 8080));
+        options.configure(server);
+        server.start();
+        System.out.println("Serving " + server.getApiUrl());
+    }
+
+    /**
+     * A fault to inject into a response.
+     */
+    public static class Fault {
+
+        /**
+         * The status code to answer with.
+         */
+        protected final int statusCode;
+
+        /**
+         * The "Retry-After" time to send, in seconds, or -1 for none.
+         */
+        protected final long retryAfter;
+
+        /**
+         * The time to take for a successful response, in milliseconds.
+         */
+        protected final long delay;
+
+        /**
+         * Creates a new fault.
+         *
+         * @param statusCode
+         *            The status code to answer with.
+         * @param retryAfter
+         *            The "Retry-After" time to send, in seconds, or -1 for
+         *            none.
+         * @param delay
+         *            The time to take for a successful response, in
+         *            milliseconds.
+         */
+        protected Fault(int statusCode, long retryAfter, long delay) {
+            this.statusCode = statusCode;
+            this.retryAfter = retryAfter;
+            this.delay = delay;
+        }
+
+        /**
+         * @return A regular response.
+         */
+        public static Fault ok() {
+            return new Fault(200, -1, 0);
+        }
+
+        /**
+         * @param statusCode
+         *            The status code to answer with.
+         *
+         * @return An error response.
+         */
+        public static Fault status(int statusCode) {
+            return new Fault(statusCode, -1, 0);
+        }
+
+        /**
+         * @param statusCode
+         *            The status code to answer with.
+         * @param retryAfter
+         *            The "Retry-After" time to send, in seconds.
+         *
+         * @return An error response asking the client to wait.
+         */
+        public static Fault status(int statusCode, long retryAfter) {
+            return new Fault(statusCode, retryAfter, 0);
+        }
+
+        /**
+         * @param delay
+         *            The time to take.
+         * @param unit
+         *            The time unit of the delay.
+         *
+         * @return A regular response which takes a while.
+         */
+        public static Fault slow(long delay, TimeUnit unit) {
+            return new Fault(200, -1, unit.toMillis(delay));
+        }
+
+    }
+
+    /**
+     * Parses the command line options shared by the stub server and the load
+     * driver.
+     */
+    protected static class Options {
+
+        /**
+         * The option values, by name without the leading dashes.
+         */
+        protected final Map<String, String> values = new TreeMap<String, String>();
+
+        /**
+         * Parses command line options of the form "--name value".
+         *
+         * @param args
+         *            The command line arguments.
+         */
+        public Options(String[] args) {
+            for (int i = 0; i < args.length; ++i) {
+                if (!args[i].startsWith("--")) {
+                    throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+                }
+                String name = args[i].substring(2);
+                String value = i + 1 < args.length && !args[i + 1].startsWith("--") ? args[++i] : "true";
+                values.put(name, value);
+            }
+        }
+
+        /**
+         * @param name
+         *            The name of the option.
+         * @param defaultValue
+         *            The value to use if the option was not given.
+         *
+         * @return The value of the option.
+         */
+        public String get(String name, String defaultValue) {
+            String value = values.get(name);
+            return value == null ? defaultValue : value;
+        }
+
+        /**
+         * @param name
+         *            The name of the option.
+         * @param defaultValue
+         *            The value to use if the option was not given.
+         *
+         * @return The value of the option.
+         */
+        public int getInt(String name, int defaultValue) {
+            return Integer.parseInt(get(name, String.valueOf(defaultValue)));
+        }
+
+        /**
+         * @param name
+         *            The name of the option.
+         * @param defaultValue
+         *            The value to use if the option was not given.
+         *
+         * @return The value of the option.
+         */
+        public double getDouble(String name, double defaultValue) {
+            return Double.parseDouble(get(name, String.valueOf(defaultValue)));
+        }
+
+        /**
+         * @param name
+         *            The name of the option.
+         *
+         * @return Whether the option was given, or set to "true".
+         */
+        public boolean getBoolean(String name) {
+            return Boolean.parseBoolean(get(name, "false"));
+        }
+
+        /**
+         * Applies the server options.
+         *
+         * @param server
+         *            The server to configure.
+         */
+        public void configure(StubServer server) {
+            server.setRows(getInt("rows", 1000));
+            server.setLatency(getInt("latency", 0), getInt("jitter", 0), TimeUnit.MILLISECONDS);
+            server.setErrorRate(getDouble("error-rate", 0));
+            server.setRateLimit(getInt("rate", 0), 1, TimeUnit.SECONDS);
+            server.setCompression(!getBoolean("no-compression"));
+            String replay = get("replay", null);
+            if (replay != null) {
+                server.setReplayDirectory(new File(replay));
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,77 @@
+package at.okfn.uncomtrade.benchmark;
+
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.okfn.uncomtrade.Query;
+import at.okfn.uncomtrade.UNComtrade;
+
+
+/**
+ * Measures building request URLs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UrlBenchmark {
+
+    /**
+     * The client to build the URL with.
+     */
+    protected UNComtrade client;
+
+    /**
+     * Creates a client with some parameters set.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        client = new UNComtrade();
+        client.setReporter("40");
+        client.setPartnerArea("0");
+        client.setTimePeriod("2012,2013,2014");
+        client.setClassificationCode("TOTAL");
+    }
+
+    /**
+     * Closes the client.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+    }
+
+    /**
+     * Builds the URL for the client's settings.
+     */
+    @Benchmark
+    public String getApiUrl() {
+        return client.getApiUrl();
+    }
+
+    /**
+     * Builds an immutable query and its URL.
+     */
+    @Benchmark
+    public String buildQuery() {
+        return Query.builder().setReporter("40").setPartnerArea("0").setTimePeriod("2012,2013,2014")
+                .setClassificationCode("TOTAL").build().getUrl();
+    }
+
+}
@@ -0,0 +1,117 @@
+package at.okfn.uncomtrade.benchmark;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.okfn.uncomtrade.cache.ResponseCache;
+import at.okfn.uncomtrade.parameters.ValidParameters;
+
+
+/**
+ * Measures searching the valid values of a parameter.
+ *
+ * The list of values is served from a local cache instead of the API.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidParametersBenchmark {
+
+    /**
+     * The URL under which the list of values is cached.
+     */
+    protected static final String URL = "http://localhost/benchmark/areas.json";
+
+    /**
+     * The search input, from matching most values to matching none.
+     */
+    @Param({ "a", "ar", "rep", "united", "zzz" })
+    public String input;
+
+    /**
+     * The directory of the response cache.
+     */
+    protected File cacheDirectory;
+
+    /**
+     * The parameter to search.
+     */
+    protected ValidParameters parameters;
+
+    /**
+     * Caches the list of values and builds the search index.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        cacheDirectory = File.createTempFile("uncomtrade-benchmark", "");
+        cacheDirectory.delete();
+        ResponseCache cache = new ResponseCache(cacheDirectory, Long.MAX_VALUE);
+        ResponseCache.Entry entry = cache.put(URL, StandardCharsets.UTF_8, Long.MAX_VALUE);
+        entry.write(Fixtures.read(Fixtures.getAreaList()));
+        entry.commit();
+        ValidParameters.setResponseCache(cache);
+
+        parameters = new ValidParameters() {
+
+            @Override
+            protected String getUrl() {
+                return URL;
+            }
+
+        };
+        parameters.getIndex();
+    }
+
+    /**
+     * Removes the cache.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ValidParameters.setResponseCache(null);
+        ValidParameters.clearCache();
+        for (File file : cacheDirectory.listFiles()) {
+            file.delete();
+        }
+        cacheDirectory.delete();
+    }
+
+    /**
+     * Finds the matching values.
+     */
+    @Benchmark
+    public Map<String, String> getValues() throws IOException {
+        return parameters.getValues(input);
+    }
+
+    /**
+     * Finds the matching values, sorted by label.
+     */
+    @Benchmark
+    public SortedSet<Entry<String, String>> getSortedValues() throws IOException {
+        return parameters.getSortedValues(input);
+    }
+
+}
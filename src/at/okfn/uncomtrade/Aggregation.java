@@ -0,0 +1,624 @@
+package at.okfn.uncomtrade;
+
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Computes running sums, counts, minimums and maximums of a numeric property,
+ * grouped by other properties.
+ *
+ * Values are accumulated directly into primitive arrays, and groups are keyed
+ * on the packed (numeric or dictionary-encoded) values of the group-by
+ * properties, so adding a row does not allocate any objects. Use like this:
+ *
+ * <pre>
+ *
+ * {@code
+ *     Aggregation aggregation = new Aggregation("TradeValue", new String[] { "rtCode", "yr" });
+ *     aggregation.addAll(dataSet);
+ *     Map<String, Long> sums = aggregation.getSums();
+ * }
+ * </pre>
+ *
+ * Like in {@link DataSet#aggregate(String, String[])}, rows without a value
+ * (or with a non-numeric one) are skipped, and null group values are treated
+ * as empty. Group IDs join the group values with commas; commas and
+ * backslashes within the values are escaped with a backslash, so different
+ * groups always have different IDs.
+ */
+public class Aggregation {
+
+    /**
+     * The separator between the values of a group ID.
+     */
+    public static final char SEPARATOR = ',';
+
+    /**
+     * The character escaping separators within the values of a group ID.
+     */
+    public static final char ESCAPE = '\\';
+
+    /**
+     * The initial number of hash table slots.
+     */
+    protected static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The property being aggregated.
+     */
+    protected final DataRowField valueField;
+
+    /**
+     * The properties to group by.
+     */
+    protected final DataRowField[] groupFields;
+
+    /**
+     * The number of longs making up a group key: one per group field, plus a
+     * bitmask of null values.
+     */
+    protected final int keyWidth;
+
+    /**
+     * Dictionaries for encoding string group values, per group field (null
+     * for numeric fields).
+     */
+    protected final StringDictionary[] dictionaries;
+
+    /**
+     * A reusable buffer for the key of the current row.
+     */
+    protected final long[] rowKey;
+
+    /**
+     * The hash table, mapping slots to group indexes plus one (0 for empty
+     * slots).
+     */
+    protected int[] slots = new int[INITIAL_CAPACITY];
+
+    /**
+     * The packed keys of all groups, keyWidth longs per group.
+     */
+    protected long[] keys;
+
+    /**
+     * The sum per group.
+     */
+    protected long[] sums = new long[INITIAL_CAPACITY];
+
+    /**
+     * The number of values per group.
+     */
+    protected long[] counts = new long[INITIAL_CAPACITY];
+
+    /**
+     * The minimum value per group.
+     */
+    protected long[] mins = new long[INITIAL_CAPACITY];
+
+    /**
+     * The maximum value per group.
+     */
+    protected long[] maxs = new long[INITIAL_CAPACITY];
+
+    /**
+     * The number of groups.
+     */
+    protected int groupCount = 0;
+
+    /**
+     * Creates a new, empty aggregation.
+     *
+     * @param property
+     *            The name of the numeric property to aggregate.
+     * @param groupBy
+     *            The properties to group by.
+     *
+     * @throws IllegalArgumentException
+     *             If any of the given properties does not exist.
+     */
+    public Aggregation(String property, String[] groupBy) {
+        this(DataRowField.forName(property), DataRowField.forNames(groupBy));
+    }
+
+    /**
+     * Creates a new, empty aggregation.
+     *
+     * @param valueField
+     *            The numeric property to aggregate.
+     * @param groupFields
+     *            The properties to group by.
+     */
+    public Aggregation(DataRowField valueField, DataRowField[] groupFields) {
+        if (groupFields.length >= Long.SIZE) {
+            throw new IllegalArgumentException("Cannot group by more than " + (Long.SIZE - 1) + " properties.");
+        }
+        this.valueField = valueField;
+        this.groupFields = groupFields.clone();
+        keyWidth = groupFields.length + 1;
+        keys = new long[INITIAL_CAPACITY * keyWidth];
+        rowKey = new long[keyWidth];
+        dictionaries = new StringDictionary[groupFields.length];
+        for (int i = 0; i < groupFields.length; ++i) {
+            if (!groupFields[i].isNumeric()) {
+                dictionaries[i] = new StringDictionary();
+            }
+        }
+    }
+
+    /**
+     * Adds a single data row.
+     *
+     * @param row
+     *            The data row to add.
+     */
+    public void add(DataRow row) {
+        long value;
+        Object rawValue = valueField.get(row);
+        if (rawValue == null) {
+            return;
+        }
+        if (valueField.isNumeric()) {
+            value = valueField.getLong(row);
+        }
+        else {
+            try {
+                value = Long.parseLong((String) rawValue);
+            }
+            catch (NumberFormatException e) {
+                return;
+            }
+        }
+
+        long nullMask = 0;
+        for (int i = 0; i < groupFields.length; ++i) {
+            DataRowField field = groupFields[i];
+            Object groupValue = field.get(row);
+            if (dictionaries[i] != null) {
+                rowKey[i] = dictionaries[i].getId(groupValue == null ? "" : (String) groupValue);
+            }
+            else if (groupValue == null) {
+                rowKey[i] = 0;
+                nullMask |= 1L << i;
+            }
+            else {
+                rowKey[i] = field.getLong(row);
+            }
+        }
+        rowKey[groupFields.length] = nullMask;
+
+        accumulate(findGroup(rowKey), value);
+    }
+
+    /**
+     * Adds several data rows.
+     *
+     * @param rows
+     *            The data rows to add.
+     */
+    public void addAll(Iterable<DataRow> rows) {
+        if (rows instanceof ColumnarDataSet) {
+            addAll((ColumnarDataSet) rows);
+            return;
+        }
+        for (DataRow row : rows) {
+            add(row);
+        }
+    }
+
+    /**
+     * Adds all rows of a columnar data set, reading the columns directly.
+     *
+     * @param dataSet
+     *            The data set to add.
+     */
+    protected void addAll(ColumnarDataSet dataSet) {
+        addRange(dataSet, 0, dataSet.size);
+    }
+
+    /**
+     * Adds a range of data rows from an array.
+     *
+     * @param rows
+     *            The data rows.
+     * @param from
+     *            The index of the first row to add.
+     * @param to
+     *            The index after the last row to add.
+     */
+    protected void addRange(DataRow[] rows, int from, int to) {
+        for (int i = from; i < to; ++i) {
+            add(rows[i]);
+        }
+    }
+
+    /**
+     * Adds a range of rows from a columnar data set, reading the columns
+     * directly.
+     *
+     * @param dataSet
+     *            The data set.
+     * @param from
+     *            The index of the first row to add.
+     * @param to
+     *            The index after the last row to add.
+     */
+    protected void addRange(ColumnarDataSet dataSet, int from, int to) {
+        Column valueColumn = dataSet.columns.get(valueField);
+        Column[] groupColumns = new Column[groupFields.length];
+        // Maps column dictionary codes to our own string IDs, -1 if unknown.
+        int[][] codeMaps = new int[groupFields.length][];
+        for (int i = 0; i < groupFields.length; ++i) {
+            groupColumns[i] = dataSet.columns.get(groupFields[i]);
+            if (dictionaries[i] != null && ((StringColumn) groupColumns[i]).hasCodes()) {
+                codeMaps[i] = new int[((StringColumn) groupColumns[i]).dictionary.size()];
+                Arrays.fill(codeMaps[i], -1);
+            }
+        }
+
+        for (int row = from; row < to; ++row) {
+            if (valueColumn.isNull(row)) {
+                continue;
+            }
+            long value;
+            try {
+                value = valueColumn.getLong(row);
+            }
+            catch (NumberFormatException e) {
+                continue;
+            }
+
+            long nullMask = 0;
+            for (int i = 0; i < groupColumns.length; ++i) {
+                Column column = groupColumns[i];
+                if (codeMaps[i] != null) {
+                    StringColumn stringColumn = (StringColumn) column;
+                    int code = stringColumn.getCode(row);
+                    if (code < 0) {
+                        rowKey[i] = dictionaries[i].getId("");
+                    }
+                    else {
+                        if (codeMaps[i][code] < 0) {
+                            codeMaps[i][code] = dictionaries[i].getId(stringColumn.dictionary.get(code));
+                        }
+                        rowKey[i] = codeMaps[i][code];
+                    }
+                }
+                else if (dictionaries[i] != null) {
+                    String groupValue = ((StringColumn) column).get(row);
+                    rowKey[i] = dictionaries[i].getId(groupValue == null ? "" : groupValue);
+                }
+                else if (column.isNull(row)) {
+                    rowKey[i] = 0;
+                    nullMask |= 1L << i;
+                }
+                else {
+                    rowKey[i] = column.getLong(row);
+                }
+            }
+            rowKey[groupColumns.length] = nullMask;
+
+            accumulate(findGroup(rowKey), value);
+        }
+    }
+
+    /**
+     * Merges the groups of another aggregation of the same properties into
+     * this one.
+     *
+     * The result is the same as if all rows of the other aggregation had been
+     * added to this one.
+     *
+     * @param other
+     *            The aggregation to merge.
+     *
+     * @throws IllegalArgumentException
+     *             If the other aggregation is for different properties.
+     */
+    public void merge(Aggregation other) {
+        if (other.valueField != valueField || !Arrays.equals(other.groupFields, groupFields)) {
+            throw new IllegalArgumentException("Only aggregations of the same properties can be merged.");
+        }
+        // Maps the other aggregation's string IDs to our own, -1 if unknown.
+        int[][] idMaps = new int[groupFields.length][];
+        for (int i = 0; i < groupFields.length; ++i) {
+            if (dictionaries[i] != null) {
+                idMaps[i] = new int[other.dictionaries[i].size()];
+                Arrays.fill(idMaps[i], -1);
+            }
+        }
+
+        for (int otherGroup = 0; otherGroup < other.groupCount; ++otherGroup) {
+            System.arraycopy(other.keys, otherGroup * keyWidth, rowKey, 0, keyWidth);
+            for (int i = 0; i < groupFields.length; ++i) {
+                if (idMaps[i] != null) {
+                    int otherId = (int) rowKey[i];
+                    if (idMaps[i][otherId] < 0) {
+                        idMaps[i][otherId] = dictionaries[i].getId(other.dictionaries[i].get(otherId));
+                    }
+                    rowKey[i] = idMaps[i][otherId];
+                }
+            }
+
+            int group = findGroup(rowKey);
+            if (counts[group] == 0) {
+                mins[group] = other.mins[otherGroup];
+                maxs[group] = other.maxs[otherGroup];
+            }
+            else {
+                mins[group] = Math.min(mins[group], other.mins[otherGroup]);
+                maxs[group] = Math.max(maxs[group], other.maxs[otherGroup]);
+            }
+            sums[group] += other.sums[otherGroup];
+            counts[group] += other.counts[otherGroup];
+        }
+    }
+
+    /**
+     * @return The number of groups.
+     */
+    public int getGroupCount() {
+        return groupCount;
+    }
+
+    /**
+     * @return The sums of all groups, keyed by group ID (the comma-separated
+     *         values of the group-by properties, see
+     *         {@link #appendGroupValue(StringBuilder, String)}).
+     */
+    public Map<String, Long> getSums() {
+        Map<String, Long> results = new HashMap<String, Long>();
+        for (int group = 0; group < groupCount; ++group) {
+            results.put(getGroupId(group), sums[group]);
+        }
+        return results;
+    }
+
+    /**
+     * @return The (truncated) averages of all groups, keyed by group ID.
+     */
+    public Map<String, Long> getAverages() {
+        Map<String, Long> results = new HashMap<String, Long>();
+        for (int group = 0; group < groupCount; ++group) {
+            results.put(getGroupId(group), sums[group] / counts[group]);
+        }
+        return results;
+    }
+
+    /**
+     * @return The number of values in all groups, keyed by group ID.
+     */
+    public Map<String, Long> getCounts() {
+        Map<String, Long> results = new HashMap<String, Long>();
+        for (int group = 0; group < groupCount; ++group) {
+            results.put(getGroupId(group), counts[group]);
+        }
+        return results;
+    }
+
+    /**
+     * @return The minimum values of all groups, keyed by group ID.
+     */
+    public Map<String, Long> getMins() {
+        Map<String, Long> results = new HashMap<String, Long>();
+        for (int group = 0; group < groupCount; ++group) {
+            results.put(getGroupId(group), mins[group]);
+        }
+        return results;
+    }
+
+    /**
+     * @return The maximum values of all groups, keyed by group ID.
+     */
+    public Map<String, Long> getMaxs() {
+        Map<String, Long> results = new HashMap<String, Long>();
+        for (int group = 0; group < groupCount; ++group) {
+            results.put(getGroupId(group), maxs[group]);
+        }
+        return results;
+    }
+
+    /**
+     * @param group
+     *            The index of a group, between 0 and
+     *            {@link #getGroupCount()} - 1.
+     *
+     * @return The group ID, consisting of the comma-separated values of the
+     *         group-by properties.
+     */
+    public String getGroupId(int group) {
+        StringBuilder groupId = new StringBuilder();
+        int offset = group * keyWidth;
+        long nullMask = keys[offset + groupFields.length];
+        for (int i = 0; i < groupFields.length; ++i) {
+            if (i > 0) {
+                groupId.append(SEPARATOR);
+            }
+            long key = keys[offset + i];
+            if (dictionaries[i] != null) {
+                appendGroupValue(groupId, dictionaries[i].get((int) key));
+            }
+            else if ((nullMask & (1L << i)) == 0) {
+                groupId.append(key);
+            }
+        }
+        return groupId.toString();
+    }
+
+    /**
+     * Appends a value to a group ID, escaping separators and escape
+     * characters within it.
+     *
+     * @param groupId
+     *            The group ID built so far.
+     * @param value
+     *            The group value to append.
+     */
+    public static void appendGroupValue(StringBuilder groupId, String value) {
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == SEPARATOR || c == ESCAPE) {
+                groupId.append(ESCAPE);
+            }
+            groupId.append(c);
+        }
+    }
+
+    /**
+     * @param group
+     *            The index of a group.
+     *
+     * @return The sum of the group's values.
+     */
+    public long getSum(int group) {
+        return sums[group];
+    }
+
+    /**
+     * @param group
+     *            The index of a group.
+     *
+     * @return The number of values in the group.
+     */
+    public long getCount(int group) {
+        return counts[group];
+    }
+
+    /**
+     * @param group
+     *            The index of a group.
+     *
+     * @return The minimum of the group's values.
+     */
+    public long getMin(int group) {
+        return mins[group];
+    }
+
+    /**
+     * @param group
+     *            The index of a group.
+     *
+     * @return The maximum of the group's values.
+     */
+    public long getMax(int group) {
+        return maxs[group];
+    }
+
+    /**
+     * Adds a value to a group.
+     *
+     * @param group
+     *            The index of the group.
+     * @param value
+     *            The value to add.
+     */
+    protected void accumulate(int group, long value) {
+        if (counts[group] == 0) {
+            mins[group] = value;
+            maxs[group] = value;
+        }
+        else if (value < mins[group]) {
+            mins[group] = value;
+        }
+        else if (value > maxs[group]) {
+            maxs[group] = value;
+        }
+        sums[group] += value;
+        ++counts[group];
+    }
+
+    /**
+     * Looks up the group with the given key, creating it if necessary.
+     *
+     * @param key
+     *            The packed group key.
+     *
+     * @return The index of the group.
+     */
+    protected int findGroup(long[] key) {
+        int mask = slots.length - 1;
+        int slot = hash(key) & mask;
+        while (true) {
+            int group = slots[slot] - 1;
+            if (group < 0) {
+                break;
+            }
+            if (keyEquals(group, key)) {
+                return group;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int group = groupCount++;
+        if (group >= sums.length) {
+            int capacity = sums.length * 2;
+            keys = Arrays.copyOf(keys, capacity * keyWidth);
+            sums = Arrays.copyOf(sums, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            mins = Arrays.copyOf(mins, capacity);
+            maxs = Arrays.copyOf(maxs, capacity);
+        }
+        System.arraycopy(key, 0, keys, group * keyWidth, keyWidth);
+        slots[slot] = group + 1;
+        if (groupCount * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return group;
+    }
+
+    /**
+     * Rebuilds the hash table with a new size.
+     *
+     * @param capacity
+     *            The new number of slots, a power of two.
+     */
+    protected void rehash(int capacity) {
+        slots = new int[capacity];
+        int mask = capacity - 1;
+        long[] key = new long[keyWidth];
+        for (int group = 0; group < groupCount; ++group) {
+            System.arraycopy(keys, group * keyWidth, key, 0, keyWidth);
+            int slot = hash(key) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = group + 1;
+        }
+    }
+
+    /**
+     * @param group
+     *            The index of a group.
+     * @param key
+     *            A packed group key.
+     *
+     * @return Whether the group has the given key.
+     */
+    protected boolean keyEquals(int group, long[] key) {
+        int offset = group * keyWidth;
+        for (int i = 0; i < keyWidth; ++i) {
+            if (keys[offset + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param key
+     *            A packed group key.
+     *
+     * @return A well-distributed hash code for the key.
+     */
+    protected static int hash(long[] key) {
+        long hash = 0;
+        for (long part : key) {
+            hash = (hash ^ part) * 0x9E3779B97F4A7C15L;
+        }
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+}
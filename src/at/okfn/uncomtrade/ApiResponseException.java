@@ -0,0 +1,97 @@
+package at.okfn.uncomtrade;
+
+
+import java.util.Date;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.utils.DateUtils;
+
+
+/**
+ * Signals an unsuccessful HTTP status returned by the API, along with the
+ * time after which the request may be retried, if the API sent one.
+ */
+public class ApiResponseException extends HttpResponseException {
+
+    /**
+     * The time to wait before retrying, in milliseconds, or -1.
+     */
+    protected final long retryAfter;
+
+    /**
+     * Creates a new exception.
+     *
+     * @param statusCode
+     *            The HTTP status code.
+     * @param reasonPhrase
+     *            The HTTP reason phrase.
+     * @param retryAfter
+     *            The time to wait before retrying, in milliseconds, or -1 if
+     *            unknown.
+     */
+    public ApiResponseException(int statusCode, String reasonPhrase, long retryAfter) {
+        super(statusCode, reasonPhrase);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Creates an exception for an unsuccessful response.
+     *
+     * @param response
+     *            The received HTTP response.
+     *
+     * @return A new exception describing the response.
+     */
+    public static ApiResponseException fromResponse(HttpResponse response) {
+        StatusLine statusLine = response.getStatusLine();
+        return new ApiResponseException(statusLine.getStatusCode(), statusLine.getReasonPhrase(),
+                parseRetryAfter(response.getFirstHeader("Retry-After")));
+    }
+
+    /**
+     * Parses a "Retry-After" header, which contains either a number of
+     * seconds or an HTTP date.
+     *
+     * @param header
+     *            The header, or null.
+     *
+     * @return The time to wait, in milliseconds, or -1 if the header is
+     *         missing or malformed.
+     */
+    protected static long parseRetryAfter(Header header) {
+        if (header == null) {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        if (value.matches("^\\d+$")) {
+            try {
+                return Long.parseLong(value) * 1000;
+            }
+            catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        Date date = DateUtils.parseDate(value);
+        if (date == null) {
+            return -1;
+        }
+        return Math.max(0, date.getTime() - System.currentTimeMillis());
+    }
+
+    /**
+     * @return The time the API asked to wait before retrying, in
+     *         milliseconds, or -1 if it did not say.
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * A serial ID for this version of the class.
+     */
+    private static final long serialVersionUID = 5398713062417259032L;
+
+}
@@ -0,0 +1,204 @@
+package at.okfn.uncomtrade;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+
+
+/**
+ * A retrieval running in the background, as returned by
+ * {@link UNComtrade#retrieveAsync()}.
+ *
+ * Cancelling the retrieval, or exceeding its timeout, stops waiting for the
+ * request scheduler and aborts the HTTP request if it was already sent.
+ */
+public class AsyncRetrieval extends BasicFuture<DataSet> implements Runnable {
+
+    /**
+     * The client to use for retrieving the data.
+     */
+    protected final UNComtrade client;
+
+    /**
+     * The query to retrieve.
+     */
+    protected final Query query;
+
+    /**
+     * The HTTP request, once it was created.
+     */
+    protected HttpGet request;
+
+    /**
+     * The task executing this retrieval, once it was submitted.
+     */
+    protected Future<?> task;
+
+    /**
+     * The task enforcing the timeout, or null.
+     */
+    protected Future<?> timeoutTask;
+
+    /**
+     * The retrievals made on behalf of this one, such as hedged attempts.
+     */
+    protected final List<AsyncRetrieval> attempts = new ArrayList<AsyncRetrieval>();
+
+    /**
+     * Creates a new retrieval.
+     *
+     * @param client
+     *            The client to use for retrieving the data.
+     * @param query
+     *            The query to retrieve.
+     * @param callback
+     *            The callback to notify when the retrieval is done, or null.
+     */
+    protected AsyncRetrieval(UNComtrade client, Query query, FutureCallback<DataSet> callback) {
+        super(callback);
+        this.client = client;
+        this.query = query;
+    }
+
+    @Override
+    public void run() {
+        if (isDone()) {
+            return;
+        }
+        try {
+            DataSet dataSet = retrieve();
+            completed(dataSet);
+        }
+        catch (Exception e) {
+            failed(e);
+        }
+        finally {
+            synchronized (this) {
+                if (timeoutTask != null) {
+                    timeoutTask.cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieves the data set, sharing the request with concurrent retrievals
+     * of an equal query.
+     *
+     * @return The requested data set.
+     */
+    protected DataSet retrieve() throws IOException {
+        return client.retrieveShared(query, this);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!super.cancel(mayInterruptIfRunning)) {
+            return false;
+        }
+        stop();
+        return true;
+    }
+
+    /**
+     * Fails this retrieval because it took too long.
+     *
+     * @return Whether the retrieval was still running.
+     */
+    protected boolean timeout() {
+        if (!failed(new TimeoutException("Retrieval of " + query + " timed out."))) {
+            return false;
+        }
+        stop();
+        return true;
+    }
+
+    /**
+     * Registers the HTTP request, so it can be aborted.
+     *
+     * @param request
+     *            The request about to be sent.
+     *
+     * @return Whether the request may be sent, which is not the case if the
+     *         retrieval was already cancelled.
+     */
+    protected synchronized boolean setRequest(HttpGet request) {
+        this.request = request;
+        if (isDone()) {
+            request.abort();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Registers a retrieval made on behalf of this one, so it can be
+     * cancelled along with it.
+     *
+     * @param attempt
+     *            The retrieval to register.
+     *
+     * @return Whether the retrieval may be started, which is not the case if
+     *         this retrieval was already cancelled.
+     */
+    protected synchronized boolean addAttempt(AsyncRetrieval attempt) {
+        attempts.add(attempt);
+        if (isDone()) {
+            attempt.cancel(true);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sets the task executing this retrieval.
+     *
+     * @param task
+     *            The submitted task.
+     */
+    protected synchronized void setTask(Future<?> task) {
+        this.task = task;
+        if (isDone()) {
+            task.cancel(true);
+        }
+    }
+
+    /**
+     * Sets the task enforcing the timeout.
+     *
+     * @param timeoutTask
+     *            The scheduled task.
+     */
+    protected synchronized void setTimeoutTask(Future<?> timeoutTask) {
+        this.timeoutTask = timeoutTask;
+        if (isDone()) {
+            timeoutTask.cancel(false);
+        }
+    }
+
+    /**
+     * Stops the tasks and aborts the request of a retrieval which is done.
+     */
+    protected synchronized void stop() {
+        if (task != null) {
+            task.cancel(true);
+        }
+        if (timeoutTask != null) {
+            timeoutTask.cancel(false);
+        }
+        if (request != null) {
+            request.abort();
+        }
+        for (AsyncRetrieval attempt : attempts) {
+            attempt.cancel(true);
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+package at.okfn.uncomtrade;
+
+
+import java.util.Arrays;
+
+
+/**
+ * Base class for the single columns of a {@link ColumnarDataSet}.
+ *
+ * Columns only store values, the number of rows is tracked by the data set
+ * they belong to.
+ */
+abstract class Column {
+
+    /**
+     * The data row property stored in this column.
+     */
+    protected final DataRowField field;
+
+    /**
+     * A bitmap of all rows with a null value.
+     */
+    protected long[] nulls = new long[1];
+
+    /**
+     * Creates a new column.
+     *
+     * @param field
+     *            The data row property stored in this column.
+     */
+    protected Column(DataRowField field) {
+        this.field = field;
+    }
+
+    /**
+     * @return The data row property stored in this column.
+     */
+    public DataRowField getField() {
+        return field;
+    }
+
+    /**
+     * @param row
+     *            The row index.
+     *
+     * @return Whether the value in the given row is null.
+     */
+    public boolean isNull(int row) {
+        return (nulls[row >>> 6] & (1L << row)) != 0;
+    }
+
+    /**
+     * @param row
+     *            The row index.
+     *
+     * @return The value in the given row, as the type used by
+     *         {@link DataRow}.
+     */
+    public abstract Object get(int row);
+
+    /**
+     * @param row
+     *            The row index.
+     *
+     * @return The value in the given row as a long.
+     *
+     * @throws NumberFormatException
+     *             If the value is not numeric.
+     */
+    public abstract long getLong(int row);
+
+    /**
+     * Appends the value in the given row to a group ID, or nothing if it is
+     * null. Strings are escaped like by
+     * {@link Aggregation#appendGroupValue(StringBuilder, String)}.
+     *
+     * @param builder
+     *            The string builder to append to.
+     * @param row
+     *            The row index.
+     */
+    public abstract void appendTo(StringBuilder builder, int row);
+
+    /**
+     * @return Whether this column stores numbers natively.
+     */
+    public abstract boolean isNumeric();
+
+    /**
+     * Makes sure the column can hold the given number of rows.
+     *
+     * @param capacity
+     *            The number of rows.
+     */
+    protected void ensureCapacity(int capacity) {
+        int words = (capacity + 63) >>> 6;
+        if (words > nulls.length) {
+            nulls = Arrays.copyOf(nulls, Math.max(words, nulls.length * 2));
+        }
+    }
+
+    /**
+     * Marks the value in the given row as null or non-null.
+     *
+     * @param row
+     *            The row index.
+     * @param isNull
+     *            Whether the value is null.
+     */
+    protected void setNull(int row, boolean isNull) {
+        if (isNull) {
+            nulls[row >>> 6] |= 1L << row;
+        }
+        else {
+            nulls[row >>> 6] &= ~(1L << row);
+        }
+    }
+
+    /**
+     * Moves a value from one row to another (lower) row.
+     *
+     * @param from
+     *            The index of the source row.
+     * @param to
+     *            The index of the target row.
+     */
+    protected abstract void move(int from, int to);
+
+}
@@ -0,0 +1,42 @@
+package at.okfn.uncomtrade;
+
+
+/**
+ * Creates the columns of a {@link ColumnarDataSet}.
+ *
+ * The columns created by this class keep their values in arrays on the heap.
+ * Subclasses can store them elsewhere.
+ */
+class ColumnFactory {
+
+    /**
+     * @param field
+     *            The data row property to store.
+     *
+     * @return A new, empty integer column.
+     */
+    public IntColumn createIntColumn(DataRowField field) {
+        return new IntColumn(field);
+    }
+
+    /**
+     * @param field
+     *            The data row property to store.
+     *
+     * @return A new, empty long column.
+     */
+    public LongColumn createLongColumn(DataRowField field) {
+        return new LongColumn(field);
+    }
+
+    /**
+     * @param field
+     *            The data row property to store.
+     *
+     * @return A new, empty string column.
+     */
+    public StringColumn createStringColumn(DataRowField field) {
+        return new StringColumn(field);
+    }
+
+}
@@ -0,0 +1,503 @@
+package at.okfn.uncomtrade;
+
+
+import java.util.AbstractList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Represents a result data set from the UN Comtrade database, stored column by
+ * column.
+ *
+ * Numeric properties are kept in primitive arrays and strings are
+ * dictionary-encoded, so a large data set needs only a fraction of the memory
+ * of a {@link DataSet} and can be scanned much faster. Data rows are only
+ * created on access, as a view of the stored values.
+ *
+ * Apart from {@link #removeWorld()} and {@link #clear()}, data rows can only be
+ * appended, not modified or removed.
+ *
+ * Use like this:
+ *
+ * <pre>
+ *
+ * {@code
+ *     final ColumnarDataSet results = new ColumnarDataSet();
+ *     client.retrieve(new DataRowHandler() {
+ *         public void handle(DataRow row) {
+ *             results.add(row);
+ *         }
+ *     });
+ * }
+ * </pre>
+ */
+public class ColumnarDataSet extends AbstractList<DataRow> {
+
+    /**
+     * The number of data rows in this data set.
+     */
+    protected int size = 0;
+
+    /**
+     * All columns, keyed by the data row property they store.
+     */
+    protected Map<DataRowField, Column> columns = new EnumMap<DataRowField, Column>(DataRowField.class);
+
+    /*
+     * The columns, named after the data row properties they store.
+     */
+
+    protected StringColumn pfCode;
+
+    protected IntColumn yr;
+
+    protected IntColumn period;
+
+    protected StringColumn periodDesc;
+
+    protected IntColumn aggrLevel;
+
+    protected IntColumn IsLeaf;
+
+    protected IntColumn rgCode;
+
+    protected StringColumn rgDesc;
+
+    protected IntColumn rtCode;
+
+    protected StringColumn rtTitle;
+
+    protected StringColumn rt3ISO;
+
+    protected IntColumn ptCode;
+
+    protected StringColumn ptTitle;
+
+    protected StringColumn pt3ISO;
+
+    protected StringColumn cmdCode;
+
+    protected StringColumn cmdDescE;
+
+    protected IntColumn qtCode;
+
+    protected StringColumn qtDesc;
+
+    protected LongColumn TradeQuantity;
+
+    protected StringColumn NetWeight;
+
+    protected LongColumn TradeValue;
+
+    protected IntColumn estCode;
+
+    /**
+     * Creates a new, empty data set.
+     */
+    public ColumnarDataSet() {
+        this(new ColumnFactory());
+    }
+
+    /**
+     * Creates a new, empty data set with custom column storage.
+     *
+     * @param factory
+     *            The factory creating the columns.
+     */
+    ColumnarDataSet(ColumnFactory factory) {
+        pfCode = addColumn(factory.createStringColumn(DataRowField.PF_CODE));
+        yr = addColumn(factory.createIntColumn(DataRowField.YR));
+        period = addColumn(factory.createIntColumn(DataRowField.PERIOD));
+        periodDesc = addColumn(factory.createStringColumn(DataRowField.PERIOD_DESC));
+        aggrLevel = addColumn(factory.createIntColumn(DataRowField.AGGR_LEVEL));
+        IsLeaf = addColumn(factory.createIntColumn(DataRowField.IS_LEAF));
+        rgCode = addColumn(factory.createIntColumn(DataRowField.RG_CODE));
+        rgDesc = addColumn(factory.createStringColumn(DataRowField.RG_DESC));
+        rtCode = addColumn(factory.createIntColumn(DataRowField.RT_CODE));
+        rtTitle = addColumn(factory.createStringColumn(DataRowField.RT_TITLE));
+        rt3ISO = addColumn(factory.createStringColumn(DataRowField.RT_3ISO));
+        ptCode = addColumn(factory.createIntColumn(DataRowField.PT_CODE));
+        ptTitle = addColumn(factory.createStringColumn(DataRowField.PT_TITLE));
+        pt3ISO = addColumn(factory.createStringColumn(DataRowField.PT_3ISO));
+        cmdCode = addColumn(factory.createStringColumn(DataRowField.CMD_CODE));
+        cmdDescE = addColumn(factory.createStringColumn(DataRowField.CMD_DESC_E));
+        qtCode = addColumn(factory.createIntColumn(DataRowField.QT_CODE));
+        qtDesc = addColumn(factory.createStringColumn(DataRowField.QT_DESC));
+        TradeQuantity = addColumn(factory.createLongColumn(DataRowField.TRADE_QUANTITY));
+        NetWeight = addColumn(factory.createStringColumn(DataRowField.NET_WEIGHT));
+        TradeValue = addColumn(factory.createLongColumn(DataRowField.TRADE_VALUE));
+        estCode = addColumn(factory.createIntColumn(DataRowField.EST_CODE));
+    }
+
+    /**
+     * Creates a new data set containing the given data rows.
+     *
+     * @param rows
+     *            The data rows to add.
+     */
+    public ColumnarDataSet(Iterable<DataRow> rows) {
+        this();
+        for (DataRow row : rows) {
+            add(row);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Retrieves a data row.
+     *
+     * A new data row object is created on every call, so callers should not
+     * rely on object identity.
+     *
+     * @param index
+     *            The index of the data row.
+     *
+     * @return The data row at the given index.
+     */
+    @Override
+    public DataRow get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        DataRow row = new DataRow();
+        row.pfCode = pfCode.get(index);
+        row.yr = yr.get(index);
+        row.period = period.get(index);
+        row.periodDesc = periodDesc.get(index);
+        row.aggrLevel = aggrLevel.get(index);
+        row.IsLeaf = IsLeaf.get(index);
+        row.rgCode = rgCode.get(index);
+        row.rgDesc = rgDesc.get(index);
+        row.rtCode = rtCode.get(index);
+        row.rtTitle = rtTitle.get(index);
+        row.rt3ISO = rt3ISO.get(index);
+        row.ptCode = ptCode.get(index);
+        row.ptTitle = ptTitle.get(index);
+        row.pt3ISO = pt3ISO.get(index);
+        row.cmdCode = cmdCode.get(index);
+        row.cmdDescE = cmdDescE.get(index);
+        row.qtCode = qtCode.get(index);
+        row.qtDesc = qtDesc.get(index);
+        row.TradeQuantity = TradeQuantity.get(index);
+        row.NetWeight = NetWeight.get(index);
+        row.TradeValue = TradeValue.get(index);
+        row.estCode = estCode.get(index);
+        return row;
+    }
+
+    /**
+     * Appends a data row to this data set.
+     *
+     * @param row
+     *            The data row to add.
+     *
+     * @return Always true.
+     */
+    @Override
+    public boolean add(DataRow row) {
+        int index = size;
+        pfCode.set(index, row.getPfCode());
+        yr.set(index, row.getYr());
+        period.set(index, row.getPeriod());
+        periodDesc.set(index, row.getPeriodDesc());
+        aggrLevel.set(index, row.getAggrLevel());
+        IsLeaf.set(index, row.isLeaf());
+        rgCode.set(index, row.getRgCode());
+        rgDesc.set(index, row.getRgDesc());
+        rtCode.set(index, row.getRtCode());
+        rtTitle.set(index, row.getRtTitle());
+        rt3ISO.set(index, row.getRt3ISO());
+        ptCode.set(index, row.getPtCode());
+        ptTitle.set(index, row.getPtTitle());
+        pt3ISO.set(index, row.getPt3ISO());
+        cmdCode.set(index, row.getCmdCode());
+        cmdDescE.set(index, row.getCmdDescE());
+        qtCode.set(index, row.getQtCode());
+        qtDesc.set(index, row.getQtDesc());
+        TradeQuantity.set(index, row.getTradeQuantity());
+        NetWeight.set(index, row.getNetWeight());
+        TradeValue.set(index, row.getTradeValue());
+        estCode.set(index, row.getEstCode());
+        ++size;
+        ++modCount;
+        return true;
+    }
+
+    /**
+     * Removes all data rows from this data set.
+     */
+    @Override
+    public void clear() {
+        size = 0;
+        ++modCount;
+    }
+
+    /**
+     * Removes all data rows with "World" as the trading partner from this set.
+     *
+     * @return The called object, for easier method chaining.
+     */
+    public ColumnarDataSet removeWorld() {
+        int kept = 0;
+        for (int i = 0; i < size; ++i) {
+            if (!ptCode.isNull(i) && ptCode.getInt(i) == 0) {
+                continue;
+            }
+            if (kept != i) {
+                for (Column column : columns.values()) {
+                    column.move(i, kept);
+                }
+            }
+            ++kept;
+        }
+        if (kept != size) {
+            size = kept;
+            ++modCount;
+        }
+        return this;
+    }
+
+    /**
+     * @param property
+     *            The name of a numeric property.
+     *
+     * @return The sum of all the property's values in this data set.
+     */
+    public Long getSum(String property) {
+        Column column = getColumn(property);
+        if (!column.isNumeric()) {
+            Map<String, Long> sums = getSum(property, new String[0]);
+            return sums.isEmpty() ? 0 : sums.get("");
+        }
+        long sum = 0;
+        for (int i = 0; i < size; ++i) {
+            if (!column.isNull(i)) {
+                sum += column.getLong(i);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @param property
+     *            The name of a numeric property.
+     * @param groupBy
+     *            The properties to group by when aggregating.
+     *
+     * @return The sum of all the property's values in this data set, grouped by
+     *         the given properties.
+     *
+     * @see DataSet#getSum(String, String[])
+     */
+    public Map<String, Long> getSum(String property, String[] groupBy) {
+        return getSumOrAvg(property, groupBy, false);
+    }
+
+    /**
+     * @param property
+     *            The name of a numeric property.
+     *
+     * @return The average of all the property's values in this data set.
+     */
+    public Long getAvg(String property) {
+        Map<String, Long> avgs = getAvg(property, new String[0]);
+        return avgs.isEmpty() ? 0 : avgs.get("");
+    }
+
+    /**
+     * @param property
+     *            The name of a numeric property.
+     * @param groupBy
+     *            The properties to group by when aggregating.
+     *
+     * @return The average of all the property's values in this data set,
+     *         grouped by the given properties.
+     *
+     * @see DataSet#getAvg(String, String[])
+     */
+    public Map<String, Long> getAvg(String property, String[] groupBy) {
+        return getSumOrAvg(property, groupBy, true);
+    }
+
+    /**
+     * @param property
+     *            The name of a numeric property.
+     * @param groupBy
+     *            The properties to group by when aggregating.
+     * @param avg
+     *            Whether to compute the average (true) or the sum (false).
+     *
+     * @return The sum or average of all the property's values in this data set,
+     *         grouped by the given properties.
+     */
+    protected Map<String, Long> getSumOrAvg(String property, String[] groupBy, boolean avg) {
+        Aggregation aggregation = getAggregation(property, groupBy, false);
+        return avg ? aggregation.getAverages() : aggregation.getSums();
+    }
+
+    /**
+     * Computes sums, counts, minimums and maximums of a property, grouped by
+     * other properties.
+     *
+     * @param property
+     *            The name of a numeric property.
+     * @param groupBy
+     *            The properties to group by.
+     * @param parallel
+     *            Whether to aggregate on all available processors. The result
+     *            is the same either way, but for large data sets this is much
+     *            faster. The data set must not be modified in the meantime.
+     *
+     * @return The aggregation of the property.
+     *
+     * @throws IllegalArgumentException
+     *             If any of the given properties does not exist.
+     */
+    public Aggregation getAggregation(String property, String[] groupBy, boolean parallel) {
+        if (parallel) {
+            return ParallelAggregation.aggregate(this, property, groupBy, null);
+        }
+        Aggregation aggregation = new Aggregation(property, groupBy);
+        aggregation.addAll(this);
+        return aggregation;
+    }
+
+    /**
+     * Aggregates all values of a given property into one set of data.
+     *
+     * @param property
+     *            The name of a numeric property.
+     *
+     * @return A set of all the property's (numeric) values in this data set.
+     */
+    public List<Long> aggregate(String property) {
+        Map<String, List<Long>> values = aggregate(property, new String[0]);
+        return values.isEmpty() ? new LinkedList<Long>() : values.get("");
+    }
+
+    /**
+     * Aggregates all values of a given property, grouped by other properties.
+     *
+     * @param property
+     *            The name of a numeric property.
+     * @param groupBy
+     *            The properties to group by.
+     *
+     * @return A map of group IDs (the comma-separated values of the groupBy
+     *         fields, see
+     *         {@link Aggregation#appendGroupValue(StringBuilder, String)})
+     *         mapped to all the property values in this group.
+     */
+    public Map<String, List<Long>> aggregate(String property, String[] groupBy) {
+        Column valueColumn = getColumn(property);
+        Column[] groupColumns = getColumns(groupBy);
+
+        Map<String, List<Long>> aggregation = new HashMap<String, List<Long>>();
+        StringBuilder groupId = new StringBuilder();
+        for (int i = 0; i < size; ++i) {
+            if (valueColumn.isNull(i)) {
+                continue;
+            }
+            long value;
+            try {
+                value = valueColumn.getLong(i);
+            }
+            catch (NumberFormatException e) {
+                continue;
+            }
+            buildGroupId(groupId, groupColumns, i);
+            String key = groupId.toString();
+            List<Long> groupList = aggregation.get(key);
+            if (groupList == null) {
+                groupList = new LinkedList<Long>();
+                aggregation.put(key, groupList);
+            }
+            groupList.add(value);
+        }
+        return aggregation;
+    }
+
+    /**
+     * Copies all data rows into a regular data set.
+     *
+     * @return A new data set containing all data rows of this one.
+     */
+    public DataSet toDataSet() {
+        DataSet dataSet = new DataSet();
+        dataSet.addAll(this);
+        return dataSet;
+    }
+
+    /**
+     * Builds the ID of the group a row belongs to.
+     *
+     * @param groupId
+     *            The string builder to use. Its previous contents are
+     *            discarded.
+     * @param groupColumns
+     *            The columns to group by.
+     * @param row
+     *            The row index.
+     */
+    protected void buildGroupId(StringBuilder groupId, Column[] groupColumns, int row) {
+        groupId.setLength(0);
+        for (int j = 0; j < groupColumns.length; ++j) {
+            if (j > 0) {
+                groupId.append(Aggregation.SEPARATOR);
+            }
+            groupColumns[j].appendTo(groupId, row);
+        }
+    }
+
+    /**
+     * @param property
+     *            The name of a data row property.
+     *
+     * @return The column storing the given property.
+     *
+     * @throws IllegalArgumentException
+     *             If there is no such property.
+     */
+    protected Column getColumn(String property) {
+        return columns.get(DataRowField.forName(property));
+    }
+
+    /**
+     * @param properties
+     *            The names of data row properties.
+     *
+     * @return The columns storing the given properties.
+     *
+     * @throws IllegalArgumentException
+     *             If any of the properties does not exist.
+     */
+    protected Column[] getColumns(String[] properties) {
+        Column[] result = new Column[properties.length];
+        for (int i = 0; i < properties.length; ++i) {
+            result[i] = getColumn(properties[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Registers a column under its data row property.
+     *
+     * @param column
+     *            The column to register.
+     *
+     * @return The given column.
+     */
+    protected <T extends Column> T addColumn(T column) {
+        columns.put(column.getField(), column);
+        return column;
+    }
+
+}
@@ -1,7 +1,6 @@
 package at.okfn.uncomtrade;
 
 
-import java.lang.reflect.Field;
 import java.text.NumberFormat;
 
 
@@ -124,17 +123,14 @@ public class DataRow {
      *   The property to retrieve.
      *
      * @return The property value.
+     *
+     * @throws IllegalArgumentException
+     *             If there is no such property.
+     *
+     * @see DataRowField
      */
     public Object get(String property) {
-        try {
-            Class<?> c = this.getClass();
-            Field field = c.getDeclaredField(property);
-            return field.get(this);
-        }
-        catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
+        return DataRowField.forName(property).get(this);
     }
 
     /**
@@ -297,8 +293,9 @@ public class DataRow {
     @Override
     public String toString() {
         NumberFormat format = NumberFormat.getInstance();
-        return String.format("%s of %s (%d) with partner %s (%d) in %s: commodity %s, value USD %s", rgDesc, rtTitle,
-                rtCode, ptTitle, ptCode, periodDesc, cmdDescE, format.format(TradeValue));
+        return String.format("%s of %s (%d) with partner %s (%d) in %s: commodity %s, value USD %s", getRgDesc(),
+                getRtTitle(), getRtCode(), getPtTitle(), getPtCode(), getPeriodDesc(), getCmdDescE(),
+                format.format(getTradeValue()));
     }
 
 }
@@ -0,0 +1,670 @@
+package at.okfn.uncomtrade;
+
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Enumerates the properties of a {@link DataRow}, with typed accessors for
+ * each.
+ *
+ * Resolve a property name to a field once and then use its accessors when
+ * the same property is read from many rows, instead of looking up the name
+ * for each row with {@link DataRow#get(String)}. The accessors go through the
+ * data row's getters, so they also work for subclasses.
+ */
+public enum DataRowField {
+
+    /**
+     * Classification.
+     */
+    PF_CODE("pfCode", Type.STRING) {
+
+        @Override
+        public String get(DataRow row) {
+            return row.getPfCode();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.pfCode = (String) value;
+        }
+
+    },
+
+    /**
+     * Year.
+     */
+    YR("yr", Type.INT) {
+
+        @Override
+        public Integer get(DataRow row) {
+            return row.getYr();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.yr = (Integer) value;
+        }
+
+        @Override
+        public int getInt(DataRow row) {
+            return row.getYr();
+        }
+
+        @Override
+        public long getLong(DataRow row) {
+            return row.getYr();
+        }
+
+    },
+
+    /**
+     * Period, if applicable.
+     */
+    PERIOD("period", Type.INT) {
+
+        @Override
+        public Integer get(DataRow row) {
+            return row.getPeriod();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.period = (Integer) value;
+        }
+
+        @Override
+        public int getInt(DataRow row) {
+            return row.getPeriod();
+        }
+
+        @Override
+        public long getLong(DataRow row) {
+            return row.getPeriod();
+        }
+
+    },
+
+    /**
+     * Period description, if applicable.
+     */
+    PERIOD_DESC("periodDesc", Type.STRING) {
+
+        @Override
+        public String get(DataRow row) {
+            return row.getPeriodDesc();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.periodDesc = (String) value;
+        }
+
+    },
+
+    /**
+     * Aggregation level.
+     */
+    AGGR_LEVEL("aggrLevel", Type.INT) {
+
+        @Override
+        public Integer get(DataRow row) {
+            return row.getAggrLevel();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.aggrLevel = (Integer) value;
+        }
+
+        @Override
+        public int getInt(DataRow row) {
+            return row.getAggrLevel();
+        }
+
+        @Override
+        public long getLong(DataRow row) {
+            return row.getAggrLevel();
+        }
+
+    },
+
+    /**
+     * Is Leaf Code.
+     */
+    IS_LEAF("IsLeaf", Type.INT) {
+
+        @Override
+        public Integer get(DataRow row) {
+            return row.isLeaf();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.IsLeaf = (Integer) value;
+        }
+
+        @Override
+        public int getInt(DataRow row) {
+            return row.isLeaf();
+        }
+
+        @Override
+        public long getLong(DataRow row) {
+            return row.isLeaf();
+        }
+
+    },
+
+    /**
+     * Trade flow code.
+     */
+    RG_CODE("rgCode", Type.INT) {
+
+        @Override
+        public Integer get(DataRow row) {
+            return row.getRgCode();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.rgCode = (Integer) value;
+        }
+
+        @Override
+        public int getInt(DataRow row) {
+            return row.getRgCode();
+        }
+
+        @Override
+        public long getLong(DataRow row) {
+            return row.getRgCode();
+        }
+
+    },
+
+    /**
+     * Trade flow label.
+     */
+    RG_DESC("rgDesc", Type.STRING) {
+
+        @Override
+        public String get(DataRow row) {
+            return row.getRgDesc();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.rgDesc = (String) value;
+        }
+
+    },
+
+    /**
+     * Reporter country code.
+     */
+    RT_CODE("rtCode", Type.INT) {
+
+        @Override
+        public Integer get(DataRow row) {
+            return row.getRtCode();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.rtCode = (Integer) value;
+        }
+
+        @Override
+        public int getInt(DataRow row) {
+            return row.getRtCode();
+        }
+
+        @Override
+        public long getLong(DataRow row) {
+            return row.getRtCode();
+        }
+
+    },
+
+    /**
+     * Reporter country name.
+     */
+    RT_TITLE("rtTitle", Type.STRING) {
+
+        @Override
+        public String get(DataRow row) {
+            return row.getRtTitle();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.rtTitle = (String) value;
+        }
+
+    },
+
+    /**
+     * Reporter country 3-character ISO code.
+     */
+    RT_3ISO("rt3ISO", Type.STRING) {
+
+        @Override
+        public String get(DataRow row) {
+            return row.getRt3ISO();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.rt3ISO = (String) value;
+        }
+
+    },
+
+    /**
+     * Partner country code.
+     */
+    PT_CODE("ptCode", Type.INT) {
+
+        @Override
+        public Integer get(DataRow row) {
+            return row.getPtCode();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.ptCode = (Integer) value;
+        }
+
+        @Override
+        public int getInt(DataRow row) {
+            return row.getPtCode();
+        }
+
+        @Override
+        public long getLong(DataRow row) {
+            return row.getPtCode();
+        }
+
+    },
+
+    /**
+     * Partner country name.
+     */
+    PT_TITLE("ptTitle", Type.STRING) {
+
+        @Override
+        public String get(DataRow row) {
+            return row.getPtTitle();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.ptTitle = (String) value;
+        }
+
+    },
+
+    /**
+     * Partner country 3-character ISO code.
+     */
+    PT_3ISO("pt3ISO", Type.STRING) {
+
+        @Override
+        public String get(DataRow row) {
+            return row.getPt3ISO();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.pt3ISO = (String) value;
+        }
+
+    },
+
+    /**
+     * Commodity code.
+     */
+    CMD_CODE("cmdCode", Type.STRING) {
+
+        @Override
+        public String get(DataRow row) {
+            return row.getCmdCode();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.cmdCode = (String) value;
+        }
+
+    },
+
+    /**
+     * Commodity label.
+     */
+    CMD_DESC_E("cmdDescE", Type.STRING) {
+
+        @Override
+        public String get(DataRow row) {
+            return row.getCmdDescE();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.cmdDescE = (String) value;
+        }
+
+    },
+
+    /**
+     * Quantity unit code.
+     */
+    QT_CODE("qtCode", Type.INT) {
+
+        @Override
+        public Integer get(DataRow row) {
+            return row.getQtCode();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.qtCode = (Integer) value;
+        }
+
+        @Override
+        public int getInt(DataRow row) {
+            return row.getQtCode();
+        }
+
+        @Override
+        public long getLong(DataRow row) {
+            return row.getQtCode();
+        }
+
+    },
+
+    /**
+     * Quantity unit.
+     */
+    QT_DESC("qtDesc", Type.STRING) {
+
+        @Override
+        public String get(DataRow row) {
+            return row.getQtDesc();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.qtDesc = (String) value;
+        }
+
+    },
+
+    /**
+     * Quantity.
+     */
+    TRADE_QUANTITY("TradeQuantity", Type.LONG) {
+
+        @Override
+        public Long get(DataRow row) {
+            return row.getTradeQuantity();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.TradeQuantity = (Long) value;
+        }
+
+        @Override
+        public long getLong(DataRow row) {
+            return row.getTradeQuantity();
+        }
+
+    },
+
+    /**
+     * Net weight (in kg).
+     */
+    NET_WEIGHT("NetWeight", Type.STRING) {
+
+        @Override
+        public String get(DataRow row) {
+            return row.getNetWeight();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.NetWeight = (String) value;
+        }
+
+    },
+
+    /**
+     * Trade value (in USD).
+     */
+    TRADE_VALUE("TradeValue", Type.LONG) {
+
+        @Override
+        public Long get(DataRow row) {
+            return row.getTradeValue();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.TradeValue = (Long) value;
+        }
+
+        @Override
+        public long getLong(DataRow row) {
+            return row.getTradeValue();
+        }
+
+    },
+
+    /**
+     * Estimations flag.
+     */
+    EST_CODE("estCode", Type.INT) {
+
+        @Override
+        public Integer get(DataRow row) {
+            return row.getEstCode();
+        }
+
+        @Override
+        void set(DataRow row, Object value) {
+            row.estCode = (Integer) value;
+        }
+
+        @Override
+        public int getInt(DataRow row) {
+            return row.getEstCode();
+        }
+
+        @Override
+        public long getLong(DataRow row) {
+            return row.getEstCode();
+        }
+
+    };
+
+    /**
+     * The value types of data row properties.
+     */
+    public enum Type {
+
+        /**
+         * An integer property, stored as {@link Integer}.
+         */
+        INT,
+
+        /**
+         * A long property, stored as {@link Long}.
+         */
+        LONG,
+
+        /**
+         * A string property.
+         */
+        STRING
+
+    }
+
+    /**
+     * All fields, keyed by property name.
+     */
+    private static final Map<String, DataRowField> byName = new HashMap<String, DataRowField>();
+
+    static {
+        for (DataRowField field : values()) {
+            byName.put(field.name, field);
+        }
+    }
+
+    /**
+     * The machine name of the property, as used by the API.
+     */
+    private final String name;
+
+    /**
+     * The value type of the property.
+     */
+    private final Type type;
+
+    /**
+     * Creates a new field constant.
+     *
+     * @param name
+     *            The machine name of the property.
+     * @param type
+     *            The value type of the property.
+     */
+    private DataRowField(String name, Type type) {
+        this.name = name;
+        this.type = type;
+    }
+
+    /**
+     * Resolves a property name.
+     *
+     * @param name
+     *            The machine name of a data row property.
+     *
+     * @return The field for the given property.
+     *
+     * @throws IllegalArgumentException
+     *             If there is no such property.
+     */
+    public static DataRowField forName(String name) {
+        DataRowField field = byName.get(name);
+        if (field == null) {
+            throw new IllegalArgumentException("Unknown data row property: " + name);
+        }
+        return field;
+    }
+
+    /**
+     * Resolves several property names at once.
+     *
+     * @param names
+     *            The machine names of data row properties.
+     *
+     * @return The fields for the given properties, in the same order.
+     *
+     * @throws IllegalArgumentException
+     *             If any of the properties does not exist.
+     */
+    public static DataRowField[] forNames(String[] names) {
+        DataRowField[] fields = new DataRowField[names.length];
+        for (int i = 0; i < names.length; ++i) {
+            fields[i] = forName(names[i]);
+        }
+        return fields;
+    }
+
+    /**
+     * @return The machine name of the property, as used by the API.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The value type of the property.
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return Whether the property has a numeric type.
+     */
+    public boolean isNumeric() {
+        return type != Type.STRING;
+    }
+
+    /**
+     * Reads this property from a data row.
+     *
+     * @param row
+     *            The data row.
+     *
+     * @return The property value, which might be null.
+     */
+    public abstract Object get(DataRow row);
+
+    /**
+     * Stores this property in a data row, bypassing its getters.
+     *
+     * @param row
+     *            The data row.
+     * @param value
+     *            The property value, of the property's type, or null.
+     */
+    abstract void set(DataRow row, Object value);
+
+    /**
+     * Reads this property from a data row as an integer.
+     *
+     * @param row
+     *            The data row.
+     *
+     * @return The property value.
+     *
+     * @throws NullPointerException
+     *             If the value is null.
+     * @throws NumberFormatException
+     *             If the value is not a valid integer.
+     */
+    public int getInt(DataRow row) {
+        return Integer.parseInt(get(row).toString());
+    }
+
+    /**
+     * Reads this property from a data row as a long.
+     *
+     * @param row
+     *            The data row.
+     *
+     * @return The property value.
+     *
+     * @throws NullPointerException
+     *             If the value is null.
+     * @throws NumberFormatException
+     *             If the value is not a valid long.
+     */
+    public long getLong(DataRow row) {
+        return Long.parseLong(get(row).toString());
+    }
+
+    /**
+     * @return The machine name of the property.
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
@@ -0,0 +1,26 @@
+package at.okfn.uncomtrade;
+
+
+import java.io.IOException;
+
+
+/**
+ * Receives data rows one at a time, as soon as they are decoded.
+ *
+ * @see UNComtrade#retrieve(DataRowHandler)
+ */
+public interface DataRowHandler {
+
+    /**
+     * Processes a single data row.
+     *
+     * @param row
+     *            The decoded data row.
+     *
+     * @throws IOException
+     *             If the row could not be processed. This aborts the
+     *             retrieval.
+     */
+    public void handle(DataRow row) throws IOException;
+
+}
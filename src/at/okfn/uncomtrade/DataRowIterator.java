@@ -0,0 +1,158 @@
+package at.okfn.uncomtrade;
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.google.gson.JsonObject;
+
+
+/**
+ * Iterates over the data rows of a response while it is still being received.
+ *
+ * The iterator holds on to the underlying HTTP response, so it has to be
+ * closed when it is not read until the end. Use like this:
+ *
+ * <pre>
+ *
+ * {@code
+ *     try (DataRowIterator rows = client.retrieveIterator()) {
+ *         while (rows.hasNext()) {
+ *             DataRow row = rows.next();
+ *         }
+ *     }
+ * }
+ * </pre>
+ *
+ * I/O errors while reading are signalled as {@link ResponseReadException}.
+ */
+public class DataRowIterator implements Iterator<DataRow>, Closeable {
+
+    /**
+     * The reader providing the data rows.
+     */
+    protected ResponseReader reader;
+
+    /**
+     * The resource to release once reading is done.
+     */
+    protected Closeable resource;
+
+    /**
+     * Whether this iterator has already been closed.
+     */
+    protected boolean closed = false;
+
+    /**
+     * Whether all data rows have been read.
+     */
+    protected boolean finished = false;
+
+    /**
+     * Creates a new data row iterator.
+     *
+     * @param reader
+     *            The reader providing the data rows.
+     * @param resource
+     *            The resource (usually, the HTTP response) to release once
+     *            reading is done.
+     */
+    public DataRowIterator(ResponseReader reader, Closeable resource) {
+        this.reader = reader;
+        this.resource = resource;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        try {
+            if (reader.hasNext()) {
+                return true;
+            }
+            finished = true;
+            complete(reader.getValidation());
+            close();
+            return false;
+        }
+        catch (IOException e) {
+            closeQuietly();
+            throw new ResponseReadException(e);
+        }
+    }
+
+    @Override
+    public DataRow next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        try {
+            return reader.next();
+        }
+        catch (IOException e) {
+            closeQuietly();
+            throw new ResponseReadException(e);
+        }
+    }
+
+    /**
+     * Not supported, the response is read-only.
+     */
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return The "validation" metadata of the response, or null if it was
+     *         not (yet) encountered.
+     */
+    public JsonObject getValidation() {
+        return reader.getValidation();
+    }
+
+    /**
+     * Called once when the response was read completely.
+     *
+     * @param validation
+     *            The "validation" metadata of the response.
+     */
+    protected void complete(JsonObject validation) {}
+
+    /**
+     * Releases the underlying response. Any unread rows are discarded.
+     *
+     * If the response was not read until the end, the resource is closed
+     * first, which aborts the connection instead of receiving the rest of the
+     * response just to reuse it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Closeable first = finished ? reader : resource;
+        Closeable second = finished ? resource : reader;
+        try {
+            first.close();
+        }
+        finally {
+            second.close();
+        }
+    }
+
+    /**
+     * Releases the underlying response, ignoring any errors.
+     */
+    protected void closeQuietly() {
+        try {
+            close();
+        }
+        catch (IOException e) {}
+    }
+
+}
@@ -0,0 +1,229 @@
+package at.okfn.uncomtrade;
+
+
+import java.io.IOException;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+
+/**
+ * Binds data rows to and from JSON, as used by the API.
+ *
+ * This does the same as Gson's reflective binding, but without going through
+ * reflection and the generic adapters for each property: property names are
+ * matched in a single switch and numbers are read straight into the boxed
+ * values. Instances are stateless and can be shared between threads.
+ */
+public class DataRowTypeAdapter extends TypeAdapter<DataRow> {
+
+    @Override
+    public DataRow read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        DataRow row = new DataRow();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "pfCode":
+                    row.pfCode = readString(in);
+                    break;
+
+                case "yr":
+                    row.yr = readInteger(in);
+                    break;
+
+                case "period":
+                    row.period = readInteger(in);
+                    break;
+
+                case "periodDesc":
+                    row.periodDesc = readString(in);
+                    break;
+
+                case "aggrLevel":
+                    row.aggrLevel = readInteger(in);
+                    break;
+
+                case "IsLeaf":
+                    row.IsLeaf = readInteger(in);
+                    break;
+
+                case "rgCode":
+                    row.rgCode = readInteger(in);
+                    break;
+
+                case "rgDesc":
+                    row.rgDesc = readString(in);
+                    break;
+
+                case "rtCode":
+                    row.rtCode = readInteger(in);
+                    break;
+
+                case "rtTitle":
+                    row.rtTitle = readString(in);
+                    break;
+
+                case "rt3ISO":
+                    row.rt3ISO = readString(in);
+                    break;
+
+                case "ptCode":
+                    row.ptCode = readInteger(in);
+                    break;
+
+                case "ptTitle":
+                    row.ptTitle = readString(in);
+                    break;
+
+                case "pt3ISO":
+                    row.pt3ISO = readString(in);
+                    break;
+
+                case "cmdCode":
+                    row.cmdCode = readString(in);
+                    break;
+
+                case "cmdDescE":
+                    row.cmdDescE = readString(in);
+                    break;
+
+                case "qtCode":
+                    row.qtCode = readInteger(in);
+                    break;
+
+                case "qtDesc":
+                    row.qtDesc = readString(in);
+                    break;
+
+                case "TradeQuantity":
+                    row.TradeQuantity = readLong(in);
+                    break;
+
+                case "NetWeight":
+                    row.NetWeight = readString(in);
+                    break;
+
+                case "TradeValue":
+                    row.TradeValue = readLong(in);
+                    break;
+
+                case "estCode":
+                    row.estCode = readInteger(in);
+                    break;
+
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return row;
+    }
+
+    @Override
+    public void write(JsonWriter out, DataRow row) throws IOException {
+        if (row == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("pfCode").value(row.getPfCode());
+        out.name("yr").value(row.getYr());
+        out.name("period").value(row.getPeriod());
+        out.name("periodDesc").value(row.getPeriodDesc());
+        out.name("aggrLevel").value(row.getAggrLevel());
+        out.name("IsLeaf").value(row.isLeaf());
+        out.name("rgCode").value(row.getRgCode());
+        out.name("rgDesc").value(row.getRgDesc());
+        out.name("rtCode").value(row.getRtCode());
+        out.name("rtTitle").value(row.getRtTitle());
+        out.name("rt3ISO").value(row.getRt3ISO());
+        out.name("ptCode").value(row.getPtCode());
+        out.name("ptTitle").value(row.getPtTitle());
+        out.name("pt3ISO").value(row.getPt3ISO());
+        out.name("cmdCode").value(row.getCmdCode());
+        out.name("cmdDescE").value(row.getCmdDescE());
+        out.name("qtCode").value(row.getQtCode());
+        out.name("qtDesc").value(row.getQtDesc());
+        out.name("TradeQuantity").value(row.getTradeQuantity());
+        out.name("NetWeight").value(row.getNetWeight());
+        out.name("TradeValue").value(row.getTradeValue());
+        out.name("estCode").value(row.getEstCode());
+        out.endObject();
+    }
+
+    /**
+     * Reads a string property, accepting numbers and booleans as well.
+     *
+     * @param in
+     *            The reader, positioned at the value.
+     *
+     * @return The value, or null.
+     */
+    protected static String readString(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        if (token == JsonToken.BOOLEAN) {
+            return Boolean.toString(in.nextBoolean());
+        }
+        return in.nextString();
+    }
+
+    /**
+     * Reads an integer property, accepting numeric strings as well.
+     *
+     * @param in
+     *            The reader, positioned at the value.
+     *
+     * @return The value, or null.
+     *
+     * @throws JsonSyntaxException
+     *             If the value is not an integer.
+     */
+    protected static Integer readInteger(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        try {
+            return in.nextInt();
+        }
+        catch (NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    /**
+     * Reads a long property, accepting numeric strings as well.
+     *
+     * @param in
+     *            The reader, positioned at the value.
+     *
+     * @return The value, or null.
+     *
+     * @throws JsonSyntaxException
+     *             If the value is not a long.
+     */
+    protected static Long readLong(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        try {
+            return in.nextLong();
+        }
+        catch (NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+}
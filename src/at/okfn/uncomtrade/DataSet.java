@@ -1,12 +1,14 @@
 package at.okfn.uncomtrade;
 
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 
 
 /**
@@ -14,6 +16,24 @@ import java.util.Map.Entry;
  */
 public class DataSet extends LinkedList<DataRow> {
 
+    /**
+     * Creates a new, empty data set.
+     */
+    public DataSet() {
+    }
+
+    /**
+     * Creates a new data set containing the given data rows.
+     *
+     * The data rows themselves are not copied.
+     *
+     * @param rows
+     *            The data rows to add.
+     */
+    public DataSet(Collection<? extends DataRow> rows) {
+        super(rows);
+    }
+
     /**
      * Removes all data rows with "World" as the trading partner from this set.
      *
@@ -98,20 +118,35 @@ public class DataSet extends LinkedList<DataRow> {
      *         averages for the group.
      */
     protected Map<String, Long> getSumOrAvg(String property, String[] groupBy, boolean avg) {
-        Map<String, Long> results = new HashMap<String, Long>();
+        Aggregation aggregation = getAggregation(property, groupBy, false);
+        return avg ? aggregation.getAverages() : aggregation.getSums();
+    }
 
-        for (Entry<String, List<Long>> group : aggregate(property, groupBy).entrySet()) {
-            long sum = 0;
-            for (Long value : group.getValue()) {
-                sum += value;
-            }
-            if (avg) {
-                sum = sum / group.getValue().size();
-            }
-            results.put(group.getKey(), sum);
+    /**
+     * Computes sums, counts, minimums and maximums of a property, grouped by
+     * other properties.
+     *
+     * @param property
+     *            The name of a numeric property.
+     * @param groupBy
+     *            The properties to group by.
+     * @param parallel
+     *            Whether to aggregate on all available processors. The result
+     *            is the same either way, but for large data sets this is much
+     *            faster. The data set must not be modified in the meantime.
+     *
+     * @return The aggregation of the property.
+     *
+     * @throws IllegalArgumentException
+     *             If any of the given properties does not exist.
+     */
+    public Aggregation getAggregation(String property, String[] groupBy, boolean parallel) {
+        if (parallel) {
+            return ParallelAggregation.aggregate(this, property, groupBy, null);
         }
-
-        return results;
+        Aggregation aggregation = new Aggregation(property, groupBy);
+        aggregation.addAll(this);
+        return aggregation;
     }
 
     /**
@@ -136,31 +171,38 @@ public class DataSet extends LinkedList<DataRow> {
      *            The properties to group by.
      *
      * @return A map of group IDs (the comma-separated values of the groupBy
-     *         fields) mapped to all the property values in this group.
+     *         fields, see
+     *         {@link Aggregation#appendGroupValue(StringBuilder, String)})
+     *         mapped to all the property values in this group.
+     *
+     * @throws IllegalArgumentException
+     *             If any of the given properties does not exist.
      */
     public Map<String, List<Long>> aggregate(String property, String[] groupBy) {
+        DataRowField valueField = DataRowField.forName(property);
+        DataRowField[] groupFields = DataRowField.forNames(groupBy);
         Map<String, List<Long>> aggregation = new HashMap<String, List<Long>>();
 
         for (DataRow row : this) {
             StringBuilder groupId = new StringBuilder();
-            for (String groupProperty : groupBy) {
-                Object groupValue = row.get(groupProperty);
+            for (int i = 0; i < groupFields.length; ++i) {
+                Object groupValue = groupFields[i].get(row);
                 if (groupValue == null) {
                     groupValue = "";
                 }
-                if (groupId.length() > 0) {
-                    groupId.append(',');
+                if (i > 0) {
+                    groupId.append(Aggregation.SEPARATOR);
                 }
-                groupId.append(groupValue);
+                Aggregation.appendGroupValue(groupId, groupValue.toString());
             }
 
-            Object value = row.get(property);
+            Object value = valueField.get(row);
             if (value == null) {
                 continue;
             }
             Long longValue;
-            if (value instanceof Number) {
-                longValue = ((Number) value).longValue();
+            if (valueField.isNumeric()) {
+                longValue = valueField.getLong(row);
             }
             else {
                 try {
@@ -181,6 +223,42 @@ public class DataSet extends LinkedList<DataRow> {
         return aggregation;
     }
 
+    /**
+     * Saves this data set to a binary snapshot file, which can be loaded much
+     * faster than decoding the original response again.
+     *
+     * @param file
+     *            The file to write to. It is replaced if it exists.
+     * @param compress
+     *            Whether to compress the snapshot.
+     *
+     * @throws IOException
+     *             If the file could not be written.
+     *
+     * @see SnapshotWriter
+     */
+    public void save(File file, boolean compress) throws IOException {
+        SnapshotWriter.write(this, file, compress);
+    }
+
+    /**
+     * Loads a data set from a binary snapshot file.
+     *
+     * @param file
+     *            A file written by {@link #save(File, boolean)} or a
+     *            {@link SnapshotWriter}.
+     *
+     * @return The data set stored in the file.
+     *
+     * @throws IOException
+     *             If the file could not be read or is not a valid snapshot.
+     *
+     * @see SnapshotReader
+     */
+    public static DataSet load(File file) throws IOException {
+        return SnapshotReader.readAll(file);
+    }
+
     /**
      * A serial ID for this version of the class.
      */
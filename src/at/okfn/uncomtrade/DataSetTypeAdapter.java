@@ -0,0 +1,72 @@
+package at.okfn.uncomtrade;
+
+
+import java.io.IOException;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+
+/**
+ * Binds data sets to and from JSON arrays of data rows, like the "dataset"
+ * property of API responses.
+ *
+ * Rows are bound by a {@link DataRowTypeAdapter} directly, instead of going
+ * through Gson's generic collection binding. Instances are stateless and can
+ * be shared between threads.
+ */
+public class DataSetTypeAdapter extends TypeAdapter<DataSet> {
+
+    /**
+     * The adapter for the single data rows.
+     */
+    protected final TypeAdapter<DataRow> rowAdapter;
+
+    /**
+     * Creates a new data set adapter.
+     */
+    public DataSetTypeAdapter() {
+        this(new DataRowTypeAdapter());
+    }
+
+    /**
+     * Creates a new data set adapter.
+     *
+     * @param rowAdapter
+     *            The adapter for the single data rows.
+     */
+    public DataSetTypeAdapter(TypeAdapter<DataRow> rowAdapter) {
+        this.rowAdapter = rowAdapter;
+    }
+
+    @Override
+    public DataSet read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        DataSet dataSet = new DataSet();
+        in.beginArray();
+        while (in.hasNext()) {
+            dataSet.add(rowAdapter.read(in));
+        }
+        in.endArray();
+        return dataSet;
+    }
+
+    @Override
+    public void write(JsonWriter out, DataSet dataSet) throws IOException {
+        if (dataSet == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginArray();
+        for (DataRow row : dataSet) {
+            rowAdapter.write(out, row);
+        }
+        out.endArray();
+    }
+
+}
@@ -0,0 +1,227 @@
+package at.okfn.uncomtrade;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+
+
+/**
+ * Provides an HTTP client backed by a pool of persistent connections, for
+ * sharing between several API clients.
+ *
+ * Connections are kept alive and reused between requests to the same host, so
+ * repeated queries do not have to establish a new TCP connection each time.
+ * Responses are transparently decompressed if the server sends them gzip or
+ * deflate encoded.
+ *
+ * Users obtain the HTTP client with {@link #getHttpClient()} and must not
+ * close it. The pool stays open when its users are closed, so clients which
+ * are created and closed one after another keep reusing the same
+ * connections. Connections which were idle for longer than the keep-alive
+ * time are closed in the background. {@link #shutdown()} closes all
+ * connections at once; the next call to {@link #getHttpClient()} then opens a
+ * new pool.
+ *
+ * This class is thread-safe.
+ */
+public class HttpConnectionPool {
+
+    /**
+     * The attribute of the HTTP context which receives the time spent opening
+     * a new connection for a request, in nanoseconds, as a Long. It is not
+     * set if a pooled connection was reused.
+     */
+    public static final String CONNECT_TIME = "at.okfn.uncomtrade.connect-time";
+
+    /**
+     * The pool shared by all clients which do not set their own.
+     */
+    private static HttpConnectionPool defaultPool;
+
+    /**
+     * The maximum number of connections in total.
+     */
+    protected final int maxTotal;
+
+    /**
+     * The maximum number of connections per host.
+     */
+    protected final int maxPerRoute;
+
+    /**
+     * The maximum time to keep idle connections open, in milliseconds.
+     */
+    protected final long keepAlive;
+
+    /**
+     * The currently open HTTP client, or null.
+     */
+    protected CloseableHttpClient httpClient;
+
+    /**
+     * Creates a new connection pool.
+     *
+     * @param maxTotal
+     *            The maximum number of connections in total.
+     * @param maxPerRoute
+     *            The maximum number of connections per host.
+     * @param keepAlive
+     *            The maximum time to keep idle connections open. Servers may
+     *            request a shorter time.
+     * @param unit
+     *            The time unit of the keep-alive time.
+     */
+    public HttpConnectionPool(int maxTotal, int maxPerRoute, long keepAlive, TimeUnit unit) {
+        if (maxTotal < 1 || maxPerRoute < 1) {
+            throw new IllegalArgumentException("At least one connection has to be allowed.");
+        }
+        this.maxTotal = maxTotal;
+        this.maxPerRoute = maxPerRoute;
+        this.keepAlive = unit.toMillis(keepAlive);
+    }
+
+    /**
+     * @return The pool shared by all clients which do not set their own,
+     *         allowing up to 20 connections in total, 10 per host, kept alive
+     *         for up to 30 seconds.
+     */
+    public static synchronized HttpConnectionPool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new HttpConnectionPool(20, 10, 30, TimeUnit.SECONDS);
+        }
+        return defaultPool;
+    }
+
+    /**
+     * Returns the HTTP client, opening the pool if it is not open yet.
+     *
+     * The returned client must not be closed directly, use
+     * {@link #shutdown()} instead.
+     *
+     * @return The HTTP client using the pooled connections.
+     */
+    public synchronized CloseableHttpClient getHttpClient() {
+        if (httpClient == null) {
+            httpClient = createHttpClient();
+        }
+        return httpClient;
+    }
+
+    /**
+     * Closes all connections and stops the background eviction of idle
+     * connections.
+     *
+     * Clients still using the pool fail on their next request. The next call
+     * to {@link #getHttpClient()} opens a new pool.
+     *
+     * @throws IOException
+     *             If the connections could not be closed.
+     */
+    public synchronized void shutdown() throws IOException {
+        if (httpClient != null) {
+            CloseableHttpClient closed = httpClient;
+            httpClient = null;
+            closed.close();
+        }
+    }
+
+    /**
+     * Creates the HTTP client with its connection manager.
+     *
+     * @return A new HTTP client.
+     */
+    protected CloseableHttpClient createHttpClient() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory> create()
+                        .register("http", new TimedSocketFactory(PlainConnectionSocketFactory.getSocketFactory()))
+                        .register("https", new TimedSocketFactory(SSLConnectionSocketFactory.getSocketFactory()))
+                        .build());
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        // Check connections which were idle for a while before reusing them.
+        connectionManager.setValidateAfterInactivity(2000);
+
+        ConnectionKeepAliveStrategy keepAliveStrategy = new DefaultConnectionKeepAliveStrategy() {
+
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                return duration > 0 && duration < keepAlive ? duration : keepAlive;
+            }
+
+        };
+
+        // Content compression (gzip, deflate) is enabled by default.
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .evictExpiredConnections()
+                .evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Measures the time spent opening connections, including the TLS
+     * handshake, and stores it in the HTTP context as {@link #CONNECT_TIME}.
+     */
+    protected static class TimedSocketFactory implements LayeredConnectionSocketFactory {
+
+        /**
+         * The factory opening the connections.
+         */
+        protected final ConnectionSocketFactory delegate;
+
+        /**
+         * Creates a new timed socket factory.
+         *
+         * @param delegate
+         *            The factory opening the connections.
+         */
+        public TimedSocketFactory(ConnectionSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Socket createSocket(HttpContext context) throws IOException {
+            return delegate.createSocket(context);
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket sock, HttpHost host, InetSocketAddress remoteAddress,
+                InetSocketAddress localAddress, HttpContext context) throws IOException {
+            long start = System.nanoTime();
+            Socket socket = delegate.connectSocket(connectTimeout, sock, host, remoteAddress, localAddress, context);
+            if (context != null) {
+                context.setAttribute(CONNECT_TIME, System.nanoTime() - start);
+            }
+            return socket;
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context)
+                throws IOException {
+            if (!(delegate instanceof LayeredConnectionSocketFactory)) {
+                throw new UnsupportedOperationException("Layered connections are not supported.");
+            }
+            return ((LayeredConnectionSocketFactory) delegate).createLayeredSocket(socket, target, port, context);
+        }
+
+    }
+
+}
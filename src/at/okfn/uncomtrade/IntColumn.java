@@ -0,0 +1,87 @@
+package at.okfn.uncomtrade;
+
+
+import java.util.Arrays;
+
+
+/**
+ * A column of nullable integer values.
+ */
+class IntColumn extends Column {
+
+    /**
+     * The stored values.
+     */
+    protected int[] values = new int[16];
+
+    /**
+     * Creates a new integer column.
+     *
+     * @param field
+     *            The data row property stored in this column.
+     */
+    public IntColumn(DataRowField field) {
+        super(field);
+    }
+
+    /**
+     * Stores a value.
+     *
+     * @param row
+     *            The row index.
+     * @param value
+     *            The value, or null.
+     */
+    public void set(int row, Integer value) {
+        ensureCapacity(row + 1);
+        setNull(row, value == null);
+        values[row] = value == null ? 0 : value;
+    }
+
+    @Override
+    public Integer get(int row) {
+        return isNull(row) ? null : values[row];
+    }
+
+    /**
+     * @param row
+     *            The row index.
+     *
+     * @return The value in the given row, or 0 if it is null.
+     */
+    public int getInt(int row) {
+        return values[row];
+    }
+
+    @Override
+    public long getLong(int row) {
+        return values[row];
+    }
+
+    @Override
+    public void appendTo(StringBuilder builder, int row) {
+        if (!isNull(row)) {
+            builder.append(values[row]);
+        }
+    }
+
+    @Override
+    public boolean isNumeric() {
+        return true;
+    }
+
+    @Override
+    protected void ensureCapacity(int capacity) {
+        super.ensureCapacity(capacity);
+        if (capacity > values.length) {
+            values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+        }
+    }
+
+    @Override
+    protected void move(int from, int to) {
+        values[to] = values[from];
+        setNull(to, isNull(from));
+    }
+
+}
@@ -0,0 +1,280 @@
+package at.okfn.uncomtrade;
+
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+
+/**
+ * A data row which decodes its properties from the raw response only when they
+ * are first read, see {@link LazyResponseReader}.
+ *
+ * Decoded values are kept, so each property is decoded at most once. The row
+ * keeps the whole response it was read from in memory; copy the properties
+ * into a {@link ColumnarDataSet} or a plain data row to keep them for longer.
+ *
+ * Rows can be read from several threads at once, as happens when concurrent
+ * retrievals share a request. A property is decoded before its bit is set in
+ * a volatile bitmask, so a thread seeing the bit also sees the value. Threads
+ * reading the same property at the same time might both decode it, to equal
+ * values.
+ */
+public class LazyDataRow extends DataRow {
+
+    /**
+     * The response holding the raw values.
+     */
+    protected final LazyResponseReader response;
+
+    /**
+     * The index of the data row in the response.
+     */
+    protected final int index;
+
+    /**
+     * Updates {@link #decoded} atomically, without an extra object per row.
+     */
+    protected static final AtomicIntegerFieldUpdater<LazyDataRow> DECODED =
+            AtomicIntegerFieldUpdater.newUpdater(LazyDataRow.class, "decoded");
+
+    /**
+     * One bit per property, by ordinal, set once it was decoded.
+     */
+    protected volatile int decoded = 0;
+
+    /**
+     * Creates a view of a data row in a response.
+     *
+     * @param response
+     *            The response holding the raw values.
+     * @param index
+     *            The index of the data row in the response.
+     */
+    protected LazyDataRow(LazyResponseReader response, int index) {
+        this.response = response;
+        this.index = index;
+    }
+
+    /**
+     * @param field
+     *            A property.
+     *
+     * @return Whether the property has already been decoded.
+     */
+    protected boolean isDecoded(DataRowField field) {
+        return (decoded & 1 << field.ordinal()) != 0;
+    }
+
+    /**
+     * Marks a property as decoded, which publishes its value to other
+     * threads. The value has to be stored before.
+     *
+     * @param field
+     *            The property.
+     */
+    protected void setDecoded(DataRowField field) {
+        int bit = 1 << field.ordinal();
+        int current;
+        do {
+            current = decoded;
+        } while ((current & bit) == 0 && !DECODED.compareAndSet(this, current, current | bit));
+    }
+
+    @Override
+    public String getPfCode() {
+        if (!isDecoded(DataRowField.PF_CODE)) {
+            pfCode = response.getString(index, DataRowField.PF_CODE);
+            setDecoded(DataRowField.PF_CODE);
+        }
+        return pfCode;
+    }
+
+    @Override
+    public Integer getYr() {
+        if (!isDecoded(DataRowField.YR)) {
+            yr = response.getInteger(index, DataRowField.YR);
+            setDecoded(DataRowField.YR);
+        }
+        return yr;
+    }
+
+    @Override
+    public Integer getPeriod() {
+        if (!isDecoded(DataRowField.PERIOD)) {
+            period = response.getInteger(index, DataRowField.PERIOD);
+            setDecoded(DataRowField.PERIOD);
+        }
+        return period;
+    }
+
+    @Override
+    public String getPeriodDesc() {
+        if (!isDecoded(DataRowField.PERIOD_DESC)) {
+            periodDesc = response.getString(index, DataRowField.PERIOD_DESC);
+            setDecoded(DataRowField.PERIOD_DESC);
+        }
+        return periodDesc;
+    }
+
+    @Override
+    public Integer getAggrLevel() {
+        if (!isDecoded(DataRowField.AGGR_LEVEL)) {
+            aggrLevel = response.getInteger(index, DataRowField.AGGR_LEVEL);
+            setDecoded(DataRowField.AGGR_LEVEL);
+        }
+        return aggrLevel;
+    }
+
+    @Override
+    public Integer isLeaf() {
+        if (!isDecoded(DataRowField.IS_LEAF)) {
+            IsLeaf = response.getInteger(index, DataRowField.IS_LEAF);
+            setDecoded(DataRowField.IS_LEAF);
+        }
+        return IsLeaf;
+    }
+
+    @Override
+    public Integer getRgCode() {
+        if (!isDecoded(DataRowField.RG_CODE)) {
+            rgCode = response.getInteger(index, DataRowField.RG_CODE);
+            setDecoded(DataRowField.RG_CODE);
+        }
+        return rgCode;
+    }
+
+    @Override
+    public String getRgDesc() {
+        if (!isDecoded(DataRowField.RG_DESC)) {
+            rgDesc = response.getString(index, DataRowField.RG_DESC);
+            setDecoded(DataRowField.RG_DESC);
+        }
+        return rgDesc;
+    }
+
+    @Override
+    public Integer getRtCode() {
+        if (!isDecoded(DataRowField.RT_CODE)) {
+            rtCode = response.getInteger(index, DataRowField.RT_CODE);
+            setDecoded(DataRowField.RT_CODE);
+        }
+        return rtCode;
+    }
+
+    @Override
+    public String getRtTitle() {
+        if (!isDecoded(DataRowField.RT_TITLE)) {
+            rtTitle = response.getString(index, DataRowField.RT_TITLE);
+            setDecoded(DataRowField.RT_TITLE);
+        }
+        return rtTitle;
+    }
+
+    @Override
+    public String getRt3ISO() {
+        if (!isDecoded(DataRowField.RT_3ISO)) {
+            rt3ISO = response.getString(index, DataRowField.RT_3ISO);
+            setDecoded(DataRowField.RT_3ISO);
+        }
+        return rt3ISO;
+    }
+
+    @Override
+    public Integer getPtCode() {
+        if (!isDecoded(DataRowField.PT_CODE)) {
+            ptCode = response.getInteger(index, DataRowField.PT_CODE);
+            setDecoded(DataRowField.PT_CODE);
+        }
+        return ptCode;
+    }
+
+    @Override
+    public String getPtTitle() {
+        if (!isDecoded(DataRowField.PT_TITLE)) {
+            ptTitle = response.getString(index, DataRowField.PT_TITLE);
+            setDecoded(DataRowField.PT_TITLE);
+        }
+        return ptTitle;
+    }
+
+    @Override
+    public String getPt3ISO() {
+        if (!isDecoded(DataRowField.PT_3ISO)) {
+            pt3ISO = response.getString(index, DataRowField.PT_3ISO);
+            setDecoded(DataRowField.PT_3ISO);
+        }
+        return pt3ISO;
+    }
+
+    @Override
+    public String getCmdCode() {
+        if (!isDecoded(DataRowField.CMD_CODE)) {
+            cmdCode = response.getString(index, DataRowField.CMD_CODE);
+            setDecoded(DataRowField.CMD_CODE);
+        }
+        return cmdCode;
+    }
+
+    @Override
+    public String getCmdDescE() {
+        if (!isDecoded(DataRowField.CMD_DESC_E)) {
+            cmdDescE = response.getString(index, DataRowField.CMD_DESC_E);
+            setDecoded(DataRowField.CMD_DESC_E);
+        }
+        return cmdDescE;
+    }
+
+    @Override
+    public Integer getQtCode() {
+        if (!isDecoded(DataRowField.QT_CODE)) {
+            qtCode = response.getInteger(index, DataRowField.QT_CODE);
+            setDecoded(DataRowField.QT_CODE);
+        }
+        return qtCode;
+    }
+
+    @Override
+    public String getQtDesc() {
+        if (!isDecoded(DataRowField.QT_DESC)) {
+            qtDesc = response.getString(index, DataRowField.QT_DESC);
+            setDecoded(DataRowField.QT_DESC);
+        }
+        return qtDesc;
+    }
+
+    @Override
+    public Long getTradeQuantity() {
+        if (!isDecoded(DataRowField.TRADE_QUANTITY)) {
+            TradeQuantity = response.getLong(index, DataRowField.TRADE_QUANTITY);
+            setDecoded(DataRowField.TRADE_QUANTITY);
+        }
+        return TradeQuantity;
+    }
+
+    @Override
+    public String getNetWeight() {
+        if (!isDecoded(DataRowField.NET_WEIGHT)) {
+            NetWeight = response.getString(index, DataRowField.NET_WEIGHT);
+            setDecoded(DataRowField.NET_WEIGHT);
+        }
+        return NetWeight;
+    }
+
+    @Override
+    public Long getTradeValue() {
+        if (!isDecoded(DataRowField.TRADE_VALUE)) {
+            TradeValue = response.getLong(index, DataRowField.TRADE_VALUE);
+            setDecoded(DataRowField.TRADE_VALUE);
+        }
+        return TradeValue;
+    }
+
+    @Override
+    public Integer getEstCode() {
+        if (!isDecoded(DataRowField.EST_CODE)) {
+            estCode = response.getInteger(index, DataRowField.EST_CODE);
+            setDecoded(DataRowField.EST_CODE);
+        }
+        return estCode;
+    }
+
+}
@@ -0,0 +1,638 @@
+package at.okfn.uncomtrade;
+
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.MalformedJsonException;
+
+
+/**
+ * Reads a UN Comtrade API response into a byte buffer and hands out
+ * {@link LazyDataRow} views of it, which decode each property only when it is
+ * first read.
+ *
+ * The whole response is read and indexed in a single pass when the reader is
+ * created: for every data row, only the offsets of the property values are
+ * recorded. Strings and numbers are not created until a getter asks for them,
+ * so properties which are never read (typically the descriptions) cost
+ * nothing but their bytes in the buffer.
+ *
+ * Unlike {@link ResponseReader}, the whole response is held in memory, for as
+ * long as any of its data rows is referenced. This pays off when only a few
+ * properties of each row are read, or rows are mostly filtered out.
+ */
+public class LazyResponseReader extends ResponseReader {
+
+    /**
+     * The data row properties, indexed by their ordinal.
+     */
+    protected static final DataRowField[] FIELDS = DataRowField.values();
+
+    /**
+     * The machine names of the data row properties, encoded as in the
+     * response.
+     */
+    protected static final byte[][] NAMES = new byte[FIELDS.length][];
+
+    static {
+        for (DataRowField field : FIELDS) {
+            NAMES[field.ordinal()] = field.getName().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Marks a data row which is null in the response, in place of its first
+     * offset.
+     */
+    protected static final int NULL_ROW = -2;
+
+    /**
+     * The characters the JSON structure is written in.
+     */
+    protected static final String STRUCTURE = "{}[]:,\" \t\r\n\\-+.0123456789eEtrufalsn";
+
+    /**
+     * The raw response.
+     */
+    protected byte[] data;
+
+    /**
+     * The number of bytes in {@link #data} which belong to the response.
+     */
+    protected int length;
+
+    /**
+     * The character set of the response.
+     */
+    protected Charset charset;
+
+    /**
+     * For each data row, the offsets of the property values in {@link #data},
+     * or -1 for missing properties.
+     */
+    protected int[] offsets = new int[FIELDS.length * 64];
+
+    /**
+     * The number of indexed data rows.
+     */
+    protected int rowCount = 0;
+
+    /**
+     * The index of the next data row to hand out.
+     */
+    protected int nextRow = 0;
+
+    /**
+     * The input the response was read from.
+     */
+    protected Closeable input;
+
+    /**
+     * Reads and indexes a response.
+     *
+     * @param in
+     *            The stream providing the raw JSON response.
+     * @param charset
+     *            The character set of the response.
+     * @param stringPool
+     *            The pool through which to deduplicate the repeated string
+     *            properties of data rows, or null to keep all strings as
+     *            decoded.
+     *
+     * @throws IOException
+     *             If the response could not be read or is malformed.
+     */
+    public LazyResponseReader(InputStream in, Charset charset, StringPool stringPool) throws IOException {
+        super(stringPool);
+        input = in;
+        data = new byte[1 << 16];
+        int read;
+        while ((read = in.read(data, length, data.length - length)) >= 0) {
+            length += read;
+            if (length == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+        }
+        this.charset = charset;
+        if (!Arrays.equals(STRUCTURE.getBytes(charset), STRUCTURE.getBytes(StandardCharsets.US_ASCII))) {
+            // The index works on bytes, so the structure has to be ASCII.
+            data = new String(data, 0, length, charset).getBytes(StandardCharsets.UTF_8);
+            length = data.length;
+            this.charset = StandardCharsets.UTF_8;
+        }
+        index();
+    }
+
+    /**
+     * Reads and indexes a response, which is encoded as UTF-8 for keeping it
+     * in memory.
+     *
+     * @param in
+     *            The reader providing the raw JSON response.
+     * @param stringPool
+     *            The pool through which to deduplicate the repeated string
+     *            properties of data rows, or null to keep all strings as
+     *            decoded.
+     *
+     * @throws IOException
+     *             If the response could not be read or is malformed.
+     */
+    public LazyResponseReader(Reader in, StringPool stringPool) throws IOException {
+        super(stringPool);
+        input = in;
+        StringBuilder builder = new StringBuilder();
+        char[] buffer = new char[1 << 14];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            builder.append(buffer, 0, read);
+        }
+        data = builder.toString().getBytes(StandardCharsets.UTF_8);
+        length = data.length;
+        charset = StandardCharsets.UTF_8;
+        index();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextRow < rowCount;
+    }
+
+    @Override
+    public DataRow next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return readRow();
+    }
+
+    @Override
+    protected DataRow readRow() {
+        int row = nextRow++;
+        return offsets[row * FIELDS.length] == NULL_ROW ? null : new LazyDataRow(this, row);
+    }
+
+    /**
+     * Closes the input the response was read from.
+     */
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    /**
+     * Indexes the whole response, recording the value offsets of all data
+     * rows and decoding the "validation" metadata.
+     *
+     * @throws IOException
+     *             If the response is malformed.
+     */
+    protected void index() throws IOException {
+        int pos = skipWhitespace(expect(skipWhitespace(0), '{'));
+        if (peek(pos) == '}') {
+            return;
+        }
+        while (true) {
+            expect(pos, '"');
+            int nameEnd = skipString(pos);
+            int valueStart = skipWhitespace(expect(skipWhitespace(nameEnd), ':'));
+            if (isName(pos + 1, nameEnd - 1, "dataset")) {
+                pos = peek(valueStart) == 'n' ? skipValue(valueStart) : indexDataset(valueStart);
+            }
+            else if (isName(pos + 1, nameEnd - 1, "validation")) {
+                pos = skipValue(valueStart);
+                JsonElement element = new JsonParser().parse(new String(data, valueStart, pos - valueStart, charset));
+                validation = element.isJsonObject() ? element.getAsJsonObject() : null;
+            }
+            else {
+                pos = skipValue(valueStart);
+            }
+            pos = skipWhitespace(pos);
+            if (peek(pos) == '}') {
+                return;
+            }
+            pos = skipWhitespace(expect(pos, ','));
+        }
+    }
+
+    /**
+     * Indexes the "dataset" array.
+     *
+     * @param pos
+     *            The offset of the array.
+     *
+     * @return The offset after the array.
+     *
+     * @throws IOException
+     *             If the response is malformed.
+     */
+    protected int indexDataset(int pos) throws IOException {
+        pos = skipWhitespace(expect(pos, '['));
+        if (peek(pos) == ']') {
+            return pos + 1;
+        }
+        while (true) {
+            int base = rowCount * FIELDS.length;
+            if (base + FIELDS.length > offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            Arrays.fill(offsets, base, base + FIELDS.length, -1);
+            ++rowCount;
+            if (peek(pos) == 'n') {
+                offsets[base] = NULL_ROW;
+                pos = skipValue(pos);
+            }
+            else {
+                pos = indexRow(pos, base);
+            }
+            pos = skipWhitespace(pos);
+            if (peek(pos) == ']') {
+                return pos + 1;
+            }
+            pos = skipWhitespace(expect(pos, ','));
+        }
+    }
+
+    /**
+     * Indexes a single data row.
+     *
+     * @param pos
+     *            The offset of the data row object.
+     * @param base
+     *            The index of the row's first entry in {@link #offsets}.
+     *
+     * @return The offset after the data row object.
+     *
+     * @throws IOException
+     *             If the response is malformed.
+     */
+    protected int indexRow(int pos, int base) throws IOException {
+        pos = skipWhitespace(expect(pos, '{'));
+        if (peek(pos) == '}') {
+            return pos + 1;
+        }
+        // The properties usually come in the same order in every row.
+        int field = -1;
+        while (true) {
+            expect(pos, '"');
+            int nameEnd = skipString(pos);
+            int valueStart = skipWhitespace(expect(skipWhitespace(nameEnd), ':'));
+            field = findField(pos + 1, nameEnd - 1, field + 1);
+            if (field >= 0) {
+                offsets[base + field] = valueStart;
+            }
+            pos = skipWhitespace(skipValue(valueStart));
+            if (peek(pos) == '}') {
+                return pos + 1;
+            }
+            pos = skipWhitespace(expect(pos, ','));
+        }
+    }
+
+    /**
+     * @param start
+     *            The offset of a property name, after the opening quote.
+     * @param end
+     *            The offset of the closing quote.
+     * @param expected
+     *            The ordinal of the property to check first.
+     *
+     * @return The ordinal of the data row property with that name, or -1 if
+     *         there is none.
+     */
+    protected int findField(int start, int end, int expected) {
+        if (expected < NAMES.length && isName(start, end, NAMES[expected])) {
+            return expected;
+        }
+        for (int i = 0; i < NAMES.length; ++i) {
+            if (isName(start, end, NAMES[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param start
+     *            The offset of a property name, after the opening quote.
+     * @param end
+     *            The offset of the closing quote.
+     * @param name
+     *            The name, encoded as in the response.
+     *
+     * @return Whether the property has the given name.
+     */
+    protected boolean isName(int start, int end, byte[] name) {
+        if (end - start != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; ++i) {
+            if (data[start + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param start
+     *            The offset of a property name, after the opening quote.
+     * @param end
+     *            The offset of the closing quote.
+     * @param name
+     *            An ASCII name.
+     *
+     * @return Whether the property has the given name.
+     */
+    protected boolean isName(int start, int end, String name) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); ++i) {
+            if (data[start + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param pos
+     *            An offset.
+     *
+     * @return The byte at the given offset.
+     *
+     * @throws EOFException
+     *             If the offset is beyond the end of the response.
+     */
+    protected byte peek(int pos) throws EOFException {
+        if (pos >= length) {
+            throw new EOFException("End of input at offset " + pos);
+        }
+        return data[pos];
+    }
+
+    /**
+     * @param pos
+     *            An offset.
+     * @param c
+     *            The expected character.
+     *
+     * @return The offset after the character.
+     *
+     * @throws IOException
+     *             If there is a different character at the given offset.
+     */
+    protected int expect(int pos, char c) throws IOException {
+        if (peek(pos) != c) {
+            throw new MalformedJsonException("Expected '" + c + "' at offset " + pos);
+        }
+        return pos + 1;
+    }
+
+    /**
+     * @param pos
+     *            An offset.
+     *
+     * @return The offset of the next character which is not whitespace.
+     */
+    protected int skipWhitespace(int pos) {
+        while (pos < length) {
+            byte b = data[pos];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                break;
+            }
+            ++pos;
+        }
+        return pos;
+    }
+
+    /**
+     * @param pos
+     *            The offset of a string's opening quote.
+     *
+     * @return The offset after the closing quote.
+     *
+     * @throws EOFException
+     *             If the string is not terminated.
+     */
+    protected int skipString(int pos) throws EOFException {
+        ++pos;
+        while (pos < length) {
+            byte b = data[pos++];
+            if (b == '"') {
+                return pos;
+            }
+            if (b == '\\') {
+                ++pos;
+            }
+        }
+        throw new EOFException("Unterminated string at offset " + pos);
+    }
+
+    /**
+     * @param pos
+     *            The offset of a value.
+     *
+     * @return The offset after the value.
+     *
+     * @throws IOException
+     *             If the value is malformed.
+     */
+    protected int skipValue(int pos) throws IOException {
+        byte b = peek(pos);
+        if (b == '"') {
+            return skipString(pos);
+        }
+        if (b == '{' || b == '[') {
+            int depth = 0;
+            while (true) {
+                b = peek(pos);
+                if (b == '"') {
+                    pos = skipString(pos);
+                    continue;
+                }
+                if (b == '{' || b == '[') {
+                    ++depth;
+                }
+                else if ((b == '}' || b == ']') && --depth == 0) {
+                    return pos + 1;
+                }
+                ++pos;
+            }
+        }
+        int start = pos;
+        while (pos < length) {
+            b = data[pos];
+            if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                break;
+            }
+            ++pos;
+        }
+        if (pos == start) {
+            throw new MalformedJsonException("Expected a value at offset " + pos);
+        }
+        return pos;
+    }
+
+    /**
+     * @param row
+     *            The index of a data row.
+     * @param field
+     *            A property.
+     *
+     * @return The offset of the property's value in the data row, or -1 if it
+     *         is missing.
+     */
+    protected int getOffset(int row, DataRowField field) {
+        return offsets[row * FIELDS.length + field.ordinal()];
+    }
+
+    /**
+     * Decodes an integer property.
+     *
+     * @param row
+     *            The index of a data row.
+     * @param field
+     *            The property.
+     *
+     * @return The value, or null.
+     *
+     * @throws JsonSyntaxException
+     *             If the value is not an integer.
+     */
+    protected Integer getInteger(int row, DataRowField field) {
+        int pos = getOffset(row, field);
+        if (pos < 0 || data[pos] == 'n') {
+            return null;
+        }
+        long value = parseLong(pos, 10);
+        if (value != Long.MIN_VALUE && value == (int) value) {
+            return (int) value;
+        }
+        return gson.fromJson(getToken(pos), Integer.class);
+    }
+
+    /**
+     * Decodes a long property.
+     *
+     * @param row
+     *            The index of a data row.
+     * @param field
+     *            The property.
+     *
+     * @return The value, or null.
+     *
+     * @throws JsonSyntaxException
+     *             If the value is not a long.
+     */
+    protected Long getLong(int row, DataRowField field) {
+        int pos = getOffset(row, field);
+        if (pos < 0 || data[pos] == 'n') {
+            return null;
+        }
+        long value = parseLong(pos, 18);
+        if (value != Long.MIN_VALUE) {
+            return value;
+        }
+        return gson.fromJson(getToken(pos), Long.class);
+    }
+
+    /**
+     * Decodes a string property.
+     *
+     * @param row
+     *            The index of a data row.
+     * @param field
+     *            The property.
+     *
+     * @return The value, or null.
+     *
+     * @throws JsonSyntaxException
+     *             If the value is an object or an array.
+     */
+    protected String getString(int row, DataRowField field) {
+        int pos = getOffset(row, field);
+        if (pos < 0 || data[pos] == 'n') {
+            return null;
+        }
+        String value = null;
+        if (data[pos] == '"') {
+            int end = pos + 1;
+            while (data[end] != '"' && data[end] != '\\') {
+                ++end;
+            }
+            if (data[end] == '"') {
+                value = new String(data, pos + 1, end - pos - 1, charset);
+            }
+        }
+        if (value == null) {
+            value = gson.fromJson(getToken(pos), String.class);
+        }
+        if (stringPool != null && field != DataRowField.NET_WEIGHT) {
+            value = stringPool.intern(value);
+        }
+        return value;
+    }
+
+    /**
+     * Parses a plain decimal integer.
+     *
+     * @param pos
+     *            The offset of the number.
+     * @param maxDigits
+     *            The maximum number of digits to accept.
+     *
+     * @return The number, or Long.MIN_VALUE if the value is not a plain
+     *         integer with at most the given number of digits.
+     */
+    protected long parseLong(int pos, int maxDigits) {
+        boolean negative = data[pos] == '-';
+        if (negative) {
+            ++pos;
+        }
+        int start = pos;
+        long value = 0;
+        while (pos < length && data[pos] >= '0' && data[pos] <= '9') {
+            value = value * 10 + data[pos++] - '0';
+        }
+        int digits = pos - start;
+        if (digits == 0 || digits > maxDigits) {
+            return Long.MIN_VALUE;
+        }
+        if (pos < length) {
+            byte b = data[pos];
+            if (b != ',' && b != '}' && b != ']' && b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return Long.MIN_VALUE;
+            }
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @param pos
+     *            The offset of a value.
+     *
+     * @return The value as written in the response.
+     */
+    protected String getToken(int pos) {
+        try {
+            return new String(data, pos, skipValue(pos) - pos, charset);
+        }
+        catch (IOException e) {
+            // The value was checked while indexing.
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package at.okfn.uncomtrade;
+
+
+import java.util.Arrays;
+
+
+/**
+ * A column of nullable long values.
+ */
+class LongColumn extends Column {
+
+    /**
+     * The stored values.
+     */
+    protected long[] values = new long[16];
+
+    /**
+     * Creates a new long column.
+     *
+     * @param field
+     *            The data row property stored in this column.
+     */
+    public LongColumn(DataRowField field) {
+        super(field);
+    }
+
+    /**
+     * Stores a value.
+     *
+     * @param row
+     *            The row index.
+     * @param value
+     *            The value, or null.
+     */
+    public void set(int row, Long value) {
+        ensureCapacity(row + 1);
+        setNull(row, value == null);
+        values[row] = value == null ? 0 : value;
+    }
+
+    @Override
+    public Long get(int row) {
+        return isNull(row) ? null : values[row];
+    }
+
+    @Override
+    public long getLong(int row) {
+        return values[row];
+    }
+
+    @Override
+    public void appendTo(StringBuilder builder, int row) {
+        if (!isNull(row)) {
+            builder.append(values[row]);
+        }
+    }
+
+    @Override
+    public boolean isNumeric() {
+        return true;
+    }
+
+    @Override
+    protected void ensureCapacity(int capacity) {
+        super.ensureCapacity(capacity);
+        if (capacity > values.length) {
+            values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+        }
+    }
+
+    @Override
+    protected void move(int from, int to) {
+        values[to] = values[from];
+        setNull(to, isNull(from));
+    }
+
+}
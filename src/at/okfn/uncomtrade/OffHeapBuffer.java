@@ -0,0 +1,184 @@
+package at.okfn.uncomtrade;
+
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * A growable sequence of bytes outside the heap, addressed by long offsets.
+ *
+ * The bytes are kept in chunks of {@link #CHUNK_SIZE} bytes obtained from an
+ * {@link OffHeapStorage}, either direct or memory-mapped. A buffer starts with
+ * a single small chunk which doubles in size until it is full-sized, so small
+ * data sets do not reserve whole chunks. Chunks beyond the storage's budget
+ * are full-sized right away, since mapped memory only takes up space once it
+ * is written to, while every step of growing would leave a region of the
+ * temporary file behind. Values of up to eight bytes at aligned offsets never
+ * cross chunk boundaries.
+ */
+class OffHeapBuffer {
+
+    /**
+     * The binary logarithm of the chunk size.
+     */
+    public static final int CHUNK_SHIFT = 20;
+
+    /**
+     * The size of full chunks, in bytes.
+     */
+    public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    /**
+     * The bits of an offset addressing a byte within its chunk.
+     */
+    protected static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * The size of the first chunk, in bytes.
+     */
+    protected static final int INITIAL_SIZE = 256;
+
+    /**
+     * The storage providing the chunks.
+     */
+    protected final OffHeapStorage storage;
+
+    /**
+     * The chunks.
+     */
+    protected ByteBuffer[] chunks = new ByteBuffer[0];
+
+    /**
+     * The total size of all chunks, in bytes.
+     */
+    protected long capacity = 0;
+
+    /**
+     * Creates a new, empty buffer.
+     *
+     * @param storage
+     *            The storage providing the chunks.
+     */
+    public OffHeapBuffer(OffHeapStorage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Makes sure the buffer holds at least the given number of bytes. New
+     * bytes are zero.
+     *
+     * @param bytes
+     *            The number of bytes.
+     */
+    public void ensureCapacity(long bytes) {
+        if (bytes <= capacity) {
+            return;
+        }
+        if (capacity < CHUNK_SIZE) {
+            int size = (int) Math.min(CHUNK_SIZE, Math.max(bytes, Math.max(capacity * 2, INITIAL_SIZE)));
+            if (storage.isOverBudget(size)) {
+                size = CHUNK_SIZE;
+            }
+            ByteBuffer chunk = storage.allocate(size);
+            if (chunks.length > 0) {
+                ByteBuffer old = chunks[0].duplicate();
+                old.clear();
+                chunk.put(old);
+                chunk.clear();
+                storage.free(chunks[0]);
+            }
+            chunks = new ByteBuffer[] { chunk };
+            capacity = size;
+        }
+        while (capacity < bytes) {
+            chunks = Arrays.copyOf(chunks, chunks.length + 1);
+            chunks[chunks.length - 1] = storage.allocate(CHUNK_SIZE);
+            capacity += CHUNK_SIZE;
+        }
+    }
+
+    /**
+     * @param offset
+     *            The offset of the value, a multiple of four.
+     *
+     * @return The integer at the given offset.
+     */
+    public int getInt(long offset) {
+        return chunks[(int) (offset >>> CHUNK_SHIFT)].getInt((int) (offset & CHUNK_MASK));
+    }
+
+    /**
+     * @param offset
+     *            The offset of the value, a multiple of four.
+     * @param value
+     *            The integer to store.
+     */
+    public void putInt(long offset, int value) {
+        chunks[(int) (offset >>> CHUNK_SHIFT)].putInt((int) (offset & CHUNK_MASK), value);
+    }
+
+    /**
+     * @param offset
+     *            The offset of the value, a multiple of eight.
+     *
+     * @return The long at the given offset.
+     */
+    public long getLong(long offset) {
+        return chunks[(int) (offset >>> CHUNK_SHIFT)].getLong((int) (offset & CHUNK_MASK));
+    }
+
+    /**
+     * @param offset
+     *            The offset of the value, a multiple of eight.
+     * @param value
+     *            The long to store.
+     */
+    public void putLong(long offset, long value) {
+        chunks[(int) (offset >>> CHUNK_SHIFT)].putLong((int) (offset & CHUNK_MASK), value);
+    }
+
+    /**
+     * @param index
+     *            The index of a bit.
+     *
+     * @return Whether the bit is set.
+     */
+    public boolean getBit(long index) {
+        return (getLong(index >>> 6 << 3) & 1L << index) != 0;
+    }
+
+    /**
+     * @param index
+     *            The index of a bit.
+     * @param value
+     *            Whether to set or clear the bit.
+     */
+    public void setBit(long index, boolean value) {
+        long offset = index >>> 6 << 3;
+        long word = getLong(offset);
+        putLong(offset, value ? word | 1L << index : word & ~(1L << index));
+    }
+
+    /**
+     * @param bits
+     *            A number of bits.
+     *
+     * @return The number of bytes needed for storing the bits as longs.
+     */
+    public static long getBitmapSize(long bits) {
+        return (bits + 63) >>> 6 << 3;
+    }
+
+    /**
+     * Returns all chunks to the storage. The buffer is empty afterwards.
+     */
+    public void release() {
+        for (ByteBuffer chunk : chunks) {
+            storage.free(chunk);
+        }
+        chunks = new ByteBuffer[0];
+        capacity = 0;
+    }
+
+}
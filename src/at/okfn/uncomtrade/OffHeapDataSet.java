@@ -0,0 +1,108 @@
+package at.okfn.uncomtrade;
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * A {@link ColumnarDataSet} keeping its columns outside the Java heap.
+ *
+ * Column values are stored at fixed widths in direct byte buffers, up to a
+ * memory budget. Beyond the budget, further column chunks are mapped from a
+ * temporary file, which the operating system can page out, so data sets larger
+ * than the available memory can be loaded. Either way, the garbage collector
+ * only sees a few objects per column, no matter how many rows there are. Only
+ * the dictionaries of distinct strings stay on the heap.
+ *
+ * The data set should be closed once it is not needed anymore, which releases
+ * the memory and removes the temporary file. Data rows cannot be accessed
+ * afterwards.
+ *
+ * Use like this:
+ *
+ * <pre>
+ *
+ * {@code
+ *     try (OffHeapDataSet results = new OffHeapDataSet(512 << 20, null)) {
+ *         client.retrieve(new DataRowHandler() {
+ *             public void handle(DataRow row) {
+ *                 results.add(row);
+ *             }
+ *         });
+ *         Map<String, Long> sums = results.getSum("TradeValue", new String[] { "rtTitle" });
+ *     }
+ * }
+ * </pre>
+ */
+public class OffHeapDataSet extends ColumnarDataSet implements Closeable {
+
+    /**
+     * The default memory budget, in bytes.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 256L << 20;
+
+    /**
+     * The storage holding the columns.
+     */
+    protected final OffHeapStorage storage;
+
+    /**
+     * Creates a new, empty data set with the default memory budget, spilling
+     * to the system's default temporary directory.
+     */
+    public OffHeapDataSet() {
+        this(DEFAULT_MEMORY_BUDGET, null);
+    }
+
+    /**
+     * Creates a new, empty data set.
+     *
+     * @param memoryBudget
+     *            The maximum number of bytes to keep in memory outside the
+     *            heap. Anything beyond is stored in a temporary file.
+     * @param spillDirectory
+     *            The directory for the temporary file, or null for the
+     *            system's default temporary directory.
+     */
+    public OffHeapDataSet(long memoryBudget, File spillDirectory) {
+        this(new OffHeapStorage(memoryBudget, spillDirectory));
+    }
+
+    /**
+     * Creates a new, empty data set.
+     *
+     * @param storage
+     *            The storage holding the columns.
+     */
+    protected OffHeapDataSet(OffHeapStorage storage) {
+        super(storage);
+        this.storage = storage;
+    }
+
+    /**
+     * @return The number of bytes currently kept in memory outside the heap.
+     */
+    public long getMemoryUsage() {
+        return storage.getMemoryUsage();
+    }
+
+    /**
+     * @return The number of bytes stored in the temporary file.
+     */
+    public long getSpilledBytes() {
+        return storage.getSpilledBytes();
+    }
+
+    /**
+     * Releases the memory and removes the temporary file.
+     */
+    @Override
+    public void close() throws IOException {
+        size = 0;
+        ++modCount;
+        storage.close();
+    }
+
+}
@@ -0,0 +1,86 @@
+package at.okfn.uncomtrade;
+
+
+/**
+ * A column of nullable integer values kept outside the heap.
+ */
+class OffHeapIntColumn extends IntColumn {
+
+    /**
+     * The stored values, four bytes per row.
+     */
+    protected final OffHeapBuffer data;
+
+    /**
+     * One bit per row, set if the value is null.
+     */
+    protected final OffHeapBuffer nullBits;
+
+    /**
+     * Creates a new integer column.
+     *
+     * @param field
+     *            The data row property stored in this column.
+     * @param storage
+     *            The storage providing the memory.
+     */
+    public OffHeapIntColumn(DataRowField field, OffHeapStorage storage) {
+        super(field);
+        values = null;
+        nulls = null;
+        data = storage.createBuffer();
+        nullBits = storage.createBuffer();
+    }
+
+    @Override
+    public void set(int row, Integer value) {
+        ensureCapacity(row + 1);
+        setNull(row, value == null);
+        data.putInt((long) row << 2, value == null ? 0 : value);
+    }
+
+    @Override
+    public Integer get(int row) {
+        return isNull(row) ? null : getInt(row);
+    }
+
+    @Override
+    public int getInt(int row) {
+        return data.getInt((long) row << 2);
+    }
+
+    @Override
+    public long getLong(int row) {
+        return getInt(row);
+    }
+
+    @Override
+    public void appendTo(StringBuilder builder, int row) {
+        if (!isNull(row)) {
+            builder.append(getInt(row));
+        }
+    }
+
+    @Override
+    public boolean isNull(int row) {
+        return nullBits.getBit(row);
+    }
+
+    @Override
+    protected void setNull(int row, boolean isNull) {
+        nullBits.setBit(row, isNull);
+    }
+
+    @Override
+    protected void ensureCapacity(int capacity) {
+        data.ensureCapacity((long) capacity << 2);
+        nullBits.ensureCapacity(OffHeapBuffer.getBitmapSize(capacity));
+    }
+
+    @Override
+    protected void move(int from, int to) {
+        data.putInt((long) to << 2, getInt(from));
+        setNull(to, isNull(from));
+    }
+
+}
@@ -0,0 +1,81 @@
+package at.okfn.uncomtrade;
+
+
+/**
+ * A column of nullable long values kept outside the heap.
+ */
+class OffHeapLongColumn extends LongColumn {
+
+    /**
+     * The stored values, eight bytes per row.
+     */
+    protected final OffHeapBuffer data;
+
+    /**
+     * One bit per row, set if the value is null.
+     */
+    protected final OffHeapBuffer nullBits;
+
+    /**
+     * Creates a new long column.
+     *
+     * @param field
+     *            The data row property stored in this column.
+     * @param storage
+     *            The storage providing the memory.
+     */
+    public OffHeapLongColumn(DataRowField field, OffHeapStorage storage) {
+        super(field);
+        values = null;
+        nulls = null;
+        data = storage.createBuffer();
+        nullBits = storage.createBuffer();
+    }
+
+    @Override
+    public void set(int row, Long value) {
+        ensureCapacity(row + 1);
+        setNull(row, value == null);
+        data.putLong((long) row << 3, value == null ? 0 : value);
+    }
+
+    @Override
+    public Long get(int row) {
+        return isNull(row) ? null : getLong(row);
+    }
+
+    @Override
+    public long getLong(int row) {
+        return data.getLong((long) row << 3);
+    }
+
+    @Override
+    public void appendTo(StringBuilder builder, int row) {
+        if (!isNull(row)) {
+            builder.append(getLong(row));
+        }
+    }
+
+    @Override
+    public boolean isNull(int row) {
+        return nullBits.getBit(row);
+    }
+
+    @Override
+    protected void setNull(int row, boolean isNull) {
+        nullBits.setBit(row, isNull);
+    }
+
+    @Override
+    protected void ensureCapacity(int capacity) {
+        data.ensureCapacity((long) capacity << 3);
+        nullBits.ensureCapacity(OffHeapBuffer.getBitmapSize(capacity));
+    }
+
+    @Override
+    protected void move(int from, int to) {
+        data.putLong((long) to << 3, getLong(from));
+        setNull(to, isNull(from));
+    }
+
+}
@@ -0,0 +1,261 @@
+package at.okfn.uncomtrade;
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Provides memory outside the heap for the columns of an
+ * {@link OffHeapDataSet}.
+ *
+ * Memory is allocated as direct buffers up to a budget. Beyond that, it is
+ * mapped from a temporary file, so the operating system can page it out.
+ * Freed regions of the temporary file are reused for later allocations of the
+ * same size.
+ */
+class OffHeapStorage extends ColumnFactory implements Closeable {
+
+    /**
+     * The maximum number of bytes to allocate as direct buffers.
+     */
+    protected final long memoryBudget;
+
+    /**
+     * The directory for the temporary file, or null for the default.
+     */
+    protected final File spillDirectory;
+
+    /**
+     * The number of bytes currently allocated as direct buffers.
+     */
+    protected long memoryUsage = 0;
+
+    /**
+     * The temporary file, once memory was mapped from it.
+     */
+    protected File spillFile;
+
+    /**
+     * The channel of the temporary file.
+     */
+    protected FileChannel spillChannel;
+
+    /**
+     * The size of the temporary file, in bytes.
+     */
+    protected long spilledBytes = 0;
+
+    /**
+     * The buffers mapped from the temporary file, which do not count towards
+     * the budget, mapped to their offsets in the file.
+     */
+    protected final Map<ByteBuffer, Long> mapped = new IdentityHashMap<ByteBuffer, Long>();
+
+    /**
+     * The offsets of freed regions of the temporary file, by size.
+     */
+    protected final Map<Integer, List<Long>> freeRegions = new HashMap<Integer, List<Long>>();
+
+    /**
+     * All buffers created for columns.
+     */
+    protected final List<OffHeapBuffer> buffers = new ArrayList<OffHeapBuffer>();
+
+    /**
+     * Whether the storage has been closed.
+     */
+    protected boolean closed = false;
+
+    /**
+     * Creates a new storage.
+     *
+     * @param memoryBudget
+     *            The maximum number of bytes to allocate as direct buffers.
+     * @param spillDirectory
+     *            The directory for the temporary file holding the memory
+     *            beyond the budget, or null for the system's default
+     *            temporary directory.
+     */
+    public OffHeapStorage(long memoryBudget, File spillDirectory) {
+        this.memoryBudget = memoryBudget;
+        this.spillDirectory = spillDirectory;
+    }
+
+    @Override
+    public IntColumn createIntColumn(DataRowField field) {
+        return new OffHeapIntColumn(field, this);
+    }
+
+    @Override
+    public LongColumn createLongColumn(DataRowField field) {
+        return new OffHeapLongColumn(field, this);
+    }
+
+    @Override
+    public StringColumn createStringColumn(DataRowField field) {
+        // Net weights are numbers with mostly distinct values, which would
+        // fill the dictionary.
+        return new OffHeapStringColumn(field, this, field == DataRowField.NET_WEIGHT);
+    }
+
+    /**
+     * @return A new, empty buffer, which is released when the storage is
+     *         closed.
+     */
+    public synchronized OffHeapBuffer createBuffer() {
+        OffHeapBuffer buffer = new OffHeapBuffer(this);
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    /**
+     * Allocates memory.
+     *
+     * @param size
+     *            The number of bytes.
+     *
+     * @return A zeroed buffer of the given size, in native byte order.
+     *
+     * @throws IllegalStateException
+     *             If the memory had to be mapped from the temporary file,
+     *             but that failed, or if the storage has been
+     *             closed.
+     */
+    public synchronized ByteBuffer allocate(int size) {
+        if (closed) {
+            throw new IllegalStateException("The off-heap storage has already been closed.");
+        }
+        if (memoryUsage + size <= memoryBudget) {
+            memoryUsage += size;
+            return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        }
+        try {
+            if (spillChannel == null) {
+                spillFile = File.createTempFile("uncomtrade-", ".spill", spillDirectory);
+                spillFile.deleteOnExit();
+                spillChannel = FileChannel.open(spillFile.toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+            }
+            List<Long> free = freeRegions.get(size);
+            ByteBuffer buffer;
+            if (free != null && !free.isEmpty()) {
+                long offset = free.remove(free.size() - 1);
+                buffer = spillChannel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+                clear(buffer);
+                mapped.put(buffer, offset);
+            }
+            else {
+                buffer = spillChannel.map(FileChannel.MapMode.READ_WRITE, spilledBytes, size);
+                mapped.put(buffer, spilledBytes);
+                spilledBytes += size;
+            }
+            buffer.order(ByteOrder.nativeOrder());
+            return buffer;
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not spill to a temporary file.", e);
+        }
+    }
+
+    /**
+     * Checks whether memory of a given size would be mapped from the
+     * temporary file.
+     *
+     * @param size
+     *            The number of bytes.
+     *
+     * @return Whether the memory exceeds the budget.
+     */
+    public synchronized boolean isOverBudget(int size) {
+        return memoryUsage + size > memoryBudget;
+    }
+
+    /**
+     * Gives back memory which is not used anymore.
+     *
+     * Direct memory is released once the buffer is garbage collected. Mapped
+     * memory is reused by later allocations of the same size, and must not be
+     * accessed through the given buffer anymore.
+     *
+     * @param buffer
+     *            A buffer obtained from {@link #allocate(int)}.
+     */
+    public synchronized void free(ByteBuffer buffer) {
+        Long offset = mapped.remove(buffer);
+        if (offset == null) {
+            memoryUsage -= buffer.capacity();
+            return;
+        }
+        List<Long> free = freeRegions.get(buffer.capacity());
+        if (free == null) {
+            free = new ArrayList<Long>();
+            freeRegions.put(buffer.capacity(), free);
+        }
+        free.add(offset);
+    }
+
+    /**
+     * Zeroes a buffer.
+     *
+     * @param buffer
+     *            The buffer, which is cleared afterwards.
+     */
+    protected static void clear(ByteBuffer buffer) {
+        byte[] zeros = new byte[Math.min(buffer.capacity(), 8192)];
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            buffer.put(zeros, 0, Math.min(zeros.length, buffer.remaining()));
+        }
+        buffer.clear();
+    }
+
+    /**
+     * @return The number of bytes currently allocated as direct buffers.
+     */
+    public synchronized long getMemoryUsage() {
+        return memoryUsage;
+    }
+
+    /**
+     * @return The size of the temporary file, including freed regions.
+     */
+    public synchronized long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Releases all buffers and removes the temporary file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        for (OffHeapBuffer buffer : buffers) {
+            buffer.release();
+        }
+        buffers.clear();
+        closed = true;
+        if (spillChannel != null) {
+            try {
+                spillChannel.close();
+            }
+            finally {
+                spillChannel = null;
+                spillFile.delete();
+            }
+        }
+    }
+
+}
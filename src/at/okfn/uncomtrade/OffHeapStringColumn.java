@@ -0,0 +1,185 @@
+package at.okfn.uncomtrade;
+
+
+/**
+ * A dictionary-encoded column of nullable strings whose rows are kept outside
+ * the heap. The dictionary itself stays on the heap.
+ *
+ * In numeric mode, strings holding a long number in canonical form are stored
+ * as the number instead, so columns with many distinct numbers, such as net
+ * weights, do not fill the dictionary. All other strings are still
+ * dictionary-encoded.
+ */
+class OffHeapStringColumn extends StringColumn {
+
+    /**
+     * The largest number of digits of a number stored as such, so that it
+     * always fits into a long.
+     */
+    protected static final int MAX_DIGITS = 18;
+
+    /**
+     * Whether numbers are stored as such.
+     */
+    protected final boolean numeric;
+
+    /**
+     * The dictionary indexes of the stored values, four bytes per row, or in
+     * numeric mode eight bytes per row holding either a number or an index.
+     */
+    protected final OffHeapBuffer data;
+
+    /**
+     * One bit per row, set if the value is null.
+     */
+    protected final OffHeapBuffer nullBits;
+
+    /**
+     * In numeric mode, one bit per row, set if the row holds a number.
+     */
+    protected final OffHeapBuffer numberBits;
+
+    /**
+     * Creates a new string column.
+     *
+     * @param field
+     *            The data row property stored in this column.
+     * @param storage
+     *            The storage providing the memory.
+     * @param numeric
+     *            Whether to store numbers as such.
+     */
+    public OffHeapStringColumn(DataRowField field, OffHeapStorage storage, boolean numeric) {
+        super(field);
+        this.numeric = numeric;
+        codes = null;
+        nulls = null;
+        data = storage.createBuffer();
+        nullBits = storage.createBuffer();
+        numberBits = numeric ? storage.createBuffer() : null;
+    }
+
+    @Override
+    public void set(int row, String value) {
+        ensureCapacity(row + 1);
+        setNull(row, value == null);
+        if (!numeric) {
+            data.putInt((long) row << 2, value == null ? -1 : dictionary.getId(value));
+            return;
+        }
+        boolean isNumber = value != null && isCanonicalNumber(value);
+        numberBits.setBit(row, isNumber);
+        if (value == null) {
+            data.putLong((long) row << 3, -1);
+        }
+        else {
+            data.putLong((long) row << 3, isNumber ? Long.parseLong(value) : dictionary.getId(value));
+        }
+    }
+
+    @Override
+    public String get(int row) {
+        if (isNull(row)) {
+            return null;
+        }
+        if (!numeric) {
+            return dictionary.get(data.getInt((long) row << 2));
+        }
+        long slot = data.getLong((long) row << 3);
+        return numberBits.getBit(row) ? Long.toString(slot) : dictionary.get((int) slot);
+    }
+
+    /**
+     * @throws UnsupportedOperationException
+     *             In numeric mode, where not all values are dictionary-encoded.
+     */
+    @Override
+    public int getCode(int row) {
+        if (numeric) {
+            throw new UnsupportedOperationException("Numeric string columns have no codes.");
+        }
+        return data.getInt((long) row << 2);
+    }
+
+    @Override
+    public boolean hasCodes() {
+        return !numeric;
+    }
+
+    @Override
+    public long getLong(int row) {
+        if (numeric && numberBits.getBit(row) && !isNull(row)) {
+            return data.getLong((long) row << 3);
+        }
+        return Long.parseLong(get(row));
+    }
+
+    @Override
+    public void appendTo(StringBuilder builder, int row) {
+        if (numeric && numberBits.getBit(row) && !isNull(row)) {
+            builder.append(data.getLong((long) row << 3));
+        }
+        else if (!isNull(row)) {
+            Aggregation.appendGroupValue(builder, get(row));
+        }
+    }
+
+    @Override
+    public boolean isNull(int row) {
+        return nullBits.getBit(row);
+    }
+
+    @Override
+    protected void setNull(int row, boolean isNull) {
+        nullBits.setBit(row, isNull);
+    }
+
+    @Override
+    protected void ensureCapacity(int capacity) {
+        data.ensureCapacity((long) capacity << (numeric ? 3 : 2));
+        nullBits.ensureCapacity(OffHeapBuffer.getBitmapSize(capacity));
+        if (numeric) {
+            numberBits.ensureCapacity(OffHeapBuffer.getBitmapSize(capacity));
+        }
+    }
+
+    @Override
+    protected void move(int from, int to) {
+        if (numeric) {
+            data.putLong((long) to << 3, data.getLong((long) from << 3));
+            numberBits.setBit(to, numberBits.getBit(from));
+        }
+        else {
+            data.putInt((long) to << 2, data.getInt((long) from << 2));
+        }
+        setNull(to, isNull(from));
+    }
+
+    /**
+     * Checks whether a string is a number which is printed the same way after
+     * parsing it, so that storing the number does not change the value.
+     *
+     * @param value
+     *            The string to check.
+     *
+     * @return Whether the string can be stored as a number.
+     */
+    protected static boolean isCanonicalNumber(String value) {
+        int start = value.startsWith("-") ? 1 : 0;
+        int length = value.length() - start;
+        if (length < 1 || length > MAX_DIGITS) {
+            return false;
+        }
+        if (value.charAt(start) == '0') {
+            return value.length() == 1;
+        }
+        for (int i = start; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
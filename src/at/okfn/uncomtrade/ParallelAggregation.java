@@ -0,0 +1,181 @@
+package at.okfn.uncomtrade;
+
+
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+
+/**
+ * Computes an {@link Aggregation} on several threads at once.
+ *
+ * The rows are split into segments which are aggregated independently into
+ * partial results by a fork/join pool. The partial results are then merged,
+ * which yields exactly the same groups and values as a sequential
+ * aggregation.
+ */
+public class ParallelAggregation extends RecursiveTask<Aggregation> {
+
+    /**
+     * The minimum number of rows per segment.
+     */
+    public static final int MIN_SEGMENT_SIZE = 4096;
+
+    /**
+     * The pool used when none is given explicitly.
+     */
+    private static ForkJoinPool defaultPool;
+
+    /**
+     * The property being aggregated.
+     */
+    protected final DataRowField valueField;
+
+    /**
+     * The properties to group by.
+     */
+    protected final DataRowField[] groupFields;
+
+    /**
+     * The rows to aggregate, if the source is a row array.
+     */
+    protected final DataRow[] rows;
+
+    /**
+     * The rows to aggregate, if the source is a columnar data set.
+     */
+    protected final ColumnarDataSet columns;
+
+    /**
+     * The index of the first row of this segment.
+     */
+    protected final int from;
+
+    /**
+     * The index after the last row of this segment.
+     */
+    protected final int to;
+
+    /**
+     * The number of rows below which a segment is not split further.
+     */
+    protected final int threshold;
+
+    /**
+     * Creates a new task for a segment of rows.
+     *
+     * @param valueField
+     *            The property being aggregated.
+     * @param groupFields
+     *            The properties to group by.
+     * @param rows
+     *            The rows to aggregate, or null if a columnar data set is
+     *            used.
+     * @param columns
+     *            The columnar data set to aggregate, or null if a row array is
+     *            used.
+     * @param from
+     *            The index of the first row of the segment.
+     * @param to
+     *            The index after the last row of the segment.
+     * @param threshold
+     *            The number of rows below which a segment is not split
+     *            further.
+     */
+    protected ParallelAggregation(DataRowField valueField, DataRowField[] groupFields, DataRow[] rows,
+            ColumnarDataSet columns, int from, int to, int threshold) {
+        this.valueField = valueField;
+        this.groupFields = groupFields;
+        this.rows = rows;
+        this.columns = columns;
+        this.from = from;
+        this.to = to;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Aggregates a collection of data rows in parallel.
+     *
+     * Columnar data sets are read directly, all other collections are first
+     * copied into an array, so they can be split efficiently.
+     *
+     * @param rows
+     *            The data rows to aggregate. They must not be modified during
+     *            the aggregation.
+     * @param property
+     *            The name of the numeric property to aggregate.
+     * @param groupBy
+     *            The properties to group by.
+     * @param pool
+     *            The fork/join pool to use, or null to use a shared default
+     *            pool.
+     *
+     * @return The complete aggregation.
+     *
+     * @throws IllegalArgumentException
+     *             If any of the given properties does not exist.
+     */
+    public static Aggregation aggregate(Collection<DataRow> rows, String property, String[] groupBy,
+            ForkJoinPool pool) {
+        DataRowField valueField = DataRowField.forName(property);
+        DataRowField[] groupFields = DataRowField.forNames(groupBy);
+        if (pool == null) {
+            pool = getDefaultPool();
+        }
+
+        int size = rows.size();
+        int threshold = Math.max(MIN_SEGMENT_SIZE, size / (pool.getParallelism() * 4) + 1);
+        ParallelAggregation task;
+        if (rows instanceof ColumnarDataSet) {
+            task = new ParallelAggregation(valueField, groupFields, null, (ColumnarDataSet) rows, 0, size,
+                    threshold);
+        }
+        else {
+            DataRow[] array = rows.toArray(new DataRow[size]);
+            task = new ParallelAggregation(valueField, groupFields, array, null, 0, array.length, threshold);
+        }
+        return pool.invoke(task);
+    }
+
+    /**
+     * @return The shared default fork/join pool, with one thread per
+     *         available processor.
+     */
+    public static synchronized ForkJoinPool getDefaultPool() {
+        if (defaultPool == null) {
+            defaultPool = new ForkJoinPool();
+        }
+        return defaultPool;
+    }
+
+    @Override
+    protected Aggregation compute() {
+        if (to - from <= threshold) {
+            Aggregation aggregation = new Aggregation(valueField, groupFields);
+            if (rows != null) {
+                aggregation.addRange(rows, from, to);
+            }
+            else {
+                aggregation.addRange(columns, from, to);
+            }
+            return aggregation;
+        }
+
+        int middle = (from + to) >>> 1;
+        ParallelAggregation left = new ParallelAggregation(valueField, groupFields, rows, columns, from, middle,
+                threshold);
+        ParallelAggregation right = new ParallelAggregation(valueField, groupFields, rows, columns, middle, to,
+                threshold);
+        left.fork();
+        Aggregation rightResult = right.compute();
+        Aggregation leftResult = left.join();
+        leftResult.merge(rightResult);
+        return leftResult;
+    }
+
+    /**
+     * A serial ID for this version of the class.
+     */
+    private static final long serialVersionUID = -6518336420962880413L;
+
+}
@@ -0,0 +1,529 @@
+package at.okfn.uncomtrade;
+
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+
+/**
+ * An immutable API query.
+ *
+ * The canonical URL (with the parameters sorted by name, and the items of
+ * list parameters sorted as well) and the hash code are computed once, so queries can be used directly as keys for caching and
+ * deduplication. Two queries are equal if their URLs are equal. Use like
+ * this:
+ *
+ * <pre>
+ *
+ * {@code
+ *     Query query = Query.builder()
+ *             .setPartnerArea("0")
+ *             .setTimePeriod("2012,2013,2014")
+ *             .build();
+ *     DataSet results = client.retrieve(query);
+ * }
+ * </pre>
+ *
+ * This class is thread-safe.
+ */
+public final class Query {
+
+    /**
+     * The default base URL for accessing the database.
+     */
+    public static final String DEFAULT_BASE_URL = "http://comtrade.un.org/api/get";
+
+    /**
+     * The maximum number of results the API returns for a single request.
+     */
+    public static final int MAX_LIMIT = 50000;
+
+    /**
+     * The base URL of the API.
+     */
+    private final String baseUrl;
+
+    /**
+     * The GET parameters, sorted by name.
+     */
+    private final SortedMap<String, String> params;
+
+    /**
+     * The canonical URL of the query.
+     */
+    private final String url;
+
+    /**
+     * The hash code of the URL.
+     */
+    private final int hash;
+
+    /**
+     * Creates a new query.
+     *
+     * @param baseUrl
+     *            The base URL of the API.
+     * @param params
+     *            The GET parameters.
+     */
+    private Query(String baseUrl, Map<String, String> params) {
+        this.baseUrl = baseUrl;
+        this.params = Collections.unmodifiableSortedMap(new TreeMap<String, String>(params));
+        url = buildUrl(baseUrl, this.params);
+        hash = url.hashCode();
+    }
+
+    /**
+     * @return A new builder, starting with the default parameters.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return A new builder, starting with the base URL and parameters of
+     *         this query.
+     */
+    public Builder toBuilder() {
+        return new Builder(baseUrl, params);
+    }
+
+    /**
+     * @return The base URL of the API.
+     */
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * @param name
+     *            The name of a parameter.
+     *
+     * @return The value of the parameter, or null if it is not set.
+     */
+    public String getParam(String name) {
+        return params.get(name);
+    }
+
+    /**
+     * @return The GET parameters, as an unmodifiable map sorted by name.
+     */
+    public SortedMap<String, String> getParams() {
+        return params;
+    }
+
+    /**
+     * @return The canonical URL of the query.
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Query)) {
+            return false;
+        }
+        Query other = (Query) obj;
+        return hash == other.hash && url.equals(other.url);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return url;
+    }
+
+    /**
+     * @return The parameters used if not set otherwise.
+     */
+    static Map<String, String> getDefaultParams() {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("fmt", "json");
+        params.put(Parameters.REPORTER, "all");
+        params.put(Parameters.DATA_FREQUENCY, "A");
+        params.put(Parameters.TIME_PERIOD, "now");
+        params.put(Parameters.CLASSIFICATION, "HS");
+        params.put(Parameters.PARTNER_AREA, "all");
+        params.put(Parameters.TRADE_FLOW, "all");
+        params.put(Parameters.CLASSIFICATION_CODE, "TOTAL");
+        params.put(Parameters.LIMIT, String.valueOf(MAX_LIMIT));
+        params.put(Parameters.TRADE_DATA_TYPE, "C");
+        params.put("head", "H");
+        return params;
+    }
+
+    /**
+     * Builds the canonical URL for a query.
+     *
+     * @param baseUrl
+     *            The base URL of the API.
+     * @param params
+     *            The GET parameters to use.
+     *
+     * @return The URL, with the parameters sorted by name and the items of
+     *         comma-separated values sorted as well.
+     */
+    static String buildUrl(String baseUrl, Map<String, String> params) {
+        SortedMap<String, String> sorted = params instanceof SortedMap ? (SortedMap<String, String>) params
+                : new TreeMap<String, String>(params);
+        StringBuilder url = new StringBuilder(baseUrl);
+        boolean first = true;
+        for (Entry<String, String> entry : sorted.entrySet()) {
+            url.append(first ? '?' : '&');
+            first = false;
+            url.append(entry.getKey());
+            url.append('=');
+            try {
+                url.append(URLEncoder.encode(sortList(entry.getValue()), StandardCharsets.UTF_8.name()));
+            }
+            catch (UnsupportedEncodingException e) {
+                assert (false);
+            }
+        }
+        return url.toString();
+    }
+
+    /**
+     * Sorts the items of a comma-separated list, so lists of the same items
+     * map to the same URL.
+     *
+     * @param value
+     *            A parameter value.
+     *
+     * @return The value with its items sorted.
+     */
+    static String sortList(String value) {
+        if (value.indexOf(',') < 0) {
+            return value;
+        }
+        String[] items = value.split(",", -1);
+        Arrays.sort(items);
+        StringBuilder sorted = new StringBuilder(value.length());
+        for (int i = 0; i < items.length; ++i) {
+            if (i > 0) {
+                sorted.append(',');
+            }
+            sorted.append(items[i]);
+        }
+        return sorted.toString();
+    }
+
+    /**
+     * Validates an area code.
+     *
+     * @param area
+     *            The internal code for a country, territory or area, or "all".
+     * @param description
+     *            The description of the parameter, for the error message.
+     *
+     * @return The validated area code.
+     *
+     * @throws IllegalArgumentException
+     *             If the area code is invalid.
+     */
+    static String checkArea(String area, String description) {
+        try {
+            if (area.equals("all") || Integer.parseInt(area) >= 0) {
+                return area;
+            }
+        }
+        catch (NumberFormatException e) {}
+        throw new IllegalArgumentException("Only \"all\" or numeric area codes are allowed for the " + description
+                + ".");
+    }
+
+    /**
+     * Validates a trade flow.
+     *
+     * @param tradeFlow
+     *            1 for imports, 2 for exports, 3/4 for re-export/-import or
+     *            "all".
+     *
+     * @return The validated trade flow.
+     *
+     * @throws IllegalArgumentException
+     *             If the trade flow is invalid.
+     */
+    static String checkTradeFlow(String tradeFlow) {
+        try {
+            if (tradeFlow.equals("all") || Integer.parseInt(tradeFlow) > 0) {
+                return tradeFlow;
+            }
+        }
+        catch (NumberFormatException e) {}
+        throw new IllegalArgumentException(
+                "Only \"all\" or positive integers are allowed for the trade flow parameter.");
+    }
+
+    /**
+     * Validates a limit.
+     *
+     * @param limit
+     *            The maximum number of results to return.
+     *
+     * @return The validated limit, as a parameter value.
+     *
+     * @throws IllegalArgumentException
+     *             If the limit is out of range.
+     */
+    static String checkLimit(int limit) {
+        if (limit > 0 && limit <= MAX_LIMIT) {
+            return "" + limit;
+        }
+        throw new IllegalArgumentException("Limit has to be between 0 and " + MAX_LIMIT + ".");
+    }
+
+    /**
+     * Validates a trade data type.
+     *
+     * @param tradeDataType
+     *            "C" for commodities or "S" for futures.
+     *
+     * @return The validated trade data type.
+     *
+     * @throws IllegalArgumentException
+     *             If the trade data type is invalid.
+     */
+    static String checkTradeDataType(String tradeDataType) {
+        if (tradeDataType.equals("C") || tradeDataType.equals("S")) {
+            return tradeDataType;
+        }
+        throw new IllegalArgumentException("Only \"C\" or \"S\" are allowed as trade data types.");
+    }
+
+    /**
+     * Builds {@link Query} objects.
+     *
+     * The setters validate their arguments the same way as those of
+     * {@link UNComtrade}. Builders are not thread-safe, but can be reused
+     * to build several queries.
+     */
+    public static class Builder {
+
+        /**
+         * The base URL of the API.
+         */
+        protected String baseUrl;
+
+        /**
+         * The GET parameters set so far.
+         */
+        protected Map<String, String> params;
+
+        /**
+         * Creates a new builder, starting with the default parameters.
+         */
+        public Builder() {
+            this(DEFAULT_BASE_URL, getDefaultParams());
+        }
+
+        /**
+         * Creates a new builder.
+         *
+         * @param baseUrl
+         *            The base URL of the API.
+         * @param params
+         *            The GET parameters to start with. They are copied.
+         */
+        public Builder(String baseUrl, Map<String, String> params) {
+            this.baseUrl = baseUrl;
+            this.params = new HashMap<String, String>(params);
+        }
+
+        /**
+         * @return A new query with the current settings.
+         */
+        public Query build() {
+            return new Query(baseUrl, params);
+        }
+
+        /**
+         * Sets the base URL.
+         *
+         * @param baseUrl
+         *            The base URL of the API. Defaults to
+         *            {@link Query#DEFAULT_BASE_URL}.
+         *
+         * @return This builder.
+         */
+        public Builder setBaseUrl(String baseUrl) {
+            this.baseUrl = baseUrl;
+            return this;
+        }
+
+        /**
+         * Sets a parameter value, without validating it.
+         *
+         * @param name
+         *            The name of the parameter.
+         * @param value
+         *            The new value of the parameter, or null to remove it.
+         *
+         * @return This builder.
+         */
+        public Builder setParam(String name, String value) {
+            if (value == null) {
+                params.remove(name);
+            }
+            else {
+                params.put(name, value);
+            }
+            return this;
+        }
+
+        /**
+         * Sets several parameters at once, without validating them.
+         *
+         * @param params
+         *            The parameters to set.
+         *
+         * @return This builder.
+         */
+        public Builder setParams(Map<String, String> params) {
+            this.params.putAll(params);
+            return this;
+        }
+
+        /**
+         * Sets the reporter.
+         *
+         * @param reporter
+         *            The internal code for a country, territory or area, or
+         *            "all" to list all reporters. Defaults to "all".
+         *
+         * @return This builder.
+         */
+        public Builder setReporter(String reporter) {
+            params.put(Parameters.REPORTER, checkArea(reporter, "reporter area"));
+            return this;
+        }
+
+        /**
+         * Sets the data frequency.
+         *
+         * @param dataFrequency
+         *            "A" for "annual" or "M" for "monthly". Defaults to "A".
+         *
+         * @return This builder.
+         */
+        public Builder setDataFrequency(String dataFrequency) {
+            params.put(Parameters.DATA_FREQUENCY, dataFrequency);
+            return this;
+        }
+
+        /**
+         * Sets the time period.
+         *
+         * @param timePeriod
+         *            Depending on the data frequency, either a year (YYYY) or
+         *            a year and month (YYYYMM). Additionally, "now" and
+         *            "recent" are valid. Defaults to "now".
+         *
+         * @return This builder.
+         */
+        public Builder setTimePeriod(String timePeriod) {
+            params.put(Parameters.TIME_PERIOD, timePeriod);
+            return this;
+        }
+
+        /**
+         * Sets the classification.
+         *
+         * @param classification
+         *            The trade data classification scheme to use. Defaults to
+         *            "HS".
+         *
+         * @return This builder.
+         */
+        public Builder setClassification(String classification) {
+            params.put(Parameters.CLASSIFICATION, classification);
+            return this;
+        }
+
+        /**
+         * Sets the partner area.
+         *
+         * @param partnerArea
+         *            The internal code for a country, territory or area (0
+         *            being the whole world), or "all". Defaults to "all".
+         *
+         * @return This builder.
+         */
+        public Builder setPartnerArea(String partnerArea) {
+            params.put(Parameters.PARTNER_AREA, checkArea(partnerArea, "partner area"));
+            return this;
+        }
+
+        /**
+         * Sets the trade flow.
+         *
+         * @param tradeFlow
+         *            1 for imports, 2 for exports, 3/4 for re-export/-import
+         *            or "all". Defaults to "all".
+         *
+         * @return This builder.
+         */
+        public Builder setTradeFlow(String tradeFlow) {
+            params.put(Parameters.TRADE_FLOW, checkTradeFlow(tradeFlow));
+            return this;
+        }
+
+        /**
+         * Sets the classification code.
+         *
+         * @param classificationCode
+         *            The classification codes to list. Defaults to "TOTAL".
+         *
+         * @return This builder.
+         */
+        public Builder setClassificationCode(String classificationCode) {
+            params.put(Parameters.CLASSIFICATION_CODE, classificationCode);
+            return this;
+        }
+
+        /**
+         * Sets the limit.
+         *
+         * @param limit
+         *            The maximum number of results to return. Defaults to
+         *            50,000, which is the maximum allowed by the API.
+         *
+         * @return This builder.
+         */
+        public Builder setLimit(int limit) {
+            params.put(Parameters.LIMIT, checkLimit(limit));
+            return this;
+        }
+
+        /**
+         * Sets the trade data type.
+         *
+         * @param tradeDataType
+         *            "C" for commodities (default) or "S" for futures.
+         *
+         * @return This builder.
+         */
+        public Builder setTradeDataType(String tradeDataType) {
+            params.put(Parameters.TRADE_DATA_TYPE, checkTradeDataType(tradeDataType));
+            return this;
+        }
+
+    }
+
+}
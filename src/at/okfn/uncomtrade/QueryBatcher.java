@@ -0,0 +1,541 @@
+package at.okfn.uncomtrade;
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+
+import com.google.gson.JsonObject;
+
+
+/**
+ * Merges many small queries into fewer requests.
+ *
+ * Queries submitted within a short window are collected. Queries which only
+ * differ in a single one of the reporter, time period, partner area or
+ * classification code parameters, each with a single value, are merged into
+ * one request listing up to {@link QueryPlanner#MAX_LIST_SIZE} values. The
+ * returned data rows are then assigned back to the original queries by their
+ * reporter code, period, partner code or commodity code. Only values written
+ * exactly as the data rows report them are merged, such as "40" rather than
+ * "040", a year for annual and a month for monthly data, or a commodity code
+ * other than "ALL" and "AG1" to "AG6"; queries with other values, or with a
+ * limit below {@link Query#MAX_LIMIT}, are sent separately. Use like this:
+ *
+ * <pre>
+ *
+ * {@code
+ *     QueryBatcher batcher = new QueryBatcher(client);
+ *     Future<DataSet> austria = batcher.submit(query.toBuilder().setReporter("40").build());
+ *     Future<DataSet> germany = batcher.submit(query.toBuilder().setReporter("276").build());
+ *     DataSet results = austria.get();
+ * }
+ * </pre>
+ *
+ * If a merged request is truncated, its queries are sent separately instead.
+ * So are queries which did not get any of the merged rows, if some rows could
+ * not be assigned to any query.
+ * Requests are sent on the client's background executor, so they are subject
+ * to its concurrency limit and request scheduler. Queries which are still
+ * pending when the client is closed fail.
+ *
+ * This class is thread-safe.
+ */
+public class QueryBatcher {
+
+    /**
+     * The parameters along which to merge queries, in order of preference.
+     */
+    protected static final String[] MERGE_PARAMETERS = { Parameters.REPORTER, Parameters.TIME_PERIOD,
+            Parameters.PARTNER_AREA, Parameters.CLASSIFICATION_CODE };
+
+    /**
+     * The data row properties identifying the value of each merge parameter.
+     */
+    protected static final DataRowField[] MERGE_FIELDS = { DataRowField.RT_CODE, DataRowField.PERIOD,
+            DataRowField.PT_CODE, DataRowField.CMD_CODE };
+
+    /**
+     * The reporter and partner codes which data rows report unchanged.
+     */
+    protected static final Pattern AREA_CODE = Pattern.compile("0|[1-9][0-9]{0,8}");
+
+    /**
+     * The years which data rows of annual data report unchanged.
+     */
+    protected static final Pattern YEAR = Pattern.compile("[1-9][0-9]{3}");
+
+    /**
+     * The months which data rows of monthly data report unchanged.
+     */
+    protected static final Pattern MONTH = Pattern.compile("[1-9][0-9]{3}(0[1-9]|1[0-2])");
+
+    /**
+     * The commodity codes which data rows report unchanged, excluding the
+     * aggregates checked by {@link #COMMODITY_AGGREGATE}.
+     */
+    protected static final Pattern COMMODITY_CODE = Pattern.compile("[0-9A-Z]+");
+
+    /**
+     * The commodity codes selecting several commodities at once.
+     */
+    protected static final Pattern COMMODITY_AGGREGATE = Pattern.compile("ALL|AG[1-6]");
+
+    /**
+     * The client to use for retrieving the data.
+     */
+    protected final UNComtrade client;
+
+    /**
+     * The time to wait for further queries before sending, in milliseconds.
+     */
+    protected long window = 50;
+
+    /**
+     * The queries collected in the current window.
+     */
+    protected List<Pending> pending = new ArrayList<Pending>();
+
+    /**
+     * The number of requests sent so far.
+     */
+    protected int requestCount = 0;
+
+    /**
+     * Creates a new query batcher.
+     *
+     * @param client
+     *            The client to use for retrieving the data.
+     */
+    public QueryBatcher(UNComtrade client) {
+        this.client = client;
+    }
+
+    /**
+     * Sets the time to wait for further queries before sending.
+     *
+     * @param window
+     *            The length of the window. Defaults to 50 milliseconds.
+     * @param unit
+     *            The time unit of the window.
+     */
+    public synchronized void setWindow(long window, TimeUnit unit) {
+        this.window = unit.toMillis(window);
+    }
+
+    /**
+     * @return The number of requests sent so far.
+     */
+    public synchronized int getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Submits a query for retrieval in the next batch.
+     *
+     * @param query
+     *            The query to retrieve.
+     *
+     * @return The pending data set.
+     */
+    public Future<DataSet> submit(Query query) {
+        Pending entry = new Pending(query, client);
+        synchronized (this) {
+            try {
+                client.addDependentFuture(entry.future);
+                if (pending.isEmpty()) {
+                    // The timer is not held up by busy retrievals.
+                    client.getAsyncTimer().schedule(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            flush();
+                        }
+
+                    }, window, TimeUnit.MILLISECONDS);
+                }
+            }
+            catch (RuntimeException e) {
+                // The client was closed, or its timer rejected the flush.
+                entry.future.failed(e);
+                return entry.future;
+            }
+            pending.add(entry);
+        }
+        return entry.future;
+    }
+
+    /**
+     * Retrieves a query as part of the next batch, waiting for the result.
+     *
+     * @param query
+     *            The query to retrieve.
+     *
+     * @return The requested data set.
+     */
+    public DataSet retrieve(Query query) throws IOException {
+        try {
+            return submit(query).get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a batched query.");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Sends all queries collected so far, without waiting for the window to
+     * end.
+     */
+    public void flush() {
+        List<Pending> queries;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            queries = pending;
+            pending = new ArrayList<Pending>();
+        }
+        try {
+            for (final Batch batch : plan(queries)) {
+                client.getAsyncExecutor().execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        send(batch);
+                    }
+
+                });
+            }
+        }
+        catch (RuntimeException e) {
+            // Most likely, the client was closed.
+            for (Pending entry : queries) {
+                entry.future.failed(e);
+            }
+        }
+    }
+
+    /**
+     * Groups queries into batches.
+     *
+     * @param queries
+     *            The queries to group.
+     *
+     * @return The batches to send.
+     */
+    protected List<Batch> plan(List<Pending> queries) {
+        List<Batch> batches = new ArrayList<Batch>();
+        List<Pending> remaining = new ArrayList<Pending>(queries);
+        for (int i = 0; i < MERGE_PARAMETERS.length && remaining.size() > 1; ++i) {
+            String name = MERGE_PARAMETERS[i];
+
+            // Group the queries by all of their other parameters.
+            Map<Query, List<Pending>> groups = new LinkedHashMap<Query, List<Pending>>();
+            for (Pending entry : remaining) {
+                if (!isMergeable(entry.query, i)) {
+                    continue;
+                }
+                Query rest = entry.query.toBuilder().setParam(name, null).build();
+                List<Pending> group = groups.get(rest);
+                if (group == null) {
+                    group = new ArrayList<Pending>();
+                    groups.put(rest, group);
+                }
+                group.add(entry);
+            }
+
+            for (Map.Entry<Query, List<Pending>> group : groups.entrySet()) {
+                Set<String> values = new LinkedHashSet<String>();
+                for (Pending entry : group.getValue()) {
+                    values.add(entry.query.getParam(name).trim());
+                }
+                if (values.size() < 2) {
+                    continue;
+                }
+                List<String> valueList = new ArrayList<String>(values);
+                for (int j = 0; j < valueList.size(); j += QueryPlanner.MAX_LIST_SIZE) {
+                    List<String> chunk = valueList.subList(j,
+                            Math.min(j + QueryPlanner.MAX_LIST_SIZE, valueList.size()));
+                    StringBuilder merged = new StringBuilder();
+                    List<Pending> members = new ArrayList<Pending>();
+                    for (String value : chunk) {
+                        if (merged.length() > 0) {
+                            merged.append(',');
+                        }
+                        merged.append(value);
+                    }
+                    for (Pending entry : group.getValue()) {
+                        if (chunk.contains(entry.query.getParam(name).trim())) {
+                            members.add(entry);
+                        }
+                    }
+                    Query query = group.getKey().toBuilder().setParam(name, merged.toString()).build();
+                    batches.add(new Batch(query, i, members));
+                    remaining.removeAll(members);
+                }
+            }
+        }
+        // Equal queries which could not be merged still share a request.
+        Map<Query, List<Pending>> singles = new LinkedHashMap<Query, List<Pending>>();
+        for (Pending entry : remaining) {
+            List<Pending> members = singles.get(entry.query);
+            if (members == null) {
+                members = new ArrayList<Pending>();
+                singles.put(entry.query, members);
+            }
+            members.add(entry);
+        }
+        for (Map.Entry<Query, List<Pending>> single : singles.entrySet()) {
+            batches.add(new Batch(single.getKey(), -1, single.getValue()));
+        }
+        return batches;
+    }
+
+    /**
+     * Checks whether a query can be merged along a parameter, which requires
+     * its value to be reported unchanged by the data rows, so they can be
+     * assigned back.
+     *
+     * @param query
+     *            The query to check.
+     * @param parameter
+     *            The index of the parameter in {@link #MERGE_PARAMETERS}.
+     *
+     * @return Whether the query's value for the parameter can be merged.
+     */
+    protected static boolean isMergeable(Query query, int parameter) {
+        // A merged request only shows truncation at the maximum limit, while
+        // a lower limit would be shared by all the merged queries.
+        String limit = query.getParam(Parameters.LIMIT);
+        try {
+            if (limit != null && Integer.parseInt(limit.trim()) < Query.MAX_LIMIT) {
+                return false;
+            }
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+        String value = query.getParam(MERGE_PARAMETERS[parameter]);
+        if (value == null) {
+            return false;
+        }
+        value = value.trim();
+        switch (MERGE_PARAMETERS[parameter]) {
+            case Parameters.REPORTER:
+            case Parameters.PARTNER_AREA:
+                return AREA_CODE.matcher(value).matches();
+
+            case Parameters.TIME_PERIOD:
+                String frequency = query.getParam(Parameters.DATA_FREQUENCY);
+                if ("A".equals(frequency)) {
+                    return YEAR.matcher(value).matches();
+                }
+                if ("M".equals(frequency)) {
+                    return MONTH.matcher(value).matches();
+                }
+                return false;
+
+            case Parameters.CLASSIFICATION_CODE:
+                return COMMODITY_CODE.matcher(value).matches() && !COMMODITY_AGGREGATE.matcher(value).matches();
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Sends a batch and distributes its results.
+     *
+     * @param batch
+     *            The batch to send.
+     */
+    protected void send(Batch batch) {
+        synchronized (this) {
+            ++requestCount;
+        }
+        final DataSet rows = new DataSet();
+        JsonObject validation;
+        try {
+            validation = client.execute(batch.query, new DataRowHandler() {
+
+                @Override
+                public void handle(DataRow row) {
+                    rows.add(row);
+                }
+
+            }, null);
+        }
+        catch (IOException | RuntimeException e) {
+            for (Pending entry : batch.members) {
+                entry.future.failed(e);
+            }
+            return;
+        }
+
+        if (batch.parameter < 0) {
+            for (Pending entry : batch.members) {
+                entry.future.completed(new DataSet(rows));
+            }
+            return;
+        }
+        if (QueryPlanner.isTruncated(batch.query, validation, rows.size())) {
+            // The merged result is incomplete, so fall back to separate
+            // requests, which might still be complete on their own.
+            for (Pending entry : batch.members) {
+                List<Pending> members = new ArrayList<Pending>();
+                members.add(entry);
+                send(new Batch(entry.query, -1, members));
+            }
+            return;
+        }
+
+        String name = MERGE_PARAMETERS[batch.parameter];
+        DataRowField field = MERGE_FIELDS[batch.parameter];
+        Map<String, DataSet> results = new LinkedHashMap<String, DataSet>();
+        for (Pending entry : batch.members) {
+            results.put(entry.query.getParam(name).trim(), new DataSet());
+        }
+        boolean unassigned = false;
+        for (DataRow row : rows) {
+            DataSet result = results.get(String.valueOf(field.get(row)));
+            if (result != null) {
+                result.add(row);
+            }
+            else {
+                unassigned = true;
+            }
+        }
+        Map<String, List<Pending>> retries = new LinkedHashMap<String, List<Pending>>();
+        for (Pending entry : batch.members) {
+            String value = entry.query.getParam(name).trim();
+            DataSet result = results.get(value);
+            if (result.isEmpty() && unassigned) {
+                // The rows might not have been recognized as this query's,
+                // so ask for them separately.
+                List<Pending> members = retries.get(value);
+                if (members == null) {
+                    members = new ArrayList<Pending>();
+                    retries.put(value, members);
+                }
+                members.add(entry);
+                continue;
+            }
+            // Equal queries get their own copies.
+            entry.future.completed(new DataSet(result));
+        }
+        for (List<Pending> members : retries.values()) {
+            send(new Batch(members.get(0).query, -1, members));
+        }
+    }
+
+    /**
+     * A submitted query waiting for its result.
+     */
+    protected static class Pending {
+
+        /**
+         * The submitted query.
+         */
+        protected final Query query;
+
+        /**
+         * The pending result.
+         */
+        protected final BasicFuture<DataSet> future;
+
+        /**
+         * Creates a new pending query.
+         *
+         * @param query
+         *            The submitted query.
+         * @param client
+         *            The client to unregister the result from once it is
+         *            done.
+         */
+        protected Pending(Query query, final UNComtrade client) {
+            this.query = query;
+            future = new BasicFuture<DataSet>(new FutureCallback<DataSet>() {
+
+                @Override
+                public void completed(DataSet result) {
+                    client.removeDependentFuture(future);
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    client.removeDependentFuture(future);
+                }
+
+                @Override
+                public void cancelled() {
+                    client.removeDependentFuture(future);
+                }
+
+            });
+        }
+
+    }
+
+    /**
+     * A request answering one or more pending queries.
+     */
+    protected static class Batch {
+
+        /**
+         * The query to send.
+         */
+        protected final Query query;
+
+        /**
+         * The index of the merged parameter in {@link #MERGE_PARAMETERS}, or
+         * -1 if the query was not merged.
+         */
+        protected final int parameter;
+
+        /**
+         * The pending queries answered by this request.
+         */
+        protected final List<Pending> members;
+
+        /**
+         * Creates a new batch.
+         *
+         * @param query
+         *            The query to send.
+         * @param parameter
+         *            The index of the merged parameter, or -1.
+         * @param members
+         *            The pending queries answered by the request.
+         */
+        protected Batch(Query query, int parameter, List<Pending> members) {
+            this.query = query;
+            this.parameter = parameter;
+            this.members = members;
+        }
+
+    }
+
+}
@@ -0,0 +1,416 @@
+package at.okfn.uncomtrade;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import at.okfn.uncomtrade.parameters.ValidParameters;
+
+
+/**
+ * Retrieves results of any size, by splitting queries that exceed the API's
+ * result limit into smaller ones.
+ *
+ * A query is considered truncated if the "validation" metadata reports more
+ * matching rows than were returned, or reports that the result is too large,
+ * or if the number of returned rows reaches the API's maximum limit. Queries
+ * with a smaller limit are returned as they are. Truncated queries are
+ * split along the time period, reporter, partner area or classification code
+ * (whichever is the first to contain several values, or "all" for reporter
+ * and partner area), and the resulting sub-queries are retrieved
+ * concurrently, splitting them further as necessary. Use like this:
+ *
+ * <pre>
+ *
+ * {@code
+ *     UNComtrade client = new UNComtrade();
+ *     client.setTimePeriod("2012,2013,2014");
+ *     QueryPlanner planner = new QueryPlanner(client);
+ *     planner.setParallelism(4);
+ *     DataSet results = planner.retrieve();
+ * }
+ * </pre>
+ *
+ * The rate of requests is governed by the client's
+ * {@link at.okfn.uncomtrade.scheduling.RequestScheduler}, so the sub-queries
+ * stay within the API's quotas.
+ */
+public class QueryPlanner {
+
+    /**
+     * The maximum number of values the API accepts in a list parameter.
+     */
+    public static final int MAX_LIST_SIZE = 5;
+
+    /**
+     * The "validation" status value the API uses for too large results.
+     */
+    public static final int STATUS_RESULT_TOO_LARGE = 5003;
+
+    /**
+     * The parameters along which to split queries, in order of preference.
+     */
+    protected static final String[] SPLIT_PARAMETERS = { Parameters.TIME_PERIOD, Parameters.REPORTER,
+            Parameters.PARTNER_AREA, Parameters.CLASSIFICATION_CODE };
+
+    /**
+     * The client to use for retrieving the data.
+     */
+    protected UNComtrade client;
+
+    /**
+     * The query to retrieve, or null to use the client's current settings.
+     */
+    protected Query query;
+
+    /**
+     * The maximum number of concurrent requests.
+     */
+    protected int parallelism = 4;
+
+    /**
+     * The known valid values for parameters which can be "all", in chunks of
+     * at most {@link #MAX_LIST_SIZE}.
+     */
+    protected Map<String, List<String>> expandedValues = new HashMap<String, List<String>>();
+
+    /**
+     * The URLs of truncated queries which could not be split any further.
+     */
+    protected List<String> truncatedUrls = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Creates a new query planner.
+     *
+     * @param client
+     *            The client to use for retrieving the data. Its current
+     *            settings define the query to retrieve.
+     */
+    public QueryPlanner(UNComtrade client) {
+        this.client = client;
+    }
+
+    /**
+     * Creates a new query planner for a fixed query.
+     *
+     * @param client
+     *            The client to use for retrieving the data.
+     * @param query
+     *            The query to retrieve.
+     */
+    public QueryPlanner(UNComtrade client, Query query) {
+        this.client = client;
+        this.query = query;
+    }
+
+    /**
+     * Sets the maximum number of concurrent requests.
+     *
+     * @param parallelism
+     *            The maximum number of concurrent requests. Defaults to 4.
+     *            The client's request scheduler might allow fewer.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("At least one concurrent request has to be allowed.");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return The URLs of all truncated queries which could not be split any
+     *         further, for example because they only contain a single
+     *         reporter, partner and period. The results of these are
+     *         incomplete.
+     */
+    public List<String> getTruncatedUrls() {
+        return new ArrayList<String>(truncatedUrls);
+    }
+
+    /**
+     * Retrieves the complete data set for the query.
+     *
+     * @return The requested data set, merged from all necessary sub-queries.
+     */
+    public DataSet retrieve() throws IOException {
+        final DataSet dataSet = new DataSet();
+        retrieve(new DataRowHandler() {
+
+            @Override
+            public void handle(DataRow row) {
+                dataSet.add(row);
+            }
+
+        });
+        return dataSet;
+    }
+
+    /**
+     * Retrieves all data rows for the query.
+     *
+     * The rows of each sub-query are passed to the handler once the sub-query
+     * is complete and known not to be truncated. The handler is always called
+     * from the current thread.
+     *
+     * @param handler
+     *            The handler to pass the data rows to.
+     *
+     * @return The number of data rows retrieved.
+     */
+    public int retrieve(DataRowHandler handler) throws IOException {
+        truncatedUrls.clear();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            CompletionService<SubQuery> completion = new ExecutorCompletionService<SubQuery>(executor);
+            int pending = 0;
+            completion.submit(new SubQuery(query != null ? query : client.toQuery()));
+            ++pending;
+
+            int count = 0;
+            while (pending > 0) {
+                SubQuery subQuery = completion.take().get();
+                --pending;
+                if (subQuery.isTruncated()) {
+                    List<Query> parts = split(subQuery.query);
+                    if (!parts.isEmpty()) {
+                        for (Query part : parts) {
+                            completion.submit(new SubQuery(part));
+                            ++pending;
+                        }
+                        continue;
+                    }
+                    truncatedUrls.add(subQuery.query.getUrl());
+                }
+                for (DataRow row : subQuery.rows) {
+                    handler.handle(row);
+                }
+                count += subQuery.rows.size();
+            }
+            return count;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for sub-queries.", e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Splits a query into several smaller ones.
+     *
+     * @param query
+     *            The query to split.
+     *
+     * @return The sub-queries, or an empty list if the query cannot be split.
+     */
+    protected List<Query> split(Query query) throws IOException {
+        List<Query> parts = new ArrayList<Query>();
+        Query.Builder builder = query.toBuilder();
+        for (String name : SPLIT_PARAMETERS) {
+            String value = query.getParam(name);
+            if (value == null) {
+                continue;
+            }
+            List<String> values;
+            if (value.equals("all")
+                    && (name.equals(Parameters.REPORTER) || name.equals(Parameters.PARTNER_AREA))) {
+                values = getExpandedValues(name);
+            }
+            else {
+                values = new ArrayList<String>();
+                for (String single : value.split(",")) {
+                    values.add(single.trim());
+                }
+            }
+            if (values.size() < 2) {
+                continue;
+            }
+            for (String part : values) {
+                parts.add(builder.setParam(name, part).build());
+            }
+            break;
+        }
+        return parts;
+    }
+
+    /**
+     * Retrieves all valid values for a parameter which is set to "all".
+     *
+     * @param name
+     *            The name of the parameter.
+     *
+     * @return All numeric values of the parameter, as comma-separated lists
+     *         of at most {@link #MAX_LIST_SIZE} values each.
+     */
+    protected synchronized List<String> getExpandedValues(String name) throws IOException {
+        List<String> chunks = expandedValues.get(name);
+        if (chunks != null) {
+            return chunks;
+        }
+        List<String> values = new ArrayList<String>();
+        for (String value : ValidParameters.create(name).getValues().keySet()) {
+            if (value.matches("^\\d+$")) {
+                values.add(value);
+            }
+        }
+        Collections.sort(values);
+        chunks = new ArrayList<String>();
+        for (int i = 0; i < values.size(); i += MAX_LIST_SIZE) {
+            StringBuilder chunk = new StringBuilder();
+            for (String value : values.subList(i, Math.min(i + MAX_LIST_SIZE, values.size()))) {
+                if (chunk.length() > 0) {
+                    chunk.append(',');
+                }
+                chunk.append(value);
+            }
+            chunks.add(chunk.toString());
+        }
+        expandedValues.put(name, chunks);
+        return chunks;
+    }
+
+    /**
+     * Checks whether the result of a query is incomplete.
+     *
+     * Queries with a limit below {@link Query#MAX_LIMIT} are never considered
+     * truncated, since the caller asked for no more rows than that.
+     *
+     * @param query
+     *            The query.
+     * @param validation
+     *            The "validation" metadata of the response, or null.
+     * @param rows
+     *            The number of returned data rows.
+     *
+     * @return Whether the API returned fewer rows than match the query.
+     */
+    protected static boolean isTruncated(Query query, JsonObject validation, int rows) {
+        long limit;
+        try {
+            String value = query.getParam(Parameters.LIMIT);
+            limit = value == null ? Query.MAX_LIMIT : Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+        if (limit < Query.MAX_LIMIT) {
+            return false;
+        }
+        if (validation != null) {
+            Long status = getValue(validation, "status");
+            if (status != null && status == STATUS_RESULT_TOO_LARGE) {
+                return true;
+            }
+            Long count = getValue(validation, "count");
+            if (count != null && count > rows) {
+                return true;
+            }
+        }
+        return rows >= limit;
+    }
+
+    /**
+     * Reads a numeric entry of the "validation" metadata.
+     *
+     * @param validation
+     *            The "validation" metadata.
+     * @param name
+     *            The name of the entry, whose "value" is read.
+     *
+     * @return The value, or null if it is missing or not a number.
+     */
+    protected static Long getValue(JsonObject validation, String name) {
+        JsonElement entry = validation.get(name);
+        if (entry == null || !entry.isJsonObject()) {
+            return null;
+        }
+        JsonElement value = entry.getAsJsonObject().get("value");
+        if (value == null || !value.isJsonPrimitive()) {
+            return null;
+        }
+        try {
+            return value.getAsLong();
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A single request made on behalf of the planner, with its results.
+     */
+    protected class SubQuery implements Callable<SubQuery> {
+
+        /**
+         * The query to send.
+         */
+        protected final Query query;
+
+        /**
+         * The retrieved data rows.
+         */
+        protected final DataSet rows = new DataSet();
+
+        /**
+         * The "validation" metadata of the response.
+         */
+        protected JsonObject validation;
+
+        /**
+         * Creates a new sub-query.
+         *
+         * @param query
+         *            The query to send.
+         */
+        protected SubQuery(Query query) {
+            this.query = query;
+        }
+
+        @Override
+        public SubQuery call() throws IOException {
+            validation = client.execute(query, new DataRowHandler() {
+
+                @Override
+                public void handle(DataRow row) {
+                    rows.add(row);
+                }
+
+            }, null);
+            return this;
+        }
+
+        /**
+         * @return Whether the result of this request is incomplete.
+         */
+        protected boolean isTruncated() {
+            return QueryPlanner.isTruncated(query, validation, rows.size());
+        }
+
+    }
+
+}
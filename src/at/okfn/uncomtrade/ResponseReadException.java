@@ -0,0 +1,36 @@
+package at.okfn.uncomtrade;
+
+
+import java.io.IOException;
+
+
+/**
+ * Signals an I/O error while reading a response through an interface that
+ * does not allow checked exceptions, such as {@link java.util.Iterator}.
+ */
+public class ResponseReadException extends RuntimeException {
+
+    /**
+     * Creates a new exception.
+     *
+     * @param cause
+     *            The I/O error that occurred.
+     */
+    public ResponseReadException(IOException cause) {
+        super(cause);
+    }
+
+    /**
+     * @return The I/O error that occurred.
+     */
+    @Override
+    public IOException getCause() {
+        return (IOException) super.getCause();
+    }
+
+    /**
+     * A serial ID for this version of the class.
+     */
+    private static final long serialVersionUID = -3105824410693561284L;
+
+}
@@ -0,0 +1,261 @@
+package at.okfn.uncomtrade;
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.NoSuchElementException;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+
+/**
+ * Reads a UN Comtrade API response incrementally, one data row at a time.
+ *
+ * The response is consumed in a single pass on the token level, so at no time
+ * more than the current data row (and the "validation" metadata) is held in
+ * memory. Use like this:
+ *
+ * <pre>
+ *
+ * {@code
+ *     ResponseReader reader = new ResponseReader(in);
+ *     while (reader.hasNext()) {
+ *         DataRow row = reader.next();
+ *     }
+ *     JsonObject validation = reader.getValidation();
+ * }
+ * </pre>
+ */
+public class ResponseReader implements Closeable {
+
+    /**
+     * The JSON binding shared by all readers, with dedicated adapters for
+     * data rows and data sets.
+     */
+    protected static final Gson gson = new GsonBuilder().registerTypeAdapter(DataRow.class, new DataRowTypeAdapter())
+            .registerTypeAdapter(DataSet.class, new DataSetTypeAdapter()).create();
+
+    /**
+     * The underlying JSON token reader.
+     */
+    protected JsonReader reader;
+
+    /**
+     * The adapter used for binding single data rows.
+     */
+    protected TypeAdapter<DataRow> rowAdapter;
+
+    /**
+     * The pool for deduplicating repeated strings, or null.
+     */
+    protected StringPool stringPool;
+
+    /**
+     * The "validation" metadata of the response, once it was read.
+     */
+    protected JsonObject validation;
+
+    /**
+     * Whether the reader is currently positioned inside the "dataset" array.
+     */
+    protected boolean inDataset = false;
+
+    /**
+     * Whether the whole response has been consumed.
+     */
+    protected boolean finished = false;
+
+    /**
+     * Creates a new response reader.
+     *
+     * @param in
+     *            The reader providing the raw JSON response.
+     *
+     * @throws IOException
+     *             If the response could not be read or is not a JSON object.
+     */
+    public ResponseReader(Reader in) throws IOException {
+        this(in, null);
+    }
+
+    /**
+     * Creates a new response reader.
+     *
+     * @param in
+     *            The reader providing the raw JSON response.
+     * @param stringPool
+     *            The pool through which to deduplicate the repeated string
+     *            properties of data rows, or null to keep all strings as
+     *            decoded.
+     *
+     * @throws IOException
+     *             If the response could not be read or is not a JSON object.
+     */
+    public ResponseReader(Reader in, StringPool stringPool) throws IOException {
+        this(stringPool);
+        rowAdapter = gson.getAdapter(DataRow.class);
+        reader = new JsonReader(in);
+        reader.beginObject();
+    }
+
+    /**
+     * Creates a new response reader for subclasses which decode the response
+     * themselves.
+     *
+     * @param stringPool
+     *            The pool through which to deduplicate the repeated string
+     *            properties of data rows, or null.
+     */
+    protected ResponseReader(StringPool stringPool) {
+        this.stringPool = stringPool;
+    }
+
+    /**
+     * Returns the JSON binding used for reading responses.
+     *
+     * It binds data rows and data sets through {@link DataRowTypeAdapter} and
+     * {@link DataSetTypeAdapter}, and is thread-safe.
+     *
+     * @return The shared Gson instance.
+     */
+    public static Gson getGson() {
+        return gson;
+    }
+
+    /**
+     * Advances to the next data row, if there is one.
+     *
+     * Any other top-level properties encountered on the way (most notably,
+     * "validation") are processed or skipped.
+     *
+     * @return Whether there is another data row in the response.
+     *
+     * @throws IOException
+     *             If the response could not be read or is malformed.
+     */
+    public boolean hasNext() throws IOException {
+        while (!finished) {
+            if (inDataset) {
+                if (reader.hasNext()) {
+                    return true;
+                }
+                reader.endArray();
+                inDataset = false;
+            }
+            else if (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "validation":
+                        JsonElement element = new JsonParser().parse(reader);
+                        validation = element.isJsonObject() ? element.getAsJsonObject() : null;
+                        break;
+
+                    case "dataset":
+                        if (reader.peek() == JsonToken.NULL) {
+                            reader.nextNull();
+                        }
+                        else {
+                            reader.beginArray();
+                            inDataset = true;
+                        }
+                        break;
+
+                    default:
+                        reader.skipValue();
+                }
+            }
+            else {
+                reader.endObject();
+                finished = true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the next data row.
+     *
+     * @return The next data row in the response.
+     *
+     * @throws IOException
+     *             If the response could not be read or is malformed.
+     * @throws NoSuchElementException
+     *             If there are no more data rows.
+     */
+    public DataRow next() throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return readRow();
+    }
+
+    /**
+     * Reads all remaining data rows into a data set.
+     *
+     * @return A data set containing all remaining data rows.
+     *
+     * @throws IOException
+     *             If the response could not be read or is malformed.
+     */
+    public DataSet readAll() throws IOException {
+        DataSet dataSet = new DataSet();
+        while (hasNext()) {
+            dataSet.add(readRow());
+        }
+        return dataSet;
+    }
+
+    /**
+     * Decodes the data row at the current position.
+     *
+     * @return The decoded data row.
+     *
+     * @throws IOException
+     *             If the response could not be read or is malformed.
+     */
+    protected DataRow readRow() throws IOException {
+        DataRow row = rowAdapter.read(reader);
+        if (stringPool != null && row != null) {
+            row.pfCode = stringPool.intern(row.pfCode);
+            row.periodDesc = stringPool.intern(row.periodDesc);
+            row.rgDesc = stringPool.intern(row.rgDesc);
+            row.rtTitle = stringPool.intern(row.rtTitle);
+            row.rt3ISO = stringPool.intern(row.rt3ISO);
+            row.ptTitle = stringPool.intern(row.ptTitle);
+            row.pt3ISO = stringPool.intern(row.pt3ISO);
+            row.cmdCode = stringPool.intern(row.cmdCode);
+            row.cmdDescE = stringPool.intern(row.cmdDescE);
+            row.qtDesc = stringPool.intern(row.qtDesc);
+        }
+        return row;
+    }
+
+    /**
+     * Retrieves the "validation" metadata of the response.
+     *
+     * Since the metadata might come after the data set, this is only
+     * guaranteed to be available once {@link #hasNext()} returned false.
+     *
+     * @return The "validation" metadata, or null if it was not (yet)
+     *         encountered.
+     */
+    public JsonObject getValidation() {
+        return validation;
+    }
+
+    /**
+     * Closes the underlying reader.
+     */
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+}
@@ -0,0 +1,101 @@
+package at.okfn.uncomtrade;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Keeps the most recent elements added to it, up to a fixed capacity.
+ *
+ * Once the buffer is full, each new element replaces the oldest one, so the
+ * memory used does not grow with the number of elements added.
+ *
+ * This class is thread-safe.
+ *
+ * @param <E>
+ *            The type of the elements.
+ */
+public class RingBuffer<E> {
+
+    /**
+     * The stored elements.
+     */
+    protected final Object[] elements;
+
+    /**
+     * The total number of elements added.
+     */
+    protected long added = 0;
+
+    /**
+     * Creates a new ring buffer.
+     *
+     * @param capacity
+     *            The maximum number of elements to keep.
+     */
+    public RingBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity has to be positive.");
+        }
+        elements = new Object[capacity];
+    }
+
+    /**
+     * Adds an element, replacing the oldest one if the buffer is full.
+     *
+     * @param element
+     *            The element to add.
+     */
+    public synchronized void add(E element) {
+        elements[(int) (added % elements.length)] = element;
+        ++added;
+    }
+
+    /**
+     * @return The most recently added element, or null if the buffer is
+     *         empty.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized E getLast() {
+        if (added == 0) {
+            return null;
+        }
+        return (E) elements[(int) ((added - 1) % elements.length)];
+    }
+
+    /**
+     * @return The kept elements, from the oldest to the most recent.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<E> toList() {
+        int size = size();
+        List<E> list = new ArrayList<E>(size);
+        for (long i = added - size; i < added; ++i) {
+            list.add((E) elements[(int) (i % elements.length)]);
+        }
+        return list;
+    }
+
+    /**
+     * @return The number of kept elements.
+     */
+    public synchronized int size() {
+        return (int) Math.min(added, elements.length);
+    }
+
+    /**
+     * @return The maximum number of elements to keep.
+     */
+    public int getCapacity() {
+        return elements.length;
+    }
+
+    /**
+     * @return The total number of elements added so far.
+     */
+    public synchronized long getAddedCount() {
+        return added;
+    }
+
+}
@@ -0,0 +1,499 @@
+package at.okfn.uncomtrade;
+
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+
+/**
+ * Reads a binary snapshot written by {@link SnapshotWriter}, one data row at a
+ * time.
+ *
+ * Snapshots can be read from any stream or, with {@link #open(File)}, from a
+ * memory-mapped file, which avoids copying uncompressed snapshots through a
+ * stream buffer. Strings are shared between all rows read from the same
+ * snapshot, so there is no need for a {@link StringPool}. Use like this:
+ *
+ * <pre>
+ *
+ * {@code
+ *     try (SnapshotReader reader = SnapshotReader.open(file)) {
+ *         while (reader.hasNext()) {
+ *             DataRow row = reader.next();
+ *         }
+ *     }
+ * }
+ * </pre>
+ *
+ * Properties unknown to this version are skipped, and properties missing from
+ * the snapshot are left null.
+ */
+public class SnapshotReader implements Closeable {
+
+    /**
+     * The stream providing the rest of the snapshot, or null if all of it is
+     * in the buffer.
+     */
+    protected InputStream in;
+
+    /**
+     * The bytes read but not yet decoded.
+     */
+    protected ByteBuffer buffer;
+
+    /**
+     * The decompressor, or null if the rows are not compressed.
+     */
+    protected Inflater inflater;
+
+    /**
+     * The data row property of each stored property, or null for properties
+     * unknown to this version.
+     */
+    protected DataRowField[] fields;
+
+    /**
+     * The type of each stored property.
+     */
+    protected DataRowField.Type[] types;
+
+    /**
+     * The dictionary of each string property.
+     */
+    protected List<List<String>> dictionaries = new ArrayList<List<String>>();
+
+    /**
+     * The previous non-null value of each integer property.
+     */
+    protected long[] previous;
+
+    /**
+     * The null bitmap of the next row, once its tag was read.
+     */
+    protected long nulls;
+
+    /**
+     * Whether the tag of the next row has been read, but not the row itself.
+     */
+    protected boolean pending = false;
+
+    /**
+     * Whether the end of the snapshot has been reached.
+     */
+    protected boolean finished = false;
+
+    /**
+     * The buffer for decoding strings which cannot be decoded in place.
+     */
+    protected byte[] stringBuffer = new byte[256];
+
+    /**
+     * Creates a reader for a snapshot from a stream, and reads its header.
+     *
+     * @param in
+     *            The stream providing the snapshot. It is closed along with
+     *            this reader.
+     *
+     * @throws IOException
+     *             If the header could not be read or is invalid.
+     */
+    public SnapshotReader(InputStream in) throws IOException {
+        this.in = in;
+        buffer = ByteBuffer.allocate(65536);
+        buffer.limit(0);
+        readHeader();
+    }
+
+    /**
+     * Creates a reader for a snapshot in memory, and reads its header.
+     *
+     * @param buffer
+     *            The buffer holding the whole snapshot, from its current
+     *            position on.
+     *
+     * @throws IOException
+     *             If the header could not be read or is invalid.
+     */
+    public SnapshotReader(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        readHeader();
+    }
+
+    /**
+     * Opens a snapshot file, mapping it into memory.
+     *
+     * @param file
+     *            The snapshot file.
+     *
+     * @return A reader for the snapshot.
+     *
+     * @throws IOException
+     *             If the file could not be opened or its header is invalid.
+     */
+    public static SnapshotReader open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                // Too large for a single mapping.
+                return new SnapshotReader(new FileInputStream(file));
+            }
+            // The mapping stays valid after the channel is closed.
+            return new SnapshotReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Reads a snapshot file into a data set.
+     *
+     * @param file
+     *            The snapshot file.
+     *
+     * @return A data set containing all data rows of the snapshot.
+     *
+     * @throws IOException
+     *             If the file could not be read or is malformed.
+     */
+    public static DataSet readAll(File file) throws IOException {
+        try (SnapshotReader reader = open(file)) {
+            return reader.readAll();
+        }
+    }
+
+    /**
+     * Checks whether there is another data row in the snapshot.
+     *
+     * @return Whether there is another data row.
+     *
+     * @throws IOException
+     *             If the snapshot could not be read or is malformed.
+     */
+    public boolean hasNext() throws IOException {
+        if (!pending && !finished) {
+            long tag = readVarint();
+            if (tag == 0) {
+                finished = true;
+            }
+            else {
+                nulls = tag >>> 1;
+                pending = true;
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Reads the next data row.
+     *
+     * @return The next data row in the snapshot.
+     *
+     * @throws IOException
+     *             If the snapshot could not be read or is malformed.
+     * @throws NoSuchElementException
+     *             If there are no more data rows.
+     */
+    public DataRow next() throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        pending = false;
+        DataRow row = new DataRow();
+        for (int i = 0; i < fields.length; ++i) {
+            if ((nulls & 1L << i) != 0) {
+                continue;
+            }
+            Object value;
+            switch (types[i]) {
+                case INT:
+                    previous[i] += decodeZigZag(readVarint());
+                    value = (int) previous[i];
+                    break;
+
+                case LONG:
+                    value = decodeZigZag(readVarint());
+                    break;
+
+                default:
+                    value = readString(i);
+            }
+            if (fields[i] != null) {
+                fields[i].set(row, value);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Reads all remaining data rows into a data set.
+     *
+     * @return A data set containing all remaining data rows.
+     *
+     * @throws IOException
+     *             If the snapshot could not be read or is malformed.
+     */
+    public DataSet readAll() throws IOException {
+        DataSet dataSet = new DataSet();
+        while (hasNext()) {
+            dataSet.add(next());
+        }
+        return dataSet;
+    }
+
+    /**
+     * Closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (in != null) {
+                in.close();
+            }
+        }
+        finally {
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+        }
+    }
+
+    /**
+     * Reads the header and prepares decompressing the rows, if necessary.
+     *
+     * @throws IOException
+     *             If the header could not be read or is invalid.
+     */
+    protected void readHeader() throws IOException {
+        byte[] magic = new byte[SnapshotWriter.MAGIC.length];
+        for (int i = 0; i < magic.length; ++i) {
+            magic[i] = readByte();
+        }
+        if (!Arrays.equals(magic, SnapshotWriter.MAGIC)) {
+            throw new IOException("Not a data set snapshot.");
+        }
+        int version = readByte();
+        if (version < 1 || version > SnapshotWriter.VERSION) {
+            throw new IOException("Unsupported snapshot version: " + version);
+        }
+        int flags = readByte();
+
+        int count = (int) readVarint();
+        if (count > 63) {
+            throw new IOException("Malformed snapshot: too many properties.");
+        }
+        fields = new DataRowField[count];
+        types = new DataRowField.Type[count];
+        previous = new long[count];
+        DataRowField.Type[] knownTypes = DataRowField.Type.values();
+        for (int i = 0; i < count; ++i) {
+            int type = readByte();
+            if (type < 0 || type >= knownTypes.length) {
+                throw new IOException("Unsupported property type in snapshot: " + type);
+            }
+            types[i] = knownTypes[type];
+            String name = readString(-1);
+            try {
+                fields[i] = DataRowField.forName(name);
+            }
+            catch (IllegalArgumentException e) {
+                // Skipped when reading rows.
+                fields[i] = null;
+            }
+            if (fields[i] != null && fields[i].getType() != types[i]) {
+                throw new IOException("Snapshot property " + name + " has an incompatible type.");
+            }
+            dictionaries.add(types[i] == DataRowField.Type.STRING ? new ArrayList<String>() : null);
+        }
+
+        if ((flags & SnapshotWriter.FLAG_DEFLATE) != 0) {
+            // The rest of the buffer is compressed, as is all of the stream.
+            InputStream compressed = new BufferInputStream(buffer.slice());
+            if (in != null) {
+                compressed = new SequenceInputStream(compressed, in);
+            }
+            inflater = new Inflater();
+            in = new InflaterInputStream(compressed, inflater, 65536);
+            buffer = ByteBuffer.allocate(65536);
+            buffer.limit(0);
+        }
+    }
+
+    /**
+     * Reads a string property, through the property's dictionary.
+     *
+     * @param field
+     *            The index of the property, or -1 to read a plain
+     *            length-prefixed string.
+     *
+     * @return The string.
+     */
+    protected String readString(int field) throws IOException {
+        List<String> dictionary = null;
+        boolean add = false;
+        if (field >= 0) {
+            dictionary = dictionaries.get(field);
+            long id = readVarint();
+            if (id >= 2) {
+                if (id - 2 >= dictionary.size()) {
+                    throw new IOException("Malformed snapshot: unknown string ID " + (id - 2) + ".");
+                }
+                return dictionary.get((int) (id - 2));
+            }
+            add = id == 1;
+        }
+
+        long length = readVarint();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Malformed snapshot: string too long.");
+        }
+        String value;
+        if (buffer.hasArray() && buffer.remaining() >= length) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), (int) length,
+                    StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + (int) length);
+        }
+        else {
+            if (stringBuffer.length < length) {
+                stringBuffer = new byte[(int) length];
+            }
+            int offset = 0;
+            while (offset < length) {
+                if (!buffer.hasRemaining() && !fill()) {
+                    throw new EOFException("Unexpected end of snapshot.");
+                }
+                int chunk = (int) Math.min(length - offset, buffer.remaining());
+                buffer.get(stringBuffer, offset, chunk);
+                offset += chunk;
+            }
+            value = new String(stringBuffer, 0, (int) length, StandardCharsets.UTF_8);
+        }
+        if (add) {
+            dictionary.add(value);
+        }
+        return value;
+    }
+
+    /**
+     * Reads an unsigned variable-length integer.
+     *
+     * @return The value.
+     *
+     * @see SnapshotWriter#writeVarint(long)
+     */
+    protected long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed snapshot: varint too long.");
+    }
+
+    /**
+     * Reads a single byte.
+     *
+     * @return The byte.
+     *
+     * @throws EOFException
+     *             If the snapshot ended unexpectedly.
+     */
+    protected byte readByte() throws IOException {
+        if (!buffer.hasRemaining() && !fill()) {
+            throw new EOFException("Unexpected end of snapshot.");
+        }
+        return buffer.get();
+    }
+
+    /**
+     * Reads more bytes from the stream into the buffer.
+     *
+     * @return Whether any bytes were read.
+     */
+    protected boolean fill() throws IOException {
+        if (in == null) {
+            return false;
+        }
+        buffer.compact();
+        int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if (read > 0) {
+            buffer.position(buffer.position() + read);
+        }
+        buffer.flip();
+        return read > 0;
+    }
+
+    /**
+     * @param value
+     *            A zigzag encoded value.
+     *
+     * @return The signed value.
+     *
+     * @see SnapshotWriter#encodeZigZag(long)
+     */
+    protected static long decodeZigZag(long value) {
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    /**
+     * Provides the remaining bytes of a buffer as a stream.
+     */
+    protected static class BufferInputStream extends InputStream {
+
+        /**
+         * The buffer to read from.
+         */
+        protected ByteBuffer buffer;
+
+        /**
+         * Creates a new stream.
+         *
+         * @param buffer
+         *            The buffer to read from, starting at its current
+         *            position.
+         */
+        public BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+    }
+
+}
@@ -0,0 +1,353 @@
+package at.okfn.uncomtrade;
+
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+
+/**
+ * Writes data rows to a compact binary snapshot, one at a time.
+ *
+ * A snapshot starts with an uncompressed header: the magic bytes "UNCS", the
+ * format version, a flags byte (bit 0: the rest is deflate compressed) and the
+ * list of stored properties, each as its type (the ordinal of
+ * {@link DataRowField.Type}) and its machine name. The rows follow, each
+ * introduced by a varint tag holding a bitmap of its null properties, shifted
+ * left by one and with the lowest bit set. A tag of 0 ends the snapshot. The
+ * non-null properties follow the tag in the listed order:
+ *
+ * <ul>
+ * <li>Integers are stored as the zigzag varint of the difference to the
+ * property's previous non-null value, which keeps codes and years to a single
+ * byte in most rows.</li>
+ * <li>Longs are stored as zigzag varints.</li>
+ * <li>Strings are dictionary-encoded per property: a varint n &gt;= 2 refers
+ * to the (n - 2)-th string added to the dictionary, 1 precedes a new string
+ * to be added and 0 a string which is not added, because the dictionary is
+ * full. New strings are written as their length and UTF-8 bytes.</li>
+ * </ul>
+ *
+ * The dictionaries are built while writing, so a snapshot can be written and
+ * read in a single pass. Use like this:
+ *
+ * <pre>
+ *
+ * {@code
+ *     try (SnapshotWriter writer = new SnapshotWriter(new FileOutputStream(file), true)) {
+ *         client.retrieve(query, writer);
+ *     }
+ * }
+ * </pre>
+ *
+ * @see SnapshotReader
+ */
+public class SnapshotWriter implements DataRowHandler, Closeable {
+
+    /**
+     * The bytes every snapshot starts with.
+     */
+    public static final byte[] MAGIC = { 'U', 'N', 'C', 'S' };
+
+    /**
+     * The version of the format written.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The header flag marking deflate compressed rows.
+     */
+    public static final int FLAG_DEFLATE = 1;
+
+    /**
+     * The maximum number of strings in the dictionary of a single property.
+     * Any further new strings are written in full on every occurrence.
+     */
+    public static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+    /**
+     * The stored properties, in the order they are written.
+     */
+    protected static final DataRowField[] FIELDS = DataRowField.values();
+
+    /**
+     * The stream receiving the (possibly compressed) rows.
+     */
+    protected OutputStream out;
+
+    /**
+     * The compressor, or null if the rows are not compressed.
+     */
+    protected Deflater deflater;
+
+    /**
+     * The bytes not yet written to the stream.
+     */
+    protected byte[] buffer = new byte[65536];
+
+    /**
+     * The number of bytes in the buffer.
+     */
+    protected int position = 0;
+
+    /**
+     * The dictionary of each string property, mapping strings to their IDs.
+     */
+    protected List<Map<String, Integer>> dictionaries = new ArrayList<Map<String, Integer>>();
+
+    /**
+     * The previous non-null value of each integer property.
+     */
+    protected long[] previous = new long[FIELDS.length];
+
+    /**
+     * The values of the row being written.
+     */
+    protected Object[] values = new Object[FIELDS.length];
+
+    /**
+     * The number of rows written.
+     */
+    protected long rowCount = 0;
+
+    /**
+     * Whether this writer has already been closed.
+     */
+    protected boolean closed = false;
+
+    /**
+     * Creates a new snapshot writer and writes the header.
+     *
+     * @param out
+     *            The stream to write the snapshot to. It is closed along with
+     *            this writer.
+     * @param compress
+     *            Whether to deflate compress the rows. This makes the snapshot
+     *            about half as large, but reading and writing it slower.
+     *
+     * @throws IOException
+     *             If the header could not be written.
+     */
+    public SnapshotWriter(OutputStream out, boolean compress) throws IOException {
+        for (int i = 0; i < FIELDS.length; ++i) {
+            dictionaries.add(FIELDS[i].getType() == DataRowField.Type.STRING ? new HashMap<String, Integer>() : null);
+        }
+
+        this.out = out;
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.write(compress ? FLAG_DEFLATE : 0);
+        writeVarint(FIELDS.length);
+        for (DataRowField field : FIELDS) {
+            buffer[position++] = (byte) field.getType().ordinal();
+            writeBytes(field.getName().getBytes(StandardCharsets.UTF_8));
+        }
+        flushBuffer();
+        if (compress) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            this.out = new DeflaterOutputStream(out, deflater, 65536);
+        }
+    }
+
+    /**
+     * Writes all data rows to a snapshot file.
+     *
+     * @param rows
+     *            The data rows to write.
+     * @param file
+     *            The file to write to. It is replaced if it exists.
+     * @param compress
+     *            Whether to deflate compress the rows.
+     *
+     * @throws IOException
+     *             If the file could not be written.
+     */
+    public static void write(Iterable<? extends DataRow> rows, File file, boolean compress) throws IOException {
+        try (SnapshotWriter writer = new SnapshotWriter(new FileOutputStream(file), compress)) {
+            for (DataRow row : rows) {
+                writer.write(row);
+            }
+        }
+    }
+
+    /**
+     * Writes a data row.
+     *
+     * @param row
+     *            The data row to write.
+     *
+     * @throws IOException
+     *             If the row could not be written.
+     */
+    public void write(DataRow row) throws IOException {
+        if (closed) {
+            throw new IOException("The snapshot writer has already been closed.");
+        }
+        long nulls = 0;
+        for (int i = 0; i < FIELDS.length; ++i) {
+            values[i] = FIELDS[i].get(row);
+            if (values[i] == null) {
+                nulls |= 1L << i;
+            }
+        }
+        writeVarint(nulls << 1 | 1);
+        for (int i = 0; i < FIELDS.length; ++i) {
+            Object value = values[i];
+            if (value == null) {
+                continue;
+            }
+            switch (FIELDS[i].getType()) {
+                case INT:
+                    long intValue = (Integer) value;
+                    writeVarint(encodeZigZag(intValue - previous[i]));
+                    previous[i] = intValue;
+                    break;
+
+                case LONG:
+                    writeVarint(encodeZigZag((Long) value));
+                    break;
+
+                case STRING:
+                    writeString(dictionaries.get(i), (String) value);
+                    break;
+            }
+        }
+        ++rowCount;
+    }
+
+    /**
+     * Writes a data row, so the writer can directly receive retrieved rows.
+     *
+     * @param row
+     *            The data row to write.
+     *
+     * @throws IOException
+     *             If the row could not be written.
+     */
+    @Override
+    public void handle(DataRow row) throws IOException {
+        write(row);
+    }
+
+    /**
+     * @return The number of rows written so far.
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Ends the snapshot and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writeVarint(0);
+            flushBuffer();
+            out.close();
+        }
+        finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Writes a string property, through the property's dictionary.
+     *
+     * @param dictionary
+     *            The dictionary of the property.
+     * @param value
+     *            The string to write.
+     */
+    protected void writeString(Map<String, Integer> dictionary, String value) throws IOException {
+        Integer id = dictionary.get(value);
+        if (id != null) {
+            writeVarint(id + 2L);
+            return;
+        }
+        if (dictionary.size() < MAX_DICTIONARY_SIZE) {
+            dictionary.put(value, dictionary.size());
+            writeVarint(1);
+        }
+        else {
+            writeVarint(0);
+        }
+        writeBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes a length-prefixed byte sequence.
+     *
+     * @param bytes
+     *            The bytes to write.
+     */
+    protected void writeBytes(byte[] bytes) throws IOException {
+        writeVarint(bytes.length);
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (position == buffer.length) {
+                flushBuffer();
+            }
+            int length = Math.min(bytes.length - offset, buffer.length - position);
+            System.arraycopy(bytes, offset, buffer, position, length);
+            position += length;
+            offset += length;
+        }
+    }
+
+    /**
+     * Writes an unsigned variable-length integer: seven bits per byte, least
+     * significant first, with the highest bit set on all but the last byte.
+     *
+     * @param value
+     *            The value to write, treated as unsigned.
+     */
+    protected void writeVarint(long value) throws IOException {
+        if (buffer.length - position < 10) {
+            flushBuffer();
+        }
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    /**
+     * Writes the buffered bytes to the stream.
+     */
+    protected void flushBuffer() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+
+    /**
+     * Maps signed to unsigned values, so that small negative values get short
+     * varints as well.
+     *
+     * @param value
+     *            A signed value.
+     *
+     * @return The zigzag encoded value.
+     */
+    protected static long encodeZigZag(long value) {
+        return value << 1 ^ value >> 63;
+    }
+
+}
@@ -0,0 +1,109 @@
+package at.okfn.uncomtrade;
+
+
+import java.util.Arrays;
+
+
+/**
+ * A dictionary-encoded column of nullable strings.
+ *
+ * Each distinct string is stored only once, rows just hold its index in the
+ * dictionary.
+ */
+class StringColumn extends Column {
+
+    /**
+     * The dictionary indexes of the stored values.
+     */
+    protected int[] codes = new int[16];
+
+    /**
+     * All distinct values.
+     */
+    protected StringDictionary dictionary = new StringDictionary();
+
+    /**
+     * Creates a new string column.
+     *
+     * @param field
+     *            The data row property stored in this column.
+     */
+    public StringColumn(DataRowField field) {
+        super(field);
+    }
+
+    /**
+     * Stores a value.
+     *
+     * @param row
+     *            The row index.
+     * @param value
+     *            The value, or null.
+     */
+    public void set(int row, String value) {
+        ensureCapacity(row + 1);
+        setNull(row, value == null);
+        if (value == null) {
+            codes[row] = -1;
+            return;
+        }
+        codes[row] = dictionary.getId(value);
+    }
+
+    @Override
+    public String get(int row) {
+        int code = codes[row];
+        return code < 0 ? null : dictionary.get(code);
+    }
+
+    /**
+     * @param row
+     *            The row index.
+     *
+     * @return The dictionary index of the value in the given row, or -1 if it
+     *         is null.
+     */
+    public int getCode(int row) {
+        return codes[row];
+    }
+
+    /**
+     * @return Whether all values are dictionary-encoded, so that
+     *         {@link #getCode(int)} can be used for every row.
+     */
+    public boolean hasCodes() {
+        return true;
+    }
+
+    @Override
+    public long getLong(int row) {
+        return Long.parseLong(get(row));
+    }
+
+    @Override
+    public void appendTo(StringBuilder builder, int row) {
+        if (!isNull(row)) {
+            Aggregation.appendGroupValue(builder, get(row));
+        }
+    }
+
+    @Override
+    public boolean isNumeric() {
+        return false;
+    }
+
+    @Override
+    protected void ensureCapacity(int capacity) {
+        super.ensureCapacity(capacity);
+        if (capacity > codes.length) {
+            codes = Arrays.copyOf(codes, Math.max(capacity, codes.length * 2));
+        }
+    }
+
+    @Override
+    protected void move(int from, int to) {
+        codes[to] = codes[from];
+        setNull(to, isNull(from));
+    }
+
+}
@@ -0,0 +1,60 @@
+package at.okfn.uncomtrade;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Assigns consecutive integer IDs to distinct strings.
+ */
+class StringDictionary {
+
+    /**
+     * All distinct strings, by ID.
+     */
+    protected List<String> strings = new ArrayList<String>();
+
+    /**
+     * The ID of each distinct string.
+     */
+    protected Map<String, Integer> ids = new HashMap<String, Integer>();
+
+    /**
+     * Retrieves the ID for a string, assigning a new one if necessary.
+     *
+     * @param string
+     *            The string, not null.
+     *
+     * @return The ID of the string.
+     */
+    public int getId(String string) {
+        Integer id = ids.get(string);
+        if (id == null) {
+            id = strings.size();
+            strings.add(string);
+            ids.put(string, id);
+        }
+        return id;
+    }
+
+    /**
+     * @param id
+     *            A string ID.
+     *
+     * @return The string with the given ID.
+     */
+    public String get(int id) {
+        return strings.get(id);
+    }
+
+    /**
+     * @return The number of distinct strings.
+     */
+    public int size() {
+        return strings.size();
+    }
+
+}
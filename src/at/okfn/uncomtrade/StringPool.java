@@ -0,0 +1,89 @@
+package at.okfn.uncomtrade;
+
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Deduplicates strings, so that equal values share a single instance.
+ *
+ * Data rows repeat the same few hundred labels (country names, ISO codes,
+ * commodity descriptions, etc.) over and over. Passing them through a shared
+ * pool while decoding lets all rows reference the same string objects.
+ *
+ * The pool is thread-safe. Once it holds its maximum number of strings, new
+ * values are no longer added, but returned as they are.
+ */
+public class StringPool {
+
+    /**
+     * The default maximum number of pooled strings.
+     */
+    public static final int DEFAULT_MAX_SIZE = 100000;
+
+    /**
+     * The pooled strings, each mapped to itself.
+     */
+    protected ConcurrentMap<String, String> strings = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The maximum number of pooled strings.
+     */
+    protected int maxSize;
+
+    /**
+     * Creates a new string pool with the default maximum size.
+     */
+    public StringPool() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Creates a new string pool.
+     *
+     * @param maxSize
+     *            The maximum number of strings to hold.
+     */
+    public StringPool(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Retrieves the pooled instance of a string.
+     *
+     * @param string
+     *            The string to look up, or null.
+     *
+     * @return A string equal to the given one, or null if null was passed.
+     */
+    public String intern(String string) {
+        if (string == null) {
+            return null;
+        }
+        String pooled = strings.get(string);
+        if (pooled != null) {
+            return pooled;
+        }
+        if (strings.size() >= maxSize) {
+            return string;
+        }
+        pooled = strings.putIfAbsent(string, string);
+        return pooled == null ? string : pooled;
+    }
+
+    /**
+     * @return The number of pooled strings.
+     */
+    public int size() {
+        return strings.size();
+    }
+
+    /**
+     * Removes all strings from the pool.
+     */
+    public void clear() {
+        strings.clear();
+    }
+
+}
@@ -1,39 +1,67 @@
 package at.okfn.uncomtrade;
 
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
+import java.net.SocketTimeoutException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.text.NumberFormat;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.SortedSet;
-import java.util.Stack;
 import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.StatusLine;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.protocol.HttpContext;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 
+import at.okfn.uncomtrade.cache.ResponseCache;
+import at.okfn.uncomtrade.cache.TeeInputStream;
+import at.okfn.uncomtrade.metrics.ClientMetrics;
+import at.okfn.uncomtrade.metrics.CountingInputStream;
+import at.okfn.uncomtrade.metrics.MetricsListener;
+import at.okfn.uncomtrade.metrics.RequestMetrics;
 import at.okfn.uncomtrade.parameters.ValidParameters;
+import at.okfn.uncomtrade.resilience.CircuitBreaker;
+import at.okfn.uncomtrade.resilience.HedgePolicy;
+import at.okfn.uncomtrade.resilience.RetryPolicy;
+import at.okfn.uncomtrade.scheduling.RequestScheduler;
 
 
 /**
@@ -50,294 +78,1833 @@ import at.okfn.uncomtrade.parameters.ValidParameters;
  *     DataSet results = client.retrieve();
  * }
  * </pre>
+ *
+ * Clients share a pool of persistent HTTP connections and should be closed
+ * once they are not needed anymore, for example with try-with-resources.
  */
-public class UNComtrade {
+public class UNComtrade implements Closeable {
+
+    /**
+     * The number of recent responses whose "validation" metadata is kept.
+     */
+    public static final int RESPONSE_METADATA_CAPACITY = 100;
+
+    /**
+     * The base URL to use for accessing the database.
+     */
+    protected String baseUrl = Query.DEFAULT_BASE_URL;
+
+    /**
+     * The GET parameters to use for the next request.
+     */
+    protected Map<String, String> params;
+
+    /**
+     * The pool providing the HTTP connections.
+     */
+    protected HttpConnectionPool connectionPool;
+
+    /**
+     * The used HTTP client object, or null once this client was closed.
+     */
+    protected CloseableHttpClient httpClient;
+
+    /**
+     * The cache for storing responses, or null.
+     */
+    protected ResponseCache responseCache;
+
+    /**
+     * The scheduler enforcing the API's rate quotas, or null. Only clients of
+     * the public API use {@link RequestScheduler#getDefault()} by default.
+     */
+    protected RequestScheduler scheduler = RequestScheduler.getDefault();
+
+    /**
+     * The priority of this client's requests within the scheduler.
+     */
+    protected int priority = 0;
+
+    /**
+     * The pool for deduplicating strings in retrieved data rows, or null.
+     */
+    protected StringPool stringPool = new StringPool();
+
+    /**
+     * Whether data rows are decoded lazily, see {@link LazyResponseReader}.
+     */
+    protected boolean lazyDecoding = false;
+
+    /**
+     * Whether concurrent retrievals of equal queries share a single request.
+     */
+    protected boolean coalescing = true;
+
+    /**
+     * The shared results of the data set retrievals currently in progress.
+     */
+    protected final ConcurrentMap<Query, BasicFuture<DataSet>> pendingRetrievals =
+            new ConcurrentHashMap<Query, BasicFuture<DataSet>>();
+
+    /**
+     * The policy for retrying failed requests, or null.
+     */
+    protected RetryPolicy retryPolicy = new RetryPolicy();
+
+    /**
+     * The circuit breaker guarding the API, or null.
+     */
+    protected CircuitBreaker circuitBreaker;
+
+    /**
+     * The policy for hedging slow requests, or null.
+     */
+    protected HedgePolicy hedgePolicy;
+
+    /**
+     * The maximum number of concurrent background retrievals.
+     */
+    protected int asyncConcurrency = 8;
+
+    /**
+     * The executor for background retrievals, once it is needed.
+     */
+    protected ScheduledThreadPoolExecutor asyncExecutor;
+
+    /**
+     * The timer enforcing the timeouts of background retrievals, once it is
+     * needed.
+     */
+    protected ScheduledThreadPoolExecutor asyncTimer;
+
+    /**
+     * The executor for hedged requests, once it is needed.
+     */
+    protected ExecutorService hedgeExecutor;
+
+    /**
+     * The background retrievals which are not done yet.
+     */
+    protected final Set<AsyncRetrieval> asyncRetrievals =
+            Collections.newSetFromMap(new ConcurrentHashMap<AsyncRetrieval, Boolean>());
+
+    /**
+     * The results which other objects, such as a {@link QueryBatcher}, are
+     * waiting for on behalf of this client and which are not done yet.
+     */
+    protected final Set<BasicFuture<?>> dependentFutures =
+            Collections.newSetFromMap(new ConcurrentHashMap<BasicFuture<?>, Boolean>());
+
+    /**
+     * The "validation" metadata of the most recent requests.
+     */
+    protected RingBuffer<JsonObject> responseMetadata;
+
+    /**
+     * The aggregated measurements of all requests.
+     */
+    protected final ClientMetrics metrics = new ClientMetrics();
+
+    /**
+     * The listeners receiving the measurements of each request.
+     */
+    protected final List<MetricsListener> metricsListeners = new CopyOnWriteArrayList<MetricsListener>();
+
+    /**
+     * Executes this class as a program, for testing or simple use.
+     */
+    public static void main(String[] args) {
+        try {
+            NumberFormat format = NumberFormat.getInstance();
+            Map<String, String> defaultParams = new HashMap<String, String>();
+
+            if (args.length == 0) {
+                args = new String[1];
+                args[0] = "-o";
+            }
+
+            String verb = null;
+
+            boolean printSeparator = false;
+            outer: for (int i = 0; i < args.length; ++i) {
+                if (printSeparator) {
+                    System.out.println("\n");
+                }
+                printSeparator = true;
+
+                UNComtrade client = new UNComtrade();
+                if (!defaultParams.isEmpty()) {
+                    client.setParams(defaultParams);
+                }
+
+                try {
+                    switch (args[i]) {
+                        case "-o":
+                        case "--overview":
+                            client.setPartnerArea("0");
+                            System.out.println("- Overview of trade flows:");
+                            for (DataRow row : client.retrieve()) {
+                                System.out.println(row);
+                            }
+                            break;
+
+                        case "-e":
+                        case "--top-exports":
+                            verb = "exports to";
+                            client.setTradeFlow("2");
+                        case "-i":
+                        case "--top-imports":
+                            if (verb == null) {
+                                verb = "imports from";
+                                client.setTradeFlow("1");
+                            }
+                            client.setReporter(args[++i]);
+                            client.setPartnerArea("all");
+                            int count = 5;
+                            if (i + 1 < args.length && args[i + 1].matches("^\\d+$")) {
+                                count = Integer.parseInt(args[++i]);
+                            }
+
+                            Comparator<DataRow> comp = new Comparator<DataRow>() {
+
+                                @Override
+                                public int compare(DataRow o1, DataRow o2) {
+                                    return -Long.compare(o1.getTradeValue(), o2.getTradeValue());
+                                }
+
+                            };
+
+                            SortedSet<DataRow> values = new TreeSet<DataRow>(comp);
+                            values.addAll(client.retrieve());
+
+                            int j = 0;
+                            for (DataRow row : values) {
+                                if (row.getPtCode().equals(0)) {
+                                    continue;
+                                }
+                                if (j == 0) {
+                                    System.out.println("- Listing the top " + count + " areas that " + row.getRtTitle()
+                                            + " " + verb + ":");
+                                }
+                                System.out.println(row.getPtTitle() + " (USD " + format.format(row.getTradeValue()) + ")");
+                                if (++j >= count) {
+                                    break;
+                                }
+                            }
+                            verb = null;
+                            break;
+
+                        case "-p":
+                        case "--period":
+                            String period = args[++i];
+                            System.out.println("Setting period to " + period + ".");
+                            defaultParams.put(Parameters.TIME_PERIOD, period);
+                            if (period.matches("(^|,)\\d{6}(,|$)")) {
+                                defaultParams.put(Parameters.DATA_FREQUENCY, "M");
+                            }
+                            else {
+                                defaultParams.put(Parameters.DATA_FREQUENCY, "A");
+                            }
+
+                        case "-a":
+                        case "--allowed-values":
+                            ValidParameters validParams;
+                            switch (args[++i]) {
+                                case "reporter":
+                                    validParams = ValidParameters.create(Parameters.REPORTER);
+                                    break;
+
+                                case "partner":
+                                    validParams = ValidParameters.create(Parameters.PARTNER_AREA);
+                                    break;
+
+                                default:
+                                    try {
+                                        validParams = ValidParameters.create(args[i]);
+                                    }
+                                    catch (IllegalArgumentException e) {
+                                        System.err.println("Error: Unknown REST parameter/name: \"" + args[i] + "\".");
+                                        continue outer;
+                                    }
+                            }
+                            SortedSet<Entry<String, String>> sortedValues;
+                            if (args.length > i + 1 && !args[i + 1].startsWith("-")) {
+                                sortedValues = validParams.getSortedValues(args[++i]);
+                            }
+                            else {
+                                sortedValues = validParams.getSortedValues();
+                            }
+                            for (Entry<String, String> parameter : sortedValues) {
+                                System.out.println(
+                                        String.format("%8s", parameter.getKey()) + " | " + parameter.getValue());
+                            }
+                    }
+                }
+                finally {
+                    client.close();
+                }
+            }
+        }
+        catch (ClientProtocolException e) {
+            e.printStackTrace();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        catch (IndexOutOfBoundsException e) {
+            String command = "???";
+            for (int i = args.length - 1; i >= 0; --i) {
+                if (args[i].startsWith("-")) {
+                    command = args[i];
+                    break;
+                }
+            }
+            System.err.println("Error: Not enough arguments given for option/command \"" + command + "\".");
+        }
+        finally {
+            try {
+                HttpConnectionPool.getDefault().shutdown();
+            }
+            catch (IOException e) {}
+        }
+    }
+
+    /**
+     * Creates a new UN Comtrade client object.
+     */
+    public UNComtrade() {
+        connectionPool = HttpConnectionPool.getDefault();
+        httpClient = connectionPool.getHttpClient();
+        responseMetadata = new RingBuffer<JsonObject>(RESPONSE_METADATA_CAPACITY);
+
+        params = Query.getDefaultParams();
+    }
+
+    /**
+     * Creates a new UN Comtrade client object.
+     *
+     * The quotas of the public API are not enforced for other base URLs,
+     * unless a scheduler is set with
+     * {@link #setScheduler(RequestScheduler)}.
+     *
+     * @param baseUrl
+     *            The base URL to use, instead of the default.
+     */
+    public UNComtrade(String baseUrl) {
+        this();
+        this.baseUrl = baseUrl;
+        if (!Query.DEFAULT_BASE_URL.equals(baseUrl)) {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Retrieves the data set with the current settings.
+     *
+     * @return The requested data set.
+     */
+    public DataSet retrieve() throws IOException, ClientProtocolException {
+        return retrieve(toQuery());
+    }
+
+    /**
+     * Retrieves the data set for a query.
+     *
+     * This does not depend on the settings of this client, and can be called
+     * from several threads at once.
+     *
+     * @param query
+     *            The query to retrieve.
+     *
+     * @return The requested data set.
+     */
+    public DataSet retrieve(Query query) throws IOException, ClientProtocolException {
+        return retrieveShared(query, null);
+    }
+
+    /**
+     * Retrieves the data set for a query, sharing a single request with all
+     * concurrent retrievals of an equal query.
+     *
+     * The first caller sends the request, later callers wait for its result.
+     * Each caller receives its own copy of the data set, though the data rows
+     * themselves are shared. If the first caller is cancelled, one of the
+     * waiting callers takes over.
+     *
+     * @param query
+     *            The query to retrieve.
+     * @param retrieval
+     *            The background retrieval on whose behalf the request is
+     *            made, or null.
+     *
+     * @return The requested data set.
+     */
+    protected DataSet retrieveShared(Query query, AsyncRetrieval retrieval)
+            throws IOException, ClientProtocolException {
+        if (!coalescing) {
+            return retrieveUnshared(query, retrieval);
+        }
+        while (true) {
+            BasicFuture<DataSet> shared = new BasicFuture<DataSet>(null);
+            BasicFuture<DataSet> pending = pendingRetrievals.putIfAbsent(query, shared);
+            if (pending == null) {
+                try {
+                    DataSet dataSet = retrieveUnshared(query, retrieval);
+                    shared.completed(dataSet);
+                    return new DataSet(dataSet);
+                }
+                catch (IOException | RuntimeException e) {
+                    boolean interrupted = e instanceof InterruptedIOException && Thread.currentThread().isInterrupted();
+                    if (interrupted || retrieval != null && retrieval.isDone()) {
+                        // Only this caller gave up, so let a waiting caller
+                        // retry on its own behalf.
+                        shared.cancel();
+                    }
+                    else {
+                        shared.failed(e);
+                    }
+                    throw e;
+                }
+                finally {
+                    pendingRetrievals.remove(query, shared);
+                    // Errors are not caught above, and would otherwise leave
+                    // the waiting callers blocked forever.
+                    if (!shared.isDone()) {
+                        shared.failed(new IOException("The shared request failed unexpectedly."));
+                    }
+                }
+            }
+
+            try {
+                return new DataSet(pending.get());
+            }
+            catch (CancellationException e) {
+                continue;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a shared request.");
+            }
+            catch (ExecutionException e) {
+                throw unwrap(e);
+            }
+        }
+    }
+
+    /**
+     * Unwraps the error of a failed retrieval.
+     *
+     * @param e
+     *            The exception thrown when getting the result.
+     *
+     * @return The original error, to be thrown.
+     *
+     * @throws RuntimeException
+     *             If the original error is unchecked.
+     */
+    protected static IOException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        return new IOException(cause);
+    }
+
+    /**
+     * Retrieves the data set for a query with a request of its own.
+     *
+     * @param query
+     *            The query to retrieve.
+     * @param retrieval
+     *            The background retrieval on whose behalf the request is
+     *            made, or null.
+     *
+     * @return The requested data set.
+     */
+    protected DataSet retrieveUnshared(Query query, AsyncRetrieval retrieval)
+            throws IOException, ClientProtocolException {
+        HedgePolicy hedge = hedgePolicy;
+        long delay = hedge == null ? -1 : hedge.getDelay();
+        if (delay >= 0) {
+            return retrieveHedged(query, retrieval, delay);
+        }
+        return retrieveOnce(query, retrieval);
+    }
+
+    /**
+     * Retrieves the data set for a query, sending a second request if the
+     * first one takes longer than usual, and using whichever finishes first.
+     *
+     * The first request is sent from the current thread, the second one from
+     * an executor of its own, which is not limited by
+     * {@link #setAsyncConcurrency(int)}, so the second request is sent even if
+     * all background retrievals are busy.
+     *
+     * @param query
+     *            The query to retrieve.
+     * @param retrieval
+     *            The background retrieval on whose behalf the requests are
+     *            made, or null.
+     * @param delay
+     *            The time after which to send the second request, in
+     *            milliseconds.
+     *
+     * @return The requested data set.
+     */
+    protected DataSet retrieveHedged(final Query query, AsyncRetrieval retrieval, long delay)
+            throws IOException, ClientProtocolException {
+        final AsyncRetrieval[] attempts = new AsyncRetrieval[2];
+        FutureCallback<DataSet> callback = new FutureCallback<DataSet>() {
+
+            @Override
+            public void completed(DataSet result) {
+                for (AsyncRetrieval attempt : attempts) {
+                    attempt.cancel(true);
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {}
+
+            @Override
+            public void cancelled() {}
+
+        };
+        for (int i = 0; i < attempts.length; ++i) {
+            attempts[i] = new AsyncRetrieval(this, query, callback) {
+
+                @Override
+                protected DataSet retrieve() throws IOException {
+                    return client.retrieveOnce(query, this);
+                }
+
+            };
+            if (retrieval != null && !retrieval.addAttempt(attempts[i])) {
+                throw new InterruptedIOException("The retrieval was cancelled.");
+            }
+        }
+        AsyncRetrieval primary = attempts[0];
+        AsyncRetrieval hedged = attempts[1];
+        final ExecutorService executor = getHedgeExecutor();
+        final AsyncRetrieval hedge = hedged;
+        Future<?> hedgeTask = getAsyncTimer().schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    hedge.setTask(executor.submit(hedge));
+                }
+                catch (RejectedExecutionException e) {
+                    // The client was closed in the meantime.
+                    hedge.cancel(true);
+                }
+            }
+
+        }, delay, TimeUnit.MILLISECONDS);
+        hedged.setTask(hedgeTask);
+        try {
+            primary.run();
+            try {
+                return primary.get();
+            }
+            catch (CancellationException e) {
+                if (!hedged.isDone() || hedged.isCancelled()) {
+                    // Cancelled from outside rather than by the hedged request.
+                    throw new InterruptedIOException("The retrieval was cancelled.");
+                }
+            }
+            catch (ExecutionException e) {
+                if (hedgeTask.cancel(false) && !hedged.isDone()) {
+                    // The second request was never sent.
+                    hedged.cancel(true);
+                    throw unwrap(e);
+                }
+            }
+            return hedged.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a hedged request.");
+        }
+        catch (CancellationException e) {
+            throw new InterruptedIOException("The retrieval was cancelled.");
+        }
+        catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+        finally {
+            primary.cancel(true);
+            hedged.cancel(true);
+        }
+    }
+
+    /**
+     * Retrieves the data set for a query with a single request.
+     *
+     * @param query
+     *            The query to retrieve.
+     * @param retrieval
+     *            The background retrieval on whose behalf the request is
+     *            made, or null.
+     *
+     * @return The requested data set.
+     */
+    protected DataSet retrieveOnce(Query query, AsyncRetrieval retrieval)
+            throws IOException, ClientProtocolException {
+        final DataSet dataSet = new DataSet();
+        execute(query, new DataRowHandler() {
+
+            @Override
+            public void handle(DataRow row) {
+                dataSet.add(row);
+            }
+
+        }, retrieval);
+        return dataSet;
+    }
+
+    /**
+     * Retrieves the data rows for the current settings, passing each one to
+     * a handler as soon as it is received.
+     *
+     * No data set is built, so memory usage does not depend on the size of
+     * the response.
+     *
+     * @param handler
+     *            The handler to pass the data rows to.
+     *
+     * @return The number of data rows retrieved.
+     */
+    public int retrieve(DataRowHandler handler) throws IOException, ClientProtocolException {
+        return retrieve(toQuery(), handler);
+    }
+
+    /**
+     * Retrieves the data rows for a query, passing each one to a handler as
+     * soon as it is received.
+     *
+     * This does not depend on the settings of this client, and can be called
+     * from several threads at once.
+     *
+     * @param query
+     *            The query to retrieve.
+     * @param handler
+     *            The handler to pass the data rows to.
+     *
+     * @return The number of data rows retrieved.
+     */
+    public int retrieve(Query query, final DataRowHandler handler) throws IOException, ClientProtocolException {
+        final int[] count = new int[1];
+        execute(query, new DataRowHandler() {
+
+            @Override
+            public void handle(DataRow row) throws IOException {
+                handler.handle(row);
+                ++count[0];
+            }
+
+        }, null);
+        return count[0];
+    }
+
+    /**
+     * Retrieves the data set for the current settings in the background.
+     *
+     * @return The pending data set.
+     */
+    public Future<DataSet> retrieveAsync() {
+        return retrieveAsync(null, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Retrieves the data set for the current settings in the background.
+     *
+     * @param callback
+     *            The callback to notify once the data set is retrieved, the
+     *            retrieval failed or was cancelled, or null. It is called from
+     *            a background thread.
+     *
+     * @return The pending data set.
+     */
+    public Future<DataSet> retrieveAsync(FutureCallback<DataSet> callback) {
+        return retrieveAsync(callback, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Retrieves the data set for the current settings in the background.
+     *
+     * The settings are copied, so they can be changed right away for the next
+     * retrieval. At most {@link #setAsyncConcurrency(int)} retrievals run at
+     * once; further ones wait in line. Cancelling the returned future also
+     * aborts a running request.
+     *
+     * @param callback
+     *            The callback to notify once the data set is retrieved, the
+     *            retrieval failed or was cancelled, or null. It is called from
+     *            a background thread.
+     * @param timeout
+     *            The maximum time for the retrieval, including the time spent
+     *            waiting in line, or 0 for no limit. When it is exceeded, the
+     *            retrieval fails with a {@link TimeoutException}.
+     * @param unit
+     *            The time unit of the timeout.
+     *
+     * @return The pending data set.
+     */
+    public Future<DataSet> retrieveAsync(FutureCallback<DataSet> callback, long timeout, TimeUnit unit) {
+        return retrieveAsync(toQuery(), callback, timeout, unit);
+    }
+
+    /**
+     * Retrieves the data set for a query in the background.
+     *
+     * At most {@link #setAsyncConcurrency(int)} retrievals run at once;
+     * further ones wait in line. Cancelling the returned future also aborts a
+     * running request.
+     *
+     * @param query
+     *            The query to retrieve.
+     * @param callback
+     *            The callback to notify once the data set is retrieved, the
+     *            retrieval failed or was cancelled, or null. It is called from
+     *            a background thread.
+     * @param timeout
+     *            The maximum time for the retrieval, including the time spent
+     *            waiting in line, or 0 for no limit. When it is exceeded, the
+     *            retrieval fails with a {@link TimeoutException}.
+     * @param unit
+     *            The time unit of the timeout.
+     *
+     * @return The pending data set.
+     */
+    public Future<DataSet> retrieveAsync(Query query, final FutureCallback<DataSet> callback, long timeout,
+            TimeUnit unit) {
+        final AsyncRetrieval[] retrievals = new AsyncRetrieval[1];
+        final AsyncRetrieval retrieval = new AsyncRetrieval(this, query, new FutureCallback<DataSet>() {
+
+            @Override
+            public void completed(DataSet result) {
+                asyncRetrievals.remove(retrievals[0]);
+                if (callback != null) {
+                    callback.completed(result);
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                asyncRetrievals.remove(retrievals[0]);
+                if (callback != null) {
+                    callback.failed(e);
+                }
+            }
+
+            @Override
+            public void cancelled() {
+                asyncRetrievals.remove(retrievals[0]);
+                if (callback != null) {
+                    callback.cancelled();
+                }
+            }
+
+        });
+        retrievals[0] = retrieval;
+        ScheduledExecutorService executor = getAsyncExecutor();
+        asyncRetrievals.add(retrieval);
+        try {
+            retrieval.setTask(executor.submit(retrieval));
+        }
+        catch (RejectedExecutionException e) {
+            // The client was closed in the meantime.
+            retrieval.cancel(true);
+            throw new IllegalStateException("The client is already closed.", e);
+        }
+        if (timeout > 0) {
+            // The timeout must not wait for a free thread of the executor.
+            retrieval.setTimeoutTask(getAsyncTimer().schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    retrieval.timeout();
+                }
+
+            }, timeout, unit));
+        }
+        return retrieval;
+    }
+
+    /**
+     * Sends a query, passing each received data row to a handler.
+     *
+     * This does not depend on the settings of this client, and can be called
+     * from several threads at once.
+     *
+     * @param query
+     *            The query to send.
+     * @param handler
+     *            The handler to pass the data rows to.
+     * @param retrieval
+     *            The background retrieval on whose behalf the request is
+     *            made, which has to be able to abort it, or null.
+     *
+     * @return The "validation" metadata of the response.
+     */
+    protected JsonObject execute(final Query query, final DataRowHandler handler, AsyncRetrieval retrieval)
+            throws IOException, ClientProtocolException {
+        final ResponseCache cache = responseCache;
+        if (cache != null) {
+            Reader cached = cache.get(query.getUrl());
+            if (cached != null) {
+                RequestMetrics requestMetrics = new RequestMetrics(query.getUrl());
+                requestMetrics.setCached(true);
+                long start = System.nanoTime();
+                try {
+                    return readResponse(createReader(cached), handler, null, requestMetrics);
+                }
+                catch (IOException | RuntimeException e) {
+                    requestMetrics.setError(e);
+                    throw e;
+                }
+                finally {
+                    requestMetrics.setTotalTime(System.nanoTime() - start);
+                    fireRequestCompleted(requestMetrics);
+                }
+            }
+        }
+
+        // Requests are only retried as long as no rows were passed on, so
+        // the handler never sees a row twice.
+        final int[] rows = new int[1];
+        DataRowHandler counter = new DataRowHandler() {
+
+            @Override
+            public void handle(DataRow row) throws IOException {
+                ++rows[0];
+                handler.handle(row);
+            }
+
+        };
+        RetryPolicy retry = retryPolicy;
+        for (int attempt = 1;; ++attempt) {
+            try {
+                return executeOnce(query, counter, retrieval, cache, attempt);
+            }
+            catch (IOException e) {
+                long delay = retry == null || rows[0] > 0 ? -1 : retry.getDelay(attempt, e);
+                if (delay < 0) {
+                    throw e;
+                }
+                backOff(delay, retrieval);
+            }
+        }
+    }
+
+    /**
+     * Sends a query once, passing each received data row to a handler.
+     *
+     * @param query
+     *            The query to send.
+     * @param handler
+     *            The handler to pass the data rows to.
+     * @param retrieval
+     *            The background retrieval on whose behalf the request is
+     *            made, or null.
+     * @param cache
+     *            The cache to store the response in, or null.
+     * @param attempt
+     *            The number of the attempt, starting at 1.
+     *
+     * @return The "validation" metadata of the response.
+     */
+    protected JsonObject executeOnce(final Query query, final DataRowHandler handler, AsyncRetrieval retrieval,
+            final ResponseCache cache, int attempt) throws IOException, ClientProtocolException {
+        final RequestMetrics requestMetrics = new RequestMetrics(query.getUrl());
+        requestMetrics.setAttempt(attempt);
+        requestMetrics.setCacheMiss(cache != null && attempt == 1);
+        final HttpClientContext context = HttpClientContext.create();
+        final long[] sent = new long[1];
+        ResponseHandler<JsonObject> rh = new ResponseHandler<JsonObject>() {
+
+            @Override
+            public JsonObject handleResponse(final HttpResponse response) throws IOException {
+                recordResponse(requestMetrics, response, context, sent[0]);
+                HttpEntity entity = checkResponse(response);
+                Charset charset = getCharset(entity);
+                CountingInputStream counter = new CountingInputStream(entity.getContent());
+                InputStream content = counter;
+                ResponseCache.Entry cacheEntry = openCacheEntry(cache, query, charset);
+                if (cacheEntry != null) {
+                    content = new TeeInputStream(content, cacheEntry);
+                }
+                ResponseReader reader = createReader(content, charset);
+                try {
+                    return readResponse(reader, handler, cacheEntry, requestMetrics);
+                }
+                finally {
+                    requestMetrics.setBytes(counter.getCount());
+                    requestMetrics.setDownloadTime(counter.getReadTime());
+                    requestMetrics.setDecodeTime(requestMetrics.getDecodeTime() - counter.getReadTime());
+                }
+            }
+
+        };
+
+        CircuitBreaker breaker = circuitBreaker;
+        boolean acquired = false;
+        boolean success = false;
+        Exception error = null;
+        long start = System.nanoTime();
+        try {
+            if (breaker != null) {
+                breaker.acquire();
+                acquired = true;
+            }
+            acquireRequestSlot();
+            try {
+                HttpGet request = new HttpGet(query.getUrl());
+                if (retrieval != null && !retrieval.setRequest(request)) {
+                    throw new InterruptedIOException("The retrieval was cancelled.");
+                }
+                sent[0] = System.nanoTime();
+                requestMetrics.setQueueWaitTime(sent[0] - start);
+                JsonObject validation = getHttpClient().execute(request, rh, context);
+                HedgePolicy hedge = hedgePolicy;
+                if (hedge != null) {
+                    hedge.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sent[0]));
+                }
+                success = true;
+                return validation;
+            }
+            finally {
+                releaseRequestSlot();
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            error = e;
+            requestMetrics.setError(e);
+            throw e;
+        }
+        finally {
+            if (acquired) {
+                if (success) {
+                    breaker.recordSuccess();
+                }
+                else if (error instanceof IOException && isFailure((IOException) error)) {
+                    breaker.recordFailure();
+                }
+                else {
+                    breaker.recordIgnored();
+                }
+            }
+            requestMetrics.setTotalTime(System.nanoTime() - start);
+            fireRequestCompleted(requestMetrics);
+        }
+    }
+
+    /**
+     * Records the connection and status of a received response.
+     *
+     * @param requestMetrics
+     *            The measurements of the request.
+     * @param response
+     *            The received response, of which only the headers were read.
+     * @param context
+     *            The HTTP context of the request.
+     * @param sent
+     *            The time at which the request was sent, in nanoseconds.
+     */
+    protected static void recordResponse(RequestMetrics requestMetrics, HttpResponse response, HttpContext context,
+            long sent) {
+        long received = System.nanoTime();
+        Object connectTime = context.getAttribute(HttpConnectionPool.CONNECT_TIME);
+        long connect = connectTime instanceof Long ? (Long) connectTime : -1;
+        requestMetrics.setConnectTime(connect);
+        requestMetrics.setFirstByteTime(received - sent - Math.max(0, connect));
+        requestMetrics.setStatusCode(response.getStatusLine().getStatusCode());
+    }
+
+    /**
+     * Checks whether an error suggests that the API is unavailable, as
+     * opposed to the request being invalid or cancelled.
+     *
+     * @param e
+     *            The error that occurred.
+     *
+     * @return Whether the error counts as a failure of the API.
+     */
+    protected static boolean isFailure(IOException e) {
+        if (e instanceof ApiResponseException) {
+            int statusCode = ((ApiResponseException) e).getStatusCode();
+            return statusCode >= 500 || statusCode == 429;
+        }
+        return e instanceof SocketTimeoutException || !(e instanceof InterruptedIOException);
+    }
+
+    /**
+     * Waits before retrying a request.
+     *
+     * @param delay
+     *            The time to wait, in milliseconds.
+     * @param retrieval
+     *            The background retrieval on whose behalf the request is
+     *            made, which stops the wait if it is cancelled, or null.
+     *
+     * @throws InterruptedIOException
+     *             If the wait was interrupted or the retrieval cancelled.
+     */
+    protected static void backOff(long delay, AsyncRetrieval retrieval) throws InterruptedIOException {
+        try {
+            if (retrieval == null) {
+                Thread.sleep(delay);
+                return;
+            }
+            retrieval.get(delay, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            return;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry a request.");
+        }
+        catch (CancellationException | ExecutionException e) {}
+        throw new InterruptedIOException("The retrieval was cancelled.");
+    }
+
+    /**
+     * Reads a complete response, passing all data rows to a handler.
+     *
+     * @param reader
+     *            The reader for the response.
+     * @param handler
+     *            The handler to pass the data rows to.
+     * @param cacheEntry
+     *            The cache entry receiving a copy of the response, or null.
+     * @param requestMetrics
+     *            The measurements to record the rows and reading time in, or
+     *            null.
+     *
+     * @return The "validation" metadata of the response.
+     */
+    protected JsonObject readResponse(ResponseReader reader, DataRowHandler handler, ResponseCache.Entry cacheEntry,
+            RequestMetrics requestMetrics) throws IOException {
+        long start = System.nanoTime();
+        int rows = 0;
+        try {
+            while (reader.hasNext()) {
+                handler.handle(reader.next());
+                ++rows;
+            }
+            JsonObject validation = reader.getValidation();
+            responseMetadata.add(validation);
+            commitCacheEntry(cacheEntry, validation);
+            if (requestMetrics != null) {
+                requestMetrics.setValidation(validation);
+            }
+            return validation;
+        }
+        finally {
+            reader.close();
+            if (cacheEntry != null) {
+                cacheEntry.abort();
+            }
+            if (requestMetrics != null) {
+                requestMetrics.setRows(rows);
+                requestMetrics.setDecodeTime(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Creates the reader for a cached response.
+     *
+     * @param in
+     *            The cached response.
+     *
+     * @return A lazy reader if lazy decoding is enabled, a streaming one
+     *         otherwise.
+     */
+    protected ResponseReader createReader(Reader in) throws IOException {
+        return lazyDecoding ? new LazyResponseReader(in, stringPool) : new ResponseReader(in, stringPool);
+    }
+
+    /**
+     * Creates the reader for a received response.
+     *
+     * @param in
+     *            The response body.
+     * @param charset
+     *            The character set of the response.
+     *
+     * @return A lazy reader if lazy decoding is enabled, a streaming one
+     *         otherwise.
+     */
+    protected ResponseReader createReader(InputStream in, Charset charset) throws IOException {
+        if (lazyDecoding) {
+            return new LazyResponseReader(in, charset, stringPool);
+        }
+        return new ResponseReader(new InputStreamReader(in, charset), stringPool);
+    }
+
+    /**
+     * Retrieves the data rows for the current settings as an iterator over
+     * the still open response.
+     *
+     * The returned iterator has to be closed if it is not read until the end.
+     *
+     * @return An iterator over the requested data rows.
+     */
+    public DataRowIterator retrieveIterator() throws IOException, ClientProtocolException {
+        return retrieveIterator(toQuery());
+    }
+
+    /**
+     * Retrieves the data rows for a query as an iterator over the still open
+     * response.
+     *
+     * The returned iterator has to be closed if it is not read until the end.
+     * This does not depend on the settings of this client, and can be called
+     * from several threads at once.
+     *
+     * @param query
+     *            The query to retrieve.
+     *
+     * @return An iterator over the requested data rows.
+     */
+    public DataRowIterator retrieveIterator(Query query) throws IOException, ClientProtocolException {
+        final String url = query.getUrl();
+        final ResponseCache cache = responseCache;
+        final RequestMetrics requestMetrics = new RequestMetrics(url);
+        long start = System.nanoTime();
+        if (cache != null) {
+            Reader cached = cache.get(url);
+            if (cached != null) {
+                requestMetrics.setCached(true);
+                ResponseReader reader = createReader(cached);
+                return createIterator(reader, reader, null, requestMetrics, null, start);
+            }
+            requestMetrics.setCacheMiss(true);
+        }
+
+        acquireRequestSlot();
+        HttpClientContext context = HttpClientContext.create();
+        long sent = System.nanoTime();
+        requestMetrics.setQueueWaitTime(sent - start);
+        final CloseableHttpResponse response;
+        try {
+            response = getHttpClient().execute(new HttpGet(url), context);
+        }
+        catch (IOException | RuntimeException e) {
+            releaseRequestSlot();
+            requestMetrics.setError(e);
+            requestMetrics.setTotalTime(System.nanoTime() - start);
+            fireRequestCompleted(requestMetrics);
+            throw e;
+        }
+        recordResponse(requestMetrics, response, context, sent);
+        final ResponseCache.Entry[] cacheEntry = new ResponseCache.Entry[1];
+        Closeable resource = new Closeable() {
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    response.close();
+                }
+                finally {
+                    releaseRequestSlot();
+                    if (cacheEntry[0] != null) {
+                        cacheEntry[0].abort();
+                    }
+                }
+            }
+
+        };
+        try {
+            HttpEntity entity = checkResponse(response);
+            Charset charset = getCharset(entity);
+            CountingInputStream counter = new CountingInputStream(entity.getContent());
+            InputStream content = counter;
+            cacheEntry[0] = openCacheEntry(cache, query, charset);
+            if (cacheEntry[0] != null) {
+                content = new TeeInputStream(content, cacheEntry[0]);
+            }
+            ResponseReader reader = createReader(content, charset);
+            return createIterator(reader, resource, cacheEntry[0], requestMetrics, counter, start);
+        }
+        catch (IOException | RuntimeException e) {
+            resource.close();
+            requestMetrics.setError(e);
+            requestMetrics.setTotalTime(System.nanoTime() - start);
+            fireRequestCompleted(requestMetrics);
+            throw e;
+        }
+    }
+
+    /**
+     * Creates an iterator over a response, which records its metadata and
+     * measurements once it is done.
+     *
+     * @param reader
+     *            The reader for the response.
+     * @param resource
+     *            The resource to close along with the iterator.
+     * @param cacheEntry
+     *            The cache entry receiving a copy of the response, or null.
+     * @param requestMetrics
+     *            The measurements of the request.
+     * @param counter
+     *            The stream counting the received bytes, or null.
+     * @param start
+     *            The time at which the request was started, in nanoseconds.
+     *
+     * @return The new iterator.
+     */
+    protected DataRowIterator createIterator(ResponseReader reader, Closeable resource,
+            final ResponseCache.Entry cacheEntry, final RequestMetrics requestMetrics,
+            final CountingInputStream counter, final long start) {
+        return new DataRowIterator(reader, resource) {
+
+            /**
+             * The number of data rows returned so far.
+             */
+            protected int rows = 0;
+
+            @Override
+            public DataRow next() {
+                DataRow row = super.next();
+                ++rows;
+                return row;
+            }
+
+            @Override
+            protected void complete(JsonObject validation) {
+                UNComtrade.this.responseMetadata.add(validation);
+                commitCacheEntry(cacheEntry, validation);
+                requestMetrics.setValidation(validation);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                try {
+                    super.close();
+                }
+                finally {
+                    requestMetrics.setRows(rows);
+                    if (counter != null) {
+                        requestMetrics.setBytes(counter.getCount());
+                        requestMetrics.setDownloadTime(counter.getReadTime());
+                    }
+                    requestMetrics.setTotalTime(System.nanoTime() - start);
+                    fireRequestCompleted(requestMetrics);
+                }
+            }
+
+        };
+    }
+
+    /**
+     * Starts storing a response in the cache.
+     *
+     * @param cache
+     *            The cache to use, or null.
+     * @param query
+     *            The query the response belongs to.
+     * @param charset
+     *            The character set of the response.
+     *
+     * @return The new cache entry, or null if there is no cache or the entry
+     *         could not be created.
+     */
+    protected ResponseCache.Entry openCacheEntry(ResponseCache cache, Query query, Charset charset) {
+        if (cache == null) {
+            return null;
+        }
+        try {
+            return cache.put(query.getUrl(), charset, cache.getTimeToLive(query.getParams()));
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores a completely read response in the cache, unless the API
+     * signalled an error.
+     *
+     * @param cacheEntry
+     *            The cache entry holding the response, or null.
+     * @param validation
+     *            The "validation" metadata of the response.
+     */
+    protected void commitCacheEntry(ResponseCache.Entry cacheEntry, JsonObject validation) {
+        if (cacheEntry == null) {
+            return;
+        }
+        JsonElement status = validation == null ? null : validation.get("status");
+        JsonElement statusValue = status != null && status.isJsonObject() ? status.getAsJsonObject().get("value")
+                : null;
+        if (statusValue == null || !statusValue.isJsonPrimitive() || statusValue.getAsInt() != 0) {
+            cacheEntry.abort();
+            return;
+        }
+        try {
+            cacheEntry.commit();
+        }
+        catch (IOException e) {}
+    }
+
+    /**
+     * Waits until the scheduler allows another request to be sent.
+     *
+     * @throws InterruptedIOException
+     *             If the current thread was interrupted while waiting.
+     */
+    protected void acquireRequestSlot() throws InterruptedIOException {
+        if (scheduler == null) {
+            return;
+        }
+        try {
+            scheduler.acquire(priority);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the request scheduler.");
+        }
+    }
+
+    /**
+     * Tells the scheduler that a request is done.
+     */
+    protected void releaseRequestSlot() {
+        if (scheduler != null) {
+            scheduler.release();
+        }
+    }
+
+    /**
+     * Checks the status of an API response.
+     *
+     * @param response
+     *            The received HTTP response.
+     *
+     * @return The response entity.
+     *
+     * @throws IOException
+     *             If the response signals an error or contains no content.
+     */
+    protected static HttpEntity checkResponse(HttpResponse response) throws IOException {
+        if (response.getStatusLine().getStatusCode() >= 300) {
+            throw ApiResponseException.fromResponse(response);
+        }
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            throw new ClientProtocolException("Response contains no content");
+        }
+        return entity;
+    }
+
+    /**
+     * @param entity
+     *            A response entity.
+     *
+     * @return The character set of the entity, defaulting to UTF-8.
+     */
+    protected static Charset getCharset(HttpEntity entity) {
+        ContentType contentType = ContentType.getOrDefault(entity);
+        Charset charset = contentType.getCharset();
+        if (charset == null) {
+            charset = StandardCharsets.UTF_8;
+        }
+        return charset;
+    }
+
+    /**
+     * @return The API URL that corresponds to the current settings on this
+     *         client.
+     */
+    public String getApiUrl() {
+        return getApiUrl(params);
+    }
 
     /**
-     * The base URL to use for accessing the database.
+     * @param params
+     *            The GET parameters to use.
+     *
+     * @return The API URL that corresponds to the given parameters. The
+     *         parameters are sorted by name, so equal parameters always yield
+     *         the same URL.
      */
-    protected String baseUrl = "http://comtrade.un.org/api/get";
+    protected String getApiUrl(Map<String, String> params) {
+        return Query.buildUrl(baseUrl, params);
+    }
 
     /**
-     * The GET parameters to use for the next request.
+     * @return An immutable query for the current settings on this client.
      */
-    protected Map<String, String> params;
+    public Query toQuery() {
+        return new Query.Builder(baseUrl, params).build();
+    }
 
     /**
-     * The used HTTP client object.
+     * @return The "validation" metadata returned for the latest request, or
+     *         null if there was none.
      */
-    protected CloseableHttpClient httpClient;
+    public JsonObject getLastResponseMetadata() {
+        return responseMetadata.getLast();
+    }
 
     /**
-     * The "validation" metadata for all of the requests so far.
+     * @return The "validation" metadata returned for the most recent
+     *         requests, from the oldest to the latest.
      */
-    protected Stack<JsonObject> responseMetadata;
+    public List<JsonObject> getResponseMetadata() {
+        return responseMetadata.toList();
+    }
 
     /**
-     * Executes this class as a program, for testing or simple use.
+     * @return The aggregated measurements of all requests made by this
+     *         client, which can also be registered with JMX.
      */
-    public static void main(String[] args) {
-        try {
-            NumberFormat format = NumberFormat.getInstance();
-            Map<String, String> defaultParams = new HashMap<String, String>();
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
 
-            if (args.length == 0) {
-                args = new String[1];
-                args[0] = "-o";
+    /**
+     * Adds a listener receiving the measurements of each request.
+     *
+     * @param listener
+     *            The listener to add.
+     */
+    public void addMetricsListener(MetricsListener listener) {
+        metricsListeners.add(listener);
+    }
+
+    /**
+     * Removes a listener added with
+     * {@link #addMetricsListener(MetricsListener)}.
+     *
+     * @param listener
+     *            The listener to remove.
+     */
+    public void removeMetricsListener(MetricsListener listener) {
+        metricsListeners.remove(listener);
+    }
+
+    /**
+     * Passes the measurements of a request to the aggregated metrics and all
+     * listeners.
+     *
+     * @param requestMetrics
+     *            The measurements of the request.
+     */
+    protected void fireRequestCompleted(RequestMetrics requestMetrics) {
+        metrics.requestCompleted(requestMetrics);
+        for (MetricsListener listener : metricsListeners) {
+            try {
+                listener.requestCompleted(requestMetrics);
             }
+            catch (RuntimeException e) {}
+        }
+    }
 
-            String verb = null;
+    /**
+     * Sets a parameter value for the API call.
+     *
+     * @param name
+     *            The name of the parameter.
+     * @param value
+     *            The new value of the parameter. Most parameters accept
+     *            comma-separated lists of values as well.
+     */
+    public void setParam(String name, String value) {
+        params.put(name, value);
+    }
 
-            boolean printSeparator = false;
-            outer: for (int i = 0; i < args.length; ++i) {
-                if (printSeparator) {
-                    System.out.println("\n");
-                }
-                printSeparator = true;
+    /**
+     * @return A copy of the GET parameters to use for the next request.
+     */
+    public Map<String, String> getParams() {
+        return new HashMap<String, String>(params);
+    }
 
-                UNComtrade client = new UNComtrade();
-                if (!defaultParams.isEmpty()) {
-                    client.setParams(defaultParams);
-                }
+    /**
+     * Sets several parameters at once.
+     *
+     * @param params
+     *            The parameters to set.
+     */
+    public void setParams(Map<String, String> params) {
+        this.params.putAll(params);
+    }
 
-                switch (args[i]) {
-                    case "-o":
-                    case "--overview":
-                        client.setPartnerArea("0");
-                        System.out.println("- Overview of trade flows:");
-                        for (DataRow row : client.retrieve()) {
-                            System.out.println(row);
-                        }
-                        break;
-
-                    case "-e":
-                    case "--top-exports":
-                        verb = "exports to";
-                        client.setTradeFlow("2");
-                    case "-i":
-                    case "--top-imports":
-                        if (verb == null) {
-                            verb = "imports from";
-                            client.setTradeFlow("1");
-                        }
-                        client.setReporter(args[++i]);
-                        client.setPartnerArea("all");
-                        int count = 5;
-                        if (i + 1 < args.length && args[i + 1].matches("^\\d+$")) {
-                            count = Integer.parseInt(args[++i]);
-                        }
-
-                        Comparator<DataRow> comp = new Comparator<DataRow>() {
-
-                            @Override
-                            public int compare(DataRow o1, DataRow o2) {
-                                return -Long.compare(o1.getTradeValue(), o2.getTradeValue());
-                            }
+    /**
+     * @return The cache used for storing responses, or null if none is used.
+     */
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
 
-                        };
+    /**
+     * Sets the cache used for storing responses.
+     *
+     * Requests whose response is in the cache are answered from it, without
+     * contacting the API. Several clients can share the same cache.
+     *
+     * @param responseCache
+     *            The cache to use, or null to always contact the API. Defaults
+     *            to null.
+     */
+    public void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
 
-                        SortedSet<DataRow> values = new TreeSet<DataRow>(comp);
-                        values.addAll(client.retrieve());
+    /**
+     * @return The scheduler enforcing the API's rate quotas for this client,
+     *         or null if there is none.
+     */
+    public RequestScheduler getScheduler() {
+        return scheduler;
+    }
 
-                        int j = 0;
-                        for (DataRow row : values) {
-                            if (row.getPtCode().equals(0)) {
-                                continue;
-                            }
-                            if (j == 0) {
-                                System.out.println("- Listing the top " + count + " areas that " + row.getRtTitle()
-                                        + " " + verb + ":");
-                            }
-                            System.out.println(row.getPtTitle() + " (USD " + format.format(row.getTradeValue()) + ")");
-                            if (++j >= count) {
-                                break;
-                            }
-                        }
-                        verb = null;
-                        Thread.sleep(1000);
-                        break;
-
-                    case "-p":
-                    case "--period":
-                        String period = args[++i];
-                        System.out.println("Setting period to " + period + ".");
-                        defaultParams.put(Parameters.TIME_PERIOD, period);
-                        if (period.matches("(^|,)\\d{6}(,|$)")) {
-                            defaultParams.put(Parameters.DATA_FREQUENCY, "M");
-                        }
-                        else {
-                            defaultParams.put(Parameters.DATA_FREQUENCY, "A");
-                        }
-
-                    case "-a":
-                    case "--allowed-values":
-                        ValidParameters validParams;
-                        switch (args[++i]) {
-                            case "reporter":
-                                validParams = ValidParameters.create(Parameters.REPORTER);
-                                break;
-
-                            default:
-                                try {
-                                    validParams = ValidParameters.create(args[i]);
-                                }
-                                catch (IllegalArgumentException e) {
-                                    System.err.println("Error: Unknown REST parameter/name: \"" + args[i] + "\".");
-                                    continue outer;
-                                }
-                        }
-                        SortedSet<Entry<String, String>> sortedValues;
-                        if (args.length > i + 1 && !args[i + 1].startsWith("-")) {
-                            sortedValues = validParams.getSortedValues(args[++i]);
-                        }
-                        else {
-                            sortedValues = validParams.getSortedValues();
-                        }
-                        for (Entry<String, String> parameter : sortedValues) {
-                            System.out.println(String.format("%8s", parameter.getKey()) + " | " + parameter.getValue());
-                        }
-                }
-            }
-        }
-        catch (ClientProtocolException e) {
-            e.printStackTrace();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
-        catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        catch (IndexOutOfBoundsException e) {
-            String command = "???";
-            for (int i = args.length - 1; i >= 0; --i) {
-                if (args[i].startsWith("-")) {
-                    command = args[i];
-                    break;
-                }
-            }
-            System.err.println("Error: Not enough arguments given for option/command \"" + command + "\".");
+    /**
+     * Sets the scheduler enforcing the API's rate quotas.
+     *
+     * By default, all clients of the public API share
+     * {@link RequestScheduler#getDefault()}, which enforces its quotas, and
+     * clients of other base URLs send requests without any limits.
+     *
+     * @param scheduler
+     *            The scheduler to use, or null to send requests without any
+     *            limits (for example, to a local mirror).
+     */
+    public void setScheduler(RequestScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Sets the priority of this client's requests.
+     *
+     * @param priority
+     *            The priority. When requests are queued in the scheduler,
+     *            those with a higher priority are sent first. Defaults to 0.
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * @return The pool used for deduplicating strings in retrieved data rows,
+     *         or null if none is used.
+     */
+    public StringPool getStringPool() {
+        return stringPool;
+    }
+
+    /**
+     * Sets the pool used for deduplicating strings in retrieved data rows.
+     *
+     * By default, each client uses its own pool. Sharing one pool between
+     * several clients saves even more memory when their results are kept
+     * around for a long time.
+     *
+     * @param stringPool
+     *            The string pool to use, or null to not deduplicate strings.
+     */
+    public void setStringPool(StringPool stringPool) {
+        this.stringPool = stringPool;
+    }
+
+    /**
+     * @return Whether data rows are decoded lazily.
+     */
+    public boolean isLazyDecoding() {
+        return lazyDecoding;
+    }
+
+    /**
+     * Sets whether data rows are decoded lazily.
+     *
+     * In lazy mode, each response is read into memory and indexed, and the
+     * returned data rows only decode a property when its getter is first
+     * called (see {@link LazyDataRow}). This saves most of the decoding work
+     * and memory when only a few properties of each row are used, but keeps
+     * every response in memory as long as any of its data rows is referenced.
+     *
+     * @param lazyDecoding
+     *            True to decode data rows lazily, false to decode them
+     *            completely while streaming the response. Defaults to false.
+     */
+    public void setLazyDecoding(boolean lazyDecoding) {
+        this.lazyDecoding = lazyDecoding;
+    }
+
+    /**
+     * @return The pool providing the HTTP connections.
+     */
+    public HttpConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Sets the pool providing the HTTP connections.
+     *
+     * @param connectionPool
+     *            The connection pool to use. Defaults to the pool shared by
+     *            all clients.
+     */
+    public synchronized void setConnectionPool(HttpConnectionPool connectionPool) {
+        if (httpClient == null) {
+            throw new IllegalStateException("The client is already closed.");
         }
+        this.connectionPool = connectionPool;
+        httpClient = connectionPool.getHttpClient();
     }
 
     /**
-     * Creates a new UN Comtrade client object.
+     * Sets whether concurrent retrievals of equal queries share a single
+     * request.
+     *
+     * This applies to {@link #retrieve()}, {@link #retrieve(Query)} and the
+     * background retrievals, which all return complete data sets. Streaming
+     * retrievals always send their own request.
+     *
+     * @param coalescing
+     *            True to share requests, false to always send a separate
+     *            request. Defaults to true.
      */
-    public UNComtrade() {
-        httpClient = HttpClients.createDefault();
-        responseMetadata = new Stack<JsonObject>();
+    public void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    /**
+     * Sets the policy for retrying failed requests.
+     *
+     * Streaming retrievals are only retried until the first data row was
+     * passed on, and iterators are never retried.
+     *
+     * @param retryPolicy
+     *            The retry policy, or null to never retry. Defaults to up to
+     *            four attempts with jittered exponential backoff.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
 
-        params = new HashMap<String, String>();
-        params.put("fmt", "json");
-        params.put(Parameters.REPORTER, "all");
-        params.put(Parameters.DATA_FREQUENCY, "A");
-        params.put(Parameters.TIME_PERIOD, "now");
-        params.put(Parameters.CLASSIFICATION, "HS");
-        params.put(Parameters.PARTNER_AREA, "all");
-        params.put(Parameters.TRADE_FLOW, "all");
-        params.put(Parameters.CLASSIFICATION_CODE, "TOTAL");
-        params.put(Parameters.LIMIT, "50000");
-        params.put(Parameters.TRADE_DATA_TYPE, "C");
-        params.put("head", "H");
+    /**
+     * Sets a circuit breaker, which stops sending requests while the API
+     * keeps failing.
+     *
+     * The same circuit breaker can be shared by several clients.
+     *
+     * @param circuitBreaker
+     *            The circuit breaker, or null to always send requests.
+     *            Defaults to null.
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
     }
 
     /**
-     * Creates a new UN Comtrade client object.
+     * Sets the policy for sending a second request when the first one is
+     * unusually slow.
      *
-     * @param baseUrl
-     *            The base URL to use, instead of the default.
+     * This applies to the retrievals returning complete data sets. Since the
+     * second request counts towards the API quota as well, it is best used
+     * with a request scheduler leaving some room.
+     *
+     * @param hedgePolicy
+     *            The hedge policy, or null to never hedge. Defaults to null.
      */
-    public UNComtrade(String baseUrl) {
-        this();
-        this.baseUrl = baseUrl;
+    public void setHedgePolicy(HedgePolicy hedgePolicy) {
+        this.hedgePolicy = hedgePolicy;
     }
 
     /**
-     * Retrieves the data set with the current settings.
+     * Sets the maximum number of concurrent background retrievals.
      *
-     * @return The requested data set.
+     * @param asyncConcurrency
+     *            The maximum number of retrievals started with
+     *            {@link #retrieveAsync()} that run at once. Defaults to 8. The
+     *            request scheduler might allow fewer concurrent requests.
      */
-    public DataSet retrieve() throws IOException, ClientProtocolException {
-        ResponseHandler<DataSet> rh = new ResponseHandler<DataSet>() {
+    public synchronized void setAsyncConcurrency(int asyncConcurrency) {
+        if (asyncConcurrency < 1) {
+            throw new IllegalArgumentException("At least one concurrent retrieval has to be allowed.");
+        }
+        this.asyncConcurrency = asyncConcurrency;
+        if (asyncExecutor != null) {
+            asyncExecutor.setCorePoolSize(asyncConcurrency);
+        }
+    }
 
-            @Override
-            public DataSet handleResponse(final HttpResponse response) throws IOException {
-                StatusLine statusLine = response.getStatusLine();
-                if (statusLine.getStatusCode() >= 300) {
-                    throw new HttpResponseException(statusLine.getStatusCode(), statusLine.getReasonPhrase());
-                }
-                HttpEntity entity = response.getEntity();
-                if (entity == null) {
-                    throw new ClientProtocolException("Response contains no content");
+    /**
+     * @return The executor running background retrievals.
+     *
+     * @throws IllegalStateException
+     *             If this client was already closed.
+     */
+    protected synchronized ScheduledExecutorService getAsyncExecutor() {
+        if (httpClient == null) {
+            throw new IllegalStateException("The client is already closed.");
+        }
+        if (asyncExecutor == null) {
+            asyncExecutor = new ScheduledThreadPoolExecutor(asyncConcurrency, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "UNComtrade async retrieval");
+                    thread.setDaemon(true);
+                    return thread;
                 }
-                ContentType contentType = ContentType.getOrDefault(entity);
-                Charset charset = contentType.getCharset();
-                if (charset == null) {
-                    charset = StandardCharsets.UTF_8;
+
+            });
+            asyncExecutor.setRemoveOnCancelPolicy(true);
+        }
+        return asyncExecutor;
+    }
+
+    /**
+     * @return The timer enforcing the timeouts of background retrievals,
+     *         which runs its tasks on a single thread of its own, so they are
+     *         not held up by busy retrievals.
+     *
+     * @throws IllegalStateException
+     *             If this client was already closed.
+     */
+    protected synchronized ScheduledExecutorService getAsyncTimer() {
+        if (httpClient == null) {
+            throw new IllegalStateException("The client is already closed.");
+        }
+        if (asyncTimer == null) {
+            asyncTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "UNComtrade async timer");
+                    thread.setDaemon(true);
+                    return thread;
                 }
-                Reader reader = new InputStreamReader(entity.getContent(), charset);
-                JsonParser parser = new JsonParser();
-                JsonObject responseObject = parser.parse(reader).getAsJsonObject();
-                UNComtrade.this.responseMetadata.push(responseObject.get("validation").getAsJsonObject());
-                Gson gson = new GsonBuilder().create();
-                return gson.fromJson(responseObject.get("dataset"), DataSet.class);
-            }
 
-        };
+            });
+            asyncTimer.setRemoveOnCancelPolicy(true);
+        }
+        return asyncTimer;
+    }
+
+    /**
+     * @return The executor sending hedged requests, which starts as many
+     *         threads as needed.
+     *
+     * @throws IllegalStateException
+     *             If this client was already closed.
+     */
+    protected synchronized ExecutorService getHedgeExecutor() {
+        if (httpClient == null) {
+            throw new IllegalStateException("The client is already closed.");
+        }
+        if (hedgeExecutor == null) {
+            hedgeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
 
-        return httpClient.execute(new HttpGet(getApiUrl()), rh);
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "UNComtrade hedged request");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+
+            });
+        }
+        return hedgeExecutor;
     }
 
     /**
-     * @return The API URL that corresponds to the current settings on this
-     *         client.
+     * @return The HTTP client to use for requests.
+     *
+     * @throws IllegalStateException
+     *             If this client was already closed.
      */
-    public String getApiUrl() {
-        StringBuilder url = new StringBuilder(baseUrl);
-        boolean first = true;
-        for (Entry<String, String> entry : params.entrySet()) {
-            url.append(first ? '?' : '&');
-            first = false;
-            url.append(entry.getKey());
-            url.append('=');
-            try {
-                url.append(URLEncoder.encode(entry.getValue(), StandardCharsets.UTF_8.name()));
-            }
-            catch (UnsupportedEncodingException e) {
-                assert (false);
-            }
+    protected synchronized CloseableHttpClient getHttpClient() {
+        if (httpClient == null) {
+            throw new IllegalStateException("The client is already closed.");
         }
-        return url.toString();
+        return httpClient;
     }
 
     /**
-     * @return The "validation" metadata returned for the latest request.
+     * Stops this client's background threads, cancels all pending
+     * background retrievals and removes the metrics from JMX. Requests cannot
+     * be made anymore afterwards. The connection pool stays open for other
+     * clients, see {@link HttpConnectionPool#shutdown()}.
      */
-    public JsonObject getLastResponseMetadata() {
-        return responseMetadata.peek();
+    @Override
+    public synchronized void close() throws IOException {
+        metrics.unregister();
+        cancelAsyncRetrievals();
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdownNow();
+            asyncExecutor = null;
+        }
+        if (asyncTimer != null) {
+            asyncTimer.shutdownNow();
+            asyncTimer = null;
+        }
+        if (hedgeExecutor != null) {
+            hedgeExecutor.shutdownNow();
+            hedgeExecutor = null;
+        }
+        // Retrievals submitted in the meantime were dropped by the executor
+        // and would otherwise never complete.
+        cancelAsyncRetrievals();
+        // The pooled connections stay open for other clients.
+        httpClient = null;
+        for (BasicFuture<?> future : dependentFutures) {
+            future.failed(new IOException("The client was closed."));
+        }
+        dependentFutures.clear();
     }
 
     /**
-     * Sets a parameter value for the API call.
+     * Registers a result which is waited for on behalf of this client, so it
+     * fails if the client is closed before it is done. It has to be
+     * unregistered with {@link #removeDependentFuture(BasicFuture)} once it
+     * is done.
      *
-     * @param name
-     *            The name of the parameter.
-     * @param value
-     *            The new value of the parameter. Most parameters accept
-     *            comma-separated lists of values as well.
+     * @param future
+     *            The pending result.
+     *
+     * @throws IllegalStateException
+     *             If this client was already closed.
      */
-    public void setParam(String name, String value) {
-        params.put(name, value);
+    protected synchronized void addDependentFuture(BasicFuture<?> future) {
+        if (httpClient == null) {
+            throw new IllegalStateException("The client is already closed.");
+        }
+        dependentFutures.add(future);
     }
 
     /**
-     * Sets several parameters at once.
+     * Unregisters a result registered with
+     * {@link #addDependentFuture(BasicFuture)}.
      *
-     * @param params
-     *            The parameters to set.
+     * @param future
+     *            The result, which is done.
      */
-    public void setParams(Map<String, String> params) {
-        this.params.putAll(params);
+    protected void removeDependentFuture(BasicFuture<?> future) {
+        dependentFutures.remove(future);
+    }
+
+    /**
+     * Cancels all background retrievals which are not done yet.
+     */
+    protected void cancelAsyncRetrievals() {
+        for (AsyncRetrieval retrieval : asyncRetrievals) {
+            retrieval.cancel(true);
+        }
     }
 
     /**
@@ -345,7 +1912,7 @@ public class UNComtrade {
      */
     @Override
     public void finalize() throws Throwable {
-        httpClient.close();
+        close();
     }
 
     /**
@@ -356,14 +1923,7 @@ public class UNComtrade {
      *            to list all reporters. Defaults to "all".
      */
     public void setReporter(String reporter) {
-        try {
-            if (reporter.equals("all") || Integer.parseInt(reporter) >= 0) {
-                params.put(Parameters.REPORTER, reporter);
-                return;
-            }
-        }
-        catch (NumberFormatException e) {}
-        throw new IllegalArgumentException("Only \"all\" or numeric area codes are allowed for the reporter area.");
+        params.put(Parameters.REPORTER, Query.checkArea(reporter, "reporter area"));
     }
 
     /**
@@ -408,14 +1968,7 @@ public class UNComtrade {
      *            "all".
      */
     public void setPartnerArea(String partnerArea) {
-        try {
-            if (partnerArea.equals("all") || Integer.parseInt(partnerArea) >= 0) {
-                params.put(Parameters.PARTNER_AREA, partnerArea);
-                return;
-            }
-        }
-        catch (NumberFormatException e) {}
-        throw new IllegalArgumentException("Only \"all\" or numeric area codes are allowed for the partner area.");
+        params.put(Parameters.PARTNER_AREA, Query.checkArea(partnerArea, "partner area"));
     }
 
     /**
@@ -426,15 +1979,7 @@ public class UNComtrade {
      *            "all". Defaults to "all".
      */
     public void setTradeFlow(String tradeFlow) {
-        try {
-            if (tradeFlow.equals("all") || Integer.parseInt(tradeFlow) > 0) {
-                params.put(Parameters.TRADE_FLOW, tradeFlow);
-                return;
-            }
-        }
-        catch (NumberFormatException e) {}
-        throw new IllegalArgumentException(
-                "Only \"all\" or positive integers are allowed for the trade flow parameter.");
+        params.put(Parameters.TRADE_FLOW, Query.checkTradeFlow(tradeFlow));
     }
 
     /**
@@ -456,12 +2001,7 @@ public class UNComtrade {
      *            which is the maximum allowed by the API.
      */
     public void setLimit(int limit) {
-        if (limit > 0 && limit <= 50000) {
-            params.put(Parameters.LIMIT, "" + limit);
-        }
-        else {
-            throw new IllegalArgumentException("Limit has to be between 0 and 50000.");
-        }
+        params.put(Parameters.LIMIT, Query.checkLimit(limit));
     }
 
     /**
@@ -472,12 +2012,7 @@ public class UNComtrade {
      *            yet).
      */
     public void setTradeDataType(String tradeDataType) {
-        if (tradeDataType.equals("C") || tradeDataType.equals("S")) {
-            params.put(Parameters.TRADE_DATA_TYPE, tradeDataType);
-        }
-        else {
-            throw new IllegalArgumentException("Only \"C\" or \"S\" are allowed as trade data types.");
-        }
+        params.put(Parameters.TRADE_DATA_TYPE, Query.checkTradeDataType(tradeDataType));
     }
 
 }
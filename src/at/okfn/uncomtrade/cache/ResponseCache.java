@@ -0,0 +1,515 @@
+package at.okfn.uncomtrade.cache;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import at.okfn.uncomtrade.Parameters;
+
+
+/**
+ * Stores API responses on disk, keyed by their canonical request URL.
+ *
+ * Responses are stored gzip-compressed, one file per URL. How long a response
+ * stays valid depends on the requested time period: data for closed years
+ * never changes, data for recent periods may still be revised, and "now" and
+ * "recent" are refreshed most often. When the cache grows beyond its maximum
+ * size, the least recently used responses are removed.
+ *
+ * This class is thread-safe, also for several clients sharing the same
+ * directory within one process.
+ */
+public class ResponseCache {
+
+    /**
+     * The marker at the beginning of every cache file.
+     */
+    protected static final int MAGIC = 0x554e4301;
+
+    /**
+     * The suffix of cache files.
+     */
+    protected static final String SUFFIX = ".json.gz";
+
+    /**
+     * The prefix of temporary files holding responses being written.
+     */
+    protected static final String TEMP_PREFIX = "response";
+
+    /**
+     * The suffix of temporary files holding responses being written.
+     */
+    protected static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * The time after which an unmodified temporary file is considered left
+     * over from a crashed process, in milliseconds.
+     */
+    protected static final long STALE_TEMP_AGE = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * The directory holding the cache files.
+     */
+    protected final File directory;
+
+    /**
+     * The maximum total size of all cache files, in bytes.
+     */
+    protected final long maxSize;
+
+    /**
+     * The current total size of all cache files, in bytes.
+     */
+    protected long size = 0;
+
+    /**
+     * The validity of responses for "now" and "recent", in milliseconds.
+     */
+    protected long recentTimeToLive = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * The validity of responses for periods which are not closed yet, in
+     * milliseconds.
+     */
+    protected long openTimeToLive = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * The number of years, counting back from the current one, which are
+     * still considered open.
+     */
+    protected int openYears = 2;
+
+    /**
+     * Creates a new response cache.
+     *
+     * @param directory
+     *            The directory in which to store the responses. It is created
+     *            if it does not exist yet.
+     * @param maxSize
+     *            The maximum total size of the stored (compressed) responses,
+     *            in bytes.
+     *
+     * @throws IOException
+     *             If the directory could not be created.
+     */
+    public ResponseCache(File directory, long maxSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create cache directory " + directory + ".");
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+        for (File file : listFiles()) {
+            size += file.length();
+        }
+        removeStaleTempFiles();
+    }
+
+    /**
+     * Sets how long responses for "now" and "recent" stay valid.
+     *
+     * @param recentTimeToLive
+     *            The validity, in milliseconds. Defaults to one hour.
+     */
+    public void setRecentTimeToLive(long recentTimeToLive) {
+        this.recentTimeToLive = recentTimeToLive;
+    }
+
+    /**
+     * Sets how long responses for periods which are not closed yet stay
+     * valid.
+     *
+     * @param openTimeToLive
+     *            The validity, in milliseconds. Defaults to one day.
+     */
+    public void setOpenTimeToLive(long openTimeToLive) {
+        this.openTimeToLive = openTimeToLive;
+    }
+
+    /**
+     * Sets how many years are still considered open.
+     *
+     * @param openYears
+     *            The number of years, counting back from and including the
+     *            current one, for which data might still be revised. Data for
+     *            all earlier years is cached indefinitely. Defaults to 2.
+     */
+    public void setOpenYears(int openYears) {
+        this.openYears = openYears;
+    }
+
+    /**
+     * Determines how long the response for a request stays valid.
+     *
+     * @param params
+     *            The GET parameters of the request.
+     *
+     * @return The validity, in milliseconds, or {@link Long#MAX_VALUE} if the
+     *         response never expires.
+     */
+    public long getTimeToLive(Map<String, String> params) {
+        String periods = params.get(Parameters.TIME_PERIOD);
+        if (periods == null) {
+            return recentTimeToLive;
+        }
+        int firstOpenYear = Calendar.getInstance().get(Calendar.YEAR) - openYears + 1;
+        long timeToLive = Long.MAX_VALUE;
+        for (String period : periods.split(",")) {
+            period = period.trim();
+            if (!period.matches("^\\d{4}(\\d{2})?$")) {
+                return recentTimeToLive;
+            }
+            if (Integer.parseInt(period.substring(0, 4)) >= firstOpenYear) {
+                timeToLive = openTimeToLive;
+            }
+        }
+        return timeToLive;
+    }
+
+    /**
+     * Retrieves a cached response.
+     *
+     * @param url
+     *            The canonical request URL.
+     *
+     * @return A reader for the cached response, or null if there is no valid
+     *         cached response for the URL.
+     *
+     * @throws IOException
+     *             If the cached response could not be read.
+     */
+    public Reader get(String url) throws IOException {
+        File file = getFile(url);
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC) {
+                in.close();
+                remove(file);
+                return null;
+            }
+            long expires = in.readLong();
+            String storedUrl = in.readUTF();
+            Charset charset = Charset.forName(in.readUTF());
+            if (expires < System.currentTimeMillis() || !storedUrl.equals(url)) {
+                in.close();
+                remove(file);
+                return null;
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return new InputStreamReader(new GZIPInputStream(in), charset);
+        }
+        catch (IOException | IllegalArgumentException e) {
+            if (in != null) {
+                in.close();
+            }
+            remove(file);
+            return null;
+        }
+    }
+
+    /**
+     * Starts storing a response.
+     *
+     * The response data has to be written to the returned entry, which then
+     * has to be either committed or aborted. Until it is committed, the entry
+     * is not visible to {@link #get(String)}.
+     *
+     * @param url
+     *            The canonical request URL.
+     * @param charset
+     *            The character set of the response.
+     * @param timeToLive
+     *            The validity of the response, in milliseconds.
+     *
+     * @return The new cache entry.
+     *
+     * @throws IOException
+     *             If the cache file could not be created.
+     */
+    public Entry put(String url, Charset charset, long timeToLive) throws IOException {
+        long now = System.currentTimeMillis();
+        long expires = timeToLive > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + timeToLive;
+        File temp = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, directory);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeLong(expires);
+            out.writeUTF(url);
+            out.writeUTF(charset.name());
+            return new Entry(new GZIPOutputStream(out), temp, getFile(url));
+        }
+        catch (IOException e) {
+            out.close();
+            temp.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Removes all cached responses.
+     */
+    public synchronized void clear() {
+        for (File file : listFiles()) {
+            file.delete();
+        }
+        size = 0;
+    }
+
+    /**
+     * @return The current total size of all cached responses, in bytes.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @param url
+     *            A canonical request URL.
+     *
+     * @return The cache file for the given URL.
+     */
+    protected File getFile(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest.digest(url.getBytes(StandardCharsets.UTF_8))) {
+                name.append(String.format("%02x", b));
+            }
+            name.append(SUFFIX);
+            return new File(directory, name.toString());
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return All cache files.
+     */
+    protected File[] listFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                files[count++] = file;
+            }
+        }
+        return Arrays.copyOf(files, count);
+    }
+
+    /**
+     * Removes temporary files which have not been written to for a while,
+     * left behind by processes which crashed while writing a response.
+     *
+     * Recently modified files are kept, since they might still be written by
+     * another cache using the same directory.
+     */
+    protected void removeStaleTempFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long staleBefore = System.currentTimeMillis() - STALE_TEMP_AGE;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX) && file.lastModified() < staleBefore) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Removes a cache file.
+     *
+     * @param file
+     *            The file to remove.
+     */
+    protected synchronized void remove(File file) {
+        long length = file.length();
+        if (file.delete()) {
+            size = Math.max(0, size - length);
+        }
+    }
+
+    /**
+     * Moves a completely written response into place, evicting the least
+     * recently used responses if the cache grows too large.
+     *
+     * @param temp
+     *            The temporary file holding the response.
+     * @param file
+     *            The final cache file.
+     */
+    protected synchronized void commit(File temp, File file) {
+        if (file.exists()) {
+            size = Math.max(0, size - file.length());
+            file.delete();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            return;
+        }
+        size += file.length();
+        if (size <= maxSize) {
+            return;
+        }
+
+        removeStaleTempFiles();
+        File[] files = listFiles();
+        final long[] lastUsed = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; ++i) {
+            lastUsed[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.compare(lastUsed[o1], lastUsed[o2]);
+            }
+
+        });
+        for (int i : order) {
+            if (size <= maxSize) {
+                break;
+            }
+            remove(files[i]);
+        }
+    }
+
+    /**
+     * A response being written to the cache.
+     */
+    public class Entry extends FilterOutputStream {
+
+        /**
+         * The temporary file the response is written to.
+         */
+        protected final File temp;
+
+        /**
+         * The final cache file.
+         */
+        protected final File file;
+
+        /**
+         * Whether the entry was already committed or aborted.
+         */
+        protected boolean done = false;
+
+        /**
+         * Whether writing to the entry failed.
+         */
+        protected boolean failed = false;
+
+        /**
+         * Creates a new cache entry.
+         *
+         * @param out
+         *            The stream writing to the temporary file.
+         * @param temp
+         *            The temporary file.
+         * @param file
+         *            The final cache file.
+         */
+        protected Entry(OutputStream out, File temp, File file) {
+            super(out);
+            this.temp = temp;
+            this.file = file;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            }
+            catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            }
+            catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        /**
+         * Finishes writing the response and makes it available.
+         *
+         * @throws IOException
+         *             If the response could not be written. The entry is
+         *             discarded in that case.
+         */
+        public void commit() throws IOException {
+            if (done) {
+                return;
+            }
+            if (failed) {
+                abort();
+                throw new IOException("Writing the cache entry failed.");
+            }
+            done = true;
+            try {
+                out.close();
+            }
+            catch (IOException e) {
+                temp.delete();
+                throw e;
+            }
+            ResponseCache.this.commit(temp, file);
+        }
+
+        /**
+         * Discards the response. Does nothing if the entry was already
+         * committed.
+         */
+        public void abort() {
+            if (done) {
+                return;
+            }
+            done = true;
+            try {
+                out.close();
+            }
+            catch (IOException e) {}
+            temp.delete();
+        }
+
+    }
+
+}
@@ -0,0 +1,103 @@
+package at.okfn.uncomtrade.cache;
+
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+/**
+ * Copies all data read from an input stream to an output stream.
+ *
+ * Errors while writing the copy do not affect reading: the copy is abandoned
+ * and {@link #isCopyFailed()} returns true afterwards.
+ */
+public class TeeInputStream extends FilterInputStream {
+
+    /**
+     * The stream receiving the copy, or null once copying failed.
+     */
+    protected OutputStream copy;
+
+    /**
+     * Whether writing the copy failed.
+     */
+    protected boolean copyFailed = false;
+
+    /**
+     * Creates a new tee input stream.
+     *
+     * @param in
+     *            The stream to read from.
+     * @param copy
+     *            The stream to copy all read data to.
+     */
+    public TeeInputStream(InputStream in, OutputStream copy) {
+        super(in);
+        this.copy = copy;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            copy(new byte[] { (byte) b }, 0, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0) {
+            copy(b, off, read);
+        }
+        return read;
+    }
+
+    /**
+     * Skipping is not supported, as the skipped data would be missing from
+     * the copy.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        return 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * @return Whether writing the copy failed.
+     */
+    public boolean isCopyFailed() {
+        return copyFailed;
+    }
+
+    /**
+     * Writes data to the copy.
+     *
+     * @param b
+     *            The data.
+     * @param off
+     *            The start offset in the data.
+     * @param len
+     *            The number of bytes to write.
+     */
+    protected void copy(byte[] b, int off, int len) {
+        if (copy == null) {
+            return;
+        }
+        try {
+            copy.write(b, off, len);
+        }
+        catch (IOException e) {
+            copyFailed = true;
+            copy = null;
+        }
+    }
+
+}
@@ -0,0 +1,320 @@
+package at.okfn.uncomtrade.metrics;
+
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * Aggregates the measurements of all requests of a client into counters and
+ * histograms, which can be monitored through JMX.
+ *
+ * This class is thread-safe.
+ */
+public class ClientMetrics implements MetricsListener, ClientMetricsMXBean {
+
+    /**
+     * The number of requests sent.
+     */
+    protected final AtomicLong requests = new AtomicLong();
+
+    /**
+     * The number of failed requests.
+     */
+    protected final AtomicLong errors = new AtomicLong();
+
+    /**
+     * The number of retried requests.
+     */
+    protected final AtomicLong retries = new AtomicLong();
+
+    /**
+     * The number of cache hits.
+     */
+    protected final AtomicLong cacheHits = new AtomicLong();
+
+    /**
+     * The number of cache misses.
+     */
+    protected final AtomicLong cacheMisses = new AtomicLong();
+
+    /**
+     * The number of received data rows.
+     */
+    protected final AtomicLong rows = new AtomicLong();
+
+    /**
+     * The number of received bytes.
+     */
+    protected final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * The time spent waiting for the request scheduler, in microseconds.
+     */
+    protected final Histogram queueWaitTime = new Histogram();
+
+    /**
+     * The time spent opening connections, in microseconds.
+     */
+    protected final Histogram connectTime = new Histogram();
+
+    /**
+     * The time until the response headers arrived, in microseconds.
+     */
+    protected final Histogram firstByteTime = new Histogram();
+
+    /**
+     * The time spent waiting for response bodies, in microseconds.
+     */
+    protected final Histogram downloadTime = new Histogram();
+
+    /**
+     * The time spent decoding response bodies, in microseconds.
+     */
+    protected final Histogram decodeTime = new Histogram();
+
+    /**
+     * The total time of the requests, in microseconds.
+     */
+    protected final Histogram totalTime = new Histogram();
+
+    /**
+     * The sizes of the responses, in bytes.
+     */
+    protected final Histogram responseBytes = new Histogram();
+
+    /**
+     * The numbers of data rows per response.
+     */
+    protected final Histogram responseRows = new Histogram();
+
+    /**
+     * The time the API reported for counting the results, in microseconds.
+     */
+    protected final Histogram apiCountTime = new Histogram();
+
+    /**
+     * The time the API reported for building the data set, in microseconds.
+     */
+    protected final Histogram apiDatasetTime = new Histogram();
+
+    /**
+     * The name under which this object is registered with JMX, or null.
+     */
+    protected ObjectName objectName;
+
+    @Override
+    public void requestCompleted(RequestMetrics metrics) {
+        if (metrics.isCached()) {
+            cacheHits.incrementAndGet();
+            rows.addAndGet(metrics.getRows());
+            return;
+        }
+        if (metrics.isCacheMiss()) {
+            cacheMisses.incrementAndGet();
+        }
+        requests.incrementAndGet();
+        if (metrics.getAttempt() > 1) {
+            retries.incrementAndGet();
+        }
+        if (metrics.getError() != null) {
+            errors.incrementAndGet();
+        }
+        recordTime(queueWaitTime, metrics.getQueueWaitTime());
+        recordTime(connectTime, metrics.getConnectTime());
+        recordTime(firstByteTime, metrics.getFirstByteTime());
+        recordTime(downloadTime, metrics.getDownloadTime());
+        recordTime(decodeTime, metrics.getDecodeTime());
+        recordTime(totalTime, metrics.getTotalTime());
+        recordTime(apiCountTime, metrics.getApiTime("count"));
+        recordTime(apiDatasetTime, metrics.getApiTime("datasetTimer"));
+        if (metrics.getBytes() >= 0) {
+            bytes.addAndGet(metrics.getBytes());
+            responseBytes.record(metrics.getBytes());
+        }
+        if (metrics.getError() == null) {
+            rows.addAndGet(metrics.getRows());
+            responseRows.record(metrics.getRows());
+        }
+    }
+
+    /**
+     * Records a time, if it is known.
+     *
+     * @param histogram
+     *            The histogram to record the time in.
+     * @param nanos
+     *            The time in nanoseconds, or -1.
+     */
+    protected static void recordTime(Histogram histogram, long nanos) {
+        if (nanos >= 0) {
+            histogram.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        }
+    }
+
+    /**
+     * Registers this object with the platform MBean server, so it can be
+     * monitored with tools like JConsole.
+     *
+     * @param name
+     *            A name distinguishing this client from others.
+     *
+     * @return The name under which this object was registered.
+     *
+     * @throws JMException
+     *             If the object could not be registered, for example because
+     *             the name is already taken.
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        unregister();
+        ObjectName objectName = new ObjectName("at.okfn.uncomtrade:type=ClientMetrics,name="
+                + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.objectName = objectName;
+        return objectName;
+    }
+
+    /**
+     * Removes this object from the platform MBean server, if it was
+     * registered.
+     */
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        }
+        catch (JMException e) {}
+        objectName = null;
+    }
+
+    @Override
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    @Override
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        return cacheHits.get();
+    }
+
+    @Override
+    public long getCacheMissCount() {
+        return cacheMisses.get();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = cacheHits.get();
+        long lookups = hits + cacheMisses.get();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public long getConnectionCount() {
+        return connectTime.getCount();
+    }
+
+    @Override
+    public long getRowCount() {
+        return rows.get();
+    }
+
+    @Override
+    public long getByteCount() {
+        return bytes.get();
+    }
+
+    @Override
+    public HistogramSnapshot getQueueWaitTime() {
+        return queueWaitTime.getSnapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getConnectTime() {
+        return connectTime.getSnapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getFirstByteTime() {
+        return firstByteTime.getSnapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getDownloadTime() {
+        return downloadTime.getSnapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getDecodeTime() {
+        return decodeTime.getSnapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getTotalTime() {
+        return totalTime.getSnapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getResponseBytes() {
+        return responseBytes.getSnapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getResponseRows() {
+        return responseRows.getSnapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getApiCountTime() {
+        return apiCountTime.getSnapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getApiDatasetTime() {
+        return apiDatasetTime.getSnapshot();
+    }
+
+    @Override
+    public void reset() {
+        requests.set(0);
+        errors.set(0);
+        retries.set(0);
+        cacheHits.set(0);
+        cacheMisses.set(0);
+        rows.set(0);
+        bytes.set(0);
+        for (Histogram histogram : new Histogram[] { queueWaitTime, connectTime, firstByteTime, downloadTime,
+                decodeTime, totalTime, responseBytes, responseRows, apiCountTime, apiDatasetTime }) {
+            histogram.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "requests=" + getRequestCount() + " errors=" + getErrorCount() + " retries=" + getRetryCount()
+                + " cacheHits=" + getCacheHitCount() + " cacheMisses=" + getCacheMissCount() + " rows="
+                + getRowCount() + " bytes=" + getByteCount() + "\ntotal [us]: " + getTotalTime()
+                + "\nqueue wait [us]: " + getQueueWaitTime() + "\nconnect [us]: " + getConnectTime()
+                + "\nfirst byte [us]: " + getFirstByteTime() + "\ndownload [us]: " + getDownloadTime()
+                + "\ndecode [us]: " + getDecodeTime();
+    }
+
+}
@@ -0,0 +1,113 @@
+package at.okfn.uncomtrade.metrics;
+
+
+/**
+ * The management interface of {@link ClientMetrics}, for monitoring through
+ * JMX.
+ *
+ * Times are in microseconds, sizes in bytes.
+ */
+public interface ClientMetricsMXBean {
+
+    /**
+     * @return The number of requests sent, including retries.
+     */
+    long getRequestCount();
+
+    /**
+     * @return The number of failed requests.
+     */
+    long getErrorCount();
+
+    /**
+     * @return The number of retried requests.
+     */
+    long getRetryCount();
+
+    /**
+     * @return The number of responses read from the cache.
+     */
+    long getCacheHitCount();
+
+    /**
+     * @return The number of responses not found in the cache.
+     */
+    long getCacheMissCount();
+
+    /**
+     * @return The share of cache lookups which found the response, between
+     *         0 and 1.
+     */
+    double getCacheHitRatio();
+
+    /**
+     * @return The number of new connections opened.
+     */
+    long getConnectionCount();
+
+    /**
+     * @return The total number of data rows received.
+     */
+    long getRowCount();
+
+    /**
+     * @return The total number of bytes received.
+     */
+    long getByteCount();
+
+    /**
+     * @return The time requests waited for the request scheduler.
+     */
+    HistogramSnapshot getQueueWaitTime();
+
+    /**
+     * @return The time spent opening new connections.
+     */
+    HistogramSnapshot getConnectTime();
+
+    /**
+     * @return The time until the response headers were received.
+     */
+    HistogramSnapshot getFirstByteTime();
+
+    /**
+     * @return The time spent waiting for response bodies.
+     */
+    HistogramSnapshot getDownloadTime();
+
+    /**
+     * @return The time spent decoding response bodies.
+     */
+    HistogramSnapshot getDecodeTime();
+
+    /**
+     * @return The total time of the requests.
+     */
+    HistogramSnapshot getTotalTime();
+
+    /**
+     * @return The sizes of the responses.
+     */
+    HistogramSnapshot getResponseBytes();
+
+    /**
+     * @return The numbers of data rows per response.
+     */
+    HistogramSnapshot getResponseRows();
+
+    /**
+     * @return The time the API reported for counting the results.
+     */
+    HistogramSnapshot getApiCountTime();
+
+    /**
+     * @return The time the API reported for building the data set.
+     */
+    HistogramSnapshot getApiDatasetTime();
+
+    /**
+     * Resets all counters and histograms.
+     */
+    void reset();
+
+}
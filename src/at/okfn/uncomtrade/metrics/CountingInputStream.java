@@ -0,0 +1,86 @@
+package at.okfn.uncomtrade.metrics;
+
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Counts the bytes read from an input stream, and the time spent waiting for
+ * them.
+ */
+public class CountingInputStream extends FilterInputStream {
+
+    /**
+     * The number of bytes read so far.
+     */
+    protected long count = 0;
+
+    /**
+     * The time spent in read calls so far, in nanoseconds.
+     */
+    protected long readTime = 0;
+
+    /**
+     * Creates a new counting input stream.
+     *
+     * @param in
+     *            The stream to read from.
+     */
+    public CountingInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = System.nanoTime();
+        int b = super.read();
+        readTime += System.nanoTime() - start;
+        if (b >= 0) {
+            ++count;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        int read = super.read(b, off, len);
+        readTime += System.nanoTime() - start;
+        if (read > 0) {
+            count += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count += skipped;
+        return skipped;
+    }
+
+    /**
+     * Marking is not supported, as it would make the count ambiguous.
+     */
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * @return The number of bytes read so far.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The time spent waiting for data so far, in nanoseconds.
+     */
+    public long getReadTime() {
+        return readTime;
+    }
+
+}
@@ -0,0 +1,164 @@
+package at.okfn.uncomtrade.metrics;
+
+
+/**
+ * Counts the distribution of non-negative values, such as latencies or sizes.
+ *
+ * Values are counted in buckets whose width grows with the value: each power
+ * of two is split into eight buckets, so percentiles are accurate to within
+ * 12.5 percent, while the histogram takes a fixed 4 KB regardless of the
+ * number or range of the values.
+ *
+ * This class is thread-safe.
+ */
+public class Histogram {
+
+    /**
+     * The number of bits used to split each power of two.
+     */
+    protected static final int SUB_BUCKET_BITS = 3;
+
+    /**
+     * The number of buckets per power of two.
+     */
+    protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The number of values in each bucket.
+     */
+    protected final long[] buckets = new long[(64 - SUB_BUCKET_BITS) * SUB_BUCKETS];
+
+    /**
+     * The number of recorded values.
+     */
+    protected long count = 0;
+
+    /**
+     * The sum of the recorded values.
+     */
+    protected long sum = 0;
+
+    /**
+     * The smallest recorded value.
+     */
+    protected long min = Long.MAX_VALUE;
+
+    /**
+     * The largest recorded value.
+     */
+    protected long max = Long.MIN_VALUE;
+
+    /**
+     * Records a value.
+     *
+     * @param value
+     *            The value to record. Negative values are counted as 0.
+     */
+    public synchronized void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        ++buckets[getBucket(value)];
+        ++count;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * @return The number of recorded values.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The sum of the recorded values.
+     */
+    public synchronized long getSum() {
+        return sum;
+    }
+
+    /**
+     * Estimates a percentile of the recorded values.
+     *
+     * @param percentile
+     *            The percentile, between 0 and 1.
+     *
+     * @return The upper bound of the bucket containing the percentile, or 0
+     *         if no values were recorded.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * count));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; ++i) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.max(min, Math.min(max, getUpperBound(i)));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return A consistent copy of the current statistics.
+     */
+    public synchronized HistogramSnapshot getSnapshot() {
+        if (count == 0) {
+            return new HistogramSnapshot(0, 0, 0, 0, 0, 0, 0);
+        }
+        return new HistogramSnapshot(count, (double) sum / count, min, getPercentile(0.5), getPercentile(0.9),
+                getPercentile(0.99), max);
+    }
+
+    /**
+     * Removes all recorded values.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < buckets.length; ++i) {
+            buckets[i] = 0;
+        }
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = Long.MIN_VALUE;
+    }
+
+    /**
+     * @param value
+     *            A non-negative value.
+     *
+     * @return The index of the bucket counting the value.
+     */
+    protected static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @param bucket
+     *            The index of a bucket.
+     *
+     * @return The largest value counted in the bucket.
+     */
+    protected static long getUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS - 1) {
+            return bucket;
+        }
+        if (bucket + 1 >= (64 - SUB_BUCKET_BITS) * SUB_BUCKETS) {
+            return Long.MAX_VALUE;
+        }
+        int next = bucket + 1;
+        int exponent = next / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowerBound = (long) (SUB_BUCKETS + next % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lowerBound - 1;
+    }
+
+}
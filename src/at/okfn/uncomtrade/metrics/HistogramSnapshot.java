@@ -0,0 +1,133 @@
+package at.okfn.uncomtrade.metrics;
+
+
+import java.beans.ConstructorProperties;
+
+
+/**
+ * The statistics of a {@link Histogram} at one point in time.
+ *
+ * Exposed through JMX as composite data.
+ */
+public class HistogramSnapshot {
+
+    /**
+     * The number of recorded values.
+     */
+    protected final long count;
+
+    /**
+     * The mean of the recorded values.
+     */
+    protected final double mean;
+
+    /**
+     * The smallest recorded value.
+     */
+    protected final long min;
+
+    /**
+     * The median of the recorded values.
+     */
+    protected final long p50;
+
+    /**
+     * The 90th percentile of the recorded values.
+     */
+    protected final long p90;
+
+    /**
+     * The 99th percentile of the recorded values.
+     */
+    protected final long p99;
+
+    /**
+     * The largest recorded value.
+     */
+    protected final long max;
+
+    /**
+     * Creates a new snapshot.
+     *
+     * @param count
+     *            The number of recorded values.
+     * @param mean
+     *            The mean of the recorded values.
+     * @param min
+     *            The smallest recorded value.
+     * @param p50
+     *            The median of the recorded values.
+     * @param p90
+     *            The 90th percentile of the recorded values.
+     * @param p99
+     *            The 99th percentile of the recorded values.
+     * @param max
+     *            The largest recorded value.
+     */
+    @ConstructorProperties({ "count", "mean", "min", "p50", "p90", "p99", "max" })
+    public HistogramSnapshot(long count, double mean, long min, long p50, long p90, long p99, long max) {
+        this.count = count;
+        this.mean = mean;
+        this.min = min;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.max = max;
+    }
+
+    /**
+     * @return The number of recorded values.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The mean of the recorded values.
+     */
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * @return The smallest recorded value.
+     */
+    public long getMin() {
+        return min;
+    }
+
+    /**
+     * @return The median of the recorded values.
+     */
+    public long getP50() {
+        return p50;
+    }
+
+    /**
+     * @return The 90th percentile of the recorded values.
+     */
+    public long getP90() {
+        return p90;
+    }
+
+    /**
+     * @return The 99th percentile of the recorded values.
+     */
+    public long getP99() {
+        return p99;
+    }
+
+    /**
+     * @return The largest recorded value.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1f min=%d p50=%d p90=%d p99=%d max=%d", count, mean, min, p50, p90, p99,
+                max);
+    }
+
+}
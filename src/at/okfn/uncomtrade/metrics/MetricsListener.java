@@ -0,0 +1,20 @@
+package at.okfn.uncomtrade.metrics;
+
+
+/**
+ * Receives the measurements of every request made by a client.
+ *
+ * Listeners are called from the thread which made the request, so they
+ * should return quickly.
+ */
+public interface MetricsListener {
+
+    /**
+     * Called when a request is done, whether it succeeded or not.
+     *
+     * @param metrics
+     *            The measurements of the request.
+     */
+    void requestCompleted(RequestMetrics metrics);
+
+}
@@ -0,0 +1,360 @@
+package at.okfn.uncomtrade.metrics;
+
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+
+/**
+ * The measurements of a single request, filled in while it is made.
+ *
+ * All times are in nanoseconds; times which do not apply (for example, the
+ * connect time when a pooled connection was reused) are -1. A response is
+ * parsed while it is downloaded, so the download time only counts the time
+ * spent waiting for data, and the decode time the rest of the time spent
+ * reading the response, which includes JSON parsing, binding the data rows and
+ * passing them on.
+ */
+public class RequestMetrics {
+
+    /**
+     * The requested URL.
+     */
+    protected final String url;
+
+    /**
+     * The number of the attempt, starting at 1.
+     */
+    protected int attempt = 1;
+
+    /**
+     * Whether the response was read from the cache.
+     */
+    protected boolean cached = false;
+
+    /**
+     * Whether the response was looked up in the cache but not found.
+     */
+    protected boolean cacheMiss = false;
+
+    /**
+     * The time spent waiting for the request scheduler.
+     */
+    protected long queueWaitTime = -1;
+
+    /**
+     * The time spent opening a new connection, including the TLS handshake.
+     */
+    protected long connectTime = -1;
+
+    /**
+     * The time between sending the request and receiving the response
+     * headers, excluding the connect time.
+     */
+    protected long firstByteTime = -1;
+
+    /**
+     * The time spent waiting for the response body.
+     */
+    protected long downloadTime = -1;
+
+    /**
+     * The time spent decoding the response body.
+     */
+    protected long decodeTime = -1;
+
+    /**
+     * The time from the start of the request until the response was read,
+     * including the queue wait.
+     */
+    protected long totalTime = -1;
+
+    /**
+     * The number of bytes received, after decompression.
+     */
+    protected long bytes = -1;
+
+    /**
+     * The number of data rows received.
+     */
+    protected int rows = 0;
+
+    /**
+     * The HTTP status code, or 0 if no response was received.
+     */
+    protected int statusCode = 0;
+
+    /**
+     * The error which made the request fail, or null.
+     */
+    protected Throwable error;
+
+    /**
+     * The "validation" metadata of the response, or null.
+     */
+    protected JsonObject validation;
+
+    /**
+     * Creates new request measurements.
+     *
+     * @param url
+     *            The requested URL.
+     */
+    public RequestMetrics(String url) {
+        this.url = url;
+    }
+
+    /**
+     * @return The requested URL.
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return The number of the attempt, starting at 1.
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    /**
+     * @param attempt
+     *            The number of the attempt, starting at 1.
+     */
+    public void setAttempt(int attempt) {
+        this.attempt = attempt;
+    }
+
+    /**
+     * @return Whether the response was read from the cache.
+     */
+    public boolean isCached() {
+        return cached;
+    }
+
+    /**
+     * @param cached
+     *            Whether the response was read from the cache.
+     */
+    public void setCached(boolean cached) {
+        this.cached = cached;
+    }
+
+    /**
+     * @return Whether the response was looked up in the cache but not found.
+     */
+    public boolean isCacheMiss() {
+        return cacheMiss;
+    }
+
+    /**
+     * @param cacheMiss
+     *            Whether the response was looked up in the cache but not
+     *            found.
+     */
+    public void setCacheMiss(boolean cacheMiss) {
+        this.cacheMiss = cacheMiss;
+    }
+
+    /**
+     * @return The time spent waiting for the request scheduler.
+     */
+    public long getQueueWaitTime() {
+        return queueWaitTime;
+    }
+
+    /**
+     * @param queueWaitTime
+     *            The time spent waiting for the request scheduler.
+     */
+    public void setQueueWaitTime(long queueWaitTime) {
+        this.queueWaitTime = queueWaitTime;
+    }
+
+    /**
+     * @return The time spent opening a new connection, or -1 if a pooled
+     *         connection was used.
+     */
+    public long getConnectTime() {
+        return connectTime;
+    }
+
+    /**
+     * @param connectTime
+     *            The time spent opening a new connection.
+     */
+    public void setConnectTime(long connectTime) {
+        this.connectTime = connectTime;
+    }
+
+    /**
+     * @return The time between sending the request and receiving the
+     *         response headers.
+     */
+    public long getFirstByteTime() {
+        return firstByteTime;
+    }
+
+    /**
+     * @param firstByteTime
+     *            The time between sending the request and receiving the
+     *            response headers.
+     */
+    public void setFirstByteTime(long firstByteTime) {
+        this.firstByteTime = firstByteTime;
+    }
+
+    /**
+     * @return The time spent waiting for the response body.
+     */
+    public long getDownloadTime() {
+        return downloadTime;
+    }
+
+    /**
+     * @param downloadTime
+     *            The time spent waiting for the response body.
+     */
+    public void setDownloadTime(long downloadTime) {
+        this.downloadTime = downloadTime;
+    }
+
+    /**
+     * @return The time spent decoding the response body.
+     */
+    public long getDecodeTime() {
+        return decodeTime;
+    }
+
+    /**
+     * @param decodeTime
+     *            The time spent decoding the response body.
+     */
+    public void setDecodeTime(long decodeTime) {
+        this.decodeTime = decodeTime;
+    }
+
+    /**
+     * @return The total time of the request.
+     */
+    public long getTotalTime() {
+        return totalTime;
+    }
+
+    /**
+     * @param totalTime
+     *            The total time of the request.
+     */
+    public void setTotalTime(long totalTime) {
+        this.totalTime = totalTime;
+    }
+
+    /**
+     * @return The number of bytes received, or -1 if unknown.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @param bytes
+     *            The number of bytes received.
+     */
+    public void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return The number of data rows received.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * @param rows
+     *            The number of data rows received.
+     */
+    public void setRows(int rows) {
+        this.rows = rows;
+    }
+
+    /**
+     * @return The HTTP status code, or 0 if no response was received.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @param statusCode
+     *            The HTTP status code.
+     */
+    public void setStatusCode(int statusCode) {
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * @return The error which made the request fail, or null if it
+     *         succeeded.
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * @param error
+     *            The error which made the request fail.
+     */
+    public void setError(Throwable error) {
+        this.error = error;
+    }
+
+    /**
+     * @return The "validation" metadata of the response, or null.
+     */
+    public JsonObject getValidation() {
+        return validation;
+    }
+
+    /**
+     * @param validation
+     *            The "validation" metadata of the response.
+     */
+    public void setValidation(JsonObject validation) {
+        this.validation = validation;
+    }
+
+    /**
+     * Reads a timer reported by the API in the "validation" metadata, such as
+     * "count" or "datasetTimer".
+     *
+     * @param timer
+     *            The name of the timer.
+     *
+     * @return The reported duration in nanoseconds, or -1 if the timer is
+     *         missing.
+     */
+    public long getApiTime(String timer) {
+        JsonElement element = validation == null ? null : validation.get(timer);
+        if (element == null || !element.isJsonObject()) {
+            return -1;
+        }
+        JsonElement seconds = element.getAsJsonObject().get("durationSeconds");
+        if (seconds == null || !seconds.isJsonPrimitive() || !seconds.getAsJsonPrimitive().isNumber()) {
+            return -1;
+        }
+        return (long) (seconds.getAsDouble() * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Override
+    public String toString() {
+        return url + " attempt=" + attempt + " status=" + statusCode + " rows=" + rows + " bytes=" + bytes
+                + " total=" + TimeUnit.NANOSECONDS.toMillis(totalTime) + "ms"
+                + (cached ? " cached" : "") + (error != null ? " error=" + error : "");
+    }
+
+}
@@ -0,0 +1,287 @@
+package at.okfn.uncomtrade.parameters;
+
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+
+/**
+ * An immutable search index over valid parameter values and their labels.
+ *
+ * All substrings of up to {@link #GRAM_LENGTH} characters of each value and
+ * label (in lower case) are mapped to the sorted positions of the entries
+ * containing them. Short inputs are answered by a single lookup; longer inputs
+ * intersect the lists of their substrings and verify the few remaining
+ * candidates. Entries are kept ordered by label, so results need no further
+ * sorting.
+ *
+ * This class is thread-safe.
+ */
+public class ParameterIndex {
+
+    /**
+     * The maximum length of the indexed substrings.
+     */
+    protected static final int GRAM_LENGTH = 3;
+
+    /**
+     * The values and labels, ordered by label.
+     */
+    protected final List<Entry<String, String>> entries;
+
+    /**
+     * The lower-case values, in the order of the entries.
+     */
+    protected final String[] lowerValues;
+
+    /**
+     * The lower-case labels, in the order of the entries.
+     */
+    protected final String[] lowerLabels;
+
+    /**
+     * The sorted entry positions for each indexed substring.
+     */
+    protected final Map<String, int[]> postings = new HashMap<String, int[]>();
+
+    /**
+     * All entries as a sorted set.
+     */
+    protected final SortedSet<Entry<String, String>> sortedEntries;
+
+    /**
+     * Creates a new index.
+     *
+     * @param values
+     *            The valid parameter values mapped to their labels.
+     * @param comparator
+     *            The order in which to keep the entries.
+     */
+    public ParameterIndex(Map<String, String> values, Comparator<Entry<String, String>> comparator) {
+        List<Entry<String, String>> sorted = new ArrayList<Entry<String, String>>();
+        for (Entry<String, String> entry : values.entrySet()) {
+            sorted.add(new SimpleImmutableEntry<String, String>(entry.getKey(), entry.getValue()));
+        }
+        Collections.sort(sorted, comparator);
+        entries = Collections.unmodifiableList(sorted);
+
+        TreeSet<Entry<String, String>> set = new TreeSet<Entry<String, String>>(comparator);
+        set.addAll(sorted);
+        sortedEntries = Collections.unmodifiableSortedSet(set);
+
+        lowerValues = new String[sorted.size()];
+        lowerLabels = new String[sorted.size()];
+        Map<String, List<Integer>> lists = new HashMap<String, List<Integer>>();
+        for (int i = 0; i < sorted.size(); ++i) {
+            lowerValues[i] = sorted.get(i).getKey().toLowerCase(Locale.ROOT);
+            lowerLabels[i] = sorted.get(i).getValue().toLowerCase(Locale.ROOT);
+            addGrams(lists, lowerValues[i], i);
+            addGrams(lists, lowerLabels[i], i);
+        }
+        for (Entry<String, List<Integer>> list : lists.entrySet()) {
+            int[] positions = new int[list.getValue().size()];
+            for (int i = 0; i < positions.length; ++i) {
+                positions[i] = list.getValue().get(i);
+            }
+            postings.put(list.getKey(), positions);
+        }
+    }
+
+    /**
+     * Adds all short substrings of a string to the posting lists.
+     *
+     * @param lists
+     *            The posting lists being built.
+     * @param text
+     *            The lower-case string.
+     * @param position
+     *            The position of the entry containing the string.
+     */
+    protected static void addGrams(Map<String, List<Integer>> lists, String text, int position) {
+        for (int start = 0; start < text.length(); ++start) {
+            for (int end = start + 1; end <= Math.min(start + GRAM_LENGTH, text.length()); ++end) {
+                String gram = text.substring(start, end);
+                List<Integer> list = lists.get(gram);
+                if (list == null) {
+                    list = new ArrayList<Integer>();
+                    lists.put(gram, list);
+                }
+                // Positions are added in ascending order, so only the last one
+                // can be a duplicate.
+                if (list.isEmpty() || list.get(list.size() - 1) != position) {
+                    list.add(position);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of entries in the index.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return All values mapped to their labels, ordered by label.
+     */
+    public Map<String, String> getValues() {
+        return toMap(null, entries.size());
+    }
+
+    /**
+     * @return All entries as an unmodifiable sorted set.
+     */
+    public SortedSet<Entry<String, String>> getSortedValues() {
+        return sortedEntries;
+    }
+
+    /**
+     * Finds all entries whose value or label contains the given input,
+     * ignoring case.
+     *
+     * @param input
+     *            The string to search for.
+     *
+     * @return The matching values mapped to their labels, ordered by label.
+     */
+    public Map<String, String> find(String input) {
+        int[] positions = findPositions(input.toLowerCase(Locale.ROOT));
+        return positions == null ? toMap(null, entries.size()) : toMap(positions, positions.length);
+    }
+
+    /**
+     * Finds all entries whose value or label contains the given input,
+     * ignoring case.
+     *
+     * @param input
+     *            The string to search for.
+     *
+     * @return The matching entries as an unmodifiable sorted set.
+     */
+    public SortedSet<Entry<String, String>> findSorted(String input) {
+        int[] positions = findPositions(input.toLowerCase(Locale.ROOT));
+        if (positions == null) {
+            return sortedEntries;
+        }
+        TreeSet<Entry<String, String>> set = new TreeSet<Entry<String, String>>(sortedEntries.comparator());
+        for (int position : positions) {
+            set.add(entries.get(position));
+        }
+        return Collections.unmodifiableSortedSet(set);
+    }
+
+    /**
+     * Finds the positions of all matching entries.
+     *
+     * @param input
+     *            The lower-case string to search for.
+     *
+     * @return The sorted positions of the matching entries, or null if all
+     *         entries match.
+     */
+    protected int[] findPositions(String input) {
+        if (input.isEmpty()) {
+            return null;
+        }
+        if (input.length() <= GRAM_LENGTH) {
+            int[] positions = postings.get(input);
+            return positions == null ? new int[0] : positions;
+        }
+
+        // Intersect the lists of all (overlapping) grams, shortest first.
+        int gramCount = input.length() - GRAM_LENGTH + 1;
+        int[][] lists = new int[gramCount][];
+        for (int i = 0; i < gramCount; ++i) {
+            lists[i] = postings.get(input.substring(i, i + GRAM_LENGTH));
+            if (lists[i] == null) {
+                return new int[0];
+            }
+        }
+        Arrays.sort(lists, new Comparator<int[]>() {
+
+            @Override
+            public int compare(int[] o1, int[] o2) {
+                return Integer.compare(o1.length, o2.length);
+            }
+
+        });
+        int[] candidates = lists[0];
+        for (int i = 1; i < lists.length && candidates.length > 0; ++i) {
+            candidates = intersect(candidates, lists[i]);
+        }
+
+        // Matching grams might stem from the value and the label, or from
+        // different places, so the candidates have to be checked.
+        int[] positions = new int[candidates.length];
+        int count = 0;
+        for (int position : candidates) {
+            if (lowerValues[position].contains(input) || lowerLabels[position].contains(input)) {
+                positions[count++] = position;
+            }
+        }
+        return Arrays.copyOf(positions, count);
+    }
+
+    /**
+     * Intersects two sorted position lists.
+     *
+     * @param a
+     *            The first list.
+     * @param b
+     *            The second list.
+     *
+     * @return The positions contained in both lists.
+     */
+    protected static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                ++i;
+            }
+            else if (a[i] > b[j]) {
+                ++j;
+            }
+            else {
+                result[count++] = a[i];
+                ++i;
+                ++j;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Copies entries into a new map.
+     *
+     * @param positions
+     *            The positions of the entries to copy, or null for all.
+     * @param count
+     *            The number of entries to copy.
+     *
+     * @return A new modifiable map of the entries, ordered by label.
+     */
+    protected Map<String, String> toMap(int[] positions, int count) {
+        Map<String, String> values = new LinkedHashMap<String, String>(count * 4 / 3 + 1);
+        for (int i = 0; i < count; ++i) {
+            Entry<String, String> entry = entries.get(positions == null ? i : positions[i]);
+            values.put(entry.getKey(), entry.getValue());
+        }
+        return values;
+    }
+
+}
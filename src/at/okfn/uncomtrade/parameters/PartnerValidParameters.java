@@ -0,0 +1,14 @@
+package at.okfn.uncomtrade.parameters;
+
+
+/**
+ * Exposes the valid values for the partner area ("p") parameter.
+ */
+public class PartnerValidParameters extends ValidParameters {
+
+    @Override
+    protected String getUrl() {
+        return "http://comtrade.un.org/data/cache/partnerAreas.json";
+    }
+
+}
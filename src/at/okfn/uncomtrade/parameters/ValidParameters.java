@@ -2,18 +2,25 @@ package at.okfn.uncomtrade.parameters;
 
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.Reader;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.SortedSet;
 import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
@@ -24,20 +31,48 @@ import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 
+import at.okfn.uncomtrade.HttpConnectionPool;
 import at.okfn.uncomtrade.Parameters;
+import at.okfn.uncomtrade.cache.ResponseCache;
+import at.okfn.uncomtrade.cache.TeeInputStream;
 
 
 /**
  * Base class for classes providing information about possible parameter values.
+ *
+ * The values of each remote list are downloaded once and kept in memory,
+ * together with a {@link ParameterIndex} for fast substring lookups, until
+ * the cache lifetime expires. Optionally, the downloaded lists are also
+ * stored in a {@link ResponseCache}, so they survive restarts.
+ *
+ * Concurrent lookups of the same list wait for a single download, while
+ * lists from different URLs are downloaded independently.
  */
 public abstract class ValidParameters {
 
+    /**
+     * The cached indexes, or the downloads in progress, keyed by the URL of
+     * their list.
+     */
+    private static final ConcurrentMap<String, Future<CachedIndex>> indexes =
+            new ConcurrentHashMap<String, Future<CachedIndex>>();
+
+    /**
+     * How long downloaded lists stay valid, in milliseconds.
+     */
+    private static volatile long cacheTimeToLive = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * The on-disk cache for downloaded lists, or null.
+     */
+    private static volatile ResponseCache responseCache;
+
     /**
      * Creates a new ValidParameters instance for the given parameter.
      *
@@ -55,11 +90,113 @@ public abstract class ValidParameters {
             case Parameters.REPORTER:
                 return new ReporterValidParameters();
 
+            case Parameters.PARTNER_AREA:
+                return new PartnerValidParameters();
+
             default:
                 throw new IllegalArgumentException("No known parameter: " + parameter);
         }
     }
 
+    /**
+     * Sets how long downloaded lists of valid values stay valid.
+     *
+     * @param timeToLive
+     *            The validity, in milliseconds. Defaults to one day.
+     */
+    public static void setCacheTimeToLive(long timeToLive) {
+        cacheTimeToLive = timeToLive;
+    }
+
+    /**
+     * Sets the on-disk cache for downloaded lists of valid values.
+     *
+     * @param cache
+     *            The cache to use, or null to only keep the lists in memory.
+     *            Defaults to null.
+     */
+    public static void setResponseCache(ResponseCache cache) {
+        responseCache = cache;
+    }
+
+    /**
+     * Discards all lists of valid values kept in memory.
+     */
+    public static void clearCache() {
+        indexes.clear();
+    }
+
+    /**
+     * @return The URL of the remote JSON resource listing the valid values, or
+     *         null if there is none.
+     */
+    protected String getUrl() {
+        return null;
+    }
+
+    /**
+     * Retrieves the search index over the valid values, downloading them if
+     * they are not cached yet.
+     *
+     * @return The search index for this parameter.
+     *
+     * @throws IOException
+     *             If any I/O error occurred.
+     */
+    public ParameterIndex getIndex() throws IOException {
+        final String url = getUrl();
+        if (url == null) {
+            return new ParameterIndex(new TreeMap<String, String>(), getMapEntryComparator());
+        }
+        while (true) {
+            Future<CachedIndex> future = indexes.get(url);
+            if (future == null) {
+                FutureTask<CachedIndex> download = new FutureTask<CachedIndex>(new Callable<CachedIndex>() {
+
+                    @Override
+                    public CachedIndex call() throws IOException {
+                        ParameterIndex index = new ParameterIndex(readFromJson(url), getMapEntryComparator());
+                        long timeToLive = cacheTimeToLive;
+                        long expires = timeToLive > Long.MAX_VALUE - System.currentTimeMillis() ? Long.MAX_VALUE
+                                : System.currentTimeMillis() + timeToLive;
+                        return new CachedIndex(index, expires);
+                    }
+
+                });
+                future = indexes.putIfAbsent(url, download);
+                if (future == null) {
+                    future = download;
+                    download.run();
+                }
+            }
+
+            CachedIndex cached;
+            try {
+                cached = future.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a list of valid values.");
+            }
+            catch (ExecutionException e) {
+                // Let the next lookup try again.
+                indexes.remove(url, future);
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            }
+            if (cached.expires >= System.currentTimeMillis()) {
+                return cached.index;
+            }
+            indexes.remove(url, future);
+        }
+    }
+
     /**
      * Retrieve valid parameter values for this parameter.
      *
@@ -69,7 +206,7 @@ public abstract class ValidParameters {
      *             If any I/O error occurred.
      */
     public Map<String, String> getValues() throws IOException {
-        return new TreeMap<String, String>();
+        return getIndex().getValues();
     }
 
     /**
@@ -85,17 +222,7 @@ public abstract class ValidParameters {
      *             If any I/O error occurred.
      */
     public Map<String, String> getValues(String input) throws IOException {
-        input = input.toLowerCase();
-        Map<String, String> values = getValues();
-        Iterator<Entry<String, String>> it = values.entrySet().iterator();
-        while (it.hasNext()) {
-            Entry<String, String> element = it.next();
-            if (element.getKey().toLowerCase().indexOf(input) < 0
-                    && element.getValue().toLowerCase().indexOf(input) < 0) {
-                it.remove();
-            }
-        }
-        return values;
+        return getIndex().find(input);
     }
 
     /**
@@ -104,15 +231,13 @@ public abstract class ValidParameters {
      * The set is sorted by the human-readable labels, which are the map entry
      * values.
      *
-     * @return A sorted set of valid parameter values.
+     * @return An unmodifiable sorted set of valid parameter values.
      *
      * @throws IOException
      *             If any I/O error occurred.
      */
     public SortedSet<Entry<String, String>> getSortedValues() throws IOException {
-        SortedSet<Entry<String, String>> sortedSet = new TreeSet<>(getMapEntryComparator());
-        sortedSet.addAll(getValues().entrySet());
-        return sortedSet;
+        return getIndex().getSortedValues();
     }
 
     /**
@@ -125,15 +250,13 @@ public abstract class ValidParameters {
      *            The user input which should be matched against the possible
      *            parameter values (both values and their labels).
      *
-     * @return A sorted set of valid parameter values.
+     * @return An unmodifiable sorted set of valid parameter values.
      *
      * @throws IOException
      *             If any I/O error occurred.
      */
     public SortedSet<Entry<String, String>> getSortedValues(String input) throws IOException {
-        SortedSet<Entry<String, String>> sortedSet = new TreeSet<>(getMapEntryComparator());
-        sortedSet.addAll(getValues(input).entrySet());
-        return sortedSet;
+        return getIndex().findSorted(input);
     }
 
     /**
@@ -162,7 +285,21 @@ public abstract class ValidParameters {
      * @throws IOException
      *             If any I/O error occurred.
      */
-    protected static Map<String, String> readFromJson(String url) throws IOException {
+    protected static Map<String, String> readFromJson(final String url) throws IOException {
+        final ResponseCache cache = responseCache;
+        final long timeToLive = cacheTimeToLive;
+        if (cache != null) {
+            Reader cached = cache.get(url);
+            if (cached != null) {
+                try {
+                    return parseValues(cached);
+                }
+                finally {
+                    cached.close();
+                }
+            }
+        }
+
         ResponseHandler<Map<String, String>> rh = new ResponseHandler<Map<String, String>>() {
 
             @Override
@@ -180,23 +317,96 @@ public abstract class ValidParameters {
                 if (charset == null) {
                     charset = StandardCharsets.UTF_8;
                 }
-                Reader reader = new InputStreamReader(entity.getContent(), charset);
-                JsonParser parser = new JsonParser();
-                JsonObject responseObject = parser.parse(reader).getAsJsonObject();
-
-                Map<String, String> results = new HashMap<String, String>();
-                for (JsonElement element : responseObject.get("results").getAsJsonArray()) {
-                    String id = element.getAsJsonObject().get("id").getAsString();
-                    String label = element.getAsJsonObject().get("text").getAsString();
-                    results.put(id, label);
+                InputStream content = entity.getContent();
+                ResponseCache.Entry cacheEntry = null;
+                if (cache != null) {
+                    try {
+                        cacheEntry = cache.put(url, charset, timeToLive);
+                        content = new TeeInputStream(content, cacheEntry);
+                    }
+                    catch (IOException e) {}
+                }
+                try {
+                    Map<String, String> results = parseValues(new InputStreamReader(content, charset));
+                    if (cacheEntry != null) {
+                        try {
+                            cacheEntry.commit();
+                        }
+                        catch (IOException e) {}
+                    }
+                    return results;
+                }
+                finally {
+                    if (cacheEntry != null) {
+                        cacheEntry.abort();
+                    }
                 }
-                return results;
             }
 
         };
 
-        CloseableHttpClient httpClient = HttpClients.createDefault();
+        CloseableHttpClient httpClient = HttpConnectionPool.getDefault().getHttpClient();
         return httpClient.execute(new HttpGet(url), rh);
     }
 
+    /**
+     * Parses a list of valid parameter values.
+     *
+     * @param reader
+     *            The reader providing the JSON list.
+     *
+     * @return The valid parameter values mapped to their labels.
+     *
+     * @throws IOException
+     *             If the list could not be read or is malformed.
+     */
+    protected static Map<String, String> parseValues(Reader reader) throws IOException {
+        JsonObject responseObject;
+        try {
+            JsonParser parser = new JsonParser();
+            responseObject = parser.parse(reader).getAsJsonObject();
+        }
+        catch (JsonParseException | IllegalStateException e) {
+            throw new IOException("Malformed list of valid values.", e);
+        }
+
+        Map<String, String> results = new HashMap<String, String>();
+        for (JsonElement element : responseObject.get("results").getAsJsonArray()) {
+            String id = element.getAsJsonObject().get("id").getAsString();
+            String label = element.getAsJsonObject().get("text").getAsString();
+            results.put(id, label);
+        }
+        return results;
+    }
+
+    /**
+     * A search index kept in memory, with its expiration time.
+     */
+    private static class CachedIndex {
+
+        /**
+         * The search index.
+         */
+        private final ParameterIndex index;
+
+        /**
+         * The time at which the index expires, in milliseconds since the epoch.
+         */
+        private final long expires;
+
+        /**
+         * Creates a new cached index.
+         *
+         * @param index
+         *            The search index.
+         * @param expires
+         *            The time at which the index expires.
+         */
+        private CachedIndex(ParameterIndex index, long expires) {
+            this.index = index;
+            this.expires = expires;
+        }
+
+    }
+
 }
@@ -0,0 +1,161 @@
+package at.okfn.uncomtrade.resilience;
+
+
+import java.util.concurrent.TimeUnit;
+
+import at.okfn.uncomtrade.scheduling.Clock;
+
+
+/**
+ * Stops sending requests while the API keeps failing.
+ *
+ * After a number of consecutive failures the breaker opens, and requests fail
+ * immediately with a {@link CircuitOpenException}. Once the open time has
+ * passed, a single trial request is let through ("half open"): if it
+ * succeeds, the breaker closes again, otherwise it stays open for another
+ * period.
+ *
+ * This class is thread-safe.
+ */
+public class CircuitBreaker {
+
+    /**
+     * The possible states of a circuit breaker.
+     */
+    public enum State {
+        /**
+         * Requests are sent normally.
+         */
+        CLOSED,
+
+        /**
+         * Requests fail immediately.
+         */
+        OPEN,
+
+        /**
+         * A trial request is in flight; further requests fail immediately.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * The number of consecutive failures that open the breaker.
+     */
+    protected final int failureThreshold;
+
+    /**
+     * The time the breaker stays open, in nanoseconds.
+     */
+    protected final long openTime;
+
+    /**
+     * The clock to use.
+     */
+    protected final Clock clock;
+
+    /**
+     * The current state.
+     */
+    protected State state = State.CLOSED;
+
+    /**
+     * The number of consecutive failures so far.
+     */
+    protected int failures = 0;
+
+    /**
+     * The time at which the breaker was opened, in nanoseconds.
+     */
+    protected long openedAt;
+
+    /**
+     * Creates a new circuit breaker.
+     *
+     * @param failureThreshold
+     *            The number of consecutive failures that open the breaker.
+     * @param openTime
+     *            The time the breaker stays open before a trial request.
+     * @param unit
+     *            The time unit of the open time.
+     * @param clock
+     *            The clock to use.
+     */
+    public CircuitBreaker(int failureThreshold, long openTime, TimeUnit unit, Clock clock) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("The failure threshold has to be positive.");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openTime = unit.toNanos(openTime);
+        this.clock = clock;
+    }
+
+    /**
+     * Checks whether a request may be sent, and registers it as the trial
+     * request if the open time has passed.
+     *
+     * Every successful call has to be followed by a call to either
+     * {@link #recordSuccess()} or {@link #recordFailure()}.
+     *
+     * @throws CircuitOpenException
+     *             If the breaker is open.
+     */
+    public synchronized void acquire() throws CircuitOpenException {
+        switch (state) {
+            case CLOSED:
+                return;
+
+            case OPEN:
+                if (clock.nanoTime() - openedAt >= openTime) {
+                    state = State.HALF_OPEN;
+                    return;
+                }
+                break;
+
+            default:
+                break;
+        }
+        throw new CircuitOpenException("The API failed " + failures + " times in a row; not sending requests for "
+                + TimeUnit.NANOSECONDS.toSeconds(openTime) + " seconds.");
+    }
+
+    /**
+     * Registers a successful request, closing the breaker.
+     */
+    public synchronized void recordSuccess() {
+        failures = 0;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Registers a failed request, opening the breaker if there were too many
+     * consecutive failures or the trial request failed.
+     */
+    public synchronized void recordFailure() {
+        ++failures;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = clock.nanoTime();
+        }
+    }
+
+    /**
+     * Registers a request which neither succeeded nor failed, for example
+     * because it was cancelled.
+     */
+    public synchronized void recordIgnored() {
+        if (state == State.HALF_OPEN) {
+            // Let the next request try again.
+            state = State.OPEN;
+            openedAt = clock.nanoTime() - openTime;
+        }
+    }
+
+    /**
+     * @return The current state.
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+}
@@ -0,0 +1,27 @@
+package at.okfn.uncomtrade.resilience;
+
+
+import java.io.IOException;
+
+
+/**
+ * Signals that a request was not sent because the circuit breaker is open.
+ */
+public class CircuitOpenException extends IOException {
+
+    /**
+     * Creates a new exception.
+     *
+     * @param message
+     *            The detail message.
+     */
+    public CircuitOpenException(String message) {
+        super(message);
+    }
+
+    /**
+     * A serial ID for this version of the class.
+     */
+    private static final long serialVersionUID = -4409129364751850264L;
+
+}
@@ -0,0 +1,96 @@
+package at.okfn.uncomtrade.resilience;
+
+
+import java.util.Arrays;
+
+
+/**
+ * Decides when to send a second ("hedged") copy of a slow request.
+ *
+ * The latencies of recent successful requests are recorded. Once enough are
+ * known, a request still running after the given percentile of these
+ * latencies is sent a second time, and whichever copy finishes first is used.
+ * This cuts the tail latency at the cost of a few extra requests (about
+ * 100 - percentile percent).
+ *
+ * This class is thread-safe.
+ */
+public class HedgePolicy {
+
+    /**
+     * The latency percentile after which to hedge, between 0 and 1.
+     */
+    protected final double percentile;
+
+    /**
+     * The number of latencies needed before hedging starts.
+     */
+    protected final int minSamples;
+
+    /**
+     * The recent latencies, in milliseconds, as a ring buffer.
+     */
+    protected final long[] latencies;
+
+    /**
+     * The total number of recorded latencies.
+     */
+    protected long count = 0;
+
+    /**
+     * Creates a hedge policy hedging after the 95th percentile of the last
+     * 200 requests, once at least 20 are known.
+     */
+    public HedgePolicy() {
+        this(0.95, 20, 200);
+    }
+
+    /**
+     * Creates a new hedge policy.
+     *
+     * @param percentile
+     *            The latency percentile after which to hedge, between 0 and
+     *            1.
+     * @param minSamples
+     *            The number of latencies needed before hedging starts.
+     * @param windowSize
+     *            The number of recent latencies to consider.
+     */
+    public HedgePolicy(double percentile, int minSamples, int windowSize) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("The percentile has to be between 0 and 1.");
+        }
+        if (windowSize < 1 || minSamples > windowSize) {
+            throw new IllegalArgumentException("The window has to hold at least the minimum number of samples.");
+        }
+        this.percentile = percentile;
+        this.minSamples = Math.max(1, minSamples);
+        latencies = new long[windowSize];
+    }
+
+    /**
+     * Records the latency of a successful request.
+     *
+     * @param millis
+     *            The latency, in milliseconds.
+     */
+    public synchronized void record(long millis) {
+        latencies[(int) (count % latencies.length)] = millis;
+        ++count;
+    }
+
+    /**
+     * @return The time after which to send a hedged request, in
+     *         milliseconds, or -1 if not enough latencies are known yet.
+     */
+    public synchronized long getDelay() {
+        int size = (int) Math.min(count, latencies.length);
+        if (size < minSamples) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(latencies, size);
+        Arrays.sort(sorted);
+        return sorted[Math.min(size - 1, (int) Math.ceil(percentile * size) - 1)];
+    }
+
+}
@@ -0,0 +1,159 @@
+package at.okfn.uncomtrade.resilience;
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import at.okfn.uncomtrade.ApiResponseException;
+
+
+/**
+ * Decides whether and when a failed request is retried.
+ *
+ * Requests are retried after rate limiting (409, 429), server errors (500,
+ * 502, 503, 504) and connection problems. The delay grows exponentially with
+ * each attempt and is randomized ("full jitter"), so that clients which
+ * failed together do not retry together. If the API sent a "Retry-After"
+ * header, at least that long is waited.
+ *
+ * This class is thread-safe.
+ */
+public class RetryPolicy {
+
+    /**
+     * The maximum number of attempts, including the first one.
+     */
+    protected final int maxAttempts;
+
+    /**
+     * The maximum delay before the first retry, in milliseconds.
+     */
+    protected final long baseDelay;
+
+    /**
+     * The maximum delay before any retry, in milliseconds.
+     */
+    protected final long maxDelay;
+
+    /**
+     * The source of the random delays.
+     */
+    protected final Random random = new Random();
+
+    /**
+     * Creates a retry policy with up to four attempts, starting with up to
+     * one second of delay and waiting no longer than one minute.
+     */
+    public RetryPolicy() {
+        this(4, 1, 60, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Creates a new retry policy.
+     *
+     * @param maxAttempts
+     *            The maximum number of attempts, including the first one.
+     * @param baseDelay
+     *            The maximum delay before the first retry. It doubles with
+     *            every further retry.
+     * @param maxDelay
+     *            The maximum delay before any retry. A longer "Retry-After"
+     *            time makes the request fail instead.
+     * @param unit
+     *            The time unit of the delays.
+     */
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay, TimeUnit unit) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("At least one attempt has to be allowed.");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = unit.toMillis(baseDelay);
+        this.maxDelay = unit.toMillis(maxDelay);
+    }
+
+    /**
+     * @return The maximum number of attempts, including the first one.
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Checks whether an error is worth retrying.
+     *
+     * @param e
+     *            The error that occurred.
+     *
+     * @return Whether the error is likely to be transient.
+     */
+    public boolean isRetryable(IOException e) {
+        if (e instanceof ApiResponseException) {
+            switch (((ApiResponseException) e).getStatusCode()) {
+                case 409:
+                case 429:
+                case 500:
+                case 502:
+                case 503:
+                case 504:
+                    return true;
+
+                default:
+                    return false;
+            }
+        }
+        if (e instanceof CircuitOpenException) {
+            return false;
+        }
+        if (e instanceof SocketTimeoutException || e instanceof ConnectTimeoutException) {
+            return true;
+        }
+        if (e instanceof InterruptedIOException) {
+            // Cancelled or interrupted on purpose.
+            return false;
+        }
+        return e instanceof ConnectException || e instanceof NoHttpResponseException
+                || e instanceof UnknownHostException;
+    }
+
+    /**
+     * Determines how long to wait before the next attempt.
+     *
+     * @param attempt
+     *            The number of the failed attempt, starting at 1.
+     * @param e
+     *            The error that occurred.
+     *
+     * @return The delay in milliseconds, or -1 if the request should not be
+     *         retried.
+     */
+    public long getDelay(int attempt, IOException e) {
+        if (attempt >= maxAttempts || !isRetryable(e)) {
+            return -1;
+        }
+        long ceiling = baseDelay << Math.min(attempt - 1, 30);
+        if (ceiling <= 0 || ceiling > maxDelay) {
+            ceiling = maxDelay;
+        }
+        long delay;
+        synchronized (random) {
+            delay = (long) (random.nextDouble() * ceiling);
+        }
+        if (e instanceof ApiResponseException) {
+            long retryAfter = ((ApiResponseException) e).getRetryAfter();
+            if (retryAfter > maxDelay) {
+                return -1;
+            }
+            delay = Math.max(delay, retryAfter);
+        }
+        return delay;
+    }
+
+}
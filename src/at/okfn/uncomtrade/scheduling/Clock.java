@@ -0,0 +1,30 @@
+package at.okfn.uncomtrade.scheduling;
+
+
+/**
+ * Provides the current time and a way to wait, so that time-dependent code
+ * can be run against a simulated clock.
+ *
+ * @see SystemClock
+ * @see SimulatedClock
+ */
+public interface Clock {
+
+    /**
+     * @return The current time in nanoseconds, relative to an arbitrary
+     *         origin.
+     */
+    public long nanoTime();
+
+    /**
+     * Waits for the given time.
+     *
+     * @param nanos
+     *            The time to wait, in nanoseconds.
+     *
+     * @throws InterruptedException
+     *             If the current thread was interrupted while waiting.
+     */
+    public void sleep(long nanos) throws InterruptedException;
+
+}
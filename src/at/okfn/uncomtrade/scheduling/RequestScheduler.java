@@ -0,0 +1,261 @@
+package at.okfn.uncomtrade.scheduling;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Decides when requests may be sent, according to a set of rate quotas and a
+ * limit on concurrent requests.
+ *
+ * Each quota is enforced by a {@link TokenBucket}; a request may only start
+ * when all buckets have a token available and fewer than the maximum number of
+ * requests are in flight. Pending requests are queued by priority (higher
+ * first), then in order of arrival. Use like this:
+ *
+ * <pre>
+ *
+ * {@code
+ *     scheduler.acquire(0);
+ *     try {
+ *         // Send the request.
+ *     }
+ *     finally {
+ *         scheduler.release();
+ *     }
+ * }
+ * </pre>
+ *
+ * This class is thread-safe.
+ */
+public class RequestScheduler {
+
+    /**
+     * The scheduler shared by all clients which do not set their own.
+     */
+    private static RequestScheduler defaultScheduler;
+
+    /**
+     * The quotas to enforce.
+     */
+    protected final List<TokenBucket> buckets = new ArrayList<TokenBucket>();
+
+    /**
+     * The maximum number of concurrent requests.
+     */
+    protected final int maxInFlight;
+
+    /**
+     * The clock to use.
+     */
+    protected final Clock clock;
+
+    /**
+     * The pending requests, in the order in which they may start.
+     */
+    protected final PriorityQueue<Ticket> queue = new PriorityQueue<Ticket>();
+
+    /**
+     * The number of requests currently in flight.
+     */
+    protected int inFlight = 0;
+
+    /**
+     * The sequence number of the next pending request.
+     */
+    protected long sequence = 0;
+
+    /**
+     * Creates a new scheduler without any quotas.
+     *
+     * @param maxInFlight
+     *            The maximum number of concurrent requests.
+     * @param clock
+     *            The clock to use.
+     */
+    public RequestScheduler(int maxInFlight, Clock clock) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one concurrent request has to be allowed.");
+        }
+        this.maxInFlight = maxInFlight;
+        this.clock = clock;
+    }
+
+    /**
+     * Creates a scheduler for the quotas of the public UN Comtrade API: one
+     * request per second and 100 requests per hour.
+     *
+     * @param maxInFlight
+     *            The maximum number of concurrent requests.
+     * @param clock
+     *            The clock to use.
+     *
+     * @return A new scheduler.
+     */
+    public static RequestScheduler createForPublicApi(int maxInFlight, Clock clock) {
+        RequestScheduler scheduler = new RequestScheduler(maxInFlight, clock);
+        scheduler.addQuota(1, 1, TimeUnit.SECONDS);
+        scheduler.addQuota(100, 1, TimeUnit.HOURS);
+        return scheduler;
+    }
+
+    /**
+     * @return The scheduler shared by all clients which do not set their own,
+     *         enforcing the quotas of the public API with up to four
+     *         concurrent requests.
+     */
+    public static synchronized RequestScheduler getDefault() {
+        if (defaultScheduler == null) {
+            defaultScheduler = createForPublicApi(4, SystemClock.INSTANCE);
+        }
+        return defaultScheduler;
+    }
+
+    /**
+     * Adds a quota.
+     *
+     * @param requests
+     *            The maximum number of requests per period.
+     * @param period
+     *            The length of the period.
+     * @param unit
+     *            The time unit of the period.
+     */
+    public void addQuota(long requests, long period, TimeUnit unit) {
+        synchronized (queue) {
+            buckets.add(new TokenBucket(requests, period, unit, clock));
+        }
+    }
+
+    /**
+     * Waits until a request may be started, and registers it as in flight.
+     *
+     * Every successful call has to be followed by a call to
+     * {@link #release()} once the request is done.
+     *
+     * @param priority
+     *            The priority of the request. Requests with higher priority
+     *            are started first.
+     *
+     * @throws InterruptedException
+     *             If the current thread was interrupted while waiting.
+     */
+    public void acquire(int priority) throws InterruptedException {
+        Ticket ticket;
+        synchronized (queue) {
+            ticket = new Ticket(priority, sequence++);
+            queue.add(ticket);
+        }
+        try {
+            while (true) {
+                long wait = 0;
+                synchronized (queue) {
+                    if (queue.peek() != ticket || inFlight >= maxInFlight) {
+                        queue.wait();
+                        continue;
+                    }
+                    for (TokenBucket bucket : buckets) {
+                        wait = Math.max(wait, bucket.getWaitTime());
+                    }
+                    if (wait == 0) {
+                        for (TokenBucket bucket : buckets) {
+                            bucket.tryAcquire();
+                        }
+                        queue.poll();
+                        ++inFlight;
+                        queue.notifyAll();
+                        return;
+                    }
+                }
+                // Only the first request in the queue waits for the quotas.
+                clock.sleep(wait);
+            }
+        }
+        catch (InterruptedException e) {
+            synchronized (queue) {
+                queue.remove(ticket);
+                queue.notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Marks a request as done.
+     */
+    public void release() {
+        synchronized (queue) {
+            if (inFlight > 0) {
+                --inFlight;
+            }
+            queue.notifyAll();
+        }
+    }
+
+    /**
+     * @return The number of requests waiting to be started.
+     */
+    public int getQueueLength() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * @return The number of requests currently in flight.
+     */
+    public int getInFlight() {
+        synchronized (queue) {
+            return inFlight;
+        }
+    }
+
+    /**
+     * @return The maximum number of concurrent requests.
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * A pending request's place in the queue.
+     */
+    protected static class Ticket implements Comparable<Ticket> {
+
+        /**
+         * The priority of the request.
+         */
+        protected final int priority;
+
+        /**
+         * The order of arrival of the request.
+         */
+        protected final long sequence;
+
+        /**
+         * Creates a new ticket.
+         *
+         * @param priority
+         *            The priority of the request.
+         * @param sequence
+         *            The order of arrival of the request.
+         */
+        protected Ticket(int priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Ticket other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+
+    }
+
+}
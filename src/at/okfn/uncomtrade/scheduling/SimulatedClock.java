@@ -0,0 +1,59 @@
+package at.okfn.uncomtrade.scheduling;
+
+
+/**
+ * A clock which only advances when told to, for testing.
+ *
+ * Sleeping does not block, but advances the clock by the requested time
+ * instead.
+ */
+public class SimulatedClock implements Clock {
+
+    /**
+     * The current time, in nanoseconds.
+     */
+    protected long now;
+
+    /**
+     * Creates a new simulated clock, starting at 0.
+     */
+    public SimulatedClock() {
+        this(0);
+    }
+
+    /**
+     * Creates a new simulated clock.
+     *
+     * @param now
+     *            The initial time, in nanoseconds.
+     */
+    public SimulatedClock(long now) {
+        this.now = now;
+    }
+
+    @Override
+    public synchronized long nanoTime() {
+        return now;
+    }
+
+    @Override
+    public void sleep(long nanos) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        advance(nanos);
+    }
+
+    /**
+     * Advances the clock.
+     *
+     * @param nanos
+     *            The time to advance by, in nanoseconds.
+     */
+    public synchronized void advance(long nanos) {
+        if (nanos > 0) {
+            now += nanos;
+        }
+    }
+
+}
@@ -0,0 +1,27 @@
+package at.okfn.uncomtrade.scheduling;
+
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The real system clock.
+ */
+public class SystemClock implements Clock {
+
+    /**
+     * The shared instance.
+     */
+    public static final SystemClock INSTANCE = new SystemClock();
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public void sleep(long nanos) throws InterruptedException {
+        TimeUnit.NANOSECONDS.sleep(nanos);
+    }
+
+}
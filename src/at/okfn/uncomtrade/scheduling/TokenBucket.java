@@ -0,0 +1,99 @@
+package at.okfn.uncomtrade.scheduling;
+
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Limits the rate of events with the token bucket algorithm.
+ *
+ * The bucket holds up to a fixed number of tokens, and is refilled
+ * continuously so that it would go from empty to full within the given
+ * period. Each event takes one token. This allows bursts of up to the bucket
+ * capacity, while keeping the long-term rate at the configured quota.
+ *
+ * This class is thread-safe.
+ */
+public class TokenBucket {
+
+    /**
+     * The maximum number of tokens.
+     */
+    protected final long capacity;
+
+    /**
+     * The time it takes to refill one token, in nanoseconds.
+     */
+    protected final long nanosPerToken;
+
+    /**
+     * The clock to use.
+     */
+    protected final Clock clock;
+
+    /**
+     * The time at which the bucket was last full, in nanoseconds. The
+     * current number of tokens is derived from this.
+     */
+    protected long fullAt;
+
+    /**
+     * Creates a new, full token bucket.
+     *
+     * @param capacity
+     *            The maximum number of events per period.
+     * @param period
+     *            The length of the period.
+     * @param unit
+     *            The time unit of the period.
+     * @param clock
+     *            The clock to use.
+     */
+    public TokenBucket(long capacity, long period, TimeUnit unit, Clock clock) {
+        if (capacity < 1 || period < 1) {
+            throw new IllegalArgumentException("Capacity and period of a token bucket have to be positive.");
+        }
+        this.capacity = capacity;
+        this.nanosPerToken = Math.max(1, unit.toNanos(period) / capacity);
+        this.clock = clock;
+        fullAt = clock.nanoTime();
+    }
+
+    /**
+     * @return The maximum number of tokens.
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The number of currently available tokens.
+     */
+    public synchronized long getAvailableTokens() {
+        long missing = (fullAt - clock.nanoTime() + nanosPerToken - 1) / nanosPerToken;
+        return capacity - Math.max(0, missing);
+    }
+
+    /**
+     * @return The time until the next token is available, in nanoseconds, or
+     *         0 if one is available now.
+     */
+    public synchronized long getWaitTime() {
+        long emptyUntil = fullAt - capacity * nanosPerToken;
+        return Math.max(0, emptyUntil + nanosPerToken - clock.nanoTime());
+    }
+
+    /**
+     * Takes a token, if one is available.
+     *
+     * @return Whether a token was taken.
+     */
+    public synchronized boolean tryAcquire() {
+        if (getWaitTime() > 0) {
+            return false;
+        }
+        fullAt = Math.max(fullAt, clock.nanoTime()) + nanosPerToken;
+        return true;
+    }
+
+}
@@ -0,0 +1,511 @@
+package at.okfn.uncomtrade.store;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import at.okfn.uncomtrade.DataRow;
+import at.okfn.uncomtrade.DataRowHandler;
+import at.okfn.uncomtrade.DataSet;
+import at.okfn.uncomtrade.Parameters;
+import at.okfn.uncomtrade.Query;
+import at.okfn.uncomtrade.QueryPlanner;
+import at.okfn.uncomtrade.SnapshotReader;
+import at.okfn.uncomtrade.SnapshotWriter;
+import at.okfn.uncomtrade.UNComtrade;
+
+
+/**
+ * Keeps retrieved data rows in a local, persistent store, so repeated queries
+ * over the same reporters, partners, periods and commodities do not need to
+ * contact the API again.
+ *
+ * The store is partitioned by trade data type, classification, data frequency
+ * and period. A query is answered from the partitions of its periods; only
+ * partitions which do not yet hold the query's selection of reporters, partner
+ * areas, trade flows and classification codes are retrieved from the API
+ * (completely, through a {@link QueryPlanner}), and their data rows are merged
+ * in. Each retrieval is appended to its partition as a new segment file,
+ * which is memory-mapped when reading. Use like this:
+ *
+ * <pre>
+ *
+ * {@code
+ *     LocalTradeStore store = new LocalTradeStore(new File("trade-data"), client);
+ *     store.setReporter("40");
+ *     store.setTimePeriod("2012,2013,2014");
+ *     DataSet results = store.retrieve();
+ * }
+ * </pre>
+ *
+ * Only explicit periods (years, or years and months) can be stored. Periods
+ * are stored as given, so for monthly data, "2012" and "201201" are separate
+ * partitions.
+ *
+ * This class is thread-safe; retrievals are processed one at a time. Changing
+ * the settings does not wait for a running retrieval.
+ */
+public class LocalTradeStore {
+
+    /**
+     * The directory holding the partitions.
+     */
+    protected final File directory;
+
+    /**
+     * The client used for retrieving missing partitions.
+     */
+    protected final UNComtrade client;
+
+    /**
+     * The settings used by {@link #retrieve()}. Access is synchronized on the
+     * builder itself.
+     */
+    protected final Query.Builder builder;
+
+    /**
+     * The maximum number of concurrent requests for retrieving a partition.
+     */
+    protected volatile int parallelism = 4;
+
+    /**
+     * How long retrieved segments stay valid, in milliseconds, or 0 to keep
+     * them forever.
+     */
+    protected volatile long timeToLive = 0;
+
+    /**
+     * The partitions opened so far, by directory path.
+     */
+    protected final Map<String, Partition> partitions = new HashMap<String, Partition>();
+
+    /**
+     * Opens a local store.
+     *
+     * @param directory
+     *            The directory holding the store. It is created if it does
+     *            not exist yet.
+     * @param client
+     *            The client to use for retrieving data missing from the
+     *            store. The store's settings start out as a copy of the
+     *            client's current ones.
+     *
+     * @throws IOException
+     *             If the directory could not be created.
+     */
+    public LocalTradeStore(File directory, UNComtrade client) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create store directory " + directory + ".");
+        }
+        this.directory = directory;
+        this.client = client;
+        builder = client.toQuery().toBuilder();
+    }
+
+    /**
+     * Retrieves the data set with the current settings.
+     *
+     * @return The requested data set.
+     */
+    public DataSet retrieve() throws IOException {
+        return retrieve(toQuery());
+    }
+
+    /**
+     * Retrieves the data set for a query.
+     *
+     * @param query
+     *            The query to retrieve. Its limit is ignored.
+     *
+     * @return The requested data set, merged from all of the query's
+     *         partitions.
+     *
+     * @throws IllegalArgumentException
+     *             If the query's time period is not a list of explicit
+     *             periods.
+     */
+    public DataSet retrieve(Query query) throws IOException {
+        final DataSet dataSet = new DataSet();
+        retrieve(query, new DataRowHandler() {
+
+            @Override
+            public void handle(DataRow row) {
+                dataSet.add(row);
+            }
+
+        });
+        return dataSet;
+    }
+
+    /**
+     * Retrieves all data rows for a query.
+     *
+     * @param query
+     *            The query to retrieve. Its limit is ignored.
+     * @param handler
+     *            The handler to pass the data rows to.
+     *
+     * @return The number of data rows retrieved.
+     *
+     * @throws IllegalArgumentException
+     *             If the query's time period is not a list of explicit
+     *             periods.
+     */
+    public synchronized int retrieve(Query query, DataRowHandler handler) throws IOException {
+        return retrieve(query, handler, false);
+    }
+
+    /**
+     * Retrieves the data rows for a query from the API again, replacing the
+     * stored ones.
+     *
+     * @param query
+     *            The query to refresh.
+     *
+     * @return The number of data rows retrieved.
+     *
+     * @throws IllegalArgumentException
+     *             If the query's time period is not a list of explicit
+     *             periods.
+     */
+    public synchronized int refresh(Query query) throws IOException {
+        return retrieve(query, new DataRowHandler() {
+
+            @Override
+            public void handle(DataRow row) {}
+
+        }, true);
+    }
+
+    /**
+     * Retrieves all data rows for a query.
+     *
+     * @param query
+     *            The query to retrieve.
+     * @param handler
+     *            The handler to pass the data rows to.
+     * @param refresh
+     *            Whether to retrieve all partitions from the API, even if
+     *            they are stored already.
+     *
+     * @return The number of data rows retrieved.
+     */
+    protected int retrieve(Query query, DataRowHandler handler, boolean refresh) throws IOException {
+        Segment wanted = new Segment(null, query, 0, 0);
+        long retrievedAfter = timeToLive > 0 ? System.currentTimeMillis() - timeToLive : 0;
+        int count = 0;
+        for (String period : getPeriods(query)) {
+            Query periodQuery = query.toBuilder().setTimePeriod(period).setLimit(Query.MAX_LIMIT).build();
+            Partition partition = getPartition(periodQuery);
+            if (refresh || !partition.covers(wanted, retrievedAfter)) {
+                DataSet incomplete = fetch(partition, periodQuery);
+                if (incomplete != null) {
+                    for (DataRow row : incomplete) {
+                        handler.handle(row);
+                    }
+                    count += incomplete.size();
+                    continue;
+                }
+            }
+            count += read(partition, wanted, handler);
+        }
+        return count;
+    }
+
+    /**
+     * Retrieves a partition's data rows for a query from the API and adds
+     * them as a new segment.
+     *
+     * @param partition
+     *            The partition.
+     * @param query
+     *            The query, for a single period.
+     *
+     * @return Null if the data rows were stored, or the retrieved data rows
+     *         if the result is incomplete and was not stored, since it cannot
+     *         be split into small enough queries.
+     */
+    protected DataSet fetch(Partition partition, Query query) throws IOException {
+        File file = partition.createSegmentFile();
+        QueryPlanner planner = new QueryPlanner(client, query);
+        planner.setParallelism(parallelism);
+        long started = System.currentTimeMillis();
+        int rows;
+        try (SnapshotWriter writer = new SnapshotWriter(new FileOutputStream(file), false)) {
+            rows = planner.retrieve(writer);
+        }
+        catch (IOException | RuntimeException e) {
+            file.delete();
+            throw e;
+        }
+
+        if (!planner.getTruncatedUrls().isEmpty()) {
+            try {
+                return SnapshotReader.readAll(file);
+            }
+            finally {
+                file.delete();
+            }
+        }
+        partition.add(new Segment(file.getName(), query, started, rows));
+        return null;
+    }
+
+    /**
+     * Reads the stored data rows selected by a query from a partition.
+     *
+     * @param partition
+     *            The partition.
+     * @param wanted
+     *            The selection of the query.
+     * @param handler
+     *            The handler to pass the data rows to.
+     *
+     * @return The number of data rows read.
+     */
+    protected int read(Partition partition, Segment wanted, DataRowHandler handler) throws IOException {
+        List<Segment> segments = partition.getSegments();
+        List<Segment> newer = new ArrayList<Segment>();
+        int count = 0;
+        for (int i = segments.size() - 1; i >= 0; --i) {
+            Segment segment = segments.get(i);
+            try (SnapshotReader reader = SnapshotReader.open(partition.getFile(segment))) {
+                rows:
+                while (reader.hasNext()) {
+                    DataRow row = reader.next();
+                    if (!wanted.matches(row) || !segment.matches(row)) {
+                        continue;
+                    }
+                    // Rows selected by a newer segment have been read from there.
+                    for (Segment other : newer) {
+                        if (other.matches(row)) {
+                            continue rows;
+                        }
+                    }
+                    handler.handle(row);
+                    ++count;
+                }
+            }
+            newer.add(segment);
+        }
+        return count;
+    }
+
+    /**
+     * Opens the partition holding a query's data rows.
+     *
+     * @param query
+     *            The query, for a single period.
+     *
+     * @return The partition.
+     */
+    protected Partition getPartition(Query query) throws IOException {
+        String path = sanitize(query.getParam(Parameters.TRADE_DATA_TYPE)) + File.separator
+                + sanitize(query.getParam(Parameters.CLASSIFICATION)) + File.separator
+                + sanitize(query.getParam(Parameters.DATA_FREQUENCY)) + File.separator
+                + sanitize(query.getParam(Parameters.TIME_PERIOD));
+        Partition partition = partitions.get(path);
+        if (partition == null) {
+            partition = new Partition(new File(directory, path));
+            partitions.put(path, partition);
+        }
+        return partition;
+    }
+
+    /**
+     * @param query
+     *            A query.
+     *
+     * @return The periods of the query.
+     *
+     * @throws IllegalArgumentException
+     *             If the query's time period is not a list of explicit
+     *             periods.
+     */
+    protected static String[] getPeriods(Query query) {
+        String timePeriod = query.getParam(Parameters.TIME_PERIOD);
+        if (timePeriod == null) {
+            throw new IllegalArgumentException("Only explicit time periods can be stored locally.");
+        }
+        String[] periods = timePeriod.split(",");
+        for (int i = 0; i < periods.length; ++i) {
+            periods[i] = periods[i].trim();
+            if (!periods[i].matches("^\\d{4}(\\d{2})?$")) {
+                throw new IllegalArgumentException("Only explicit time periods can be stored locally, not \""
+                        + timePeriod + "\".");
+            }
+        }
+        return periods;
+    }
+
+    /**
+     * @param value
+     *            A parameter value.
+     *
+     * @return The value, safe for use as a directory name.
+     */
+    protected static String sanitize(String value) {
+        return value == null ? "_" : value.replaceAll("[^A-Za-z0-9]", "_");
+    }
+
+    /**
+     * @return The current settings, as a query.
+     */
+    public Query toQuery() {
+        synchronized (builder) {
+            return builder.build();
+        }
+    }
+
+    /**
+     * Sets the maximum number of concurrent requests for retrieving a
+     * partition.
+     *
+     * @param parallelism
+     *            The maximum number of concurrent requests. Defaults to 4.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("At least one concurrent request has to be allowed.");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets how long retrieved data rows stay valid. Partitions retrieved
+     * longer ago are retrieved again when queried.
+     *
+     * @param timeToLive
+     *            The validity, or 0 to keep data rows forever (the default).
+     * @param unit
+     *            The time unit of the validity.
+     */
+    public void setTimeToLive(long timeToLive, TimeUnit unit) {
+        this.timeToLive = unit.toMillis(timeToLive);
+    }
+
+    /**
+     * Sets the reporter.
+     *
+     * @param reporter
+     *            The internal code for a country, territory or area, or "all"
+     *            to list all reporters.
+     *
+     * @see UNComtrade#setReporter(String)
+     */
+    public void setReporter(String reporter) {
+        synchronized (builder) {
+            builder.setReporter(reporter);
+        }
+    }
+
+    /**
+     * Sets the data frequency.
+     *
+     * @param dataFrequency
+     *            "A" for "annual" or "M" for "monthly".
+     *
+     * @see UNComtrade#setDataFrequency(String)
+     */
+    public void setDataFrequency(String dataFrequency) {
+        synchronized (builder) {
+            builder.setDataFrequency(dataFrequency);
+        }
+    }
+
+    /**
+     * Sets the time period.
+     *
+     * @param timePeriod
+     *            Depending on the data frequency, a comma-separated list of
+     *            years (YYYY) or years and months (YYYYMM). Unlike for the
+     *            client, "now" and "recent" are not allowed.
+     *
+     * @see UNComtrade#setTimePeriod(String)
+     */
+    public void setTimePeriod(String timePeriod) {
+        synchronized (builder) {
+            builder.setTimePeriod(timePeriod);
+        }
+    }
+
+    /**
+     * Sets the classification.
+     *
+     * @param classification
+     *            The trade data classification scheme to use.
+     *
+     * @see UNComtrade#setClassification(String)
+     */
+    public void setClassification(String classification) {
+        synchronized (builder) {
+            builder.setClassification(classification);
+        }
+    }
+
+    /**
+     * Sets the partner area.
+     *
+     * @param partnerArea
+     *            The internal code for a country, territory or area (0 being
+     *            the whole world), or "all" to list all reporters.
+     *
+     * @see UNComtrade#setPartnerArea(String)
+     */
+    public void setPartnerArea(String partnerArea) {
+        synchronized (builder) {
+            builder.setPartnerArea(partnerArea);
+        }
+    }
+
+    /**
+     * Sets the trade flow.
+     *
+     * @param tradeFlow
+     *            1 for imports, 2 for exports, 3/4 for re-export/-import or
+     *            "all".
+     *
+     * @see UNComtrade#setTradeFlow(String)
+     */
+    public void setTradeFlow(String tradeFlow) {
+        synchronized (builder) {
+            builder.setTradeFlow(tradeFlow);
+        }
+    }
+
+    /**
+     * Sets the classification code.
+     *
+     * @param classificationCode
+     *            The classification codes (depending on the classification
+     *            scheme used) to list.
+     *
+     * @see UNComtrade#setClassificationCode(String)
+     */
+    public void setClassificationCode(String classificationCode) {
+        synchronized (builder) {
+            builder.setClassificationCode(classificationCode);
+        }
+    }
+
+    /**
+     * Sets the trade data type.
+     *
+     * @param tradeDataType
+     *            "C" for commodities or "S" for futures.
+     *
+     * @see UNComtrade#setTradeDataType(String)
+     */
+    public void setTradeDataType(String tradeDataType) {
+        synchronized (builder) {
+            builder.setTradeDataType(tradeDataType);
+        }
+    }
+
+}
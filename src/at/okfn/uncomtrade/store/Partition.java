@@ -0,0 +1,199 @@
+package at.okfn.uncomtrade.store;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+
+/**
+ * A partition of a {@link LocalTradeStore}: all stored data rows of one trade
+ * data type, classification, data frequency and period.
+ *
+ * The data rows are kept in append-only segment files (binary snapshots, see
+ * {@link at.okfn.uncomtrade.SnapshotWriter}), one per retrieval, which are
+ * listed in the partition's manifest. Segments may overlap; when reading, a
+ * row is taken from the most recently retrieved segment selecting it.
+ */
+public class Partition {
+
+    /**
+     * The name of the manifest file.
+     */
+    public static final String MANIFEST = "manifest.json";
+
+    /**
+     * The suffix of segment files.
+     */
+    public static final String SUFFIX = ".snapshot";
+
+    /**
+     * The JSON binding for the manifest.
+     */
+    protected static final Gson gson = new Gson();
+
+    /**
+     * The directory holding the partition's files.
+     */
+    protected final File directory;
+
+    /**
+     * The contents of the manifest.
+     */
+    protected Manifest manifest;
+
+    /**
+     * Opens a partition, reading its manifest if it exists.
+     *
+     * @param directory
+     *            The directory holding the partition's files.
+     *
+     * @throws IOException
+     *             If the manifest could not be read.
+     */
+    public Partition(File directory) throws IOException {
+        this.directory = directory;
+        File file = new File(directory, MANIFEST);
+        if (file.isFile()) {
+            try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                manifest = gson.fromJson(in, Manifest.class);
+            }
+            catch (JsonParseException e) {
+                throw new IOException("Invalid manifest " + file + ".", e);
+            }
+        }
+        if (manifest == null) {
+            manifest = new Manifest();
+        }
+    }
+
+    /**
+     * @return The directory holding the partition's files.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return The segments, from the least to the most recently retrieved.
+     */
+    public List<Segment> getSegments() {
+        return new ArrayList<Segment>(manifest.segments);
+    }
+
+    /**
+     * @param segment
+     *            A segment of this partition.
+     *
+     * @return The segment file.
+     */
+    public File getFile(Segment segment) {
+        return new File(directory, segment.getFile());
+    }
+
+    /**
+     * Checks whether the partition holds all data rows selected by a segment.
+     *
+     * @param wanted
+     *            The selection to check.
+     * @param retrievedAfter
+     *            The time, in milliseconds since the epoch, before which
+     *            retrieved segments are considered outdated.
+     *
+     * @return Whether a segment retrieved after the given time includes the
+     *         selection.
+     */
+    public boolean covers(Segment wanted, long retrievedAfter) {
+        for (Segment segment : manifest.segments) {
+            if (segment.getRetrieved() >= retrievedAfter && segment.covers(wanted)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return A new, unused segment file.
+     */
+    public File createSegmentFile() {
+        directory.mkdirs();
+        File file;
+        do {
+            file = new File(directory, "segment-" + manifest.nextSegment++ + SUFFIX);
+        }
+        while (file.exists());
+        return file;
+    }
+
+    /**
+     * Adds a completely written segment, replacing all segments it includes.
+     *
+     * @param segment
+     *            The new segment.
+     *
+     * @throws IOException
+     *             If the manifest could not be written.
+     */
+    public void add(Segment segment) throws IOException {
+        List<File> obsolete = new ArrayList<File>();
+        Iterator<Segment> it = manifest.segments.iterator();
+        while (it.hasNext()) {
+            Segment other = it.next();
+            if (segment.covers(other)) {
+                it.remove();
+                obsolete.add(getFile(other));
+            }
+        }
+        manifest.segments.add(segment);
+        writeManifest();
+        // Only delete the files once the manifest no longer refers to them.
+        for (File file : obsolete) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Writes the manifest, replacing the previous one atomically.
+     */
+    protected void writeManifest() throws IOException {
+        directory.mkdirs();
+        File temp = new File(directory, MANIFEST + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            gson.toJson(manifest, out);
+        }
+        Files.move(temp.toPath(), new File(directory, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The contents of a manifest file.
+     */
+    protected static class Manifest {
+
+        /**
+         * The number of the next segment file.
+         */
+        protected int nextSegment = 1;
+
+        /**
+         * The segments, from the least to the most recently retrieved.
+         */
+        protected List<Segment> segments = new ArrayList<Segment>();
+
+    }
+
+}
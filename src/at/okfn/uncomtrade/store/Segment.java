@@ -0,0 +1,256 @@
+package at.okfn.uncomtrade.store;
+
+
+import java.util.HashSet;
+import java.util.Set;
+
+import at.okfn.uncomtrade.DataRow;
+import at.okfn.uncomtrade.Parameters;
+import at.okfn.uncomtrade.Query;
+
+
+/**
+ * Describes a segment file of a {@link LocalTradeStore} partition: which
+ * reporters, partners, trade flows and classification codes were retrieved
+ * into it, and when.
+ *
+ * A segment always holds the complete result of its selection within the
+ * partition, so any data row matching the selection is known to be in the
+ * segment. Instances are stored in the partition's manifest.
+ */
+public class Segment {
+
+    /**
+     * The name of the segment file, relative to the partition directory.
+     */
+    protected String file;
+
+    /**
+     * The reporters, as a comma-separated list or "all".
+     */
+    protected String reporter;
+
+    /**
+     * The partner areas, as a comma-separated list or "all".
+     */
+    protected String partnerArea;
+
+    /**
+     * The trade flows, as a comma-separated list or "all".
+     */
+    protected String tradeFlow;
+
+    /**
+     * The classification codes, as a comma-separated list, "ALL" or "AG1" to
+     * "AG6" for all codes of an aggregation level.
+     */
+    protected String classificationCode;
+
+    /**
+     * When the segment was retrieved, in milliseconds since the epoch.
+     */
+    protected long retrieved;
+
+    /**
+     * The number of data rows in the segment.
+     */
+    protected int rows;
+
+    /**
+     * The parsed reporters, or null for all.
+     */
+    protected transient Set<String> reporters;
+
+    /**
+     * The parsed partner areas, or null for all.
+     */
+    protected transient Set<String> partnerAreas;
+
+    /**
+     * The parsed trade flows, or null for all.
+     */
+    protected transient Set<String> tradeFlows;
+
+    /**
+     * The parsed classification codes, or null for all.
+     */
+    protected transient Set<String> classificationCodes;
+
+    /**
+     * The aggregation level of all selected classification codes, or 0 if
+     * the codes are listed explicitly.
+     */
+    protected transient int aggregationLevel;
+
+    /**
+     * Whether the transient fields have been initialized.
+     */
+    protected transient boolean parsed = false;
+
+    /**
+     * Creates an empty segment, for binding from JSON.
+     */
+    protected Segment() {}
+
+    /**
+     * Creates a segment description for the selection of a query.
+     *
+     * @param file
+     *            The name of the segment file.
+     * @param query
+     *            The query selecting the data rows.
+     * @param retrieved
+     *            When the segment was retrieved, in milliseconds since the
+     *            epoch.
+     * @param rows
+     *            The number of data rows in the segment.
+     */
+    public Segment(String file, Query query, long retrieved, int rows) {
+        this.file = file;
+        reporter = query.getParam(Parameters.REPORTER);
+        partnerArea = query.getParam(Parameters.PARTNER_AREA);
+        tradeFlow = query.getParam(Parameters.TRADE_FLOW);
+        classificationCode = query.getParam(Parameters.CLASSIFICATION_CODE);
+        this.retrieved = retrieved;
+        this.rows = rows;
+    }
+
+    /**
+     * @return The name of the segment file, relative to the partition
+     *         directory.
+     */
+    public String getFile() {
+        return file;
+    }
+
+    /**
+     * @return When the segment was retrieved, in milliseconds since the
+     *         epoch.
+     */
+    public long getRetrieved() {
+        return retrieved;
+    }
+
+    /**
+     * @return The number of data rows in the segment.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Checks whether a data row is part of this segment's selection.
+     *
+     * @param row
+     *            The data row.
+     *
+     * @return Whether the row matches the selection.
+     */
+    public boolean matches(DataRow row) {
+        parse();
+        if (!matches(reporters, row.getRtCode()) || !matches(partnerAreas, row.getPtCode())
+                || !matches(tradeFlows, row.getRgCode())) {
+            return false;
+        }
+        if (aggregationLevel > 0) {
+            return row.getAggrLevel() != null && row.getAggrLevel() == aggregationLevel;
+        }
+        return classificationCodes == null || classificationCodes.contains(row.getCmdCode());
+    }
+
+    /**
+     * Checks whether this segment's selection includes that of another one.
+     *
+     * @param other
+     *            The other segment.
+     *
+     * @return Whether all data rows selected by the other segment are
+     *         selected by this one as well.
+     */
+    public boolean covers(Segment other) {
+        parse();
+        other.parse();
+        if (aggregationLevel > 0 && aggregationLevel != other.aggregationLevel) {
+            return false;
+        }
+        if (aggregationLevel == 0 && other.aggregationLevel > 0 && classificationCodes != null) {
+            return false;
+        }
+        return covers(reporters, other.reporters) && covers(partnerAreas, other.partnerAreas)
+                && covers(tradeFlows, other.tradeFlows)
+                && (aggregationLevel > 0 || covers(classificationCodes, other.classificationCodes));
+    }
+
+    /**
+     * Parses the selection, once.
+     */
+    protected void parse() {
+        if (parsed) {
+            return;
+        }
+        reporters = parseList(reporter, true);
+        partnerAreas = parseList(partnerArea, true);
+        tradeFlows = parseList(tradeFlow, true);
+        classificationCodes = parseList(classificationCode, false);
+        aggregationLevel = 0;
+        if (classificationCode != null && classificationCode.matches("^AG[1-6]$")) {
+            aggregationLevel = classificationCode.charAt(2) - '0';
+            classificationCodes = null;
+        }
+        parsed = true;
+    }
+
+    /**
+     * @param value
+     *            A comma-separated list, or "all".
+     * @param numeric
+     *            Whether the list holds numeric codes, which are normalized
+     *            the way data rows report them, such as "40" for "040".
+     *
+     * @return The listed values, or null for all.
+     */
+    protected static Set<String> parseList(String value, boolean numeric) {
+        if (value == null || value.trim().equalsIgnoreCase("all")) {
+            return null;
+        }
+        Set<String> values = new HashSet<String>();
+        for (String item : value.split(",")) {
+            item = item.trim();
+            if (numeric) {
+                try {
+                    item = Integer.valueOf(item).toString();
+                }
+                catch (NumberFormatException e) {
+                    // Not a code, so it never matches a data row.
+                }
+            }
+            values.add(item);
+        }
+        return values;
+    }
+
+    /**
+     * @param values
+     *            The selected values, or null for all.
+     * @param value
+     *            A property value of a data row.
+     *
+     * @return Whether the value is selected.
+     */
+    protected static boolean matches(Set<String> values, Integer value) {
+        return values == null || value != null && values.contains(value.toString());
+    }
+
+    /**
+     * @param values
+     *            The selected values, or null for all.
+     * @param others
+     *            Other selected values, or null for all.
+     *
+     * @return Whether all of the other values are selected as well.
+     */
+    protected static boolean covers(Set<String> values, Set<String> others) {
+        return values == null || others != null && values.containsAll(others);
+    }
+
+}
@@ -0,0 +1,27 @@
+package at.okfn.uncomtrade;
+
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+import org.junit.runners.Suite.SuiteClasses;
+
+import at.okfn.uncomtrade.resilience.CircuitBreakerTest;
+import at.okfn.uncomtrade.resilience.HedgePolicyTest;
+import at.okfn.uncomtrade.resilience.RetryPolicyTest;
+import at.okfn.uncomtrade.scheduling.RequestSchedulerTest;
+import at.okfn.uncomtrade.scheduling.TokenBucketTest;
+import at.okfn.uncomtrade.store.LocalTradeStoreTest;
+import at.okfn.uncomtrade.store.PartitionTest;
+import at.okfn.uncomtrade.store.SegmentTest;
+
+
+/**
+ * Runs all tests.
+ */
+@RunWith(Suite.class)
+@SuiteClasses({ QueryTest.class, QueryBatcherTest.class, SnapshotTest.class, TokenBucketTest.class,
+        RequestSchedulerTest.class, RetryPolicyTest.class, CircuitBreakerTest.class, HedgePolicyTest.class,
+        SegmentTest.class, PartitionTest.class, LocalTradeStoreTest.class })
+public class AllTests {
+
+}
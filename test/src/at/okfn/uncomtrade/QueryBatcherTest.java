@@ -0,0 +1,212 @@
+package at.okfn.uncomtrade;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import at.okfn.uncomtrade.benchmark.StubServer;
+
+
+/**
+ * Tests the merging of queries into fewer requests, against a local stub
+ * server.
+ */
+public class QueryBatcherTest {
+
+    /**
+     * The stub server.
+     */
+    protected StubServer server;
+
+    /**
+     * The client sending the requests.
+     */
+    protected UNComtrade client;
+
+    /**
+     * The batcher under test.
+     */
+    protected QueryBatcher batcher;
+
+    /**
+     * The query the tested queries are based on.
+     */
+    protected Query base;
+
+    /**
+     * Starts the server and creates the client and batcher.
+     */
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer(0);
+        server.setRows(0);
+        server.start();
+        client = new UNComtrade(server.getApiUrl());
+        client.setCoalescing(false);
+        batcher = new QueryBatcher(client);
+        batcher.setWindow(100, TimeUnit.MILLISECONDS);
+        base = client.toQuery().toBuilder().setTimePeriod("2012").build();
+    }
+
+    /**
+     * Closes the client and stops the server.
+     */
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop();
+    }
+
+    /**
+     * Queries differing only in the reporter are sent as one request, whose
+     * rows are split back by reporter.
+     */
+    @Test
+    public void testMergesQueries() throws Exception {
+        server.setResponse(reporters("40,56"), response(3, 40, 56, 40));
+        Future<DataSet> austria = batcher.submit(reporters("40"));
+        Future<DataSet> belgium = batcher.submit(reporters("56"));
+        Future<DataSet> again = batcher.submit(reporters("40"));
+
+        assertReporters(austria.get(5, TimeUnit.SECONDS), 40, 40);
+        assertReporters(belgium.get(5, TimeUnit.SECONDS), 56);
+        assertReporters(again.get(5, TimeUnit.SECONDS), 40, 40);
+        assertEquals(1, server.getRequestCount());
+        assertEquals(1, batcher.getRequestCount());
+    }
+
+    /**
+     * Queries which did not get any rows are sent on their own, if some rows
+     * could not be assigned to any query.
+     */
+    @Test
+    public void testRetriesQueriesWithoutRows() throws Exception {
+        server.setResponse(reporters("40,56"), response(2, 40, 999));
+        server.setResponse(reporters("56"), response(1, 56));
+        Future<DataSet> austria = batcher.submit(reporters("40"));
+        Future<DataSet> belgium = batcher.submit(reporters("56"));
+
+        assertReporters(austria.get(5, TimeUnit.SECONDS), 40);
+        assertReporters(belgium.get(5, TimeUnit.SECONDS), 56);
+        assertEquals(2, server.getRequestCount());
+    }
+
+    /**
+     * The queries of a truncated merged request are sent separately.
+     */
+    @Test
+    public void testSplitsTruncatedRequest() throws Exception {
+        server.setResponse(reporters("40,56"), response(3, 40, 56));
+        server.setResponse(reporters("40"), response(2, 40, 40));
+        server.setResponse(reporters("56"), response(1, 56));
+        Future<DataSet> austria = batcher.submit(reporters("40"));
+        Future<DataSet> belgium = batcher.submit(reporters("56"));
+
+        assertReporters(austria.get(5, TimeUnit.SECONDS), 40, 40);
+        assertReporters(belgium.get(5, TimeUnit.SECONDS), 56);
+        assertEquals(3, server.getRequestCount());
+    }
+
+    /**
+     * Queries with a lower limit are not merged, as the limit would apply to
+     * all of them together.
+     */
+    @Test
+    public void testDoesNotMergeLimitedQueries() throws Exception {
+        server.setResponse(reporters("40"), response(1, 40));
+        server.setResponse(reporters("56"), response(1, 56));
+        Future<DataSet> austria = batcher.submit(reporters("40").toBuilder().setLimit(100).build());
+        Future<DataSet> belgium = batcher.submit(reporters("56").toBuilder().setLimit(100).build());
+
+        assertReporters(austria.get(5, TimeUnit.SECONDS), 40);
+        assertReporters(belgium.get(5, TimeUnit.SECONDS), 56);
+        assertEquals(2, server.getRequestCount());
+    }
+
+    /**
+     * Queries still waiting for the window to end fail when the client is
+     * closed, and later queries fail at once.
+     */
+    @Test
+    public void testFailsPendingQueriesOnClose() throws Exception {
+        batcher.setWindow(10, TimeUnit.SECONDS);
+        Future<DataSet> pending = batcher.submit(reporters("40"));
+        client.close();
+        assertFailed(pending);
+        assertFailed(batcher.submit(reporters("56")));
+        assertEquals(0, server.getRequestCount());
+    }
+
+    /**
+     * @param reporter
+     *            The reporter codes.
+     *
+     * @return The base query for the given reporters.
+     */
+    protected Query reporters(String reporter) {
+        return base.toBuilder().setParam(Parameters.REPORTER, reporter).build();
+    }
+
+    /**
+     * Builds a response.
+     *
+     * @param count
+     *            The total number of rows reported in the metadata.
+     * @param reporters
+     *            The reporter codes of the rows.
+     *
+     * @return The JSON response.
+     */
+    protected static String response(int count, int... reporters) {
+        StringBuilder json = new StringBuilder("{\"validation\":{\"status\":{\"name\":\"Ok\",\"value\":0},"
+                + "\"count\":{\"value\":" + count + "}},\"dataset\":[");
+        for (int i = 0; i < reporters.length; ++i) {
+            json.append(i == 0 ? "" : ",").append("{\"rtCode\":").append(reporters[i])
+                    .append(",\"ptCode\":0,\"period\":2012,\"cmdCode\":\"TOTAL\",\"TradeValue\":1000}");
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * Checks the reporter codes of a data set.
+     *
+     * @param dataSet
+     *            The data set.
+     * @param reporters
+     *            The expected reporter codes, in order.
+     */
+    protected static void assertReporters(DataSet dataSet, int... reporters) {
+        assertEquals(reporters.length, dataSet.size());
+        int i = 0;
+        for (DataRow row : dataSet) {
+            assertEquals(Integer.valueOf(reporters[i++]), row.getRtCode());
+        }
+    }
+
+    /**
+     * Checks that a pending result fails.
+     *
+     * @param future
+     *            The pending result.
+     */
+    protected static void assertFailed(Future<DataSet> future) throws Exception {
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("The query should have failed.");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException || e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+package at.okfn.uncomtrade;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Test;
+
+
+/**
+ * Tests the canonical URLs of queries, which also serve as cache keys.
+ */
+public class QueryTest {
+
+    /**
+     * The order of list items does not matter.
+     */
+    @Test
+    public void testListOrderIsIgnored() {
+        Query query = Query.builder().setParam(Parameters.REPORTER, "40,56").setTimePeriod("2013,2012").build();
+        Query reordered = Query.builder().setTimePeriod("2012,2013").setParam(Parameters.REPORTER, "56,40").build();
+        assertEquals(query, reordered);
+        assertEquals(query.getUrl(), reordered.getUrl());
+        assertEquals(query.hashCode(), reordered.hashCode());
+    }
+
+    /**
+     * Different lists still map to different URLs.
+     */
+    @Test
+    public void testDifferentListsDiffer() {
+        Query query = Query.builder().setParam(Parameters.REPORTER, "40,56").build();
+        assertNotEquals(query, Query.builder().setParam(Parameters.REPORTER, "40,57").build());
+        assertNotEquals(query, Query.builder().setParam(Parameters.REPORTER, "40").build());
+    }
+
+}
@@ -0,0 +1,170 @@
+package at.okfn.uncomtrade;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests that snapshots written by {@link SnapshotWriter} are read back
+ * unchanged by {@link SnapshotReader}.
+ */
+public class SnapshotTest {
+
+    /**
+     * The number of rows with distinct commodity descriptions, which
+     * overflow the dictionary.
+     */
+    protected static final int DISTINCT_ROWS = SnapshotWriter.MAX_DICTIONARY_SIZE + 1000;
+
+    /**
+     * The directory for the snapshot files.
+     */
+    @ClassRule
+    public static final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The rows written to the snapshots.
+     */
+    protected static List<DataRow> rows;
+
+    /**
+     * Builds the rows to write.
+     */
+    @BeforeClass
+    public static void setUpClass() {
+        rows = new ArrayList<DataRow>();
+        rows.add(new DataRow());
+        rows.add(createRow(Integer.MIN_VALUE, Long.MIN_VALUE, "\u00d6sterreich"));
+        rows.add(createRow(Integer.MAX_VALUE, Long.MAX_VALUE, "\u65e5\u672c \ud83d\ude00"));
+        rows.add(new DataRow());
+        rows.add(createRow(Integer.MIN_VALUE, Long.MAX_VALUE, ""));
+        for (int i = 0; i < DISTINCT_ROWS; ++i) {
+            DataRow row = createRow(i % 7 - 3, (long) i * i - 1000, i % 2 == 0 ? "\u00d6sterreich" : null);
+            DataRowField.CMD_DESC_E.set(row, "Commodity " + i);
+            rows.add(row);
+        }
+    }
+
+    /**
+     * An uncompressed snapshot is read back unchanged from a mapped file.
+     */
+    @Test
+    public void testUncompressedMapped() throws IOException {
+        File file = write(false);
+        try (SnapshotReader reader = SnapshotReader.open(file)) {
+            assertRows(reader);
+        }
+    }
+
+    /**
+     * An uncompressed snapshot is read back unchanged from a stream.
+     */
+    @Test
+    public void testUncompressedStreaming() throws IOException {
+        File file = write(false);
+        try (SnapshotReader reader = new SnapshotReader(new FileInputStream(file))) {
+            assertRows(reader);
+        }
+    }
+
+    /**
+     * A compressed snapshot is read back unchanged from a mapped file.
+     */
+    @Test
+    public void testCompressedMapped() throws IOException {
+        File file = write(true);
+        try (SnapshotReader reader = SnapshotReader.open(file)) {
+            assertRows(reader);
+        }
+    }
+
+    /**
+     * A compressed snapshot is read back unchanged from a stream.
+     */
+    @Test
+    public void testCompressedStreaming() throws IOException {
+        File file = write(true);
+        try (SnapshotReader reader = new SnapshotReader(new FileInputStream(file))) {
+            assertRows(reader);
+        }
+    }
+
+    /**
+     * Creates a row with all properties set.
+     *
+     * @param number
+     *            The value of all integer properties.
+     * @param quantity
+     *            The value of all long properties.
+     * @param text
+     *            The value of all string properties.
+     *
+     * @return The new row.
+     */
+    protected static DataRow createRow(int number, long quantity, String text) {
+        DataRow row = new DataRow();
+        for (DataRowField field : DataRowField.values()) {
+            switch (field.getType()) {
+                case INT:
+                    field.set(row, number);
+                    break;
+
+                case LONG:
+                    field.set(row, quantity);
+                    break;
+
+                default:
+                    field.set(row, text);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Writes the rows to a new snapshot file.
+     *
+     * @param compress
+     *            Whether to compress the snapshot.
+     *
+     * @return The snapshot file.
+     */
+    protected static File write(boolean compress) throws IOException {
+        File file = folder.newFile();
+        SnapshotWriter.write(rows, file, compress);
+        return file;
+    }
+
+    /**
+     * Checks that a snapshot holds exactly the written rows.
+     *
+     * @param reader
+     *            The reader for the snapshot.
+     */
+    protected static void assertRows(SnapshotReader reader) throws IOException {
+        DataSet dataSet = reader.readAll();
+        assertEquals(rows.size(), dataSet.size());
+        Iterator<DataRow> read = dataSet.iterator();
+        for (int i = 0; i < rows.size(); ++i) {
+            DataRow expected = rows.get(i);
+            DataRow actual = read.next();
+            for (DataRowField field : DataRowField.values()) {
+                assertEquals("Row " + i + ", " + field, field.get(expected), field.get(actual));
+            }
+        }
+        assertFalse(reader.hasNext());
+    }
+
+}
@@ -0,0 +1,177 @@
+package at.okfn.uncomtrade.resilience;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import at.okfn.uncomtrade.ApiResponseException;
+import at.okfn.uncomtrade.DataSet;
+import at.okfn.uncomtrade.UNComtrade;
+import at.okfn.uncomtrade.benchmark.StubServer;
+import at.okfn.uncomtrade.benchmark.StubServer.Fault;
+import at.okfn.uncomtrade.resilience.CircuitBreaker.State;
+import at.okfn.uncomtrade.scheduling.SimulatedClock;
+
+
+/**
+ * Tests the circuit breaker, against a local stub server injecting
+ * faults.
+ */
+public class CircuitBreakerTest {
+
+    /**
+     * The stub server injecting faults.
+     */
+    protected StubServer server;
+
+    /**
+     * The client under test.
+     */
+    protected UNComtrade client;
+
+    /**
+     * The clock of the circuit breaker.
+     */
+    protected SimulatedClock clock;
+
+    /**
+     * The circuit breaker under test, opening after two failures for 30
+     * seconds.
+     */
+    protected CircuitBreaker breaker;
+
+    /**
+     * Starts the server and creates the client.
+     */
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer(0);
+        server.setRows(1);
+        server.start();
+        clock = new SimulatedClock();
+        breaker = new CircuitBreaker(2, 30, TimeUnit.SECONDS, clock);
+        client = new UNComtrade(server.getApiUrl());
+        client.setCoalescing(false);
+        client.setRetryPolicy(null);
+        client.setCircuitBreaker(breaker);
+    }
+
+    /**
+     * Closes the client and stops the server.
+     */
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop();
+    }
+
+    /**
+     * The breaker opens after consecutive server errors, and then fails
+     * requests without sending them.
+     */
+    @Test
+    public void testOpensAfterConsecutiveFailures() throws IOException {
+        open();
+        clock.advance(TimeUnit.SECONDS.toNanos(29));
+        expectOpen();
+        assertEquals(2, server.getRequestCount());
+    }
+
+    /**
+     * Once the open time has passed, a single trial request is sent, and the
+     * breaker closes when it succeeds.
+     */
+    @Test
+    public void testClosesAfterSuccessfulTrial() throws Exception {
+        open();
+        clock.advance(TimeUnit.SECONDS.toNanos(30));
+        server.enqueue(Fault.slow(500, TimeUnit.MILLISECONDS));
+        Future<DataSet> trial = client.retrieveAsync();
+        while (server.getRequestCount() < 3) {
+            Thread.sleep(10);
+        }
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        expectOpen();
+
+        assertEquals(1, trial.get(5, TimeUnit.SECONDS).size());
+        assertEquals(State.CLOSED, breaker.getState());
+        assertEquals(1, client.retrieve().size());
+        assertEquals(4, server.getRequestCount());
+    }
+
+    /**
+     * A failed trial request opens the breaker for another period.
+     */
+    @Test
+    public void testReopensAfterFailedTrial() throws IOException {
+        open();
+        clock.advance(TimeUnit.SECONDS.toNanos(30));
+        server.enqueue(Fault.status(500));
+        expectFailure(500);
+        assertEquals(State.OPEN, breaker.getState());
+        expectOpen();
+        assertEquals(3, server.getRequestCount());
+    }
+
+    /**
+     * Client errors do not count as failures of the API.
+     */
+    @Test
+    public void testIgnoresClientErrors() throws IOException {
+        server.enqueue(Fault.status(400), Fault.status(400), Fault.status(400));
+        for (int i = 0; i < 3; ++i) {
+            expectFailure(400);
+        }
+        assertEquals(State.CLOSED, breaker.getState());
+    }
+
+    /**
+     * Opens the breaker with two server errors.
+     */
+    protected void open() throws IOException {
+        server.enqueue(Fault.status(503), Fault.status(503));
+        expectFailure(503);
+        assertEquals(State.CLOSED, breaker.getState());
+        expectFailure(503);
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    /**
+     * Checks that a request fails with the given status code.
+     *
+     * @param statusCode
+     *            The expected status code.
+     */
+    protected void expectFailure(int statusCode) throws IOException {
+        try {
+            client.retrieve();
+            fail("The request should have failed.");
+        }
+        catch (ApiResponseException e) {
+            assertEquals(statusCode, e.getStatusCode());
+        }
+    }
+
+    /**
+     * Checks that a request is not sent because the breaker is open.
+     */
+    protected void expectOpen() throws IOException {
+        long before = server.getRequestCount();
+        try {
+            client.retrieve();
+            fail("The breaker should have been open.");
+        }
+        catch (CircuitOpenException e) {
+            assertEquals(before, server.getRequestCount());
+        }
+    }
+
+}
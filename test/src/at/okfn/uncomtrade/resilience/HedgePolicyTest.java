@@ -0,0 +1,137 @@
+package at.okfn.uncomtrade.resilience;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import at.okfn.uncomtrade.UNComtrade;
+import at.okfn.uncomtrade.benchmark.StubServer;
+import at.okfn.uncomtrade.benchmark.StubServer.Fault;
+
+
+/**
+ * Tests the hedging of slow requests, against a local stub server
+ * injecting faults.
+ */
+public class HedgePolicyTest {
+
+    /**
+     * The stub server injecting faults.
+     */
+    protected StubServer server;
+
+    /**
+     * The client under test.
+     */
+    protected UNComtrade client;
+
+    /**
+     * The hedge policy under test.
+     */
+    protected HedgePolicy policy;
+
+    /**
+     * Starts the server and creates the client.
+     */
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer(0);
+        server.setRows(1);
+        server.start();
+        policy = new HedgePolicy(0.5, 1, 10);
+        client = new UNComtrade(server.getApiUrl());
+        client.setCoalescing(false);
+        client.setHedgePolicy(policy);
+    }
+
+    /**
+     * Closes the client and stops the server.
+     */
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop();
+    }
+
+    /**
+     * The delay is the given percentile of the recorded latencies, once there
+     * are enough of them.
+     */
+    @Test
+    public void testDelayIsPercentile() {
+        HedgePolicy policy = new HedgePolicy(0.5, 3, 4);
+        assertEquals(-1, policy.getDelay());
+        policy.record(300);
+        policy.record(100);
+        assertEquals(-1, policy.getDelay());
+        policy.record(200);
+        assertEquals(200, policy.getDelay());
+        policy.record(400);
+        policy.record(500);
+        policy.record(600);
+        // The two oldest latencies dropped out of the window.
+        assertEquals(400, policy.getDelay());
+    }
+
+    /**
+     * A second request is sent after the delay, its response is used, and the
+     * slow first request is aborted.
+     */
+    @Test
+    public void testHedgesSlowRequest() throws Exception {
+        policy.record(200);
+        server.enqueue(Fault.slow(10, TimeUnit.SECONDS));
+        long start = System.nanoTime();
+        assertEquals(1, client.retrieve().size());
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Answered after " + elapsed + " ms", elapsed >= 200 && elapsed < 5000);
+        assertEquals(2, server.getRequestCount());
+        awaitAborted(1);
+    }
+
+    /**
+     * Requests finishing within the delay are not hedged.
+     */
+    @Test
+    public void testDoesNotHedgeFastRequest() throws Exception {
+        policy.record(300);
+        assertEquals(1, client.retrieve().size());
+        Thread.sleep(600);
+        assertEquals(1, server.getRequestCount());
+    }
+
+    /**
+     * The second request is sent even if all background threads are busy.
+     */
+    @Test
+    public void testHedgesWhenAllBackgroundThreadsAreBusy() throws Exception {
+        client.setAsyncConcurrency(1);
+        policy.record(200);
+        server.enqueue(Fault.slow(10, TimeUnit.SECONDS));
+        assertEquals(1, client.retrieveAsync().get(5, TimeUnit.SECONDS).size());
+        assertEquals(2, server.getRequestCount());
+        awaitAborted(1);
+    }
+
+    /**
+     * Waits until the server noticed aborted responses.
+     *
+     * @param count
+     *            The expected number of aborted responses.
+     */
+    protected void awaitAborted(int count) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (server.getAbortedCount() < count && System.nanoTime() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, server.getAbortedCount());
+    }
+
+}
@@ -0,0 +1,148 @@
+package at.okfn.uncomtrade.resilience;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import at.okfn.uncomtrade.ApiResponseException;
+import at.okfn.uncomtrade.UNComtrade;
+import at.okfn.uncomtrade.benchmark.StubServer;
+import at.okfn.uncomtrade.benchmark.StubServer.Fault;
+
+
+/**
+ * Tests the retries of failed requests, against a local stub server
+ * injecting faults.
+ */
+public class RetryPolicyTest {
+
+    /**
+     * The stub server injecting faults.
+     */
+    protected StubServer server;
+
+    /**
+     * The client under test.
+     */
+    protected UNComtrade client;
+
+    /**
+     * Starts the server and creates the client.
+     */
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer(0);
+        server.setRows(1);
+        server.start();
+        client = new UNComtrade(server.getApiUrl());
+        client.setCoalescing(false);
+        client.setRetryPolicy(new RetryPolicy(4, 50, 2000, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Closes the client and stops the server.
+     */
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop();
+    }
+
+    /**
+     * The delays are randomized below a ceiling, which doubles with every
+     * attempt up to the maximum delay.
+     */
+    @Test
+    public void testDelaysGrowExponentially() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 400, TimeUnit.MILLISECONDS);
+        IOException error = new ApiResponseException(503, "Service Unavailable", -1);
+        long[] ceilings = { 100, 200, 400, 400, 400 };
+        for (int attempt = 1; attempt <= ceilings.length; ++attempt) {
+            long longest = 0;
+            for (int i = 0; i < 1000; ++i) {
+                long delay = policy.getDelay(attempt, error);
+                assertTrue(delay >= 0 && delay < ceilings[attempt - 1]);
+                longest = Math.max(longest, delay);
+            }
+            assertTrue(longest >= ceilings[attempt - 1] / 2);
+        }
+        assertEquals(-1, policy.getDelay(10, error));
+    }
+
+    /**
+     * A "Retry-After" time is waited at least, unless it exceeds the maximum
+     * delay.
+     */
+    @Test
+    public void testDelayRespectsRetryAfter() {
+        RetryPolicy policy = new RetryPolicy(4, 100, 2000, TimeUnit.MILLISECONDS);
+        assertTrue(policy.getDelay(1, new ApiResponseException(409, "Conflict", 1500)) >= 1500);
+        assertEquals(-1, policy.getDelay(1, new ApiResponseException(409, "Conflict", 3000)));
+    }
+
+    /**
+     * Server errors are retried until a request succeeds.
+     */
+    @Test
+    public void testRetriesServerErrors() throws IOException {
+        server.enqueue(Fault.status(500), Fault.status(503), Fault.status(502));
+        assertEquals(1, client.retrieve().size());
+        assertEquals(4, server.getRequestCount());
+    }
+
+    /**
+     * Rate limiting is retried after the time the server asked for.
+     */
+    @Test
+    public void testRetriesRateLimitingAfterRetryAfter() throws IOException {
+        server.enqueue(Fault.status(409, 1));
+        long start = System.nanoTime();
+        assertEquals(1, client.retrieve().size());
+        assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(1));
+        assertEquals(2, server.getRequestCount());
+    }
+
+    /**
+     * The last error is thrown once all attempts failed.
+     */
+    @Test
+    public void testGivesUpAfterMaxAttempts() throws IOException {
+        server.enqueue(Fault.status(503), Fault.status(503), Fault.status(503), Fault.status(504));
+        try {
+            client.retrieve();
+            fail("The request should have failed.");
+        }
+        catch (ApiResponseException e) {
+            assertEquals(504, e.getStatusCode());
+        }
+        assertEquals(4, server.getRequestCount());
+    }
+
+    /**
+     * Client errors are not retried.
+     */
+    @Test
+    public void testDoesNotRetryClientErrors() throws IOException {
+        for (int statusCode : new int[] { 400, 404 }) {
+            server.enqueue(Fault.status(statusCode));
+            long before = server.getRequestCount();
+            try {
+                client.retrieve();
+                fail("The request should have failed.");
+            }
+            catch (ApiResponseException e) {
+                assertEquals(statusCode, e.getStatusCode());
+            }
+            assertEquals(before + 1, server.getRequestCount());
+        }
+    }
+
+}
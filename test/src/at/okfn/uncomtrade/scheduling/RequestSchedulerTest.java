@@ -0,0 +1,177 @@
+package at.okfn.uncomtrade.scheduling;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the request scheduler, on a simulated clock.
+ */
+public class RequestSchedulerTest {
+
+    /**
+     * The simulated clock.
+     */
+    protected SimulatedClock clock;
+
+    /**
+     * The threads that got through the scheduler, in order.
+     */
+    protected List<String> acquired;
+
+    /**
+     * Creates the clock.
+     */
+    @Before
+    public void setUp() {
+        clock = new SimulatedClock();
+        acquired = new CopyOnWriteArrayList<String>();
+    }
+
+    /**
+     * Requests are spread out to keep within a quota.
+     */
+    @Test
+    public void testWaitsForQuota() throws InterruptedException {
+        RequestScheduler scheduler = new RequestScheduler(4, clock);
+        scheduler.addQuota(1, 1, TimeUnit.SECONDS);
+        for (int i = 0; i < 3; ++i) {
+            scheduler.acquire(0);
+            scheduler.release();
+        }
+        assertEquals(TimeUnit.SECONDS.toNanos(2), clock.nanoTime());
+    }
+
+    /**
+     * Requests wait for the strictest of several quotas.
+     */
+    @Test
+    public void testWaitsForStrictestQuota() throws InterruptedException {
+        RequestScheduler scheduler = new RequestScheduler(4, clock);
+        scheduler.addQuota(10, 1, TimeUnit.SECONDS);
+        scheduler.addQuota(2, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 3; ++i) {
+            scheduler.acquire(0);
+            scheduler.release();
+        }
+        assertEquals(TimeUnit.SECONDS.toNanos(30), clock.nanoTime());
+    }
+
+    /**
+     * No more than the maximum number of requests are in flight.
+     */
+    @Test
+    public void testLimitsRequestsInFlight() throws InterruptedException {
+        RequestScheduler scheduler = new RequestScheduler(1, clock);
+        scheduler.acquire(0);
+        Thread waiting = startAcquiring(scheduler, "waiting", 0);
+        awaitQueueLength(scheduler, 1);
+        assertEquals(1, scheduler.getInFlight());
+        assertTrue(acquired.isEmpty());
+
+        scheduler.release();
+        waiting.join(2000);
+        assertEquals(1, acquired.size());
+        assertEquals(0, scheduler.getQueueLength());
+        assertEquals(1, scheduler.getInFlight());
+    }
+
+    /**
+     * Queued requests of higher priority go first, and requests of the same
+     * priority go in order.
+     */
+    @Test
+    public void testOrdersByPriority() throws InterruptedException {
+        RequestScheduler scheduler = new RequestScheduler(1, clock);
+        scheduler.acquire(0);
+        Thread first = startAcquiring(scheduler, "first", 0);
+        awaitQueueLength(scheduler, 1);
+        Thread second = startAcquiring(scheduler, "second", 0);
+        awaitQueueLength(scheduler, 2);
+        Thread urgent = startAcquiring(scheduler, "urgent", 1);
+        awaitQueueLength(scheduler, 3);
+
+        for (Thread thread : new Thread[] { urgent, first, second }) {
+            scheduler.release();
+            thread.join(2000);
+        }
+        assertEquals("[urgent, first, second]", acquired.toString());
+    }
+
+    /**
+     * An interrupted request leaves the queue, and does not hold up the
+     * requests behind it.
+     */
+    @Test
+    public void testInterruptedRequestLeavesQueue() throws InterruptedException {
+        RequestScheduler scheduler = new RequestScheduler(1, clock);
+        scheduler.acquire(0);
+        Thread interrupted = startAcquiring(scheduler, "interrupted", 1);
+        awaitQueueLength(scheduler, 1);
+        Thread waiting = startAcquiring(scheduler, "waiting", 0);
+        awaitQueueLength(scheduler, 2);
+
+        interrupted.interrupt();
+        interrupted.join(2000);
+        assertEquals(1, scheduler.getQueueLength());
+        scheduler.release();
+        waiting.join(2000);
+        assertEquals("[waiting]", acquired.toString());
+    }
+
+    /**
+     * Starts a thread acquiring a slot in the scheduler, which records its
+     * name once it got through.
+     *
+     * @param scheduler
+     *            The scheduler.
+     * @param name
+     *            The name to record.
+     * @param priority
+     *            The priority of the request.
+     *
+     * @return The started thread.
+     */
+    protected Thread startAcquiring(final RequestScheduler scheduler, final String name,
+            final int priority) {
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    scheduler.acquire(priority);
+                    acquired.add(name);
+                }
+                catch (InterruptedException e) {}
+            }
+
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Waits until the given number of requests are queued.
+     *
+     * @param scheduler
+     *            The scheduler.
+     * @param length
+     *            The expected queue length.
+     */
+    protected void awaitQueueLength(RequestScheduler scheduler, int length) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (scheduler.getQueueLength() < length && System.nanoTime() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(length, scheduler.getQueueLength());
+    }
+
+}
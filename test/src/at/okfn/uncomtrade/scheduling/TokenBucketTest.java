@@ -0,0 +1,90 @@
+package at.okfn.uncomtrade.scheduling;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the token buckets, on a simulated clock.
+ */
+public class TokenBucketTest {
+
+    /**
+     * The simulated clock.
+     */
+    protected SimulatedClock clock;
+
+    /**
+     * A bucket of two tokens per second.
+     */
+    protected TokenBucket bucket;
+
+    /**
+     * Creates the clock and the bucket.
+     */
+    @Before
+    public void setUp() {
+        clock = new SimulatedClock();
+        bucket = new TokenBucket(2, 1, TimeUnit.SECONDS, clock);
+    }
+
+    /**
+     * A new bucket is full, and its tokens can be taken at once.
+     */
+    @Test
+    public void testStartsFull() {
+        assertEquals(2, bucket.getAvailableTokens());
+        assertEquals(0, bucket.getWaitTime());
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertEquals(0, bucket.getAvailableTokens());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    /**
+     * An empty bucket gets a token back after its share of the period.
+     */
+    @Test
+    public void testRefillsOverTime() {
+        bucket.tryAcquire();
+        bucket.tryAcquire();
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), bucket.getWaitTime());
+
+        clock.advance(TimeUnit.MILLISECONDS.toNanos(499));
+        assertFalse(bucket.tryAcquire());
+        clock.advance(TimeUnit.MILLISECONDS.toNanos(1));
+        assertEquals(0, bucket.getWaitTime());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    /**
+     * A bucket never holds more than its capacity, however long it was idle.
+     */
+    @Test
+    public void testDoesNotExceedCapacity() {
+        clock.advance(TimeUnit.HOURS.toNanos(1));
+        assertEquals(2, bucket.getAvailableTokens());
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        clock.advance(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(2, bucket.getAvailableTokens());
+    }
+
+    /**
+     * Buckets without any tokens or period are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsEmptyBucket() {
+        new TokenBucket(0, 1, TimeUnit.SECONDS, clock);
+    }
+
+}
@@ -0,0 +1,118 @@
+package at.okfn.uncomtrade.store;
+
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import at.okfn.uncomtrade.DataSet;
+import at.okfn.uncomtrade.Parameters;
+import at.okfn.uncomtrade.Query;
+import at.okfn.uncomtrade.UNComtrade;
+import at.okfn.uncomtrade.benchmark.StubServer;
+
+
+/**
+ * Tests the local store, against a local stub server.
+ */
+public class LocalTradeStoreTest {
+
+    /**
+     * The directory holding the store.
+     */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The stub server.
+     */
+    protected StubServer server;
+
+    /**
+     * The client retrieving missing data.
+     */
+    protected UNComtrade client;
+
+    /**
+     * The store under test.
+     */
+    protected LocalTradeStore store;
+
+    /**
+     * The query for all reporters in 2012.
+     */
+    protected Query all;
+
+    /**
+     * Starts the server and opens the store.
+     */
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer(0);
+        server.setRows(0);
+        server.start();
+        client = new UNComtrade(server.getApiUrl());
+        store = new LocalTradeStore(folder.getRoot(), client);
+        all = client.toQuery().toBuilder().setTimePeriod("2012").build();
+        server.setResponse(all, "{\"validation\":{\"status\":{\"name\":\"Ok\",\"value\":0},"
+                + "\"count\":{\"value\":3}},\"dataset\":[" + row(40) + "," + row(56) + "," + row(276) + "]}");
+    }
+
+    /**
+     * Closes the client and stops the server.
+     */
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop();
+    }
+
+    /**
+     * Queries covered by a stored segment are answered locally, even if
+     * their codes are written differently.
+     */
+    @Test
+    public void testAnswersCoveredQueriesLocally() throws IOException {
+        assertEquals(3, store.retrieve(all).size());
+        assertEquals(1, server.getRequestCount());
+
+        DataSet some = store.retrieve(all.toBuilder().setParam(Parameters.REPORTER, "040,276").build());
+        assertEquals(2, some.size());
+        assertEquals(1, server.getRequestCount());
+
+        // A new store reads the manifest written by the first one.
+        store = new LocalTradeStore(folder.getRoot(), client);
+        assertEquals(1, store.retrieve(all.toBuilder().setReporter("56").build()).size());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    /**
+     * Refreshing retrieves the data again, replacing the stored segment.
+     */
+    @Test
+    public void testRefreshReplacesSegment() throws IOException {
+        store.retrieve(all);
+        assertEquals(3, store.refresh(all));
+        assertEquals(2, server.getRequestCount());
+        assertEquals(3, store.retrieve(all).size());
+        assertEquals(2, server.getRequestCount());
+    }
+
+    /**
+     * @param reporter
+     *            The reporter code.
+     *
+     * @return The JSON of a data row for the reporter's total trade.
+     */
+    protected static String row(int reporter) {
+        return "{\"rtCode\":" + reporter + ",\"ptCode\":0,\"rgCode\":1,\"period\":2012,\"cmdCode\":\"TOTAL\","
+                + "\"TradeValue\":1000}";
+    }
+
+}
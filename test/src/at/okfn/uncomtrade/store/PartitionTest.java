@@ -0,0 +1,162 @@
+package at.okfn.uncomtrade.store;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.Gson;
+
+import at.okfn.uncomtrade.DataRow;
+import at.okfn.uncomtrade.DataRowHandler;
+import at.okfn.uncomtrade.Parameters;
+import at.okfn.uncomtrade.Query;
+import at.okfn.uncomtrade.SnapshotWriter;
+import at.okfn.uncomtrade.UNComtrade;
+
+
+/**
+ * Tests the segments and manifest of a partition.
+ */
+public class PartitionTest {
+
+    /**
+     * The directory holding the partition.
+     */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The partition under test.
+     */
+    protected Partition partition;
+
+    /**
+     * Opens an empty partition.
+     */
+    @Before
+    public void setUp() throws IOException {
+        partition = new Partition(folder.getRoot());
+    }
+
+    /**
+     * A segment replaces the older segments it covers, and deletes their
+     * files.
+     */
+    @Test
+    public void testReplacesCoveredSegments() throws IOException {
+        Segment austria = add("40", 1000, row(40, 1));
+        Segment germany = add("276", 2000, row(276, 1));
+        Segment both = add("40,276", 3000, row(40, 1));
+        assertEquals(1, partition.getSegments().size());
+        assertFalse(partition.getFile(austria).exists());
+        assertFalse(partition.getFile(germany).exists());
+        assertTrue(partition.getFile(both).exists());
+
+        assertTrue(partition.covers(SegmentTest.segment("276", "all", "TOTAL"), 3000));
+        assertFalse(partition.covers(SegmentTest.segment("276", "all", "TOTAL"), 3001));
+        assertFalse(partition.covers(SegmentTest.segment("56", "all", "TOTAL"), 0));
+    }
+
+    /**
+     * Rows selected by several segments are read from the most recently
+     * retrieved one.
+     */
+    @Test
+    public void testNewestSegmentWins() throws IOException {
+        add("all", 1000, row(40, 1), row(56, 1), row(276, 1));
+        add("040", 2000, row(40, 2));
+        assertEquals(2, partition.getSegments().size());
+
+        final StringBuilder read = new StringBuilder();
+        Segment wanted = SegmentTest.segment("all", "all", "TOTAL");
+        try (UNComtrade client = new UNComtrade("http://127.0.0.1:1/api/get")) {
+            LocalTradeStore store = new LocalTradeStore(folder.newFolder(), client);
+            int count = store.read(partition, wanted, new DataRowHandler() {
+
+                @Override
+                public void handle(DataRow row) {
+                    read.append(row.getRtCode()).append('=').append(row.getTradeValue()).append(' ');
+                }
+
+            });
+            assertEquals(3, count);
+        }
+        assertEquals("40=2 56=1 276=1 ", read.toString());
+    }
+
+    /**
+     * A manifest write which was interrupted before replacing the previous
+     * manifest leaves the partition as it was before.
+     */
+    @Test
+    public void testRecoversFromInterruptedManifestWrite() throws IOException {
+        Segment austria = add("40", 1000, row(40, 1));
+        // An interrupted write leaves a partial temporary manifest and a
+        // segment file the manifest does not refer to.
+        File orphan = partition.createSegmentFile();
+        SnapshotWriter.write(Arrays.asList(row(56, 1)), orphan, false);
+        try (OutputStream out = new FileOutputStream(new File(folder.getRoot(), Partition.MANIFEST + ".tmp"))) {
+            out.write("{\"nextSegment\":3,\"segm".getBytes(StandardCharsets.UTF_8));
+        }
+
+        partition = new Partition(folder.getRoot());
+        List<Segment> segments = partition.getSegments();
+        assertEquals(1, segments.size());
+        assertEquals(austria.getFile(), segments.get(0).getFile());
+        assertFalse(partition.covers(SegmentTest.segment("56", "all", "TOTAL"), 0));
+
+        Segment belgium = add("56", 2000, row(56, 2));
+        assertNotEquals(orphan.getName(), belgium.getFile());
+        assertEquals(2, new Partition(folder.getRoot()).getSegments().size());
+    }
+
+    /**
+     * Writes a segment and adds it to the partition.
+     *
+     * @param reporter
+     *            The reporters selected by the segment.
+     * @param retrieved
+     *            When the segment was retrieved.
+     * @param rows
+     *            The data rows of the segment.
+     *
+     * @return The added segment.
+     */
+    protected Segment add(String reporter, long retrieved, DataRow... rows) throws IOException {
+        File file = partition.createSegmentFile();
+        SnapshotWriter.write(Arrays.asList(rows), file, false);
+        Query query = Query.builder().setParam(Parameters.REPORTER, reporter).build();
+        Segment segment = new Segment(file.getName(), query, retrieved, rows.length);
+        partition.add(segment);
+        return segment;
+    }
+
+    /**
+     * @param reporter
+     *            The reporter code.
+     * @param tradeValue
+     *            The trade value.
+     *
+     * @return A data row for the total trade of the reporter with the world.
+     */
+    protected static DataRow row(int reporter, long tradeValue) {
+        return new Gson().fromJson("{\"rtCode\":" + reporter + ",\"ptCode\":0,\"rgCode\":1,"
+                + "\"cmdCode\":\"TOTAL\",\"TradeValue\":" + tradeValue + "}", DataRow.class);
+    }
+
+}
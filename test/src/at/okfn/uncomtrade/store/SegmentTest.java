@@ -0,0 +1,95 @@
+package at.okfn.uncomtrade.store;
+
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+
+import at.okfn.uncomtrade.DataRow;
+import at.okfn.uncomtrade.Parameters;
+import at.okfn.uncomtrade.Query;
+
+
+/**
+ * Tests the selections of segments.
+ */
+public class SegmentTest {
+
+    /**
+     * Selecting all values covers any list, but not the other way round.
+     */
+    @Test
+    public void testAllCoversLists() {
+        Segment all = segment("all", "all", "TOTAL");
+        Segment some = segment("40,56", "0", "TOTAL");
+        assertTrue(all.covers(some));
+        assertFalse(some.covers(all));
+        assertTrue(some.covers(segment("56", "0", "TOTAL")));
+        assertFalse(some.covers(segment("57", "0", "TOTAL")));
+        assertFalse(some.covers(segment("56", "0", "01")));
+    }
+
+    /**
+     * An aggregation level covers all codes of that level only.
+     */
+    @Test
+    public void testAggregationLevelCoversItsCodes() {
+        Segment level = segment("40", "0", "AG2");
+        assertTrue(level.covers(segment("40", "0", "AG2")));
+        assertFalse(level.covers(segment("40", "0", "AG4")));
+        assertTrue(level.matches(row(40, 0, "01", 2)));
+        assertFalse(level.matches(row(40, 0, "0101", 4)));
+    }
+
+    /**
+     * Numeric codes match the data rows however they are written.
+     */
+    @Test
+    public void testNormalizesNumericCodes() {
+        Segment padded = segment("040, 056", "000", "01");
+        assertTrue(padded.matches(row(40, 0, "01", 2)));
+        assertTrue(padded.matches(row(56, 0, "01", 2)));
+        assertFalse(padded.matches(row(4, 0, "01", 2)));
+        assertFalse(padded.matches(row(40, 0, "1", 2)));
+        assertTrue(padded.covers(segment("40", "0", "01")));
+        assertTrue(segment("40,56", "0", "01").covers(padded));
+    }
+
+    /**
+     * @param reporter
+     *            The reporters.
+     * @param partnerArea
+     *            The partner areas.
+     * @param classificationCode
+     *            The classification codes.
+     *
+     * @return A segment selecting the given values.
+     */
+    protected static Segment segment(String reporter, String partnerArea, String classificationCode) {
+        Query query = Query.builder().setParam(Parameters.REPORTER, reporter)
+                .setParam(Parameters.PARTNER_AREA, partnerArea)
+                .setParam(Parameters.CLASSIFICATION_CODE, classificationCode).build();
+        return new Segment(null, query, 0, 0);
+    }
+
+    /**
+     * @param reporter
+     *            The reporter code.
+     * @param partner
+     *            The partner code.
+     * @param commodity
+     *            The commodity code.
+     * @param aggregationLevel
+     *            The aggregation level of the commodity code.
+     *
+     * @return A data row with the given values.
+     */
+    protected static DataRow row(int reporter, int partner, String commodity, int aggregationLevel) {
+        return new Gson().fromJson("{\"rtCode\":" + reporter + ",\"ptCode\":" + partner + ",\"rgCode\":1,"
+                + "\"cmdCode\":\"" + commodity + "\",\"aggrLevel\":" + aggregationLevel + "}", DataRow.class);
+    }
+
+}